@@ -0,0 +1,149 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.cion.eclipse.mqtt5.benchmark.broker.SelfSignedCertificate;
+import org.cion.eclipse.mqtt5.benchmark.broker.StandInBroker;
+import org.cion.eclipse.mqtt5.client.IMqttToken;
+import org.cion.eclipse.mqtt5.client.MqttAsyncClient;
+import org.cion.eclipse.mqtt5.client.MqttConnectionOptions;
+import org.cion.eclipse.mqtt5.client.persist.MemoryPersistence;
+import org.cion.eclipse.mqtt5.common.MqttException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Publishing end to end, over the client's TCP, SSL, WebSocket and secure
+ * WebSocket network modules, to a {@link StandInBroker} in the same process.
+ * Each benchmark thread is a client of its own, so the number of clients is
+ * the number of threads, set with JMH's <code>-t</code> option.
+ * <p>
+ * The sampled times of {@link #publish(Client)} give the distribution of the
+ * time from publishing a message to its acknowledgement, and the throughput
+ * of {@link #publishWindow(Client)} the rate a client sustains with several
+ * messages in flight.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+public class BrokerBenchmark {
+	private static final int WINDOW = 50;
+
+	@Param({ "tcp", "ssl", "ws", "wss" })
+	public String transport;
+
+	@Param({ "0", "1", "2" })
+	public int qos;
+
+	@Param({ "64" })
+	public int payloadSize;
+
+	/** The delay of each packet the broker sends, in milliseconds. */
+	@Param({ "0" })
+	public int latency;
+
+	/** The share of the packets the broker sends that are lost. */
+	@Param({ "0" })
+	public double lossRate;
+
+	private StandInBroker broker;
+	private SSLContext sslContext;
+	private String serverURI;
+	private final AtomicInteger clients = new AtomicInteger();
+
+	@Setup
+	public void setUp() throws IOException, GeneralSecurityException {
+		broker = new StandInBroker();
+		broker.setLatency(latency, TimeUnit.MILLISECONDS);
+		broker.setLossRate(lossRate);
+		if (transport.equals("ssl") || transport.equals("wss")) {
+			sslContext = SelfSignedCertificate.createSSLContext();
+			broker.setSSLContext(sslContext);
+		}
+		serverURI = broker.listen(transport);
+	}
+
+	@TearDown
+	public void tearDown() {
+		broker.stop();
+	}
+
+	/**
+	 * A client, one for each benchmark thread.
+	 */
+	@State(Scope.Thread)
+	public static class Client {
+		MqttAsyncClient client;
+		String topic;
+		byte[] payload;
+		int qos;
+
+		@Setup
+		public void connect(BrokerBenchmark benchmark) throws MqttException {
+			int number = benchmark.clients.incrementAndGet();
+			client = new MqttAsyncClient(benchmark.serverURI, "benchmark-" + number, new MemoryPersistence());
+			MqttConnectionOptions options = new MqttConnectionOptions();
+			options.setKeepAliveInterval(0);
+			if (benchmark.sslContext != null) {
+				options.setSocketFactory(benchmark.sslContext.getSocketFactory());
+			}
+			client.connect(options).waitForCompletion();
+			topic = "benchmark/" + number;
+			payload = new byte[benchmark.payloadSize];
+			qos = benchmark.qos;
+		}
+
+		@TearDown
+		public void disconnect() throws MqttException {
+			client.disconnect().waitForCompletion();
+			client.close();
+		}
+	}
+
+	/**
+	 * Publishes one message and waits for it to complete.
+	 */
+	@Benchmark
+	public IMqttToken publish(Client client) throws MqttException {
+		IMqttToken token = client.client.publish(client.topic, client.payload, client.qos, false);
+		token.waitForCompletion();
+		return token;
+	}
+
+	/**
+	 * Publishes a window of messages before waiting for them.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(WINDOW)
+	public void publishWindow(Client client) throws MqttException {
+		IMqttToken[] tokens = new IMqttToken[WINDOW];
+		for (int i = 0; i < WINDOW; i++) {
+			tokens[i] = client.client.publish(client.topic, client.payload, client.qos, false);
+		}
+		for (IMqttToken token : tokens) {
+			token.waitForCompletion();
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A bounded, in-memory pipe of bytes, written by one thread and read by
+ * another. Writes block while the pipe is full and reads block while it is
+ * empty. Once the pipe is closed, writing to it fails and reading from it
+ * returns the bytes left and then the end of the stream.
+ */
+final class BytePipe {
+	private final byte[] buffer;
+	// Guarded by this
+	private int readPos = 0;
+	private int count = 0;
+	private boolean closed = false;
+
+	private final InputStream inputStream = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return BytePipe.this.read(b, off, len);
+		}
+
+		@Override
+		public int available() {
+			synchronized (BytePipe.this) {
+				return count;
+			}
+		}
+
+		@Override
+		public void close() {
+			BytePipe.this.close();
+		}
+	};
+
+	private final OutputStream outputStream = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			BytePipe.this.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			BytePipe.this.close();
+		}
+	};
+
+	/**
+	 * @param capacity the number of bytes the pipe holds before writes block
+	 */
+	BytePipe(int capacity) {
+		this.buffer = new byte[capacity];
+	}
+
+	InputStream getInputStream() {
+		return inputStream;
+	}
+
+	OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	private synchronized int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (count == 0) {
+			if (closed) {
+				return -1;
+			}
+			await();
+		}
+		int n = Math.min(len, count);
+		int first = Math.min(n, buffer.length - readPos);
+		System.arraycopy(buffer, readPos, b, off, first);
+		System.arraycopy(buffer, 0, b, off + first, n - first);
+		readPos = (readPos + n) % buffer.length;
+		count -= n;
+		notifyAll();
+		return n;
+	}
+
+	private synchronized void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			while (!closed && count == buffer.length) {
+				await();
+			}
+			if (closed) {
+				throw new IOException("Pipe closed");
+			}
+			int writePos = (readPos + count) % buffer.length;
+			int n = Math.min(len, Math.min(buffer.length - count, buffer.length - writePos));
+			System.arraycopy(b, off, buffer, writePos, n);
+			count += n;
+			off += n;
+			len -= n;
+			notifyAll();
+		}
+	}
+
+	private void await() throws InterruptedIOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+}
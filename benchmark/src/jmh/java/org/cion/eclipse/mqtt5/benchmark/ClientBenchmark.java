@@ -0,0 +1,108 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cion.eclipse.mqtt5.client.IMqttToken;
+import org.cion.eclipse.mqtt5.client.MqttAsyncClient;
+import org.cion.eclipse.mqtt5.client.MqttConnectionOptions;
+import org.cion.eclipse.mqtt5.client.MqttTopicMessage;
+import org.cion.eclipse.mqtt5.client.persist.MemoryPersistence;
+import org.cion.eclipse.mqtt5.common.MqttException;
+import org.cion.eclipse.mqtt5.common.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Publishing through the whole client, connected to a
+ * {@link LoopbackNetworkModule} so that no network or server is involved.
+ * Each message goes through the client state as it is sent, acknowledged and
+ * completed, and through the token store, the sender and the receiver.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClientBenchmark {
+	private static final int WINDOW = 100;
+
+	@Param({ "0", "1", "2" })
+	public int qos;
+
+	@Param({ "64" })
+	public int payloadSize;
+
+	private MqttAsyncClient client;
+	private byte[] payload;
+
+	@Setup
+	public void setUp() throws MqttException {
+		client = new MqttAsyncClient("loopback://benchmark", "benchmark", new MemoryPersistence());
+		MqttConnectionOptions options = new MqttConnectionOptions();
+		options.setKeepAliveInterval(0);
+		client.connect(options).waitForCompletion();
+		payload = new byte[payloadSize];
+	}
+
+	@TearDown
+	public void tearDown() throws MqttException {
+		client.disconnect().waitForCompletion();
+		client.close();
+	}
+
+	/**
+	 * Publishes one message and waits for it to complete, for the latency of a
+	 * single message.
+	 */
+	@Benchmark
+	public IMqttToken publish() throws MqttException {
+		IMqttToken token = client.publish("benchmark/topic", payload, qos, false);
+		token.waitForCompletion();
+		return token;
+	}
+
+	/**
+	 * Publishes a window of messages before waiting for them, for the
+	 * throughput of a client that keeps several messages in flight.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(WINDOW)
+	public void publishWindow() throws MqttException {
+		IMqttToken[] tokens = new IMqttToken[WINDOW];
+		for (int i = 0; i < WINDOW; i++) {
+			tokens[i] = client.publish("benchmark/topic", payload, qos, false);
+		}
+		for (IMqttToken token : tokens) {
+			token.waitForCompletion();
+		}
+	}
+
+	/**
+	 * Publishes the same window of messages as one batch, waiting on the one
+	 * token of the batch.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(WINDOW)
+	public void publishBatch() throws MqttException {
+		List<MqttTopicMessage> messages = new ArrayList<MqttTopicMessage>(WINDOW);
+		for (int i = 0; i < WINDOW; i++) {
+			messages.add(new MqttTopicMessage("benchmark/topic", new MqttMessage(payload, qos, false, null)));
+		}
+		client.publish(messages, null, null).waitForCompletion();
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cion.eclipse.mqtt5.client.MqttAsyncClient;
+import org.cion.eclipse.mqtt5.client.MqttClientPersistence;
+import org.cion.eclipse.mqtt5.client.MqttPingSender;
+import org.cion.eclipse.mqtt5.client.MqttToken;
+import org.cion.eclipse.mqtt5.client.internal.ClientComms;
+import org.cion.eclipse.mqtt5.client.internal.ClientState;
+import org.cion.eclipse.mqtt5.client.internal.CommsTokenStore;
+import org.cion.eclipse.mqtt5.client.internal.MqttConnectionState;
+import org.cion.eclipse.mqtt5.client.internal.MqttSessionState;
+import org.cion.eclipse.mqtt5.client.internal.Token;
+import org.cion.eclipse.mqtt5.client.persist.MemoryPersistence;
+import org.cion.eclipse.mqtt5.common.MqttException;
+import org.cion.eclipse.mqtt5.common.MqttMessage;
+import org.cion.eclipse.mqtt5.common.packet.MqttAck;
+import org.cion.eclipse.mqtt5.common.packet.MqttProperties;
+import org.cion.eclipse.mqtt5.common.packet.MqttPubAck;
+import org.cion.eclipse.mqtt5.common.packet.MqttPubComp;
+import org.cion.eclipse.mqtt5.common.packet.MqttPubRec;
+import org.cion.eclipse.mqtt5.common.packet.MqttPublish;
+import org.cion.eclipse.mqtt5.common.packet.MqttWireMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The client state on its own, as a message goes through it: submitted with
+ * send(), taken off the queue with get() as the sender would, and completed
+ * with notifyReceivedAck() as its acknowledgements arrive. Unlike
+ * {@link ClientBenchmark} it all runs on one thread, without the sender,
+ * receiver and callback threads or the codec.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClientStateBenchmark {
+
+	@Param({ "1", "2" })
+	public int qos;
+
+	private MqttAsyncClient client;
+	private MqttClientPersistence persistence;
+	private BenchmarkClientState state;
+	private MqttMessage message;
+
+	/** Starts nothing, as the benchmark does not keep the connection alive. */
+	private static final class NoPingSender implements MqttPingSender {
+		@Override
+		public void init(ClientComms comms) {
+		}
+
+		@Override
+		public void start() {
+		}
+
+		@Override
+		public void stop() {
+		}
+
+		@Override
+		public void schedule(long delayInMilliseconds) {
+		}
+	}
+
+	/** A token the benchmark completes itself, as the callback would. */
+	private static final class BenchmarkToken extends Token {
+		BenchmarkToken() {
+			super("benchmark");
+		}
+
+		void complete(MqttWireMessage ack) {
+			markComplete(ack, null);
+			notifyComplete();
+		}
+	}
+
+	/**
+	 * The client state without a callback, which completes each message on the
+	 * thread its acknowledgement arrives on.
+	 */
+	private static final class BenchmarkClientState extends ClientState {
+		private MqttToken completed;
+
+		BenchmarkClientState(MqttClientPersistence persistence, ClientComms comms, MqttPingSender pingSender)
+				throws MqttException {
+			super(persistence, new CommsTokenStore("benchmark"), null, comms, pingSender,
+					new MqttConnectionState("benchmark"));
+		}
+
+		@Override
+		protected void notifyResult(MqttWireMessage ack, MqttToken token, MqttException ex) {
+			((BenchmarkToken) token.internalTok).complete(ack);
+			completed = token;
+		}
+
+		MqttWireMessage take() throws MqttException {
+			MqttWireMessage message = get();
+			notifySent(message);
+			return message;
+		}
+
+		void receive(MqttAck ack) throws MqttException {
+			notifyReceivedAck(ack);
+			MqttToken token = completed;
+			if (token != null) {
+				completed = null;
+				notifyComplete(token);
+			}
+		}
+	}
+
+	@Setup
+	public void setUp() throws MqttException {
+		MqttPingSender pingSender = new NoPingSender();
+		client = new MqttAsyncClient("tcp://localhost:1883", "benchmark", new MemoryPersistence(), pingSender, null);
+		persistence = new MemoryPersistence();
+		persistence.open("benchmark");
+		ClientComms comms = new ClientComms(client, persistence, pingSender, null, new MqttSessionState(),
+				new MqttConnectionState("benchmark"));
+		state = new BenchmarkClientState(persistence, comms, pingSender);
+		state.connected();
+		message = new MqttMessage(new byte[64], qos, false, null);
+	}
+
+	@TearDown
+	public void tearDown() throws MqttException {
+		client.close();
+		persistence.close();
+	}
+
+	/**
+	 * Sends one message and takes it off the queue, then acknowledges it, with
+	 * a PUBACK for QoS 1 or a PUBREC and PUBCOMP for QoS 2, and the PUBREL in
+	 * between taken off the queue too.
+	 */
+	@Benchmark
+	public MqttToken sendAndAcknowledge() throws MqttException {
+		MqttToken token = new MqttToken();
+		token.internalTok = new BenchmarkToken();
+		MqttPublish publish = new MqttPublish("benchmark/topic", message, new MqttProperties());
+		state.send(publish, token);
+		int msgId = state.take().getMessageId();
+		if (qos == 1) {
+			state.receive(new MqttPubAck(0, msgId, new MqttProperties()));
+		} else {
+			state.receive(new MqttPubRec(0, msgId, new MqttProperties()));
+			state.take();
+			state.receive(new MqttPubComp(0, msgId, new MqttProperties()));
+		}
+		return token;
+	}
+}
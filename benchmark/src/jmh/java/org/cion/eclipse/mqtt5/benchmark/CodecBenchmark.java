@@ -0,0 +1,114 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.cion.eclipse.mqtt5.common.MqttException;
+import org.cion.eclipse.mqtt5.common.MqttMessage;
+import org.cion.eclipse.mqtt5.common.packet.MqttProperties;
+import org.cion.eclipse.mqtt5.common.packet.MqttPubAck;
+import org.cion.eclipse.mqtt5.common.packet.MqttPublish;
+import org.cion.eclipse.mqtt5.common.packet.MqttWireMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encoding and decoding PUBLISH packets, and decoding the acknowledgements
+ * the client receives most often.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CodecBenchmark {
+
+	@Param({ "16", "1024", "65536" })
+	public int payloadSize;
+
+	@Param({ "false", "true" })
+	public boolean withProperties;
+
+	private MqttPublish publish;
+	private byte[] publishBytes;
+	private byte[] pubAckBytes;
+	private ByteArrayOutputStream out;
+
+	@Setup
+	public void setUp() throws MqttException {
+		MqttProperties properties = new MqttProperties();
+		if (withProperties) {
+			properties.setContentType("application/json");
+			properties.setMessageExpiryInterval(60L);
+			properties.setResponseTopic("devices/42/responses");
+			properties.setCorrelationData(new byte[16]);
+		}
+		MqttMessage message = new MqttMessage(new byte[payloadSize], 1, false, properties);
+		publish = new MqttPublish("devices/42/telemetry", message, properties);
+		publish.setMessageId(1);
+		publishBytes = publish.serialize();
+		pubAckBytes = new MqttPubAck(0, 1, new MqttProperties()).serialize();
+		out = new ByteArrayOutputStream(payloadSize + 128);
+	}
+
+	/**
+	 * Encodes a PUBLISH that has not been sent before, as the client does for
+	 * each new message.
+	 */
+	@Benchmark
+	public byte[] encodeNewPublish() throws MqttException {
+		// Changing the message id discards the encoded header
+		publish.setMessageId(publish.getMessageId() % 65535 + 1);
+		return publish.getHeader();
+	}
+
+	/**
+	 * Encodes a PUBLISH whose header has already been encoded, as when it is
+	 * persisted and then sent.
+	 */
+	@Benchmark
+	public byte[] encodeCachedPublish() throws MqttException {
+		return publish.getHeader();
+	}
+
+	/**
+	 * Writes a PUBLISH to a stream as the sender does, header and payload
+	 * separately.
+	 */
+	@Benchmark
+	public int writePublish() throws MqttException {
+		out.reset();
+		ByteBuffer[] buffers = publish.getBuffers();
+		for (ByteBuffer buffer : buffers) {
+			out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		}
+		return out.size();
+	}
+
+	@Benchmark
+	public byte[] serializePublish() throws MqttException {
+		return publish.serialize();
+	}
+
+	@Benchmark
+	public MqttWireMessage decodePublish() throws MqttException {
+		return MqttWireMessage.createWireMessage(publishBytes);
+	}
+
+	@Benchmark
+	public MqttWireMessage decodePubAck() throws MqttException {
+		return MqttWireMessage.createWireMessage(pubAckBytes);
+	}
+}
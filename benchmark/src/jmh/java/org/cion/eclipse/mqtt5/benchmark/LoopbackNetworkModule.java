@@ -0,0 +1,163 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.cion.eclipse.mqtt5.client.internal.NetworkModule;
+import org.cion.eclipse.mqtt5.common.MqttException;
+import org.cion.eclipse.mqtt5.common.MqttSubscription;
+import org.cion.eclipse.mqtt5.common.packet.MqttConnAck;
+import org.cion.eclipse.mqtt5.common.packet.MqttDataTypes;
+import org.cion.eclipse.mqtt5.common.packet.MqttPingResp;
+import org.cion.eclipse.mqtt5.common.packet.MqttProperties;
+import org.cion.eclipse.mqtt5.common.packet.MqttPubAck;
+import org.cion.eclipse.mqtt5.common.packet.MqttPubComp;
+import org.cion.eclipse.mqtt5.common.packet.MqttPubRec;
+import org.cion.eclipse.mqtt5.common.packet.MqttSubAck;
+import org.cion.eclipse.mqtt5.common.packet.MqttSubscribe;
+import org.cion.eclipse.mqtt5.common.packet.MqttUnsubAck;
+import org.cion.eclipse.mqtt5.common.packet.MqttUnsubscribe;
+import org.cion.eclipse.mqtt5.common.packet.MqttWireMessage;
+
+/**
+ * A network module that connects the client to a responder thread in the same
+ * process rather than to a server, so that benchmarks measure the client
+ * without a network or a broker.
+ * <p>
+ * The responder answers each packet as a server that accepts everything
+ * would: a CONNACK for a CONNECT, a PUBACK or PUBREC for a QoS 1 or 2
+ * PUBLISH, a PUBCOMP for a PUBREL, a SUBACK granting the QoS requested for a
+ * SUBSCRIBE, an UNSUBACK for an UNSUBSCRIBE and a PINGRESP for a PINGREQ.
+ * Messages published are not delivered to any subscriber.
+ */
+public class LoopbackNetworkModule implements NetworkModule {
+	private static final int PIPE_CAPACITY = 64 * 1024;
+
+	private final String uri;
+	private final String clientId;
+	private final BytePipe toServer = new BytePipe(PIPE_CAPACITY);
+	private final BytePipe toClient = new BytePipe(PIPE_CAPACITY);
+	private Thread responder;
+
+	/**
+	 * @param uri      the URI of the server
+	 * @param clientId the client identifier
+	 */
+	public LoopbackNetworkModule(String uri, String clientId) {
+		this.uri = uri;
+		this.clientId = clientId;
+	}
+
+	@Override
+	public void start() throws IOException, MqttException {
+		responder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				respond();
+			}
+		}, "MQTT Loopback: " + clientId);
+		responder.setDaemon(true);
+		responder.start();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return toClient.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return toServer.getOutputStream();
+	}
+
+	@Override
+	public void stop() throws IOException {
+		toServer.close();
+		toClient.close();
+	}
+
+	@Override
+	public String getServerURI() {
+		return uri;
+	}
+
+	private void respond() {
+		DataInputStream in = new DataInputStream(toServer.getInputStream());
+		OutputStream out = toClient.getOutputStream();
+		try {
+			while (true) {
+				int first = in.readUnsignedByte();
+				int length = MqttDataTypes.readVariableByteInteger(in).getValue();
+				byte[] data = new byte[length];
+				in.readFully(data);
+				MqttWireMessage response = respond(first, data);
+				if (response != null) {
+					out.write(response.serialize());
+				} else if ((first >> 4) == MqttWireMessage.MESSAGE_TYPE_DISCONNECT) {
+					break;
+				}
+			}
+		} catch (EOFException e) {
+			// The client closed the connection
+		} catch (IOException e) {
+			// The connection was stopped
+		} catch (MqttException e) {
+			// The client sent a packet that could not be parsed
+		} finally {
+			toClient.close();
+		}
+	}
+
+	private MqttWireMessage respond(int first, byte[] data) throws MqttException {
+		MqttProperties properties = new MqttProperties();
+		switch (first >> 4) {
+		case MqttWireMessage.MESSAGE_TYPE_CONNECT:
+			return new MqttConnAck(false, 0, properties);
+		case MqttWireMessage.MESSAGE_TYPE_PUBLISH:
+			int qos = (first >> 1) & 0x03;
+			if (qos == 0) {
+				return null;
+			}
+			// The message id follows the topic name
+			int topicLength = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+			int msgId = ((data[2 + topicLength] & 0xff) << 8) | (data[3 + topicLength] & 0xff);
+			return qos == 1 ? new MqttPubAck(0, msgId, properties) : new MqttPubRec(0, msgId, properties);
+		case MqttWireMessage.MESSAGE_TYPE_PUBREL:
+			return new MqttPubComp(0, ((data[0] & 0xff) << 8) | (data[1] & 0xff), properties);
+		case MqttWireMessage.MESSAGE_TYPE_SUBSCRIBE:
+			MqttSubscribe subscribe = (MqttSubscribe) MqttWireMessage.createWireMessage((byte) first, data, 0,
+					data.length);
+			MqttSubscription[] subscriptions = subscribe.getSubscriptions();
+			int[] granted = new int[subscriptions.length];
+			for (int i = 0; i < subscriptions.length; i++) {
+				granted[i] = subscriptions[i].getQos();
+			}
+			MqttSubAck subAck = new MqttSubAck(granted, properties);
+			subAck.setMessageId(subscribe.getMessageId());
+			return subAck;
+		case MqttWireMessage.MESSAGE_TYPE_UNSUBSCRIBE:
+			MqttUnsubscribe unsubscribe = (MqttUnsubscribe) MqttWireMessage.createWireMessage((byte) first, data,
+					0, data.length);
+			MqttUnsubAck unsubAck = new MqttUnsubAck(new int[unsubscribe.getTopics().length], properties);
+			unsubAck.setMessageId(unsubscribe.getMessageId());
+			return unsubAck;
+		case MqttWireMessage.MESSAGE_TYPE_PINGREQ:
+			return new MqttPingResp();
+		default:
+			return null;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark;
+
+import com.google.auto.service.AutoService;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.cion.eclipse.mqtt5.client.MqttConnectionOptions;
+import org.cion.eclipse.mqtt5.client.internal.NetworkModule;
+import org.cion.eclipse.mqtt5.client.spi.NetworkModuleFactory;
+import org.cion.eclipse.mqtt5.common.MqttException;
+
+/**
+ * Creates {@link LoopbackNetworkModule}s for URIs such as
+ * <code>loopback://benchmark</code>.
+ */
+@AutoService(NetworkModuleFactory.class)
+public class LoopbackNetworkModuleFactory implements NetworkModuleFactory {
+
+	@Override
+	public Set<String> getSupportedUriSchemes() {
+		return Collections.unmodifiableSet(new HashSet<>(Arrays.asList("loopback")));
+	}
+
+	@Override
+	public void validateURI(URI brokerUri) throws IllegalArgumentException {
+		String path = brokerUri.getPath();
+		if (path != null && !path.isEmpty()) {
+			throw new IllegalArgumentException("URI path must be empty \"" + brokerUri.toString() + "\"");
+		}
+	}
+
+	@Override
+	public NetworkModule createNetworkModule(URI brokerUri, MqttConnectionOptions options, String clientId)
+			throws MqttException {
+		return new LoopbackNetworkModule(brokerUri.toString(), clientId);
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.cion.eclipse.mqtt5.client.MqttClientPersistence;
+import org.cion.eclipse.mqtt5.client.internal.MqttPersistentData;
+import org.cion.eclipse.mqtt5.client.persist.MemoryPersistence;
+import org.cion.eclipse.mqtt5.client.persist.MqttDefaultFilePersistence;
+import org.cion.eclipse.mqtt5.client.persist.SegmentedLogPersistence;
+import org.cion.eclipse.mqtt5.client.persist.WriteBehindPersistence;
+import org.cion.eclipse.mqtt5.common.MqttPersistenceException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Persisting a QoS 1 message and removing it once it is acknowledged, as the
+ * client does for every message it sends, with each kind of persistence.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PersistenceBenchmark {
+
+	@Param({ "memory", "file", "segmented", "writeBehindFile" })
+	public String persistence;
+
+	@Param({ "64", "4096" })
+	public int payloadSize;
+
+	private File directory;
+	private MqttClientPersistence store;
+	private byte[] header;
+	private byte[] payload;
+	private int msgId = 0;
+
+	@Setup
+	public void setUp() throws IOException, MqttPersistenceException {
+		directory = Files.createTempDirectory("mqtt-persistence").toFile();
+		if ("memory".equals(persistence)) {
+			store = new MemoryPersistence();
+		} else if ("file".equals(persistence)) {
+			store = new MqttDefaultFilePersistence(directory.getAbsolutePath());
+		} else if ("segmented".equals(persistence)) {
+			store = new SegmentedLogPersistence(directory.getAbsolutePath());
+		} else {
+			store = new WriteBehindPersistence(new MqttDefaultFilePersistence(directory.getAbsolutePath()));
+		}
+		store.open("benchmark");
+		header = new byte[24];
+		payload = new byte[payloadSize];
+	}
+
+	@TearDown
+	public void tearDown() throws MqttPersistenceException {
+		store.clear();
+		store.close();
+		delete(directory);
+	}
+
+	@Benchmark
+	public void putAndRemove() throws MqttPersistenceException {
+		msgId = msgId % 65535 + 1;
+		String key = "s-" + msgId;
+		store.put(key, new MqttPersistentData(key, header, 0, header.length, payload, 0, payload.length));
+		store.remove(key);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cion.eclipse.mqtt5.common.MqttException;
+import org.cion.eclipse.mqtt5.common.packet.MqttDataTypes;
+import org.cion.eclipse.mqtt5.common.packet.MqttProperties;
+import org.cion.eclipse.mqtt5.common.packet.UserProperty;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encoding and decoding MQTT properties, for the mixes of properties packets
+ * typically carry.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PropertiesBenchmark {
+
+	private static final Byte[] PUBLISH_PROPERTIES = { MqttProperties.PAYLOAD_FORMAT_INDICATOR_IDENTIFIER,
+			MqttProperties.MESSAGE_EXPIRY_INTERVAL_IDENTIFIER, MqttProperties.TOPIC_ALIAS_IDENTIFIER,
+			MqttProperties.RESPONSE_TOPIC_IDENTIFIER, MqttProperties.CORRELATION_DATA_IDENTIFIER,
+			MqttProperties.USER_DEFINED_PAIR_IDENTIFIER, MqttProperties.CONTENT_TYPE_IDENTIFIER,
+			MqttProperties.SUBSCRIPTION_IDENTIFIER_MULTI, MqttProperties.SUBSCRIPTION_IDENTIFIER };
+
+	private static final Byte[] CONNACK_PROPERTIES = { MqttProperties.SESSION_EXPIRY_INTERVAL_IDENTIFIER,
+			MqttProperties.RECEIVE_MAXIMUM_IDENTIFIER, MqttProperties.MAXIMUM_QOS_IDENTIFIER,
+			MqttProperties.RETAIN_AVAILABLE_IDENTIFIER, MqttProperties.MAXIMUM_PACKET_SIZE_IDENTIFIER,
+			MqttProperties.ASSIGNED_CLIENT_IDENTIFIER_IDENTIFIER, MqttProperties.TOPIC_ALIAS_MAXIMUM_IDENTIFIER,
+			MqttProperties.WILDCARD_SUB_AVAILABLE_IDENTIFIER, MqttProperties.SUBSCRIPTION_AVAILABLE_IDENTIFIER,
+			MqttProperties.SHARED_SUBSCRIPTION_AVAILABLE_IDENTIFIER, MqttProperties.SERVER_KEEP_ALIVE_IDENTIFIER,
+			MqttProperties.RESPONSE_INFO_IDENTIFIER, MqttProperties.SERVER_REFERENCE_IDENTIFIER,
+			MqttProperties.AUTH_METHOD_IDENTIFIER, MqttProperties.AUTH_DATA_IDENTIFIER,
+			MqttProperties.REASON_STRING_IDENTIFIER, MqttProperties.USER_DEFINED_PAIR_IDENTIFIER };
+
+	/**
+	 * <ul>
+	 * <li>none: no properties, as most acknowledgements have</li>
+	 * <li>alias: a topic alias only</li>
+	 * <li>publish: the properties of a request in a request and response
+	 * exchange, with two user properties</li>
+	 * <li>connack: the properties a server typically sends in a CONNACK</li>
+	 * </ul>
+	 */
+	@Param({ "none", "alias", "publish", "connack" })
+	public String mix;
+
+	private Byte[] validProperties;
+	private MqttProperties properties;
+	private byte[] encoded;
+	// Where the properties start in encoded, after their length
+	private int offset;
+
+	@Setup
+	public void setUp() throws IOException, MqttException {
+		validProperties = PUBLISH_PROPERTIES;
+		properties = new MqttProperties(validProperties);
+		if ("alias".equals(mix)) {
+			properties.setTopicAlias(7);
+		} else if ("publish".equals(mix)) {
+			properties.setPayloadFormat(true);
+			properties.setMessageExpiryInterval(300L);
+			properties.setContentType("application/json");
+			properties.setResponseTopic("devices/42/responses");
+			properties.setCorrelationData(new byte[16]);
+			List<UserProperty> userProperties = new ArrayList<UserProperty>();
+			userProperties.add(new UserProperty("trace-id", "4bf92f3577b34da6a3ce929d0e0e4736"));
+			userProperties.add(new UserProperty("firmware", "2.4.1"));
+			properties.setUserProperties(userProperties);
+		} else if ("connack".equals(mix)) {
+			validProperties = CONNACK_PROPERTIES;
+			properties = new MqttProperties(validProperties);
+			properties.setSessionExpiryInterval(3600L);
+			properties.setReceiveMaximum(100);
+			properties.setMaximumQoS(1);
+			properties.setRetainAvailable(true);
+			properties.setMaximumPacketSize(268435455L);
+			properties.setAssignedClientIdentifier("auto-5e3c1f0a-7f1b-4b8e-9a55-2f0a0c9c3d11");
+			properties.setTopicAliasMaximum(10);
+			properties.setWildcardSubscriptionsAvailable(true);
+			properties.setSubscriptionIdentifiersAvailable(true);
+			properties.setSharedSubscriptionAvailable(true);
+			properties.setServerKeepAlive(60);
+		}
+		encoded = properties.encodeProperties();
+		int length = MqttDataTypes.readVariableByteInteger(new DataInputStream(new ByteArrayInputStream(encoded)))
+				.getValue();
+		offset = encoded.length - length;
+	}
+
+	@Benchmark
+	public int encodedLength() throws MqttException {
+		return properties.getEncodedLength();
+	}
+
+	@Benchmark
+	public byte[] encode() throws MqttException {
+		return properties.encodeProperties();
+	}
+
+	@Benchmark
+	public MqttProperties decode() throws IOException, MqttException {
+		MqttProperties decoded = new MqttProperties(validProperties);
+		decoded.decodeProperties(encoded, offset, encoded.length - offset);
+		return decoded;
+	}
+}
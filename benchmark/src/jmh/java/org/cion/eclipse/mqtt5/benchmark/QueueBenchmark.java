@@ -0,0 +1,117 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark;
+
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cion.eclipse.mqtt5.client.internal.MpscLinkedQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The queue of messages waiting to be sent, with several application threads
+ * publishing and the sender thread taking messages off it. The lock-free
+ * {@link MpscLinkedQueue} the client uses is compared with the synchronized
+ * {@link Vector} it replaced.
+ * <p>
+ * The publishers outnumber the sender, so the queue is bounded as the
+ * inflight window bounds it in the client: a publisher takes a permit before
+ * it adds a message, and the sender gives it back as it takes one off.
+ * Without that the queue would only grow, and the benchmark would measure the
+ * garbage collector instead.
+ * </p>
+ */
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueueBenchmark {
+	private static final Object MESSAGE = new Object();
+	private static final int CAPACITY = 1024;
+
+	/** The permits for the room left in a queue. */
+	static class Bound {
+		final AtomicInteger queued = new AtomicInteger();
+
+		boolean acquire() {
+			if (queued.incrementAndGet() > CAPACITY) {
+				queued.decrementAndGet();
+				return false;
+			}
+			return true;
+		}
+
+		void release() {
+			queued.decrementAndGet();
+		}
+	}
+
+	@State(Scope.Group)
+	public static class MpscQueue extends Bound {
+		final MpscLinkedQueue<Object> queue = new MpscLinkedQueue<Object>();
+	}
+
+	@State(Scope.Group)
+	public static class VectorQueue extends Bound {
+		final Vector<Object> queue = new Vector<Object>();
+	}
+
+	@Benchmark
+	@Group("mpsc")
+	@GroupThreads(3)
+	public boolean mpscOffer(MpscQueue state) {
+		if (!state.acquire()) {
+			return false;
+		}
+		state.queue.offer(MESSAGE);
+		return true;
+	}
+
+	@Benchmark
+	@Group("mpsc")
+	@GroupThreads(1)
+	public Object mpscPoll(MpscQueue state) {
+		Object message = state.queue.poll();
+		if (message != null) {
+			state.release();
+		}
+		return message;
+	}
+
+	@Benchmark
+	@Group("vector")
+	@GroupThreads(3)
+	public boolean vectorAdd(VectorQueue state) {
+		if (!state.acquire()) {
+			return false;
+		}
+		state.queue.addElement(MESSAGE);
+		return true;
+	}
+
+	@Benchmark
+	@Group("vector")
+	@GroupThreads(1)
+	public Object vectorRemove(VectorQueue state) {
+		Vector<Object> queue = state.queue;
+		Object message;
+		synchronized (queue) {
+			message = queue.isEmpty() ? null : queue.remove(0);
+		}
+		if (message != null) {
+			state.release();
+		}
+		return message;
+	}
+}
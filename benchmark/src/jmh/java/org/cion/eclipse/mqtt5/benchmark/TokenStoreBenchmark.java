@@ -0,0 +1,137 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.cion.eclipse.mqtt5.client.MqttToken;
+import org.cion.eclipse.mqtt5.client.internal.CommsTokenStore;
+import org.cion.eclipse.mqtt5.client.internal.IntKeyedMap;
+import org.cion.eclipse.mqtt5.client.internal.MessageIdAllocator;
+import org.cion.eclipse.mqtt5.common.MqttException;
+import org.cion.eclipse.mqtt5.common.MqttMessage;
+import org.cion.eclipse.mqtt5.common.packet.MqttProperties;
+import org.cion.eclipse.mqtt5.common.packet.MqttPubAck;
+import org.cion.eclipse.mqtt5.common.packet.MqttPublish;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Tracking the messages in flight: storing a token as a message is sent and
+ * finding and removing it when the message is acknowledged, with a number of
+ * other messages already in flight.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TokenStoreBenchmark {
+
+	/** The number of other messages in flight. */
+	@Param({ "0", "100", "10000" })
+	public int inFlight;
+
+	private static final int MESSAGES = 1024;
+
+	private BenchmarkTokenStore tokenStore;
+	private IntKeyedMap<Object> intKeyedMap;
+	private ConcurrentHashMap<Integer, Object> concurrentHashMap;
+	private MessageIdAllocator allocator;
+	private MqttPublish[] publishes;
+	private MqttPubAck[] acks;
+	private MqttToken[] tokens;
+	private int next = 0;
+
+	/**
+	 * The token store, with the method the client calls as it sends a message,
+	 * which is not public.
+	 */
+	private static final class BenchmarkTokenStore extends CommsTokenStore {
+		BenchmarkTokenStore() {
+			super("benchmark");
+		}
+
+		void save(MqttToken token, MqttPublish message) throws MqttException {
+			saveToken(token, message);
+		}
+	}
+
+	@Setup
+	public void setUp() throws MqttException {
+		tokenStore = new BenchmarkTokenStore();
+		intKeyedMap = new IntKeyedMap<Object>();
+		concurrentHashMap = new ConcurrentHashMap<Integer, Object>();
+		allocator = new MessageIdAllocator();
+		// The messages in flight take the highest ids, the ones benchmarked
+		// cycle through the lowest
+		for (int i = 0; i < inFlight; i++) {
+			int msgId = MessageIdAllocator.MAX_MSG_ID - i;
+			MqttPublish publish = publish(msgId);
+			tokenStore.save(new MqttToken("benchmark"), publish);
+			intKeyedMap.put(msgId, publish);
+			concurrentHashMap.put(msgId, publish);
+			allocator.markInUse(msgId);
+		}
+		publishes = new MqttPublish[MESSAGES];
+		acks = new MqttPubAck[MESSAGES];
+		tokens = new MqttToken[MESSAGES];
+		for (int i = 0; i < MESSAGES; i++) {
+			publishes[i] = publish(i + 1);
+			acks[i] = new MqttPubAck(0, i + 1, new MqttProperties());
+			tokens[i] = new MqttToken("benchmark");
+		}
+	}
+
+	private static MqttPublish publish(int msgId) {
+		MqttPublish publish = new MqttPublish("a/b", new MqttMessage(new byte[0], 1, false, null), null);
+		publish.setMessageId(msgId);
+		return publish;
+	}
+
+	/**
+	 * Stores a token as the client does when it sends a message, then finds and
+	 * removes it as when the acknowledgement arrives.
+	 */
+	@Benchmark
+	public MqttToken tokenStore() throws MqttException {
+		int i = next++ & (MESSAGES - 1);
+		tokenStore.save(tokens[i], publishes[i]);
+		tokenStore.getToken(acks[i]);
+		return tokenStore.removeToken(acks[i]);
+	}
+
+	@Benchmark
+	public Object intKeyedMap() {
+		int msgId = (next++ & (MESSAGES - 1)) + 1;
+		intKeyedMap.put(msgId, publishes[msgId - 1]);
+		intKeyedMap.get(msgId);
+		return intKeyedMap.remove(msgId);
+	}
+
+	/** The boxed map the client used before {@link IntKeyedMap}. */
+	@Benchmark
+	public Object concurrentHashMap() {
+		int msgId = (next++ & (MESSAGES - 1)) + 1;
+		concurrentHashMap.put(msgId, publishes[msgId - 1]);
+		concurrentHashMap.get(msgId);
+		return concurrentHashMap.remove(msgId);
+	}
+
+	@Benchmark
+	public int acquireAndRelease() {
+		int msgId = allocator.acquire();
+		allocator.release(msgId);
+		return msgId;
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cion.eclipse.mqtt5.client.internal.TopicTrie;
+import org.cion.eclipse.mqtt5.common.util.MqttTopicCache;
+import org.cion.eclipse.mqtt5.common.util.MqttTopicValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Matching topic names against subscriptions, and validating topics.
+ * <p>
+ * The client finds the callbacks for an inbound message by looking the topic
+ * name up in a {@link TopicTrie} of the topic filters subscribed to. The
+ * linear benchmarks show what the same lookup costs by trying every filter in
+ * turn with {@link MqttTopicValidator#isMatched(String, String)}.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TopicBenchmark {
+
+	/** The number of topic filters subscribed to. */
+	@Param({ "10", "100", "1000", "10000" })
+	public int filters;
+
+	private String[] topicFilters;
+	private TopicTrie<String> trie;
+	private String matchingName;
+	private String missingName;
+	private MqttTopicCache cache;
+
+	@Setup
+	public void setUp() {
+		// A device fleet: one filter per device and a few wildcards over them all
+		List<String> list = new ArrayList<String>();
+		list.add("fleet/+/status");
+		list.add("fleet/#");
+		list.add("$share/workers/fleet/+/telemetry");
+		for (int i = 0; list.size() < filters; i++) {
+			list.add("fleet/device-" + i + "/commands/+");
+		}
+		topicFilters = list.toArray(new String[0]);
+		trie = new TopicTrie<String>();
+		for (String topicFilter : topicFilters) {
+			trie.put(topicFilter, topicFilter);
+		}
+		matchingName = "fleet/device-" + (filters / 2) + "/commands/reboot";
+		missingName = "site/7/alarms";
+		cache = new MqttTopicCache(MqttTopicCache.MAXIMUM_SIZE_DEFAULT);
+	}
+
+	@Benchmark
+	public List<String> trieMatch() {
+		return trie.match(matchingName);
+	}
+
+	@Benchmark
+	public List<String> trieMiss() {
+		return trie.match(missingName);
+	}
+
+	@Benchmark
+	public int linearMatch() {
+		return linear(matchingName);
+	}
+
+	@Benchmark
+	public int linearMiss() {
+		return linear(missingName);
+	}
+
+	private int linear(String topicName) {
+		int matches = 0;
+		for (String topicFilter : topicFilters) {
+			if (MqttTopicValidator.isMatched(topicFilter, topicName)) {
+				matches++;
+			}
+		}
+		return matches;
+	}
+
+	@Benchmark
+	public boolean isMatched() {
+		return MqttTopicValidator.isMatched("fleet/+/commands/#", matchingName);
+	}
+
+	@Benchmark
+	public void validate() {
+		MqttTopicValidator.validate(matchingName, false, true);
+	}
+
+	@Benchmark
+	public void validateCached() {
+		cache.validate(matchingName, false, true);
+	}
+}
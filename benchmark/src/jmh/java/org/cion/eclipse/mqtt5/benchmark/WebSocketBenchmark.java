@@ -0,0 +1,196 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.cion.eclipse.mqtt5.client.websocket.WebSocketFrame;
+import org.cion.eclipse.mqtt5.client.websocket.WebSocketInputStream;
+import org.cion.eclipse.mqtt5.client.websocket.WebSocketOutputStream;
+import org.cion.eclipse.mqtt5.client.websocket.WebSocketReceiver;
+import org.cion.eclipse.mqtt5.common.MqttException;
+import org.cion.eclipse.mqtt5.common.MqttMessage;
+import org.cion.eclipse.mqtt5.common.packet.MqttDataTypes;
+import org.cion.eclipse.mqtt5.common.packet.MqttProperties;
+import org.cion.eclipse.mqtt5.common.packet.MqttPublish;
+import org.cion.eclipse.mqtt5.common.packet.MqttWireMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Receiving PUBLISH packets over WebSocket: frames read on the thread that
+ * parses the packets, as the WebSocket network modules do, compared with
+ * frames read by a {@link WebSocketReceiver} thread and written to a pipe, as
+ * they did before. The frames are read from memory, so only the cost of
+ * getting the payload to the parser is measured.
+ * <p>
+ * And sending them: packets written into the reused buffer of a
+ * {@link WebSocketOutputStream}, whole or split into frames of 4 KiB, compared
+ * with a {@link WebSocketFrame} encoded for each packet.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@SuppressWarnings("deprecation")
+public class WebSocketBenchmark {
+
+	@Param({ "16", "1024", "65536" })
+	public int payloadSize;
+
+	private static final int PACKETS = 64;
+	private static final int FRAGMENT_SIZE = 4096;
+
+	private DataInputStream direct;
+	private PipedInputStream pipedInputStream;
+	private WebSocketReceiver receiver;
+	private DataInputStream piped;
+	private byte[] packet;
+	private byte[] publishBytes;
+	private WebSocketOutputStream frameWriter;
+	private WebSocketOutputStream fragmentWriter;
+	private OutputStream sink;
+
+	@Setup
+	public void setUp() throws IOException, MqttException {
+		MqttMessage message = new MqttMessage(new byte[payloadSize], 1, false, new MqttProperties());
+		MqttPublish publish = new MqttPublish("devices/42/telemetry", message, new MqttProperties());
+		publish.setMessageId(1);
+		publishBytes = publish.serialize();
+		packet = new byte[publishBytes.length];
+
+		// Each packet in a binary frame of its own, as the server sends them
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < PACKETS; i++) {
+			ByteBuffer frame = ByteBuffer.allocate(publishBytes.length + 10);
+			WebSocketFrame.appendFinAndOpCode(frame, (byte) 0x02, true);
+			WebSocketFrame.appendLengthAndMask(frame, publishBytes.length, null);
+			frame.put(publishBytes);
+			out.write(frame.array(), 0, frame.position());
+		}
+		byte[] frames = out.toByteArray();
+
+		direct = new DataInputStream(new WebSocketInputStream(new RepeatingInputStream(frames), out));
+		pipedInputStream = new PipedInputStream();
+		receiver = new WebSocketReceiver(new RepeatingInputStream(frames), pipedInputStream);
+		receiver.start("webSocketReceiver");
+		piped = new DataInputStream(pipedInputStream);
+
+		sink = new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+		frameWriter = new WebSocketOutputStream(sink, 0);
+		fragmentWriter = new WebSocketOutputStream(sink, FRAGMENT_SIZE);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		// Closing the pipe first fails the receiver's write, so that it stops
+		pipedInputStream.close();
+		receiver.stop();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PACKETS)
+	public MqttWireMessage direct() throws IOException, MqttException {
+		MqttWireMessage message = null;
+		for (int i = 0; i < PACKETS; i++) {
+			message = readPacket(direct);
+		}
+		return message;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PACKETS)
+	public MqttWireMessage piped() throws IOException, MqttException {
+		MqttWireMessage message = null;
+		for (int i = 0; i < PACKETS; i++) {
+			message = readPacket(piped);
+		}
+		return message;
+	}
+
+	@Benchmark
+	public void writeFrame() throws IOException {
+		frameWriter.write(publishBytes, 0, publishBytes.length);
+		frameWriter.flush();
+	}
+
+	@Benchmark
+	public void writeFragmented() throws IOException {
+		fragmentWriter.write(publishBytes, 0, publishBytes.length);
+		fragmentWriter.flush();
+	}
+
+	@Benchmark
+	public void encodeFrame() throws IOException {
+		sink.write(new WebSocketFrame((byte) 0x02, true, publishBytes).encodeFrame());
+	}
+
+	/**
+	 * Reads a packet as the client's <code>MqttInputStream</code> does.
+	 */
+	private MqttWireMessage readPacket(DataInputStream in) throws IOException, MqttException {
+		byte first = in.readByte();
+		int length = MqttDataTypes.readVariableByteInteger(in).getValue();
+		in.readFully(packet, 0, length);
+		return MqttWireMessage.createWireMessage(first, packet, 0, length);
+	}
+
+	/**
+	 * Reads the same bytes over and over, for as long as the benchmark runs.
+	 */
+	private static final class RepeatingInputStream extends InputStream {
+		private final byte[] bytes;
+		private int pos = 0;
+
+		RepeatingInputStream(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int read() {
+			int b = bytes[pos] & 0xff;
+			pos = (pos + 1) % bytes.length;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			int n = Math.min(len, bytes.length - pos);
+			System.arraycopy(bytes, pos, b, off, n);
+			pos = (pos + n) % bytes.length;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return bytes.length - pos;
+		}
+	}
+}
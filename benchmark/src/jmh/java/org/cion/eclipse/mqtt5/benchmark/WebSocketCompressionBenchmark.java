@@ -0,0 +1,189 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.cion.eclipse.mqtt5.client.websocket.PerMessageDeflate;
+import org.cion.eclipse.mqtt5.client.websocket.WebSocketInputStream;
+import org.cion.eclipse.mqtt5.client.websocket.WebSocketOutputStream;
+import org.cion.eclipse.mqtt5.common.MqttException;
+import org.cion.eclipse.mqtt5.common.MqttMessage;
+import org.cion.eclipse.mqtt5.common.packet.MqttDataTypes;
+import org.cion.eclipse.mqtt5.common.packet.MqttProperties;
+import org.cion.eclipse.mqtt5.common.packet.MqttPublish;
+import org.cion.eclipse.mqtt5.common.packet.MqttWireMessage;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Sending JSON telemetry PUBLISH packets over WebSocket with and without
+ * permessage-deflate: each packet is written to a {@link WebSocketOutputStream}
+ * and read back through a {@link WebSocketInputStream}, so both compressing
+ * and decompressing are timed. The bytes of the packets and the bytes of the
+ * frames that carried them are reported as <code>packetBytes</code> and
+ * <code>wireBytes</code>, whose ratio is the saving on the wire.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WebSocketCompressionBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean compression;
+
+	@Param({ "false", "true" })
+	public boolean noContextTakeover;
+
+	// Enough that a packet has left the 32 KiB window before it is sent again
+	private static final int PACKETS = 1024;
+
+	private byte[][] packets;
+	private byte[] packet;
+	private int next = 0;
+	private LoopStream loop;
+	private WebSocketOutputStream out;
+	private DataInputStream in;
+
+	/**
+	 * The bytes sent, counted over each iteration.
+	 */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Bytes {
+		public long packetBytes;
+		public long wireBytes;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			packetBytes = 0;
+			wireBytes = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() throws MqttException {
+		// Readings from a fleet of sensors, alike in shape but not in value
+		Random random = new Random(42);
+		packets = new byte[PACKETS][];
+		int maxLength = 0;
+		for (int i = 0; i < PACKETS; i++) {
+			int device = random.nextInt(1000);
+			String json = String.format(
+					"{\"deviceId\":\"sensor-%04d\",\"timestamp\":%d,\"temperature\":%.2f,\"humidity\":%.1f,"
+							+ "\"pressure\":%.1f,\"battery\":%d,\"status\":\"%s\"}",
+					device, 1760000000000L + random.nextInt(1000000), 15 + random.nextDouble() * 15,
+					30 + random.nextDouble() * 40, 990 + random.nextDouble() * 40, random.nextInt(101),
+					random.nextInt(10) == 0 ? "low-battery" : "ok");
+			MqttMessage message = new MqttMessage(json.getBytes(), 1, false, new MqttProperties());
+			MqttPublish publish = new MqttPublish("devices/sensor-" + device + "/telemetry", message,
+					new MqttProperties());
+			publish.setMessageId(i + 1);
+			packets[i] = publish.serialize();
+			maxLength = Math.max(maxLength, packets[i].length);
+		}
+		packet = new byte[maxLength];
+
+		PerMessageDeflate perMessageDeflate = compression
+				? new PerMessageDeflate(noContextTakeover, noContextTakeover, PerMessageDeflate.MAX_WINDOW_BITS)
+				: null;
+		loop = new LoopStream();
+		out = new WebSocketOutputStream(loop.output, 0, perMessageDeflate);
+		in = new DataInputStream(new WebSocketInputStream(loop.input, loop.output, perMessageDeflate));
+	}
+
+	@Benchmark
+	public MqttWireMessage roundTrip(Bytes bytes) throws IOException, MqttException {
+		byte[] publish = packets[next];
+		next = (next + 1) % PACKETS;
+		long written = loop.written;
+		out.write(publish, 0, publish.length);
+		out.flush();
+		bytes.packetBytes += publish.length;
+		bytes.wireBytes += loop.written - written;
+		return readPacket(in);
+	}
+
+	/**
+	 * Reads a packet as the client's <code>MqttInputStream</code> does.
+	 */
+	private MqttWireMessage readPacket(DataInputStream in) throws IOException, MqttException {
+		byte first = in.readByte();
+		int length = MqttDataTypes.readVariableByteInteger(in).getValue();
+		in.readFully(packet, 0, length);
+		return MqttWireMessage.createWireMessage(first, packet, 0, length);
+	}
+
+	/**
+	 * Hands the frames written to it back to be read, on the same thread.
+	 */
+	private static final class LoopStream {
+		private byte[] bytes = new byte[1024];
+		private int readPos = 0;
+		private int writePos = 0;
+		private long written = 0;
+
+		final OutputStream output = new OutputStream() {
+			@Override
+			public void write(int b) {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				if (readPos == writePos) {
+					readPos = 0;
+					writePos = 0;
+				}
+				if (writePos + len > bytes.length) {
+					bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, writePos + len));
+				}
+				System.arraycopy(b, off, bytes, writePos, len);
+				writePos += len;
+				written += len;
+			}
+		};
+
+		final InputStream input = new InputStream() {
+			@Override
+			public int read() {
+				return readPos < writePos ? bytes[readPos++] & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (readPos == writePos) {
+					return -1;
+				}
+				int n = Math.min(len, writePos - readPos);
+				System.arraycopy(bytes, readPos, b, off, n);
+				readPos += n;
+				return n;
+			}
+
+			@Override
+			public int available() {
+				return writePos - readPos;
+			}
+		};
+	}
+}
@@ -0,0 +1,415 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark.broker;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.cion.eclipse.mqtt5.client.internal.IntKeyedMap;
+import org.cion.eclipse.mqtt5.client.internal.MessageIdAllocator;
+import org.cion.eclipse.mqtt5.common.MqttException;
+import org.cion.eclipse.mqtt5.common.MqttMessage;
+import org.cion.eclipse.mqtt5.common.MqttSubscription;
+import org.cion.eclipse.mqtt5.common.packet.MqttConnAck;
+import org.cion.eclipse.mqtt5.common.packet.MqttConnect;
+import org.cion.eclipse.mqtt5.common.packet.MqttDataTypes;
+import org.cion.eclipse.mqtt5.common.packet.MqttDisconnect;
+import org.cion.eclipse.mqtt5.common.packet.MqttPingResp;
+import org.cion.eclipse.mqtt5.common.packet.MqttProperties;
+import org.cion.eclipse.mqtt5.common.packet.MqttPubAck;
+import org.cion.eclipse.mqtt5.common.packet.MqttPubComp;
+import org.cion.eclipse.mqtt5.common.packet.MqttPubRec;
+import org.cion.eclipse.mqtt5.common.packet.MqttPubRel;
+import org.cion.eclipse.mqtt5.common.packet.MqttPublish;
+import org.cion.eclipse.mqtt5.common.packet.MqttReturnCode;
+import org.cion.eclipse.mqtt5.common.packet.MqttSubAck;
+import org.cion.eclipse.mqtt5.common.packet.MqttSubscribe;
+import org.cion.eclipse.mqtt5.common.packet.MqttUnsubAck;
+import org.cion.eclipse.mqtt5.common.packet.MqttUnsubscribe;
+import org.cion.eclipse.mqtt5.common.packet.MqttWireMessage;
+
+/**
+ * The server's side of the connection to one client. A reader thread handles
+ * the packets the client sends, and a writer thread sends the server's
+ * packets, each once its simulated delay has passed.
+ */
+class BrokerConnection {
+
+	/** A packet waiting for its delay to pass. */
+	private static final class Outbound {
+		final byte[] bytes;
+		final long due;
+		// Whether sending the packet completes an inbound QoS 1 or 2 flow
+		final boolean completesInbound;
+
+		Outbound(byte[] bytes, long due, boolean completesInbound) {
+			this.bytes = bytes;
+			this.due = due;
+			this.completesInbound = completesInbound;
+		}
+	}
+
+	private static final Outbound CLOSE = new Outbound(null, 0, false);
+
+	private final StandInBroker broker;
+	private final Socket socket;
+	private final DataInputStream in;
+	private final OutputStream out;
+	private final BlockingQueue<Outbound> outbound = new LinkedBlockingQueue<Outbound>();
+	private volatile boolean closed = false;
+	private String clientId;
+
+	// Used by the reader thread only
+	private final Map<Integer, String> topicAliases = new HashMap<Integer, String>();
+	private final Set<Integer> inboundQoS2 = new HashSet<Integer>();
+	// QoS 1 and 2 messages from the client not yet acknowledged
+	private final AtomicInteger inboundInFlight = new AtomicInteger();
+
+	// QoS 1 and 2 messages to the client, guarded by this
+	private int clientReceiveMaximum = StandInBroker.RECEIVE_MAXIMUM_DEFAULT;
+	private final MessageIdAllocator messageIds = new MessageIdAllocator();
+	private final IntKeyedMap<MqttPublish> outboundInFlight = new IntKeyedMap<MqttPublish>();
+	private final ArrayDeque<MqttPublish> held = new ArrayDeque<MqttPublish>();
+	// The time the last packet was due to be sent, guarded by outbound
+	private long lastDue = 0;
+
+	private final Set<String> topicFilters = ConcurrentHashMap.newKeySet();
+
+	BrokerConnection(StandInBroker broker, Socket socket, InputStream in, OutputStream out) {
+		this.broker = broker;
+		this.socket = socket;
+		this.in = new DataInputStream(in);
+		this.out = out;
+	}
+
+	void start() {
+		String name = "MQTT Stand-in Broker: " + socket.getPort();
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				read();
+			}
+		}, name + " reader");
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, name + " writer");
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+	}
+
+	String getClientId() {
+		return clientId;
+	}
+
+	Set<String> getTopicFilters() {
+		return topicFilters;
+	}
+
+	private void read() {
+		try {
+			MqttWireMessage first = readPacket();
+			if (!(first instanceof MqttConnect)) {
+				return;
+			}
+			connect((MqttConnect) first);
+			while (!closed) {
+				if (!handle(readPacket())) {
+					break;
+				}
+			}
+		} catch (EOFException e) {
+			// The client closed the connection
+		} catch (IOException e) {
+			// The connection failed or was closed
+		} catch (MqttException e) {
+			// The client sent a packet that could not be parsed
+			disconnect(MqttReturnCode.RETURN_CODE_MALFORMED_CONTROL_PACKET);
+		} finally {
+			// The writer closes the connection once it has sent what is queued
+			outbound.offer(CLOSE);
+		}
+	}
+
+	private MqttWireMessage readPacket() throws IOException, MqttException {
+		int first = in.readUnsignedByte();
+		int length = MqttDataTypes.readVariableByteInteger(in).getValue();
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return MqttWireMessage.createWireMessage((byte) first, data, 0, length);
+	}
+
+	private void connect(MqttConnect connect) throws MqttException {
+		MqttProperties properties = new MqttProperties();
+		clientId = connect.getClientId();
+		if (clientId == null || clientId.isEmpty()) {
+			clientId = UUID.randomUUID().toString();
+			properties.setAssignedClientIdentifier(clientId);
+		}
+		Integer receiveMaximum = connect.getProperties().getReceiveMaximum();
+		if (receiveMaximum != null) {
+			synchronized (this) {
+				clientReceiveMaximum = receiveMaximum.intValue();
+			}
+		}
+		properties.setReceiveMaximum(broker.getReceiveMaximum());
+		properties.setTopicAliasMaximum(broker.getTopicAliasMaximum());
+		send(new MqttConnAck(false, MqttReturnCode.RETURN_CODE_SUCCESS, properties), false);
+		broker.connected(this);
+	}
+
+	/**
+	 * @return false if the client disconnected, or was disconnected
+	 */
+	private boolean handle(MqttWireMessage message) throws MqttException {
+		if (message instanceof MqttPublish) {
+			return publish((MqttPublish) message);
+		} else if (message instanceof MqttPubRel) {
+			inboundQoS2.remove(Integer.valueOf(message.getMessageId()));
+			send(new MqttPubComp(MqttReturnCode.RETURN_CODE_SUCCESS, message.getMessageId(), null), true);
+		} else if (message instanceof MqttPubAck || message instanceof MqttPubComp) {
+			delivered(message.getMessageId());
+		} else if (message instanceof MqttPubRec) {
+			send(new MqttPubRel(MqttReturnCode.RETURN_CODE_SUCCESS, message.getMessageId(), null), false);
+		} else if (message instanceof MqttSubscribe) {
+			MqttSubscription[] subscriptions = ((MqttSubscribe) message).getSubscriptions();
+			int[] granted = new int[subscriptions.length];
+			for (int i = 0; i < subscriptions.length; i++) {
+				granted[i] = subscriptions[i].getQos();
+				topicFilters.add(subscriptions[i].getTopic());
+				broker.subscribe(this, subscriptions[i].getTopic(), granted[i]);
+			}
+			MqttSubAck subAck = new MqttSubAck(granted, null);
+			subAck.setMessageId(message.getMessageId());
+			send(subAck, false);
+		} else if (message instanceof MqttUnsubscribe) {
+			String[] topics = ((MqttUnsubscribe) message).getTopics();
+			int[] reasonCodes = new int[topics.length];
+			for (int i = 0; i < topics.length; i++) {
+				if (topicFilters.remove(topics[i])) {
+					broker.unsubscribe(this, topics[i]);
+				} else {
+					reasonCodes[i] = MqttReturnCode.RETURN_CODE_NO_SUBSCRIPTION_EXISTED;
+				}
+			}
+			MqttUnsubAck unsubAck = new MqttUnsubAck(reasonCodes, null);
+			unsubAck.setMessageId(message.getMessageId());
+			send(unsubAck, false);
+		} else if (message.getType() == MqttWireMessage.MESSAGE_TYPE_PINGREQ) {
+			send(new MqttPingResp(), false);
+		} else if (message instanceof MqttDisconnect) {
+			return false;
+		} else {
+			disconnect(MqttReturnCode.RETURN_CODE_PROTOCOL_ERROR);
+			return false;
+		}
+		return true;
+	}
+
+	private boolean publish(MqttPublish publish) throws MqttException {
+		MqttMessage message = publish.getMessage();
+		int qos = message.getQos();
+		if (qos > 0 && inboundInFlight.incrementAndGet() > broker.getReceiveMaximum()) {
+			disconnect(MqttReturnCode.RETURN_CODE_RECEIVE_MAXIMUM_EXCEEDED);
+			return false;
+		}
+
+		MqttProperties properties = publish.getProperties();
+		String topicName = publish.getTopicName();
+		Integer topicAlias = properties.getTopicAlias();
+		if (topicAlias != null) {
+			if (topicAlias.intValue() == 0 || topicAlias.intValue() > broker.getTopicAliasMaximum()) {
+				disconnect(MqttReturnCode.RETURN_CODE_TOPIC_ALIAS_NOT_ACCEPTED);
+				return false;
+			}
+			if (topicName == null || topicName.isEmpty()) {
+				topicName = topicAliases.get(topicAlias);
+				if (topicName == null) {
+					disconnect(MqttReturnCode.RETURN_CODE_PROTOCOL_ERROR);
+					return false;
+				}
+			} else {
+				topicAliases.put(topicAlias, topicName);
+			}
+			// Aliases are not passed on to subscribers
+			properties.setTopicAlias(null);
+		}
+
+		if (qos == 2) {
+			// A message sent again before it was released is not routed again
+			if (inboundQoS2.add(Integer.valueOf(publish.getMessageId()))) {
+				broker.route(topicName, message, properties);
+			}
+			send(new MqttPubRec(MqttReturnCode.RETURN_CODE_SUCCESS, publish.getMessageId(), null), false);
+		} else {
+			broker.route(topicName, message, properties);
+			if (qos == 1) {
+				send(new MqttPubAck(MqttReturnCode.RETURN_CODE_SUCCESS, publish.getMessageId(), null), true);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sends a message to the client, or holds it back if the client already has
+	 * as many messages in flight as its receive maximum.
+	 */
+	void deliver(String topicName, byte[] payload, int qos, MqttProperties properties) {
+		if (closed) {
+			return;
+		}
+		MqttPublish publish = new MqttPublish(topicName, new MqttMessage(payload, qos, false, null), properties);
+		try {
+			if (qos == 0) {
+				send(publish, false);
+				return;
+			}
+			synchronized (this) {
+				if (!held.isEmpty() || !sendInFlight(publish)) {
+					held.addLast(publish);
+				}
+			}
+		} catch (MqttException e) {
+			close();
+		}
+	}
+
+	/**
+	 * @return false if the client's receive maximum has been reached
+	 */
+	private boolean sendInFlight(MqttPublish publish) throws MqttException {
+		if (messageIds.getInUseCount() >= clientReceiveMaximum) {
+			return false;
+		}
+		int msgId = messageIds.acquire();
+		publish.setMessageId(msgId);
+		outboundInFlight.put(msgId, publish);
+		send(publish, false);
+		return true;
+	}
+
+	private void delivered(int msgId) throws MqttException {
+		synchronized (this) {
+			if (outboundInFlight.remove(msgId) == null) {
+				return;
+			}
+			messageIds.release(msgId);
+			while (!held.isEmpty() && sendInFlight(held.peekFirst())) {
+				held.pollFirst();
+			}
+		}
+	}
+
+	/**
+	 * Sends the client a DISCONNECT and closes the connection once it has been
+	 * sent.
+	 */
+	void disconnect(int reasonCode) {
+		try {
+			send(new MqttDisconnect(reasonCode, null), false);
+		} catch (MqttException e) {
+			// Closing anyway
+		}
+		outbound.offer(CLOSE);
+	}
+
+	/**
+	 * Queues a packet to be sent after the simulated delay.
+	 */
+	private void send(MqttWireMessage message, boolean completesInbound) throws MqttException {
+		byte[] bytes = message.serialize();
+		long delay = broker.getLatencyNanos();
+		double lossRate = broker.getLossRate();
+		if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+			delay += broker.getRetransmitDelayNanos();
+		}
+		synchronized (outbound) {
+			// Packets are not reordered, a late one holds up those after it
+			long due = Math.max(lastDue, System.nanoTime() + delay);
+			lastDue = due;
+			outbound.offer(new Outbound(bytes, due, completesInbound));
+		}
+	}
+
+	private void write() {
+		try {
+			while (true) {
+				Outbound packet = outbound.take();
+				do {
+					if (packet == CLOSE) {
+						out.flush();
+						return;
+					}
+					long wait;
+					while ((wait = packet.due - System.nanoTime()) > 0) {
+						// Send what has already been written before waiting
+						out.flush();
+						LockSupport.parkNanos(wait);
+					}
+					if (packet.completesInbound) {
+						inboundInFlight.decrementAndGet();
+					}
+					out.write(packet.bytes);
+					packet = outbound.poll();
+				} while (packet != null);
+				out.flush();
+			}
+		} catch (InterruptedException e) {
+			// Closing
+		} catch (IOException e) {
+			// The connection failed or was closed
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Closes the connection without a DISCONNECT.
+	 */
+	void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			held.clear();
+		}
+		outbound.offer(CLOSE);
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+		if (clientId != null) {
+			broker.disconnected(this);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark.broker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Creates an SSL context holding a new self-signed certificate for localhost,
+ * for the stand-in broker to present and for its clients to trust. The key
+ * pair is generated by the JDK's keytool.
+ */
+public final class SelfSignedCertificate {
+	private static final char[] PASSWORD = "stand-in".toCharArray();
+
+	private SelfSignedCertificate() {
+	}
+
+	/**
+	 * @return an SSL context that both presents and trusts the certificate
+	 * @throws IOException              if keytool could not be run
+	 * @throws GeneralSecurityException if the key store could not be loaded
+	 */
+	public static SSLContext createSSLContext() throws IOException, GeneralSecurityException {
+		File keyStoreFile = File.createTempFile("stand-in-broker", ".p12");
+		// keytool will not add a key to an empty file
+		keyStoreFile.delete();
+		try {
+			String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+			Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "broker", "-keyalg", "RSA",
+					"-keysize", "2048", "-validity", "1", "-dname", "CN=localhost", "-ext",
+					"SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12", "-keystore",
+					keyStoreFile.getAbsolutePath(), "-storepass", new String(PASSWORD), "-keypass",
+					new String(PASSWORD)).redirectErrorStream(true).start();
+			String output = readFully(process.getInputStream());
+			try {
+				if (process.waitFor() != 0) {
+					throw new IOException("keytool failed: " + output);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+
+			KeyStore keyStore = KeyStore.getInstance("PKCS12");
+			InputStream in = new FileInputStream(keyStoreFile);
+			try {
+				keyStore.load(in, PASSWORD);
+			} finally {
+				in.close();
+			}
+			KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagers.init(keyStore, PASSWORD);
+			TrustManagerFactory trustManagers = TrustManagerFactory
+					.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trustManagers.init(keyStore);
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+			return context;
+		} finally {
+			keyStoreFile.delete();
+		}
+	}
+
+	private static String readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,343 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark.broker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ServerSocketFactory;
+import javax.net.ssl.SSLContext;
+
+import org.cion.eclipse.mqtt5.client.internal.TopicTrie;
+import org.cion.eclipse.mqtt5.common.MqttMessage;
+import org.cion.eclipse.mqtt5.common.packet.MqttProperties;
+import org.cion.eclipse.mqtt5.common.packet.MqttReturnCode;
+
+/**
+ * A small MQTT 5 server that runs in the same process as the clients, so that
+ * the client can be measured end to end, over its real network modules,
+ * without a broker.
+ * <p>
+ * It listens on the loopback interface over TCP, SSL, WebSocket and secure
+ * WebSocket, and supports:
+ * <ul>
+ * <li>CONNECT and CONNACK, assigning a client identifier to a client that has
+ * none and taking over the connection of a client that connects again</li>
+ * <li>the QoS 0, 1 and 2 flows in both directions</li>
+ * <li>topic aliases from the client, up to {@link #setTopicAliasMaximum(int)}</li>
+ * <li>receive maximum: it disconnects a client that has more QoS 1 and 2
+ * messages in flight than {@link #setReceiveMaximum(int)}, and holds back
+ * messages to a subscriber that has as many in flight as it asked for</li>
+ * <li>SUBSCRIBE and UNSUBSCRIBE, granting the QoS asked for</li>
+ * <li>PINGREQ and DISCONNECT</li>
+ * </ul>
+ * It keeps no session once a client disconnects, and no retained messages.
+ * Shared subscriptions are treated as ordinary ones.
+ * <p>
+ * The network can be made slower than the loopback interface. Each packet the
+ * server sends is delayed by {@link #setLatency(long, TimeUnit)}, and a share
+ * of them, {@link #setLossRate(double)}, are treated as lost and sent again
+ * after {@link #setRetransmitDelay(long, TimeUnit)}. As with TCP, packets are
+ * never reordered, so a lost packet also holds up the packets after it.
+ */
+public class StandInBroker {
+
+	/** The default receive maximum. */
+	public static final int RECEIVE_MAXIMUM_DEFAULT = 65535;
+	/** The default topic alias maximum. */
+	public static final int TOPIC_ALIAS_MAXIMUM_DEFAULT = 10;
+
+	private int receiveMaximum = RECEIVE_MAXIMUM_DEFAULT;
+	private int topicAliasMaximum = TOPIC_ALIAS_MAXIMUM_DEFAULT;
+	private long latencyNanos = 0;
+	private double lossRate = 0;
+	private long retransmitDelayNanos = TimeUnit.MILLISECONDS.toNanos(200);
+	private SSLContext sslContext;
+
+	private final List<ServerSocket> serverSockets = new ArrayList<ServerSocket>();
+	private final Map<String, BrokerConnection> connections = new ConcurrentHashMap<String, BrokerConnection>();
+	// Subscribers to each topic filter, and the QoS they were granted
+	private final TopicTrie<Map<BrokerConnection, Integer>> subscriptions = new TopicTrie<Map<BrokerConnection, Integer>>();
+	private final AtomicLong publishesReceived = new AtomicLong();
+	private final AtomicLong publishesDelivered = new AtomicLong();
+	private volatile boolean stopped = false;
+
+	/**
+	 * Sets the receive maximum sent to clients in the CONNACK.
+	 *
+	 * @param receiveMaximum the number of QoS 1 and 2 messages a client may have
+	 *                       in flight, from 1 to 65535
+	 */
+	public void setReceiveMaximum(int receiveMaximum) {
+		if (receiveMaximum < 1 || receiveMaximum > 65535) {
+			throw new IllegalArgumentException();
+		}
+		this.receiveMaximum = receiveMaximum;
+	}
+
+	public int getReceiveMaximum() {
+		return receiveMaximum;
+	}
+
+	/**
+	 * Sets the topic alias maximum sent to clients in the CONNACK.
+	 *
+	 * @param topicAliasMaximum the highest topic alias a client may use, 0 for
+	 *                          none
+	 */
+	public void setTopicAliasMaximum(int topicAliasMaximum) {
+		if (topicAliasMaximum < 0 || topicAliasMaximum > 65535) {
+			throw new IllegalArgumentException();
+		}
+		this.topicAliasMaximum = topicAliasMaximum;
+	}
+
+	public int getTopicAliasMaximum() {
+		return topicAliasMaximum;
+	}
+
+	/**
+	 * Sets how long each packet the server sends is delayed.
+	 *
+	 * @param latency the delay, 0 for none
+	 * @param unit    the unit of the delay
+	 */
+	public void setLatency(long latency, TimeUnit unit) {
+		if (latency < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.latencyNanos = unit.toNanos(latency);
+	}
+
+	/**
+	 * Sets the share of the packets the server sends that are lost, and sent
+	 * again after the retransmit delay.
+	 *
+	 * @param lossRate from 0, for none, to 1
+	 */
+	public void setLossRate(double lossRate) {
+		if (lossRate < 0 || lossRate > 1) {
+			throw new IllegalArgumentException();
+		}
+		this.lossRate = lossRate;
+	}
+
+	/**
+	 * Sets how much longer a packet that is lost takes to arrive.
+	 *
+	 * @param retransmitDelay the delay
+	 * @param unit            the unit of the delay
+	 */
+	public void setRetransmitDelay(long retransmitDelay, TimeUnit unit) {
+		if (retransmitDelay < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.retransmitDelayNanos = unit.toNanos(retransmitDelay);
+	}
+
+	/**
+	 * Sets the SSL context used to listen over SSL and secure WebSocket.
+	 *
+	 * @param sslContext the SSL context, holding the server's key
+	 */
+	public void setSSLContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	long getLatencyNanos() {
+		return latencyNanos;
+	}
+
+	double getLossRate() {
+		return lossRate;
+	}
+
+	long getRetransmitDelayNanos() {
+		return retransmitDelayNanos;
+	}
+
+	/**
+	 * @return the number of PUBLISH packets received from clients, not counting
+	 *         QoS 2 duplicates
+	 */
+	public long getPublishesReceived() {
+		return publishesReceived.get();
+	}
+
+	/**
+	 * @return the number of PUBLISH packets sent to subscribers
+	 */
+	public long getPublishesDelivered() {
+		return publishesDelivered.get();
+	}
+
+	/**
+	 * @return the number of clients connected
+	 */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * Starts listening on a free port of the loopback interface.
+	 *
+	 * @param scheme the scheme of the URI clients connect with: tcp, ssl, ws or
+	 *               wss
+	 * @return the URI clients connect to
+	 * @throws IOException if the server socket could not be opened
+	 */
+	public synchronized String listen(final String scheme) throws IOException {
+		final boolean secure = "ssl".equals(scheme) || "wss".equals(scheme);
+		final boolean webSocket = "ws".equals(scheme) || "wss".equals(scheme);
+		if (!secure && !webSocket && !"tcp".equals(scheme)) {
+			throw new IllegalArgumentException(scheme);
+		}
+		if (secure && sslContext == null) {
+			throw new IllegalStateException("No SSL context");
+		}
+		ServerSocketFactory factory = secure ? sslContext.getServerSocketFactory() : ServerSocketFactory.getDefault();
+		final ServerSocket serverSocket = factory.createServerSocket(0, 128, InetAddress.getLoopbackAddress());
+		serverSockets.add(serverSocket);
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept(serverSocket, webSocket);
+			}
+		}, "MQTT Stand-in Broker: " + scheme);
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return scheme + "://localhost:" + serverSocket.getLocalPort() + (webSocket ? "/mqtt" : "");
+	}
+
+	private void accept(ServerSocket serverSocket, boolean webSocket) {
+		while (!stopped) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				// The server socket was closed
+				return;
+			}
+			try {
+				socket.setTcpNoDelay(true);
+				InputStream in = new BufferedInputStream(socket.getInputStream());
+				OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+				if (webSocket) {
+					WebSocketServerStreams streams = WebSocketServerStreams.accept(in, out);
+					in = streams.getInputStream();
+					out = streams.getOutputStream();
+				}
+				new BrokerConnection(this, socket, in, out).start();
+			} catch (IOException e) {
+				// The connection failed before it was established
+				close(socket);
+			}
+		}
+	}
+
+	/**
+	 * Stops listening and disconnects every client.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		for (ServerSocket serverSocket : serverSockets) {
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+		serverSockets.clear();
+		for (BrokerConnection connection : connections.values()) {
+			connection.close();
+		}
+		connections.clear();
+		subscriptions.clear();
+	}
+
+	/**
+	 * Records a connection under its client identifier, taking over the
+	 * connection of any client already connected with the same identifier.
+	 */
+	void connected(BrokerConnection connection) {
+		BrokerConnection previous = connections.put(connection.getClientId(), connection);
+		if (previous != null && previous != connection) {
+			previous.disconnect(MqttReturnCode.RETURN_CODE_SESSION_TAKEN_OVER);
+		}
+	}
+
+	void disconnected(BrokerConnection connection) {
+		connections.remove(connection.getClientId(), connection);
+		for (String topicFilter : connection.getTopicFilters()) {
+			unsubscribe(connection, topicFilter);
+		}
+	}
+
+	void subscribe(BrokerConnection connection, String topicFilter, int qos) {
+		// The trie's own lock, so that no message is routed while the
+		// subscribers are out of it
+		synchronized (subscriptions) {
+			Map<BrokerConnection, Integer> subscribers = subscriptions.remove(topicFilter);
+			if (subscribers == null) {
+				subscribers = new ConcurrentHashMap<BrokerConnection, Integer>();
+			}
+			subscribers.put(connection, Integer.valueOf(qos));
+			subscriptions.put(topicFilter, subscribers);
+		}
+	}
+
+	void unsubscribe(BrokerConnection connection, String topicFilter) {
+		synchronized (subscriptions) {
+			Map<BrokerConnection, Integer> subscribers = subscriptions.remove(topicFilter);
+			if (subscribers != null) {
+				subscribers.remove(connection);
+				if (!subscribers.isEmpty()) {
+					subscriptions.put(topicFilter, subscribers);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends a message to every client subscribed to its topic, at the lower of
+	 * its QoS and the QoS granted to the subscriber.
+	 */
+	void route(String topicName, MqttMessage message, MqttProperties properties) {
+		publishesReceived.incrementAndGet();
+		for (Map<BrokerConnection, Integer> subscribers : subscriptions.match(topicName)) {
+			for (Map.Entry<BrokerConnection, Integer> subscriber : subscribers.entrySet()) {
+				int qos = Math.min(message.getQos(), subscriber.getValue().intValue());
+				subscriber.getKey().deliver(topicName, message.getPayload(), qos, properties);
+				publishesDelivered.incrementAndGet();
+			}
+		}
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.benchmark.broker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+import org.cion.eclipse.mqtt5.client.websocket.WebSocketFrame;
+import org.cion.eclipse.mqtt5.client.websocket.WebSocketInputStream;
+
+/**
+ * The server's side of a WebSocket connection carrying MQTT: the opening
+ * handshake, and streams that read the client's binary frames and write the
+ * server's, unmasked, as binary frames.
+ */
+final class WebSocketServerStreams {
+	private static final String ACCEPT_SALT = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final byte OPCODE_BINARY = 0x02;
+	private static final byte OPCODE_CLOSE = 0x08;
+
+	private final InputStream inputStream;
+	private final OutputStream outputStream;
+
+	private WebSocketServerStreams(final InputStream in, final OutputStream out) {
+		// Reads the client's frames, masked and perhaps fragmented
+		this.inputStream = new WebSocketInputStream(in, out);
+
+		this.outputStream = new OutputStream() {
+			private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+			@Override
+			public void write(int b) {
+				buffer.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				buffer.write(b, off, len);
+			}
+
+			/**
+			 * Sends what has been written as one frame.
+			 */
+			@Override
+			public void flush() throws IOException {
+				if (buffer.size() > 0) {
+					writeFrame(OPCODE_BINARY, buffer.toByteArray());
+					buffer.reset();
+				}
+				out.flush();
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+				writeFrame(OPCODE_CLOSE, new byte[0]);
+				out.close();
+			}
+
+			private void writeFrame(byte opcode, byte[] payload) throws IOException {
+				ByteBuffer frame = ByteBuffer.allocate(payload.length + 10);
+				WebSocketFrame.appendFinAndOpCode(frame, opcode, true);
+				WebSocketFrame.appendLengthAndMask(frame, payload.length, null);
+				frame.put(payload);
+				out.write(frame.array(), 0, frame.position());
+			}
+		};
+	}
+
+	/**
+	 * Reads the client's opening handshake and accepts it.
+	 *
+	 * @param in  the stream from the client
+	 * @param out the stream to the client
+	 * @return the streams that carry MQTT over the connection
+	 * @throws IOException if the handshake is not a WebSocket upgrade
+	 */
+	static WebSocketServerStreams accept(InputStream in, OutputStream out) throws IOException {
+		String key = null;
+		String line;
+		while (!(line = readLine(in)).isEmpty()) {
+			int colon = line.indexOf(':');
+			if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+				key = line.substring(colon + 1).trim();
+			}
+		}
+		if (key == null) {
+			throw new IOException("Not a WebSocket handshake");
+		}
+		String accept;
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			accept = Base64.getEncoder()
+					.encodeToString(sha1.digest((key + ACCEPT_SALT).getBytes(StandardCharsets.US_ASCII)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		String response = "HTTP/1.1 101 Switching Protocols\r\n"
+				+ "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: " + accept + "\r\n"
+				+ "Sec-WebSocket-Protocol: mqtt\r\n"
+				+ "\r\n";
+		out.write(response.getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+		return new WebSocketServerStreams(in, out);
+	}
+
+	/**
+	 * Reads a line of the handshake a byte at a time, so that nothing after the
+	 * handshake is read.
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b == -1) {
+				throw new IOException("Connection closed during the WebSocket handshake");
+			}
+			if (b != '\r') {
+				line.append((char) b);
+			}
+		}
+		return line.toString();
+	}
+
+	InputStream getInputStream() {
+		return inputStream;
+	}
+
+	OutputStream getOutputStream() {
+		return outputStream;
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client;
+
+/**
+ * How inbound messages are shared out between the dispatch threads when
+ * message callbacks run in parallel. Messages with the same key are always
+ * delivered one at a time, in the order they arrived.
+ *
+ * @see MqttConnectionOptions#setCallbackDispatchThreads(int)
+ */
+public enum CallbackDispatchKey {
+	/**
+	 * Messages on the same topic are delivered in order.
+	 */
+	TOPIC,
+
+	/**
+	 * Messages for the same subscription are delivered in order, using the first
+	 * subscription identifier the server sent with the message. Messages
+	 * without one are keyed by topic.
+	 */
+	SUBSCRIPTION_IDENTIFIER
+}
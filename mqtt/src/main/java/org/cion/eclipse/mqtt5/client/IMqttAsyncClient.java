@@ -16,6 +16,8 @@
 
 package org.cion.eclipse.mqtt5.client;
 
+import java.util.List;
+
 import org.cion.eclipse.mqtt5.client.util.Debug;
 import org.cion.eclipse.mqtt5.common.MqttException;
 import org.cion.eclipse.mqtt5.common.MqttMessage;
@@ -949,6 +951,57 @@ public interface IMqttAsyncClient {
     public IMqttToken publish(String topic, MqttMessage message, Object userContext, MqttActionListener callback)
             throws MqttException, MqttPersistenceException;
 
+    /**
+     * Publishes a batch of messages to the server.
+     * <p>
+     * The messages are validated, stored and queued together, and are sent in
+     * the order of the list. If any of them cannot be accepted, for instance
+     * because a topic is invalid, the inflight window does not have room for
+     * all of them or the messages cannot be persisted, none of them are
+     * published and an exception is thrown. Messages with a QoS of 1
+     * or 2 are put into persistence with a single commit where the persistence
+     * implements {@link MqttBatchPersistence}.
+     * </p>
+     * <p>
+     * Only the messages with a QoS of 1 or 2 count against the inflight window,
+     * which is the receive maximum of the server. A batch with more of them
+     * than that can never be accepted, and fails with
+     * {@link MqttClientException#REASON_CODE_BATCH_TOO_LARGE}, so such messages
+     * must be published in batches no larger than the receive maximum. A batch
+     * that would fit, but not while other messages are in flight, fails with
+     * {@link MqttClientException#REASON_CODE_MAX_INFLIGHT} and can be tried
+     * again once some of them have completed.
+     * </p>
+     * <p>
+     * The returned token completes once every message has been delivered to the
+     * requested quality of service, or has failed, and the callback is called
+     * once for the whole batch. If any message failed the token fails, and
+     * {@link MqttBatchToken#getTokens()} holds the outcome of each message.
+     * {@link MqttCallback#deliveryComplete(IMqttToken)} is still called for each
+     * message.
+     * </p>
+     * <p>
+     * While the client is disconnected and buffering messages, the messages are
+     * buffered one at a time, as
+     * {@link #publish(String, MqttMessage, Object, MqttActionListener)} does.
+     * </p>
+     *
+     * @param messages    the messages to deliver, with the topic to deliver each to
+     * @param userContext optional object used to pass context to the callback. Use null if
+     *                    not required.
+     * @param callback    optional listener that will be notified when delivery of every
+     *                    message has completed.
+     * @return token used to track and wait for the messages to be delivered. The token
+     * will be passed to callback methods if set.
+     * @throws MqttPersistenceException when a problem occurs storing the messages
+     * @throws IllegalArgumentException if the list is empty, a topic is invalid or a value of QoS is not 0, 1 or 2.
+     * @throws MqttException            for other errors encountered while publishing the messages. For
+     *                                  instance client not connected.
+     * @see #publish(String, MqttMessage, Object, MqttActionListener)
+     */
+    public MqttBatchToken publish(List<MqttTopicMessage> messages, Object userContext, MqttActionListener callback)
+            throws MqttException, MqttPersistenceException;
+
     /**
      * An AUTH Packet is sent from Client to Server or Server to Client as part of
      * an extended authentication exchange, such as challenge / response
@@ -1014,6 +1067,26 @@ public interface IMqttAsyncClient {
      */
     public int getInFlightMessageCount();
 
+    /**
+     * Returns the state of the queue of inbound messages waiting to be passed to
+     * the message callbacks: how many are waiting, and how often and for how
+     * long the arrival of messages has been held up because it was full.
+     *
+     * @return a snapshot of the inbound queue metrics.
+     * @see MqttConnectionOptions#setInboundQueueSize(int)
+     */
+    public InboundQueueMetrics getInboundQueueMetrics();
+
+    /**
+     * Returns the number of times a message could not be sent because all
+     * 65535 message IDs were in use, waiting for the server to acknowledge
+     * messages. If this grows, the server is acknowledging messages more
+     * slowly than they are being published.
+     *
+     * @return the number of times the message IDs have run out.
+     */
+    public long getMessageIdExhaustedCount();
+
     /**
      * Close the client Releases all resource associated with the client. After the
      * client has been closed it cannot be reused. For instance attempts to connect
@@ -0,0 +1,42 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client;
+
+/**
+ * What the client does with a message that arrives while its inbound queue is
+ * full, because the application's message callbacks are not keeping up.
+ *
+ * @see MqttConnectionOptions#setInboundBackpressurePolicy(InboundBackpressurePolicy)
+ */
+public enum InboundBackpressurePolicy {
+	/**
+	 * Stop reading from the network until the callback thread has made space in
+	 * the queue. Nothing is lost, but acknowledgements for messages this client
+	 * publishes are not read while it waits either.
+	 */
+	BLOCK,
+
+	/**
+	 * Make space by dropping the oldest QoS 0 message in the queue, or the new
+	 * message if it is the only QoS 0 message. If neither is QoS 0 the client
+	 * waits as for {@link #BLOCK}, since QoS 1 and 2 messages must be delivered.
+	 */
+	DROP_OLDEST_QOS0,
+
+	/**
+	 * Write the message to the client's persistent store and deliver it from
+	 * there once the callback thread has worked through the queue. The network is
+	 * never blocked. Messages spilled to the store are discarded if the
+	 * connection is lost; as with the in-memory queue, the server sends QoS 1 and
+	 * 2 messages again.
+	 */
+	SPILL_TO_PERSISTENCE
+}
@@ -0,0 +1,97 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client;
+
+/**
+ * A snapshot of the queue of inbound messages waiting to be passed to the
+ * application's message callbacks. The counts are totals since the client was
+ * created.
+ *
+ * @see MqttAsyncClient#getInboundQueueMetrics()
+ */
+public class InboundQueueMetrics {
+	private final int depth;
+	private final int capacity;
+	private final int spilledDepth;
+	private final long droppedCount;
+	private final long spilledCount;
+	private final long blockedCount;
+	private final long blockedTimeNanos;
+
+	public InboundQueueMetrics(int depth, int capacity, int spilledDepth, long droppedCount, long spilledCount,
+			long blockedCount, long blockedTimeNanos) {
+		this.depth = depth;
+		this.capacity = capacity;
+		this.spilledDepth = spilledDepth;
+		this.droppedCount = droppedCount;
+		this.spilledCount = spilledCount;
+		this.blockedCount = blockedCount;
+		this.blockedTimeNanos = blockedTimeNanos;
+	}
+
+	/**
+	 * @return the number of messages waiting in memory
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the number of messages the in-memory queue holds
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of messages waiting in the persistent store
+	 */
+	public int getSpilledDepth() {
+		return spilledDepth;
+	}
+
+	/**
+	 * @return the number of QoS 0 messages dropped because the queue was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * @return the number of messages written to the persistent store because the
+	 *         queue was full
+	 */
+	public long getSpilledCount() {
+		return spilledCount;
+	}
+
+	/**
+	 * @return the number of messages whose arrival had to wait for space in the
+	 *         queue
+	 */
+	public long getBlockedCount() {
+		return blockedCount;
+	}
+
+	/**
+	 * @return the total time, in nanoseconds, that reading from the network has
+	 *         waited for space in the queue
+	 */
+	public long getBlockedTimeNanos() {
+		return blockedTimeNanos;
+	}
+
+	public String toString() {
+		return "depth=" + depth + " capacity=" + capacity + " spilledDepth=" + spilledDepth + " dropped="
+				+ droppedCount + " spilled=" + spilledCount + " blocked=" + blockedCount + " blockedTimeNanos="
+				+ blockedTimeNanos;
+	}
+}
@@ -25,6 +25,7 @@ import org.cion.eclipse.mqtt5.client.internal.MqttConnectionState;
 import org.cion.eclipse.mqtt5.client.internal.MqttSessionState;
 import org.cion.eclipse.mqtt5.client.internal.NetworkModule;
 import org.cion.eclipse.mqtt5.client.internal.NetworkModuleService;
+import org.cion.eclipse.mqtt5.client.internal.PayloadCodecService;
 import org.cion.eclipse.mqtt5.client.logging.Logger;
 import org.cion.eclipse.mqtt5.client.logging.LoggerFactory;
 import org.cion.eclipse.mqtt5.client.persist.MemoryPersistence;
@@ -44,11 +45,13 @@ import org.cion.eclipse.mqtt5.common.packet.MqttPublish;
 import org.cion.eclipse.mqtt5.common.packet.MqttReturnCode;
 import org.cion.eclipse.mqtt5.common.packet.MqttSubscribe;
 import org.cion.eclipse.mqtt5.common.packet.MqttUnsubscribe;
-import org.cion.eclipse.mqtt5.common.util.MqttTopicValidator;
+import org.cion.eclipse.mqtt5.common.util.MqttTopicCache;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -999,7 +1002,7 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
      * @throws IllegalArgumentException if the topic contains a '+' or '#' wildcard character.
      */
     protected MqttTopic getTopic(String topic) {
-        MqttTopicValidator.validate(topic, false/* wildcards NOT allowed */, true);
+        MqttTopicCache.getInstance().validate(topic, false/* wildcards NOT allowed */, true);
 
         MqttTopic result = (MqttTopic) topics.get(topic);
         if (result == null) {
@@ -1170,7 +1173,7 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
         for (MqttSubscription subscription : subscriptions) {
             this.comms.removeMessageListener(subscription.getTopic());
             // Check if the topic filter is valid before subscribing
-            MqttTopicValidator.validate(subscription.getTopic(),
+            MqttTopicCache.getInstance().validate(subscription.getTopic(),
                     this.mqttConnection.isWildcardSubscriptionsAvailable(),
                     this.mqttConnection.isSharedSubscriptionsAvailable());
         }
@@ -1318,7 +1321,7 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
 
         // add message handlers to the list for this client
         for (int i = 0; i < subscriptions.length; ++i) {
-            MqttTopicValidator.validate(subscriptions[i].getTopic(),
+            MqttTopicCache.getInstance().validate(subscriptions[i].getTopic(),
                     this.mqttConnection.isWildcardSubscriptionsAvailable(),
                     this.mqttConnection.isSharedSubscriptionsAvailable());
             if (messageListeners == null || messageListeners[i] == null) {
@@ -1355,7 +1358,9 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
     public IMqttToken subscribe(MqttSubscription[] subscriptions, Object userContext, MqttActionListener callback,
                                 IMqttMessageListener messageListener, MqttProperties subscriptionProperties) throws MqttException {
 
-        int subId = subscriptionProperties.getSubscriptionIdentifiers().get(0);
+        // No Subscription Identifier has been given unless the application set one
+        int subId = subscriptionProperties.getSubscriptionIdentifiers().isEmpty() ? 0
+                : subscriptionProperties.getSubscriptionIdentifiers().get(0);
 
         // Automatic Subscription Identifier Assignment is enabled
         if (connOpts.useSubscriptionIdentifiers() && this.mqttConnection.isSubscriptionIdentifiersAvailable()) {
@@ -1377,7 +1382,7 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
 
         // add message handlers to the list for this client
         for (MqttSubscription subscription : subscriptions) {
-            MqttTopicValidator.validate(subscription.getTopic(),
+            MqttTopicCache.getInstance().validate(subscription.getTopic(),
                     this.mqttConnection.isWildcardSubscriptionsAvailable(),
                     this.mqttConnection.isSharedSubscriptionsAvailable());
             if (messageListener == null) {
@@ -1479,7 +1484,7 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
             // Although we already checked when subscribing, but invalid
             // topic filter is meanless for unsubscribing, just prohibit it
             // to reduce unnecessary control packet send to broker.
-            MqttTopicValidator.validate(topicFilter, true/* allow wildcards */, this.mqttConnection.isSharedSubscriptionsAvailable());
+            MqttTopicCache.getInstance().validate(topicFilter, true/* allow wildcards */, this.mqttConnection.isSharedSubscriptionsAvailable());
         }
 
         // remove message handlers from the list for this client
@@ -1609,7 +1614,7 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
         log.fine(CLASS_NAME, methodName, "111", new Object[]{topic, userContext, callback});
 
         // Checks if a topic is valid when publishing a message.
-        MqttTopicValidator.validate(topic, false/* wildcards NOT allowed */, true);
+        MqttTopicCache.getInstance().validate(topic, false/* wildcards NOT allowed */, true);
 
         MqttToken token = new MqttToken(getClientId());
         token.internalTok.setDeliveryToken(true);
@@ -1618,7 +1623,7 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
         token.setMessage(message);
         token.internalTok.setTopics(new String[]{topic});
 
-        MqttPublish pubMsg = new MqttPublish(topic, message, message.getProperties());
+        MqttPublish pubMsg = createPublish(topic, message);
         token.setRequestMessage(pubMsg);
         comms.sendNoWait(pubMsg, token);
 
@@ -1628,6 +1633,67 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
         return token;
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cion.eclipse.mqtt5.client.IMqttAsyncClient#publish(java.util.List,
+     * java.lang.Object, org.cion.eclipse.mqtt5.client.MqttActionListener)
+     */
+    @Override
+    public MqttBatchToken publish(List<MqttTopicMessage> messages, Object userContext,
+                                  MqttActionListener callback) throws MqttException, MqttPersistenceException {
+        final String methodName = "publish";
+        // @TRACE 120=< batch count={0} userContext={1} callback={2}
+        log.fine(CLASS_NAME, methodName, "120", new Object[]{Integer.valueOf(messages.size()), userContext, callback});
+
+        if (messages.isEmpty()) {
+            throw new IllegalArgumentException();
+        }
+        // Check every topic before any message is sent
+        for (MqttTopicMessage message : messages) {
+            MqttTopicCache.getInstance().validate(message.getTopic(), false/* wildcards NOT allowed */, true);
+        }
+
+        List<MqttPublish> pubMsgs = new ArrayList<MqttPublish>(messages.size());
+        List<MqttToken> tokens = new ArrayList<MqttToken>(messages.size());
+        for (MqttTopicMessage message : messages) {
+            MqttToken token = new MqttToken(getClientId());
+            token.internalTok.setDeliveryToken(true);
+            token.setMessage(message.getMessage());
+            token.internalTok.setTopics(new String[]{message.getTopic()});
+
+            MqttPublish pubMsg = createPublish(message.getTopic(), message.getMessage());
+            token.setRequestMessage(pubMsg);
+            pubMsgs.add(pubMsg);
+            tokens.add(token);
+        }
+
+        MqttBatchToken batchToken = new MqttBatchToken(getClientId(), this, tokens);
+        batchToken.setActionCallback(callback);
+        batchToken.setUserContext(userContext);
+        comms.sendBatchNoWait(pubMsgs, tokens);
+
+        // @TRACE 121=<
+        log.fine(CLASS_NAME, methodName, "121");
+
+        return batchToken;
+    }
+
+    /**
+     * Creates the PUBLISH packet for a message, with its payload encoded if a
+     * payload encoding is set in the connection options.
+     */
+    private MqttPublish createPublish(String topic, MqttMessage message) {
+        MqttConnectionOptions options = this.connOpts;
+        if (options != null && options.getPayloadEncoding() != null) {
+            message = PayloadCodecService.encode(message,
+                    PayloadCodecService.getCodec(options.getPayloadEncoding()),
+                    options.getPayloadEncodingThreshold());
+        }
+        return new MqttPublish(topic, message, message.getProperties());
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -1867,6 +1933,28 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
         return this.comms.getActualInFlight();
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cion.eclipse.mqtt5.client.IMqttAsyncClient#getInboundQueueMetrics()
+     */
+    @Override
+    public InboundQueueMetrics getInboundQueueMetrics() {
+        return this.comms.getInboundQueueMetrics();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cion.eclipse.mqtt5.client.IMqttAsyncClient#getMessageIdExhaustedCount()
+     */
+    @Override
+    public long getMessageIdExhaustedCount() {
+        return this.comms.getMessageIdExhaustedCount();
+    }
+
     /*
      * (non-Javadoc)
      *
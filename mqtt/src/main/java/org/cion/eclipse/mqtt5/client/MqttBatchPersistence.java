@@ -0,0 +1,41 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.cion.eclipse.mqtt5.common.MqttPersistable;
+import org.cion.eclipse.mqtt5.common.MqttPersistenceException;
+
+/**
+ * A persistent store that can apply many puts and removes as one commit.
+ * <p>
+ * This is used by {@link org.cion.eclipse.mqtt5.client.persist.WriteBehindPersistence}
+ * to group commit the work of many messages, so that the cost of making data
+ * durable is paid once per batch rather than once per message. Stores that do
+ * not implement it are written one put or remove at a time.</p>
+ */
+public interface MqttBatchPersistence extends MqttClientPersistence {
+	/**
+	 * Puts and removes the specified data in the persistent store, and only
+	 * returns once all of it is durable. No key appears in both the puts and
+	 * the removes.
+	 * <p>
+	 * If an exception is thrown the data that was being put is assumed to not be
+	 * in the persistent store.</p>
+	 * @param puts the data to persist, by key
+	 * @param removes the keys of the data to remove
+	 * @throws MqttPersistenceException if there was a problem putting or
+	 * removing the data.
+	 */
+	void commit(Map<String, MqttPersistable> puts, Collection<String> removes) throws MqttPersistenceException;
+}
@@ -0,0 +1,81 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.cion.eclipse.mqtt5.client.internal.BatchToken;
+
+/**
+ * Tracks the delivery of messages published together by
+ * {@link IMqttAsyncClient#publish(List, Object, MqttActionListener)}.
+ * <p>
+ * The token completes once every message has been delivered, or has failed.
+ * If any message failed the token fails with the exception of the first one to
+ * fail, and {@link #getTokens()} tells which messages were delivered and why
+ * the others were not. The listener passed to publish is called once, for the
+ * whole batch.
+ * </p>
+ */
+public class MqttBatchToken extends MqttToken {
+
+	private final List<MqttToken> tokens;
+
+	/**
+	 * @param logContext the client ID, used when logging
+	 * @param client     the client publishing the messages
+	 * @param tokens     a token for each message, which must not yet be in use
+	 */
+	public MqttBatchToken(String logContext, IMqttAsyncClient client, List<MqttToken> tokens) {
+		super();
+		this.tokens = Collections.unmodifiableList(new ArrayList<MqttToken>(tokens));
+		internalTok = new BatchToken(logContext, client, this, this.tokens);
+	}
+
+	/**
+	 * @return a token for each message, in the order they were published. Each
+	 *         holds the message ID, the reason codes and, if the message failed,
+	 *         the exception.
+	 */
+	public List<MqttToken> getTokens() {
+		return tokens;
+	}
+
+	/**
+	 * @return the number of messages that are not yet delivered or failed
+	 */
+	public int getPendingCount() {
+		return ((BatchToken) internalTok).getPendingCount();
+	}
+
+	/**
+	 * @return the number of messages that failed
+	 */
+	public int getFailureCount() {
+		return ((BatchToken) internalTok).getFailureCount();
+	}
+
+	/**
+	 * @return the tokens of the messages that have failed so far, in the order
+	 *         the messages were published
+	 */
+	public List<MqttToken> getFailedTokens() {
+		List<MqttToken> failed = new ArrayList<MqttToken>();
+		for (MqttToken token : tokens) {
+			if (token.getException() != null) {
+				failed.add(token);
+			}
+		}
+		return failed;
+	}
+}
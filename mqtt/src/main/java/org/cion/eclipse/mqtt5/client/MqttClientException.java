@@ -133,6 +133,13 @@ public class MqttClientException {
 
 	public static final short REASON_CODE_SERVER_DISCONNECTED = 32204;
 
+	/**
+	 * A batch of messages has been published with more messages at QoS 1 or 2
+	 * than the server's receive maximum, so the inflight window can never have
+	 * room for all of them at once. The batch must be split into smaller ones.
+	 */
+	public static final short REASON_CODE_BATCH_TOO_LARGE = 32205;
+
 	/**
 	 * The server has been sent an MQTT packet that was larger than the client
 	 * defined value.
@@ -18,7 +18,9 @@
  */
 package org.cion.eclipse.mqtt5.client;
 
+import org.cion.eclipse.mqtt5.client.internal.NIOEventLoopGroup;
 import org.cion.eclipse.mqtt5.client.internal.NetworkModuleService;
+import org.cion.eclipse.mqtt5.client.internal.PayloadCodecService;
 import org.cion.eclipse.mqtt5.client.util.Debug;
 import org.cion.eclipse.mqtt5.common.MqttMessage;
 import org.cion.eclipse.mqtt5.common.packet.MqttProperties;
@@ -59,6 +61,50 @@ public class MqttConnectionOptions {
      * The default clean session setting if one is not specified
      */
     public static final boolean CLEAN_SESSION_DEFAULT = true;
+    /**
+     * The default maximum number of packets written to the network before a
+     * flush, 1 means every packet is flushed on its own
+     */
+    public static final int SEND_BATCH_MAX_MESSAGES_DEFAULT = 1;
+    /**
+     * The default maximum number of payload bytes written to the network before a
+     * flush
+     */
+    public static final int SEND_BATCH_MAX_BYTES_DEFAULT = 64 * 1024;
+    /**
+     * The default number of inbound messages queued for the message callbacks
+     */
+    public static final int INBOUND_QUEUE_SIZE_DEFAULT = 10;
+    /**
+     * The default behaviour when the inbound message queue is full
+     */
+    public static final InboundBackpressurePolicy INBOUND_BACKPRESSURE_POLICY_DEFAULT = InboundBackpressurePolicy.BLOCK;
+    /**
+     * The default number of threads message callbacks are run on in parallel, 0
+     * means they all run on the single callback thread
+     */
+    public static final int CALLBACK_DISPATCH_THREADS_DEFAULT = 0;
+    /**
+     * The default key that decides which messages are delivered in order when
+     * callbacks run in parallel
+     */
+    public static final CallbackDispatchKey CALLBACK_DISPATCH_KEY_DEFAULT = CallbackDispatchKey.TOPIC;
+    /**
+     * The default largest payload of a WebSocket frame sent to the server, 0
+     * means packets are never split across frames
+     */
+    public static final int WEBSOCKET_MAX_FRAME_SIZE_DEFAULT = 0;
+    /** The default for whether permessage-deflate is offered to the server */
+    public static final boolean WEBSOCKET_COMPRESSION_DEFAULT = false;
+    /**
+     * The default largest LZ77 window the server is asked to compress with, in
+     * bits
+     */
+    public static final int WEBSOCKET_COMPRESSION_SERVER_MAX_WINDOW_BITS_DEFAULT = 15;
+    /** The default shortest payload that is encoded, in bytes */
+    public static final int PAYLOAD_ENCODING_THRESHOLD_DEFAULT = 256;
+    /** The default longest payload that an arriving message is decoded to, in bytes */
+    public static final int PAYLOAD_DECODING_MAXIMUM_DEFAULT = 1024 * 1024;
 
     // Connection Behaviour Properties
     private String[] serverURIs = null; // List of Servers to connect to in order
@@ -120,9 +166,25 @@ public class MqttConnectionOptions {
     private Properties sslClientProps = null; // SSL Client Properties
     private HostnameVerifier sslHostnameVerifier = null; // SSL Hostname Verifier
     private Map<String, String> customWebSocketHeaders;
+    private int webSocketMaxFrameSize = WEBSOCKET_MAX_FRAME_SIZE_DEFAULT; // Largest WebSocket frame payload sent, 0 for no limit.
+    private boolean webSocketCompression = WEBSOCKET_COMPRESSION_DEFAULT; // Offer permessage-deflate to the server.
+    private boolean webSocketCompressionClientNoContextTakeover = false;
+    private boolean webSocketCompressionServerNoContextTakeover = false;
+    private int webSocketCompressionServerMaxWindowBits = WEBSOCKET_COMPRESSION_SERVER_MAX_WINDOW_BITS_DEFAULT;
+    private String payloadEncoding = null; // Content encoding of the payloads published, null to send them as they are.
+    private int payloadEncodingThreshold = PAYLOAD_ENCODING_THRESHOLD_DEFAULT;
+    private int payloadDecodingMaximum = PAYLOAD_DECODING_MAXIMUM_DEFAULT;
 
     // Client Operation Parameters
     private int executorServiceTimeout = 1; // How long to wait in seconds when terminating the executor service.
+    private int sendBatchMaxMessages = SEND_BATCH_MAX_MESSAGES_DEFAULT; // Max packets written per flush.
+    private int sendBatchMaxBytes = SEND_BATCH_MAX_BYTES_DEFAULT; // Max payload bytes written per flush.
+    private boolean gatheringWrites = false; // Write packets with gathering writes on TCP and SSL connections.
+    private NIOEventLoopGroup eventLoopGroup = null; // I/O threads for tcp+nio connections, null for the shared group.
+    private int inboundQueueSize = INBOUND_QUEUE_SIZE_DEFAULT; // Inbound messages queued for the callbacks.
+    private InboundBackpressurePolicy inboundBackpressurePolicy = INBOUND_BACKPRESSURE_POLICY_DEFAULT; // When the inbound queue is full.
+    private int callbackDispatchThreads = CALLBACK_DISPATCH_THREADS_DEFAULT; // Threads running message callbacks in parallel.
+    private CallbackDispatchKey callbackDispatchKey = CALLBACK_DISPATCH_KEY_DEFAULT; // Messages with the same key are delivered in order.
 
     /**
      * Returns the MQTT version.
@@ -917,6 +979,62 @@ public class MqttConnectionOptions {
         this.httpsHostnameVerificationEnabled = httpsHostnameVerificationEnabled;
     }
 
+    /**
+     * Returns whether packets are written with gathering writes on
+     * <code>tcp://</code> and <code>ssl://</code> connections.
+     *
+     * @return if gathering writes are enabled.
+     * @see #setGatheringWrites(boolean)
+     */
+    public boolean isGatheringWrites() {
+        return gatheringWrites;
+    }
+
+    /**
+     * Sets whether packets are written with gathering writes on
+     * <code>tcp://</code> and <code>ssl://</code> connections. When enabled, the
+     * fixed header, variable header and payload of each packet are handed to the
+     * network as separate buffers, and large payloads are written straight from
+     * the message's own array, instead of being assembled into a single array
+     * and copied through a buffered stream in small chunks.
+     * <p>
+     * The default value is false.
+     * </p>
+     *
+     * @param gatheringWrites Set to True to enable gathering writes
+     */
+    public void setGatheringWrites(boolean gatheringWrites) {
+        this.gatheringWrites = gatheringWrites;
+    }
+
+    /**
+     * Returns the group of I/O threads that services <code>tcp+nio://</code>
+     * connections.
+     *
+     * @return the event loop group, or null if the shared default group is used.
+     * @see #setEventLoopGroup(NIOEventLoopGroup)
+     */
+    public NIOEventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    /**
+     * Sets the group of I/O threads that services <code>tcp+nio://</code>
+     * connections. A connection using that scheme has no receiver or sender
+     * thread of its own; a few I/O threads multiplex the connections of every
+     * client that shares the group.
+     * <p>
+     * The default value is null, in which case the group returned by
+     * {@link NIOEventLoopGroup#getDefault()}, with one thread per available
+     * processor, is shared by all clients.
+     * </p>
+     *
+     * @param eventLoopGroup the event loop group, or null to use the shared default.
+     */
+    public void setEventLoopGroup(NIOEventLoopGroup eventLoopGroup) {
+        this.eventLoopGroup = eventLoopGroup;
+    }
+
     /**
      * @return The Debug Properties
      */
@@ -927,6 +1045,20 @@ public class MqttConnectionOptions {
         p.put("CleanStart", Boolean.valueOf(isCleanStart()));
         p.put("ConTimeout", getConnectionTimeout());
         p.put("KeepAliveInterval", getKeepAliveInterval());
+        p.put("SendBatchMaxMessages", getSendBatchMaxMessages());
+        p.put("SendBatchMaxBytes", getSendBatchMaxBytes());
+        p.put("InboundQueueSize", getInboundQueueSize());
+        p.put("InboundBackpressurePolicy", getInboundBackpressurePolicy());
+        p.put("CallbackDispatchThreads", getCallbackDispatchThreads());
+        p.put("CallbackDispatchKey", getCallbackDispatchKey());
+        p.put("WebSocketMaxFrameSize", getWebSocketMaxFrameSize());
+        p.put("WebSocketCompression", isWebSocketCompression());
+        p.put("WebSocketCompressionClientNoContextTakeover", isWebSocketCompressionClientNoContextTakeover());
+        p.put("WebSocketCompressionServerNoContextTakeover", isWebSocketCompressionServerNoContextTakeover());
+        p.put("WebSocketCompressionServerMaxWindowBits", getWebSocketCompressionServerMaxWindowBits());
+        p.put("PayloadEncoding", (getPayloadEncoding() == null) ? strNull : getPayloadEncoding());
+        p.put("PayloadEncodingThreshold", getPayloadEncodingThreshold());
+        p.put("PayloadDecodingMaximum", getPayloadDecodingMaximum());
         p.put("UserName", (getUserName() == null) ? strNull : getUserName());
         p.put("WillDestination", (getWillDestination() == null) ? strNull : getWillDestination());
         if (getSocketFactory() == null) {
@@ -955,6 +1087,250 @@ public class MqttConnectionOptions {
         return customWebSocketHeaders;
     }
 
+    /**
+     * Returns the largest payload of a WebSocket frame sent to the server.
+     *
+     * @return the largest frame payload in bytes, 0 for no limit.
+     * @see #setWebSocketMaxFrameSize(int)
+     */
+    public int getWebSocketMaxFrameSize() {
+        return webSocketMaxFrameSize;
+    }
+
+    /**
+     * Sets the largest payload of a WebSocket frame the client sends over
+     * <code>ws://</code> and <code>wss://</code> connections. A packet larger
+     * than this is sent as a binary frame followed by continuation frames, for
+     * servers and proxies that limit the size of a frame.
+     * <p>
+     * The default value is 0, in which case each packet, or batch of packets,
+     * is sent as a single frame however large it is.
+     * </p>
+     *
+     * @param webSocketMaxFrameSize the largest frame payload in bytes, must be
+     *                              &gt;= 0.
+     * @throws IllegalArgumentException if webSocketMaxFrameSize was invalid
+     */
+    public void setWebSocketMaxFrameSize(int webSocketMaxFrameSize) {
+        if (webSocketMaxFrameSize < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.webSocketMaxFrameSize = webSocketMaxFrameSize;
+    }
+
+    /**
+     * Returns whether permessage-deflate compression is offered to the server.
+     *
+     * @return true if compression is offered.
+     * @see #setWebSocketCompression(boolean)
+     */
+    public boolean isWebSocketCompression() {
+        return webSocketCompression;
+    }
+
+    /**
+     * Sets whether the client offers the permessage-deflate extension of RFC
+     * 7692 in the WebSocket handshake of <code>ws://</code> and
+     * <code>wss://</code> connections. If the server accepts it, each packet, or
+     * batch of packets, sent in either direction is compressed, which can
+     * shrink text payloads such as JSON several times over at the cost of CPU
+     * time and some memory for each connection. The server is free to decline
+     * the offer, in which case nothing is compressed.
+     * <p>
+     * The default value is false. Compression needs API level 19, below that
+     * the extension is not offered whatever this is set to.
+     * </p>
+     *
+     * @param webSocketCompression true to offer compression.
+     */
+    public void setWebSocketCompression(boolean webSocketCompression) {
+        this.webSocketCompression = webSocketCompression;
+    }
+
+    /**
+     * Returns whether the client compresses each message on its own.
+     *
+     * @return true if the client does not keep its compression context.
+     * @see #setWebSocketCompressionClientNoContextTakeover(boolean)
+     */
+    public boolean isWebSocketCompressionClientNoContextTakeover() {
+        return webSocketCompressionClientNoContextTakeover;
+    }
+
+    /**
+     * Sets whether the client compresses each message on its own, rather than
+     * with what it sent before as context, when permessage-deflate is agreed.
+     * Repeated topics and field names then compress less well, but the server
+     * need not keep a window for the connection. The server may ask for this
+     * whatever is set here.
+     * <p>
+     * The default value is false.
+     * </p>
+     *
+     * @param clientNoContextTakeover true to compress each message on its own.
+     */
+    public void setWebSocketCompressionClientNoContextTakeover(boolean clientNoContextTakeover) {
+        this.webSocketCompressionClientNoContextTakeover = clientNoContextTakeover;
+    }
+
+    /**
+     * Returns whether the server is asked to compress each message on its own.
+     *
+     * @return true if the server is asked not to keep its compression context.
+     * @see #setWebSocketCompressionServerNoContextTakeover(boolean)
+     */
+    public boolean isWebSocketCompressionServerNoContextTakeover() {
+        return webSocketCompressionServerNoContextTakeover;
+    }
+
+    /**
+     * Sets whether the server is asked to compress each message on its own
+     * when permessage-deflate is agreed, which saves it memory for each
+     * connection.
+     * <p>
+     * The default value is false.
+     * </p>
+     *
+     * @param serverNoContextTakeover true to ask the server to compress each
+     *                                message on its own.
+     */
+    public void setWebSocketCompressionServerNoContextTakeover(boolean serverNoContextTakeover) {
+        this.webSocketCompressionServerNoContextTakeover = serverNoContextTakeover;
+    }
+
+    /**
+     * Returns the largest LZ77 window the server is asked to compress with.
+     *
+     * @return the window in bits.
+     * @see #setWebSocketCompressionServerMaxWindowBits(int)
+     */
+    public int getWebSocketCompressionServerMaxWindowBits() {
+        return webSocketCompressionServerMaxWindowBits;
+    }
+
+    /**
+     * Sets the largest LZ77 window the server is asked to compress with when
+     * permessage-deflate is agreed, a window of 2 to this power bytes. A smaller
+     * window saves the server memory for each connection. The client always
+     * compresses with the largest window, as <code>java.util.zip</code> offers
+     * no other.
+     * <p>
+     * The default value is 15, a window of 32 KiB, which is not sent in the
+     * offer.
+     * </p>
+     *
+     * @param serverMaxWindowBits the window in bits, from 8 to 15.
+     * @throws IllegalArgumentException if serverMaxWindowBits was invalid
+     */
+    public void setWebSocketCompressionServerMaxWindowBits(int serverMaxWindowBits) {
+        if (serverMaxWindowBits < 8 || serverMaxWindowBits > 15) {
+            throw new IllegalArgumentException();
+        }
+        this.webSocketCompressionServerMaxWindowBits = serverMaxWindowBits;
+    }
+
+    /**
+     * Returns the content encoding of the payloads published.
+     *
+     * @return the content encoding, or null if payloads are sent as they are.
+     * @see #setPayloadEncoding(String)
+     */
+    public String getPayloadEncoding() {
+        return payloadEncoding;
+    }
+
+    /**
+     * Sets the content encoding, such as compression, of the payloads the
+     * client publishes over any transport. A payload at least as long as the
+     * payload encoding threshold is encoded by the
+     * {@link org.cion.eclipse.mqtt5.client.spi.PayloadCodec} for the content
+     * encoding, and sent encoded if that makes it shorter, with a
+     * <code>content-encoding</code> user property naming the encoding. The
+     * payload format indicator of an encoded message is cleared.
+     * <p>
+     * Messages that arrive with the user property are decoded before they are
+     * delivered, whatever is set here, if a codec for their encoding is
+     * installed, up to the length set with
+     * {@link #setPayloadDecodingMaximum(int)}. The <code>deflate</code>
+     * encoding is built in, others can be installed with the
+     * {@link java.util.ServiceLoader}.
+     * </p>
+     * <p>
+     * The default value is null, in which case payloads are sent as they are.
+     * </p>
+     *
+     * @param payloadEncoding the content encoding, or null.
+     * @throws IllegalArgumentException if no codec is installed for the
+     *                                  content encoding
+     */
+    public void setPayloadEncoding(String payloadEncoding) {
+        if (payloadEncoding != null) {
+            PayloadCodecService.validateContentEncoding(payloadEncoding);
+        }
+        this.payloadEncoding = payloadEncoding;
+    }
+
+    /**
+     * Returns the shortest payload that is encoded.
+     *
+     * @return the shortest payload in bytes.
+     * @see #setPayloadEncodingThreshold(int)
+     */
+    public int getPayloadEncodingThreshold() {
+        return payloadEncodingThreshold;
+    }
+
+    /**
+     * Sets the shortest payload that is encoded when a payload encoding is
+     * set. Shorter payloads gain little from compression and are sent as they
+     * are.
+     * <p>
+     * The default value is 256.
+     * </p>
+     *
+     * @param payloadEncodingThreshold the shortest payload in bytes, must be
+     *                                 &gt;= 0.
+     * @throws IllegalArgumentException if payloadEncodingThreshold was invalid
+     */
+    public void setPayloadEncodingThreshold(int payloadEncodingThreshold) {
+        if (payloadEncodingThreshold < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.payloadEncodingThreshold = payloadEncodingThreshold;
+    }
+
+    /**
+     * Returns the longest payload that an arriving message is decoded to.
+     *
+     * @return the longest decoded payload in bytes.
+     * @see #setPayloadDecodingMaximum(int)
+     */
+    public int getPayloadDecodingMaximum() {
+        return payloadDecodingMaximum;
+    }
+
+    /**
+     * Sets the longest payload that an arriving message with a
+     * <code>content-encoding</code> user property is decoded to. A few bytes
+     * of compressed payload can decompress to a great many, so any publisher
+     * to a topic the client subscribes to could otherwise make it allocate as
+     * much memory as it liked. A message whose payload decodes to more than
+     * this is delivered as it arrived, still encoded.
+     * <p>
+     * The default value is 1 MiB.
+     * </p>
+     *
+     * @param payloadDecodingMaximum the longest decoded payload in bytes, 0 to
+     *                               not decode arriving messages at all.
+     * @throws IllegalArgumentException if payloadDecodingMaximum was invalid
+     */
+    public void setPayloadDecodingMaximum(int payloadDecodingMaximum) {
+        if (payloadDecodingMaximum < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.payloadDecodingMaximum = payloadDecodingMaximum;
+    }
+
     public String toString() {
         return Debug.dumpProperties(getDebug(), "Connection options");
     }
@@ -981,4 +1357,201 @@ public class MqttConnectionOptions {
     public void setExecutorServiceTimeout(int executorServiceTimeout) {
         this.executorServiceTimeout = executorServiceTimeout;
     }
+
+    /**
+     * Returns the maximum number of packets the client writes to the network
+     * before flushing it.
+     *
+     * @return the maximum number of packets in a send batch.
+     * @see #setSendBatchMaxMessages(int)
+     */
+    public int getSendBatchMaxMessages() {
+        return sendBatchMaxMessages;
+    }
+
+    /**
+     * Sets the maximum number of packets the client writes to the network before
+     * flushing it. When greater than 1, the sender drains every flow and message
+     * that is ready to go (within the server's Receive Maximum) in one pass and
+     * flushes the network once for the whole batch, rather than once per packet.
+     * <p>
+     * The default value is 1, which flushes every packet on its own.
+     * </p>
+     *
+     * @param sendBatchMaxMessages the maximum number of packets per flush, must be
+     *                             &gt;= 1.
+     * @throws IllegalArgumentException if sendBatchMaxMessages was invalid
+     */
+    public void setSendBatchMaxMessages(int sendBatchMaxMessages) {
+        if (sendBatchMaxMessages < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.sendBatchMaxMessages = sendBatchMaxMessages;
+    }
+
+    /**
+     * Returns the number of PUBLISH payload bytes after which a send batch is
+     * flushed.
+     *
+     * @return the maximum number of payload bytes in a send batch.
+     * @see #setSendBatchMaxBytes(int)
+     */
+    public int getSendBatchMaxBytes() {
+        return sendBatchMaxBytes;
+    }
+
+    /**
+     * Sets the number of PUBLISH payload bytes after which a send batch is
+     * flushed. Once the payloads in a batch reach this size no further packets
+     * are added to it. Only used when {@link #setSendBatchMaxMessages(int)} is
+     * greater than 1.
+     * <p>
+     * The default value is 65536 bytes.
+     * </p>
+     *
+     * @param sendBatchMaxBytes the maximum number of payload bytes per flush, must
+     *                          be &gt;= 1.
+     * @throws IllegalArgumentException if sendBatchMaxBytes was invalid
+     */
+    public void setSendBatchMaxBytes(int sendBatchMaxBytes) {
+        if (sendBatchMaxBytes < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.sendBatchMaxBytes = sendBatchMaxBytes;
+    }
+
+    /**
+     * Returns the number of inbound messages the client holds in memory while
+     * they wait to be passed to the message callbacks.
+     *
+     * @return the size of the inbound queue.
+     * @see #setInboundQueueSize(int)
+     */
+    public int getInboundQueueSize() {
+        return inboundQueueSize;
+    }
+
+    /**
+     * Sets the number of inbound messages the client holds in memory while they
+     * wait to be passed to the message callbacks. Messages are delivered to the
+     * callbacks one at a time on the callback thread, so the queue absorbs
+     * bursts of messages that arrive faster than the callbacks handle them. What
+     * happens once it is full is set with
+     * {@link #setInboundBackpressurePolicy(InboundBackpressurePolicy)}.
+     * <p>
+     * The default value is 10.
+     * </p>
+     *
+     * @param inboundQueueSize the number of messages, must be &gt;= 1.
+     * @throws IllegalArgumentException if inboundQueueSize was invalid
+     */
+    public void setInboundQueueSize(int inboundQueueSize) {
+        if (inboundQueueSize < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.inboundQueueSize = inboundQueueSize;
+    }
+
+    /**
+     * Returns what the client does when a message arrives and the inbound queue
+     * is full.
+     *
+     * @return the backpressure policy.
+     * @see #setInboundBackpressurePolicy(InboundBackpressurePolicy)
+     */
+    public InboundBackpressurePolicy getInboundBackpressurePolicy() {
+        return inboundBackpressurePolicy;
+    }
+
+    /**
+     * Sets what the client does when a message arrives and the inbound queue is
+     * full. With {@link InboundBackpressurePolicy#BLOCK} the client stops
+     * reading from the network until there is space, which also holds up the
+     * acknowledgements of messages it publishes. The other policies keep reading
+     * by dropping QoS 0 messages or by spilling messages to the persistent store.
+     * <p>
+     * The default value is {@link InboundBackpressurePolicy#BLOCK}.
+     * </p>
+     *
+     * @param inboundBackpressurePolicy the backpressure policy.
+     * @throws IllegalArgumentException if inboundBackpressurePolicy was null
+     */
+    public void setInboundBackpressurePolicy(InboundBackpressurePolicy inboundBackpressurePolicy) {
+        if (inboundBackpressurePolicy == null) {
+            throw new IllegalArgumentException();
+        }
+        this.inboundBackpressurePolicy = inboundBackpressurePolicy;
+    }
+
+    /**
+     * Returns the number of threads that message callbacks are run on in
+     * parallel.
+     *
+     * @return the number of dispatch threads, 0 if callbacks run on the single
+     *         callback thread.
+     * @see #setCallbackDispatchThreads(int)
+     */
+    public int getCallbackDispatchThreads() {
+        return callbackDispatchThreads;
+    }
+
+    /**
+     * Sets the number of threads that message callbacks are run on in parallel.
+     * Normally every <code>messageArrived</code> callback runs on the one
+     * callback thread, so a slow callback holds up the messages of every other
+     * subscription. With dispatch threads, each message is given to a thread
+     * chosen by its key, see {@link #setCallbackDispatchKey(CallbackDispatchKey)}:
+     * messages with the same key are still delivered one at a time and in order,
+     * but messages with different keys can be delivered at the same time. The
+     * callbacks, including {@link MqttCallback#messageArrived}, must therefore
+     * be thread safe.
+     * <p>
+     * Acknowledgements are still sent to the server in the order the messages
+     * arrived. An acknowledgement, whether automatic or made with
+     * {@link MqttAsyncClient#messageArrivedComplete(int, int)}, is held back until
+     * every message that arrived before it has been acknowledged.
+     * </p>
+     * <p>
+     * The default value is 0, which runs all callbacks on the callback thread.
+     * </p>
+     *
+     * @param callbackDispatchThreads the number of dispatch threads, must be
+     *                                &gt;= 0.
+     * @throws IllegalArgumentException if callbackDispatchThreads was invalid
+     */
+    public void setCallbackDispatchThreads(int callbackDispatchThreads) {
+        if (callbackDispatchThreads < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.callbackDispatchThreads = callbackDispatchThreads;
+    }
+
+    /**
+     * Returns the key that decides which messages are delivered in order when
+     * callbacks run in parallel.
+     *
+     * @return the dispatch key.
+     * @see #setCallbackDispatchKey(CallbackDispatchKey)
+     */
+    public CallbackDispatchKey getCallbackDispatchKey() {
+        return callbackDispatchKey;
+    }
+
+    /**
+     * Sets the key that decides which messages are delivered in order when
+     * callbacks run in parallel. Only used when
+     * {@link #setCallbackDispatchThreads(int)} is greater than 0.
+     * <p>
+     * The default value is {@link CallbackDispatchKey#TOPIC}.
+     * </p>
+     *
+     * @param callbackDispatchKey the dispatch key.
+     * @throws IllegalArgumentException if callbackDispatchKey was null
+     */
+    public void setCallbackDispatchKey(CallbackDispatchKey callbackDispatchKey) {
+        if (callbackDispatchKey == null) {
+            throw new IllegalArgumentException();
+        }
+        this.callbackDispatchKey = callbackDispatchKey;
+    }
 }
@@ -2,6 +2,7 @@ package org.cion.eclipse.mqtt5.client;
 
 import java.util.ArrayList;
 
+import org.cion.eclipse.mqtt5.client.internal.NIOEventLoopGroup;
 import org.cion.eclipse.mqtt5.common.MqttMessage;
 import org.cion.eclipse.mqtt5.common.packet.UserProperty;
 
@@ -103,6 +104,46 @@ public class MqttConnectionOptionsBuilder {
 		return this;
 	}
 
+	public MqttConnectionOptionsBuilder sendBatchMaxMessages(int sendBatchMaxMessages) {
+		mqttConnectionOptions.setSendBatchMaxMessages(sendBatchMaxMessages);
+		return this;
+	}
+	
+	public MqttConnectionOptionsBuilder sendBatchMaxBytes(int sendBatchMaxBytes) {
+		mqttConnectionOptions.setSendBatchMaxBytes(sendBatchMaxBytes);
+		return this;
+	}
+
+	public MqttConnectionOptionsBuilder gatheringWrites(boolean gatheringWrites) {
+		mqttConnectionOptions.setGatheringWrites(gatheringWrites);
+		return this;
+	}
+
+	public MqttConnectionOptionsBuilder eventLoopGroup(NIOEventLoopGroup eventLoopGroup) {
+		mqttConnectionOptions.setEventLoopGroup(eventLoopGroup);
+		return this;
+	}
+
+	public MqttConnectionOptionsBuilder inboundQueueSize(int inboundQueueSize) {
+		mqttConnectionOptions.setInboundQueueSize(inboundQueueSize);
+		return this;
+	}
+
+	public MqttConnectionOptionsBuilder inboundBackpressurePolicy(InboundBackpressurePolicy inboundBackpressurePolicy) {
+		mqttConnectionOptions.setInboundBackpressurePolicy(inboundBackpressurePolicy);
+		return this;
+	}
+
+	public MqttConnectionOptionsBuilder callbackDispatchThreads(int callbackDispatchThreads) {
+		mqttConnectionOptions.setCallbackDispatchThreads(callbackDispatchThreads);
+		return this;
+	}
+
+	public MqttConnectionOptionsBuilder callbackDispatchKey(CallbackDispatchKey callbackDispatchKey) {
+		mqttConnectionOptions.setCallbackDispatchKey(callbackDispatchKey);
+		return this;
+	}
+
 	public MqttConnectionOptions build() {
 		return mqttConnectionOptions;
 	}
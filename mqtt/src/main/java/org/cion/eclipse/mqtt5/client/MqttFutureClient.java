@@ -0,0 +1,322 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.cion.eclipse.mqtt5.common.MqttException;
+import org.cion.eclipse.mqtt5.common.MqttMessage;
+import org.cion.eclipse.mqtt5.common.MqttSubscription;
+import org.cion.eclipse.mqtt5.common.packet.MqttProperties;
+import org.cion.eclipse.mqtt5.common.packet.MqttReturnCode;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * Wraps an {@link IMqttAsyncClient} so that each action returns a
+ * {@link CompletableFuture} of its token rather than the token itself.
+ * <p>
+ * Actions can then be chained, for example connect, then subscribe, then
+ * publish, without blocking a thread in
+ * {@link IMqttToken#waitForCompletion()} or nesting listeners. A future
+ * completes when its token would have called its {@link MqttActionListener},
+ * normally with the token, or exceptionally with the exception the action
+ * failed with. An action that the client refuses straight away, for example
+ * because it is not connected, returns a future that has already failed
+ * rather than throwing.
+ * </p>
+ * <p>
+ * By default futures are completed on the client's callback thread, so
+ * continuations that are not async run on that thread and must not block.
+ * If an executor is given, futures are completed on it instead. Each action
+ * allocates one object besides its token, the future, which is also the
+ * listener of the token.
+ * </p>
+ * <p>
+ * CompletableFuture is available from API level 24.
+ * </p>
+ */
+@RequiresApi(24)
+public class MqttFutureClient {
+
+	private final IMqttAsyncClient client;
+	private final Executor executor;
+
+	/**
+	 * Completes the future of one action. The future is also the listener of
+	 * the action's token, and the task that completes it on the executor, so
+	 * that nothing else is allocated.
+	 */
+	private static final class TokenFuture<T extends IMqttToken> extends CompletableFuture<T>
+			implements MqttActionListener, Runnable {
+		private final Executor executor;
+		private T token;
+		private Throwable exception;
+
+		TokenFuture(Executor executor) {
+			this.executor = executor;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void onSuccess(IMqttToken asyncActionToken) {
+			this.token = (T) asyncActionToken;
+			dispatch();
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			this.exception = exception != null ? exception : asyncActionToken.getException();
+			dispatch();
+		}
+
+		void fail(Throwable exception) {
+			this.exception = exception;
+			run();
+		}
+
+		private void dispatch() {
+			if (executor == null) {
+				run();
+			} else {
+				executor.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			if (exception == null) {
+				complete(token);
+			} else {
+				completeExceptionally(exception);
+			}
+		}
+	}
+
+	/**
+	 * Creates a client whose futures are completed on the callback thread of
+	 * the wrapped client.
+	 * 
+	 * @param client
+	 *            the client to wrap
+	 */
+	public MqttFutureClient(IMqttAsyncClient client) {
+		this(client, null);
+	}
+
+	/**
+	 * @param client
+	 *            the client to wrap
+	 * @param executor
+	 *            the executor the futures are completed on, or null to complete
+	 *            them on the callback thread of the client
+	 */
+	public MqttFutureClient(IMqttAsyncClient client, Executor executor) {
+		if (client == null) {
+			throw new IllegalArgumentException();
+		}
+		this.client = client;
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the wrapped client
+	 */
+	public IMqttAsyncClient getClient() {
+		return client;
+	}
+
+	/**
+	 * @return the executor the futures are completed on, or null if they are
+	 *         completed on the callback thread
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Connects to the server.
+	 * 
+	 * @param options
+	 *            the options for the connection
+	 * @return a future of the connect token
+	 * @see IMqttAsyncClient#connect(MqttConnectionOptions, Object,
+	 *      MqttActionListener)
+	 */
+	public CompletableFuture<IMqttToken> connect(MqttConnectionOptions options) {
+		TokenFuture<IMqttToken> future = new TokenFuture<IMqttToken>(executor);
+		try {
+			client.connect(options, null, future);
+		} catch (MqttException ex) {
+			future.fail(ex);
+		}
+		return future;
+	}
+
+	/**
+	 * Publishes a message. The future completes once the message has been
+	 * delivered to the requested quality of service.
+	 * 
+	 * @param topic
+	 *            the topic to publish the message to
+	 * @param message
+	 *            the message
+	 * @return a future of the delivery token
+	 * @see IMqttAsyncClient#publish(String, MqttMessage, Object,
+	 *      MqttActionListener)
+	 */
+	public CompletableFuture<IMqttToken> publish(String topic, MqttMessage message) {
+		TokenFuture<IMqttToken> future = new TokenFuture<IMqttToken>(executor);
+		try {
+			client.publish(topic, message, null, future);
+		} catch (MqttException | IllegalArgumentException ex) {
+			future.fail(ex);
+		}
+		return future;
+	}
+
+	/**
+	 * Publishes a batch of messages. The future completes once every message
+	 * has been delivered, or fails if any of them failed, in which case the
+	 * {@link MqttBatchToken} tells which.
+	 * 
+	 * @param messages
+	 *            the messages, with the topic to publish each to
+	 * @return a future of the batch token
+	 * @see IMqttAsyncClient#publish(List, Object, MqttActionListener)
+	 */
+	public CompletableFuture<MqttBatchToken> publish(List<MqttTopicMessage> messages) {
+		TokenFuture<MqttBatchToken> future = new TokenFuture<MqttBatchToken>(executor);
+		try {
+			client.publish(messages, null, future);
+		} catch (MqttException | IllegalArgumentException ex) {
+			future.fail(ex);
+		}
+		return future;
+	}
+
+	/**
+	 * Subscribes to a topic filter.
+	 * 
+	 * @param topicFilter
+	 *            the topic filter, which may include wildcards
+	 * @param qos
+	 *            the maximum quality of service to receive messages at
+	 * @return a future of the subscribe token. The granted QoS, or the reason
+	 *         the server refused the subscription, are in its reason codes.
+	 * @see IMqttAsyncClient#subscribe(MqttSubscription[], Object,
+	 *      MqttActionListener, MqttProperties)
+	 */
+	public CompletableFuture<IMqttToken> subscribe(String topicFilter, int qos) {
+		return subscribe(new MqttSubscription[] { new MqttSubscription(topicFilter, qos) });
+	}
+
+	/**
+	 * Subscribes to topic filters.
+	 * 
+	 * @param subscriptions
+	 *            the subscriptions to make
+	 * @return a future of the subscribe token. The granted QoS, or the reason
+	 *         the server refused each subscription, are in its reason codes.
+	 * @see IMqttAsyncClient#subscribe(MqttSubscription[], Object,
+	 *      MqttActionListener, MqttProperties)
+	 */
+	public CompletableFuture<IMqttToken> subscribe(MqttSubscription[] subscriptions) {
+		TokenFuture<IMqttToken> future = new TokenFuture<IMqttToken>(executor);
+		try {
+			client.subscribe(subscriptions, null, future, new MqttProperties());
+		} catch (MqttException | IllegalArgumentException ex) {
+			future.fail(ex);
+		}
+		return future;
+	}
+
+	/**
+	 * Subscribes to topic filters, passing the messages that arrive for them
+	 * to a listener.
+	 * 
+	 * @param subscriptions
+	 *            the subscriptions to make
+	 * @param messageListener
+	 *            the listener for the messages that arrive
+	 * @return a future of the subscribe token
+	 * @see IMqttAsyncClient#subscribe(MqttSubscription[], Object,
+	 *      MqttActionListener, IMqttMessageListener, MqttProperties)
+	 */
+	public CompletableFuture<IMqttToken> subscribe(MqttSubscription[] subscriptions,
+			IMqttMessageListener messageListener) {
+		TokenFuture<IMqttToken> future = new TokenFuture<IMqttToken>(executor);
+		try {
+			client.subscribe(subscriptions, null, future, messageListener, new MqttProperties());
+		} catch (MqttException | IllegalArgumentException ex) {
+			future.fail(ex);
+		}
+		return future;
+	}
+
+	/**
+	 * Unsubscribes from topic filters.
+	 * 
+	 * @param topicFilters
+	 *            the topic filters to unsubscribe from
+	 * @return a future of the unsubscribe token
+	 * @see IMqttAsyncClient#unsubscribe(String[], Object, MqttActionListener,
+	 *      MqttProperties)
+	 */
+	public CompletableFuture<IMqttToken> unsubscribe(String... topicFilters) {
+		TokenFuture<IMqttToken> future = new TokenFuture<IMqttToken>(executor);
+		try {
+			client.unsubscribe(topicFilters, null, future, new MqttProperties());
+		} catch (MqttException | IllegalArgumentException ex) {
+			future.fail(ex);
+		}
+		return future;
+	}
+
+	/**
+	 * Disconnects from the server, waiting up to 30 seconds for the work in
+	 * progress to finish.
+	 * 
+	 * @return a future of the disconnect token
+	 * @see IMqttAsyncClient#disconnect(Object, MqttActionListener)
+	 */
+	public CompletableFuture<IMqttToken> disconnect() {
+		TokenFuture<IMqttToken> future = new TokenFuture<IMqttToken>(executor);
+		try {
+			client.disconnect(null, future);
+		} catch (MqttException ex) {
+			future.fail(ex);
+		}
+		return future;
+	}
+
+	/**
+	 * Disconnects from the server.
+	 * 
+	 * @param quiesceTimeout
+	 *            the time in milliseconds to wait for the work in progress to
+	 *            finish
+	 * @return a future of the disconnect token
+	 * @see IMqttAsyncClient#disconnect(long, Object, MqttActionListener, int,
+	 *      MqttProperties)
+	 */
+	public CompletableFuture<IMqttToken> disconnect(long quiesceTimeout) {
+		TokenFuture<IMqttToken> future = new TokenFuture<IMqttToken>(executor);
+		try {
+			client.disconnect(quiesceTimeout, null, future, MqttReturnCode.RETURN_CODE_SUCCESS, new MqttProperties());
+		} catch (MqttException ex) {
+			future.fail(ex);
+		}
+		return future;
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cion.eclipse.mqtt5.client.internal.DeferredAckListener;
+import org.cion.eclipse.mqtt5.client.internal.InboundAck;
+import org.cion.eclipse.mqtt5.common.MqttException;
+import org.cion.eclipse.mqtt5.common.MqttMessage;
+import org.cion.eclipse.mqtt5.common.MqttSubscription;
+import org.cion.eclipse.mqtt5.common.packet.MqttProperties;
+import org.cion.eclipse.mqtt5.common.packet.MqttReturnCode;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * A Reactive Streams {@link Publisher} of the messages that arrive for one
+ * subscription, which only lets the server send as many messages as the
+ * subscriber has asked for.
+ * <p>
+ * The subscription is made when a subscriber subscribes, and the server is
+ * asked to unsubscribe when the subscriber cancels. Only one subscriber is
+ * allowed. The stream does not complete on its own: it carries on across
+ * reconnects for as long as the server keeps the subscription, and fails if
+ * the subscription is refused.
+ * </p>
+ * <p>
+ * The acknowledgement of each QoS 1 or 2 message, the PUBACK or PUBREC, is not
+ * sent until the message has been passed to
+ * {@link Subscriber#onNext(Object)}, that is, until the subscriber has asked
+ * for it. Until then the message counts against the receive maximum of the
+ * client, see {@link MqttConnectionOptions#setReceiveMaximum(Integer)}, so a
+ * subscriber that falls behind makes the server stop sending, rather than the
+ * client block its network thread or queue messages without limit. The
+ * messages waiting for the subscriber are therefore never more than the
+ * receive maximum, apart from QoS 0 messages, which the server does not count:
+ * those beyond the QoS 0 buffer size are dropped.
+ * </p>
+ * <p>
+ * The receive maximum is shared by every subscription of the client, so a
+ * subscriber that stops asking for messages eventually holds up the others
+ * too. The acknowledgements of these messages are sent as the subscriber
+ * takes them, which may be a different order from the one in which messages
+ * for other subscriptions arrived.
+ * </p>
+ */
+public class MqttMessagePublisher implements Publisher<MqttTopicMessage> {
+
+	/** The default number of QoS 0 messages kept for a subscriber. */
+	public static final int QOS0_BUFFER_SIZE_DEFAULT = 1024;
+
+	private final IMqttAsyncClient client;
+	private final MqttSubscription subscription;
+	private final int qos0BufferSize;
+	private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+	/**
+	 * A message waiting for the subscriber, with its held back acknowledgement
+	 * if it has one.
+	 */
+	private static final class Item {
+		final String topic;
+		final MqttMessage message;
+		final InboundAck ack;
+
+		Item(String topic, MqttMessage message, InboundAck ack) {
+			this.topic = topic;
+			this.message = message;
+			this.ack = ack;
+		}
+	}
+
+	/**
+	 * The subscription of the one subscriber, which is also the listener for
+	 * the messages that arrive. Messages are passed on by whichever thread
+	 * finds that there is both a message and demand, one thread at a time.
+	 */
+	private final class MessageSubscription implements Subscription, DeferredAckListener {
+		private final Subscriber<? super MqttTopicMessage> subscriber;
+		private final ConcurrentLinkedQueue<Item> queue = new ConcurrentLinkedQueue<Item>();
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private final AtomicInteger qos0Queued = new AtomicInteger();
+		private final AtomicLong qos0Dropped = new AtomicLong();
+		private volatile boolean cancelled = false;
+		private volatile Throwable error = null;
+
+		MessageSubscription(Subscriber<? super MqttTopicMessage> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void messageArrived(String topic, MqttMessage message, InboundAck ack) {
+			if (cancelled) {
+				// The acknowledgement is sent as the client finishes delivering it
+				return;
+			}
+			ack.retain();
+			queue.offer(new Item(topic, message, ack));
+			drain();
+		}
+
+		@Override
+		public void messageArrived(String topic, MqttMessage message) {
+			if (cancelled) {
+				return;
+			}
+			if (message.getQos() == 0) {
+				if (qos0Queued.incrementAndGet() > qos0BufferSize) {
+					qos0Queued.decrementAndGet();
+					qos0Dropped.incrementAndGet();
+					return;
+				}
+			}
+			queue.offer(new Item(topic, message, null));
+			drain();
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				fail(new IllegalArgumentException("non-positive request " + n));
+				return;
+			}
+			long current;
+			long next;
+			do {
+				current = requested.get();
+				if (current == Long.MAX_VALUE) {
+					break;
+				}
+				next = current + n;
+				if (next < 0) {
+					next = Long.MAX_VALUE;
+				}
+			} while (!requested.compareAndSet(current, next));
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			if (cancelled) {
+				return;
+			}
+			cancelled = true;
+			try {
+				client.unsubscribe(subscription.getTopic());
+			} catch (MqttException ex) {
+				// The listener is removed all the same, and the server
+				// stops sending if the client is reconnected without a
+				// session
+			}
+			drain();
+		}
+
+		void fail(Throwable ex) {
+			error = ex;
+			cancel();
+		}
+
+		private void drain() {
+			if (wip.getAndIncrement() != 0) {
+				return;
+			}
+			int missed = 1;
+			do {
+				if (cancelled) {
+					discard();
+				} else {
+					long r = requested.get();
+					long emitted = 0;
+					Item item;
+					while (emitted != r && !cancelled && (item = queue.poll()) != null) {
+						if (item.ack == null && item.message.getQos() == 0) {
+							qos0Queued.decrementAndGet();
+						}
+						if (item.ack != null && item.ack.isCancelled()) {
+							// The connection was lost before it was acknowledged, so
+							// the server sends it again
+							release(item);
+							continue;
+						}
+						try {
+							subscriber.onNext(new MqttTopicMessage(item.topic, item.message));
+						} catch (Throwable ex) {
+							// The subscriber broke the rules, so treat it as having
+							// cancelled, without telling it
+							release(item);
+							cancel();
+							break;
+						}
+						release(item);
+						emitted++;
+					}
+					if (emitted != 0 && r != Long.MAX_VALUE) {
+						requested.addAndGet(-emitted);
+					}
+					if (cancelled) {
+						discard();
+					}
+				}
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		/**
+		 * Acknowledges the messages the subscriber will not be given, so that
+		 * they do not hold up the messages of other subscriptions, and passes
+		 * on the error the subscription ended with, if any.
+		 */
+		private void discard() {
+			Item item;
+			while ((item = queue.poll()) != null) {
+				release(item);
+			}
+			Throwable ex = error;
+			if (ex != null) {
+				error = null;
+				subscriber.onError(ex);
+			}
+		}
+
+		private void release(Item item) {
+			if (item.ack != null) {
+				item.ack.release();
+			}
+		}
+	}
+
+	/**
+	 * @param client
+	 *            the client to subscribe with
+	 * @param subscription
+	 *            the subscription to make when a subscriber subscribes
+	 */
+	public MqttMessagePublisher(IMqttAsyncClient client, MqttSubscription subscription) {
+		this(client, subscription, QOS0_BUFFER_SIZE_DEFAULT);
+	}
+
+	/**
+	 * @param client
+	 *            the client to subscribe with
+	 * @param subscription
+	 *            the subscription to make when a subscriber subscribes
+	 * @param qos0BufferSize
+	 *            the number of QoS 0 messages kept while the subscriber has not
+	 *            asked for them, beyond which they are dropped
+	 */
+	public MqttMessagePublisher(IMqttAsyncClient client, MqttSubscription subscription, int qos0BufferSize) {
+		if (client == null || subscription == null || qos0BufferSize < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.client = client;
+		this.subscription = subscription;
+		this.qos0BufferSize = qos0BufferSize;
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super MqttTopicMessage> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException();
+		}
+		if (!subscribed.compareAndSet(false, true)) {
+			subscriber.onSubscribe(new Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("only one subscriber is allowed"));
+			return;
+		}
+
+		final MessageSubscription messageSubscription = new MessageSubscription(subscriber);
+		subscriber.onSubscribe(messageSubscription);
+		if (messageSubscription.cancelled) {
+			return;
+		}
+		try {
+			client.subscribe(new MqttSubscription[] { subscription }, null, new MqttActionListener() {
+				@Override
+				public void onSuccess(IMqttToken asyncActionToken) {
+					int[] reasonCodes = asyncActionToken.getReasonCodes();
+					if (reasonCodes != null && reasonCodes.length > 0
+							&& reasonCodes[0] >= MqttReturnCode.RETURN_CODE_UNSPECIFIED_ERROR) {
+						messageSubscription.fail(new MqttException(reasonCodes[0]));
+					}
+				}
+
+				@Override
+				public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+					messageSubscription.fail(exception);
+				}
+			}, messageSubscription, new MqttProperties());
+		} catch (MqttException | IllegalArgumentException ex) {
+			messageSubscription.fail(ex);
+		}
+	}
+
+	/**
+	 * @return the subscription made for the subscriber
+	 */
+	public MqttSubscription getSubscription() {
+		return subscription;
+	}
+}
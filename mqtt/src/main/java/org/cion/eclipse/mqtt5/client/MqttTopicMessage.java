@@ -0,0 +1,48 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client;
+
+import org.cion.eclipse.mqtt5.common.MqttMessage;
+
+/**
+ * A message and the topic to publish it to, one of the messages published
+ * together by {@link IMqttAsyncClient#publish(java.util.List, Object, MqttActionListener)}.
+ */
+public class MqttTopicMessage {
+
+	private final String topic;
+	private final MqttMessage message;
+
+	/**
+	 * @param topic   the topic to publish the message to
+	 * @param message the message
+	 */
+	public MqttTopicMessage(String topic, MqttMessage message) {
+		if (topic == null || message == null) {
+			throw new IllegalArgumentException();
+		}
+		this.topic = topic;
+		this.message = message;
+	}
+
+	public String getTopic() {
+		return topic;
+	}
+
+	public MqttMessage getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		return "topic=" + topic + " message=" + message;
+	}
+}
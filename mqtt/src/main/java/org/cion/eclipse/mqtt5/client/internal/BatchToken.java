@@ -0,0 +1,102 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.internal;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.cion.eclipse.mqtt5.client.IMqttAsyncClient;
+import org.cion.eclipse.mqtt5.client.IMqttToken;
+import org.cion.eclipse.mqtt5.client.MqttActionListener;
+import org.cion.eclipse.mqtt5.client.MqttToken;
+import org.cion.eclipse.mqtt5.common.MqttException;
+
+/**
+ * The implementation of {@link org.cion.eclipse.mqtt5.client.MqttBatchToken}.
+ * <p>
+ * Each message of the batch keeps a token of its own, which is how the
+ * acknowledgement of the message is matched to it, but instead of the
+ * application's listener the token is given one that counts the messages
+ * down. The batch completes, and calls the application's listener, when the
+ * last of them completes.
+ */
+public class BatchToken extends Token {
+
+	private final MqttToken owner;
+	private final AtomicInteger pending;
+	private final AtomicInteger failures = new AtomicInteger();
+	private final AtomicReference<MqttException> firstFailure = new AtomicReference<MqttException>();
+
+	/**
+	 * @param logContext the client ID, used when logging
+	 * @param client     the client publishing the messages
+	 * @param owner      the token passed to the application's listener
+	 * @param tokens     the tokens of the messages
+	 */
+	public BatchToken(String logContext, IMqttAsyncClient client, MqttToken owner, List<MqttToken> tokens) {
+		super(logContext);
+		this.owner = owner;
+		this.pending = new AtomicInteger(tokens.size());
+		setClient(client);
+
+		MqttActionListener listener = new MqttActionListener() {
+			@Override
+			public void onSuccess(IMqttToken asyncActionToken) {
+				messageComplete(null);
+			}
+
+			@Override
+			public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+				messageComplete(asyncActionToken.getException() != null ? asyncActionToken.getException()
+						: new MqttException(exception));
+			}
+		};
+		for (MqttToken token : tokens) {
+			token.setActionCallback(listener);
+		}
+	}
+
+	private void messageComplete(MqttException ex) {
+		if (ex != null) {
+			failures.incrementAndGet();
+			firstFailure.compareAndSet(null, ex);
+		}
+		if (pending.decrementAndGet() == 0) {
+			MqttException failure = firstFailure.get();
+			markComplete(null, failure);
+			notifyComplete();
+
+			MqttActionListener callback = getActionCallback();
+			if (callback != null) {
+				if (failure == null) {
+					callback.onSuccess(owner);
+				} else {
+					callback.onFailure(owner, failure);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of messages not yet delivered or failed
+	 */
+	public int getPendingCount() {
+		return pending.get();
+	}
+
+	/**
+	 * @return the number of messages that failed
+	 */
+	public int getFailureCount() {
+		return failures.get();
+	}
+}
@@ -0,0 +1,263 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.internal;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.cion.eclipse.mqtt5.client.CallbackDispatchKey;
+import org.cion.eclipse.mqtt5.client.logging.Logger;
+import org.cion.eclipse.mqtt5.client.logging.LoggerFactory;
+import org.cion.eclipse.mqtt5.common.MqttException;
+import org.cion.eclipse.mqtt5.common.packet.MqttPublish;
+
+/**
+ * Delivers inbound messages to the message callbacks on several threads.
+ * <p>
+ * Each message is given to one of a fixed set of lanes, chosen from its topic
+ * or subscription identifier, and each lane has a thread of its own. Messages
+ * with the same key are therefore delivered one at a time and in order, while
+ * messages with different keys can be delivered at the same time.
+ * <p>
+ * Callbacks finish in a different order to the one the messages arrived in,
+ * but the server must be sent acknowledgements in the order it sent the
+ * messages. Each QoS 1 message, and each QoS 2 message when acknowledgements
+ * are manual, is recorded as it is dispatched, and its acknowledgement is held
+ * back until every message that arrived before it has been acknowledged.
+ */
+class CallbackDispatcher {
+	private static final String CLASS_NAME = CallbackDispatcher.class.getName();
+	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	/**
+	 * A message waiting to be acknowledged.
+	 */
+	private static final class PendingAck {
+		final int messageId;
+		final int qos;
+		boolean complete = false;
+
+		PendingAck(int messageId, int qos) {
+			this.messageId = messageId;
+			this.qos = qos;
+		}
+	}
+
+	private final CommsCallback callback;
+	private final ClientComms clientComms;
+	private final boolean bySubscriptionIdentifier;
+	private final boolean manualAcks;
+	private final ExecutorService[] lanes;
+	private final int maxOutstanding;
+	// Messages dispatched but not yet delivered, guarded by this
+	private int outstanding = 0;
+	private volatile boolean stopped = false;
+	// In the order the messages arrived, guarded by itself
+	private final ArrayDeque<PendingAck> acks = new ArrayDeque<PendingAck>();
+
+	/**
+	 * @param callback       the callback that delivers the messages
+	 * @param clientComms    the client
+	 * @param threads        the number of lanes
+	 * @param key            how messages are assigned to lanes
+	 * @param manualAcks     whether the application acknowledges messages
+	 * @param maxOutstanding the number of messages that can wait in the lanes
+	 *                       before {@link #dispatch(MqttPublish)} blocks
+	 * @param threadName     the name of the lane threads, followed by their number
+	 */
+	CallbackDispatcher(CommsCallback callback, ClientComms clientComms, int threads, CallbackDispatchKey key,
+			boolean manualAcks, int maxOutstanding, final String threadName) {
+		this.callback = callback;
+		this.clientComms = clientComms;
+		this.bySubscriptionIdentifier = key == CallbackDispatchKey.SUBSCRIPTION_IDENTIFIER;
+		this.manualAcks = manualAcks;
+		this.maxOutstanding = maxOutstanding;
+		this.lanes = new ExecutorService[threads];
+		for (int i = 0; i < threads; i++) {
+			final String name = threadName + "-" + i;
+			lanes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					return new Thread(r, name);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Queues a message to be delivered on its lane. Blocks while the lanes hold
+	 * as many messages as they are allowed to, so that the callback thread stops
+	 * taking messages from the inbound queue.
+	 *
+	 * @param message     the message
+	 * @param deferredAck the held back acknowledgement of the message, or null
+	 */
+	void dispatch(final MqttPublish message, final InboundAck deferredAck) {
+		synchronized (this) {
+			while (!stopped && outstanding >= maxOutstanding) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// The callback is being stopped
+					return;
+				}
+			}
+			if (stopped) {
+				return;
+			}
+			outstanding++;
+		}
+		// A held back acknowledgement is sent when its listeners release it, so it
+		// is not ordered with the others
+		final PendingAck ack = deferredAck == null ? track(message) : null;
+		try {
+			lanes[lane(message)].execute(new Runnable() {
+				@Override
+				public void run() {
+					deliver(message, ack, deferredAck);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			// Stopped in the meantime
+			delivered();
+		}
+	}
+
+	/**
+	 * Records a message that needs acknowledging, in arrival order.
+	 */
+	private PendingAck track(MqttPublish message) {
+		int qos = message.getMessage().getQos();
+		// Without manual acks a QoS 2 message is acknowledged when it arrives
+		if (qos == 0 || (qos == 2 && !manualAcks)) {
+			return null;
+		}
+		PendingAck ack = new PendingAck(message.getMessageId(), qos);
+		synchronized (acks) {
+			acks.addLast(ack);
+		}
+		return ack;
+	}
+
+	private int lane(MqttPublish message) {
+		int hash;
+		List<Integer> subscriptionIdentifiers = message.getProperties().getSubscriptionIdentifiers();
+		if (bySubscriptionIdentifier && !subscriptionIdentifiers.isEmpty()) {
+			hash = subscriptionIdentifiers.get(0).hashCode();
+		} else {
+			hash = message.getTopicName().hashCode();
+		}
+		hash ^= (hash >>> 16);
+		return (hash & 0x7fffffff) % lanes.length;
+	}
+
+	private void deliver(MqttPublish message, PendingAck ack, InboundAck deferredAck) {
+		final String methodName = "deliver";
+		try {
+			if (!stopped) {
+				callback.deliverMessage(message.getTopicName(), message.getMessageId(), message.getMessage(),
+						deferredAck);
+				if (deferredAck != null) {
+					deferredAck.release();
+				} else if (ack != null && !manualAcks) {
+					complete(ack);
+				}
+			}
+		} catch (Throwable ex) {
+			// Users code could throw an Error or Exception e.g. in the case
+			// of class NoClassDefFoundError
+			// @TRACE 714=callback threw exception
+			log.fine(CLASS_NAME, methodName, "714", null, ex);
+
+			clientComms.shutdownConnection(null, new MqttException(ex), null);
+		} finally {
+			delivered();
+		}
+	}
+
+	private synchronized void delivered() {
+		outstanding--;
+		notifyAll();
+	}
+
+	private void complete(PendingAck ack) throws MqttException {
+		synchronized (acks) {
+			ack.complete = true;
+			sendCompletedAcks();
+		}
+	}
+
+	/**
+	 * Marks the oldest matching message as acknowledged by the application, and
+	 * sends every acknowledgement that is no longer held back by an earlier
+	 * message.
+	 *
+	 * @param messageId the message id
+	 * @param qos       the QoS of the message
+	 * @return false if the message was not dispatched by this dispatcher
+	 * @throws MqttException if an acknowledgement could not be sent
+	 */
+	boolean complete(int messageId, int qos) throws MqttException {
+		synchronized (acks) {
+			Iterator<PendingAck> it = acks.iterator();
+			while (it.hasNext()) {
+				PendingAck ack = it.next();
+				if (!ack.complete && ack.messageId == messageId && ack.qos == qos) {
+					ack.complete = true;
+					sendCompletedAcks();
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Sends the acknowledgements at the head of the queue that are complete.
+	 * Called holding the acks lock, so that they are sent in order.
+	 */
+	private void sendCompletedAcks() throws MqttException {
+		while (!acks.isEmpty() && acks.peekFirst().complete) {
+			PendingAck ack = acks.pollFirst();
+			callback.sendAck(ack.messageId, ack.qos);
+		}
+	}
+
+	/**
+	 * @return true if every dispatched message has been delivered
+	 */
+	synchronized boolean isIdle() {
+		return outstanding == 0;
+	}
+
+	/**
+	 * Stops the lanes. Messages that have not yet been delivered are discarded,
+	 * as the in-memory inbound queue is when the connection is lost, and so are
+	 * the acknowledgements not yet sent.
+	 */
+	void shutdown() {
+		synchronized (this) {
+			stopped = true;
+			notifyAll();
+		}
+		for (ExecutorService lane : lanes) {
+			lane.shutdown();
+		}
+		synchronized (acks) {
+			acks.clear();
+		}
+	}
+}
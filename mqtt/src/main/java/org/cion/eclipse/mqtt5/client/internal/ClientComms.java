@@ -23,6 +23,7 @@ package org.cion.eclipse.mqtt5.client.internal;
 import org.cion.eclipse.mqtt5.client.BufferedMessage;
 import org.cion.eclipse.mqtt5.client.IMqttAsyncClient;
 import org.cion.eclipse.mqtt5.client.IMqttMessageListener;
+import org.cion.eclipse.mqtt5.client.InboundQueueMetrics;
 import org.cion.eclipse.mqtt5.client.MqttActionListener;
 import org.cion.eclipse.mqtt5.client.MqttCallback;
 import org.cion.eclipse.mqtt5.client.MqttClientException;
@@ -45,7 +46,10 @@ import org.cion.eclipse.mqtt5.common.packet.MqttProperties;
 import org.cion.eclipse.mqtt5.common.packet.MqttPublish;
 import org.cion.eclipse.mqtt5.common.packet.MqttWireMessage;
 
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Properties;
 import java.util.Vector;
 import java.util.concurrent.ExecutorService;
@@ -150,7 +154,11 @@ public class ClientComms {
             this.clientState.send(message, token);
         } catch (MqttException e) {
             token.internalTok.setClient(null); // undo client setting on error
-            if (message instanceof MqttPublish) {
+            // A publish refused for a full inflight window has not been given
+            // an ID or stored, and a buffered one keeps the ID it is persisted
+            // under
+            if (message instanceof MqttPublish
+                    && e.getReasonCode() != MqttClientException.REASON_CODE_MAX_INFLIGHT) {
                 this.clientState.undo((MqttPublish) message);
             }
             throw e;
@@ -181,31 +189,12 @@ public class ClientComms {
                     messageProps.setTopicAlias(null);
                     message.setProperties(messageProps);
                 }
-                if (disconnectedMessageBuffer.isPersistBuffer()) {
-                    this.clientState.persistBufferedMessage(message);
-                }
-                disconnectedMessageBuffer.putMessage(message, token);
+                bufferMessage(message, token);
 
             } else {
 
                 if (message instanceof MqttPublish) {
-                    // Override the QoS if the server has set a maximum
-                    if (this.mqttConnection.getMaximumQoS() != null
-                            && ((MqttPublish) message).getMessage().getQos() > this.mqttConnection.getMaximumQoS()) {
-                        MqttMessage mqttMessage = ((MqttPublish) message).getMessage();
-                        mqttMessage.setQos(this.mqttConnection.getMaximumQoS());
-                        ((MqttPublish) message).setMessage(mqttMessage);
-                    }
-
-                    // Override the Retain flag if the server has disabled it
-                    if (this.mqttConnection.isRetainAvailable() != null
-                            && ((MqttPublish) message).getMessage().isRetained()
-                            && (this.mqttConnection.isRetainAvailable() == false)) {
-                        MqttMessage mqttMessage = ((MqttPublish) message).getMessage();
-                        mqttMessage.setRetained(false);
-                        ((MqttPublish) message).setMessage(mqttMessage);
-                    }
-
+                    applyServerLimits((MqttPublish) message);
                 }
                 this.internalSend(message, token);
             }
@@ -213,10 +202,7 @@ public class ClientComms {
             // @TRACE 508=Client Resting, Offline Buffer available. Adding message to
             // buffer. message={0}
             log.fine(CLASS_NAME, methodName, "508", new Object[]{message.getKey()});
-            if (disconnectedMessageBuffer.isPersistBuffer()) {
-                this.clientState.persistBufferedMessage(message);
-            }
-            disconnectedMessageBuffer.putMessage(message, token);
+            bufferMessage(message, token);
         } else {
             // @TRACE 208=failed: not connected
             log.fine(CLASS_NAME, methodName, "208");
@@ -224,6 +210,107 @@ public class ClientComms {
         }
     }
 
+    /**
+     * Adds a message to the disconnected buffer, and to persistence if the
+     * buffer is persisted. A message deleted from the buffer to make room is
+     * deleted from persistence too.
+     */
+    private void bufferMessage(MqttWireMessage message, MqttToken token) throws MqttException {
+        if (disconnectedMessageBuffer.isPersistBuffer()) {
+            this.clientState.persistBufferedMessage(message);
+        }
+        BufferedMessage deleted = disconnectedMessageBuffer.putMessage(message, token);
+        if (deleted != null && disconnectedMessageBuffer.isPersistBuffer()) {
+            this.clientState.unPersistBufferedMessage(deleted.getMessage());
+        }
+    }
+
+    /**
+     * Overrides the QoS and retain flag of a publish where the server does not
+     * support them.
+     */
+    private void applyServerLimits(MqttPublish message) {
+        // Override the QoS if the server has set a maximum
+        if (this.mqttConnection.getMaximumQoS() != null
+                && message.getMessage().getQos() > this.mqttConnection.getMaximumQoS()) {
+            MqttMessage mqttMessage = message.getMessage();
+            mqttMessage.setQos(this.mqttConnection.getMaximumQoS());
+            message.setMessage(mqttMessage);
+        }
+
+        // Override the Retain flag if the server has disabled it
+        if (this.mqttConnection.isRetainAvailable() != null
+                && message.getMessage().isRetained()
+                && (this.mqttConnection.isRetainAvailable() == false)) {
+            MqttMessage mqttMessage = message.getMessage();
+            mqttMessage.setRetained(false);
+            message.setMessage(mqttMessage);
+        }
+    }
+
+    /**
+     * Sends a batch of publishes to the broker if in connected state, but only
+     * waits for the messages to be stored, before returning. The messages are
+     * stored and queued together; if one of them cannot be, none of them are.
+     * <p>
+     * While the client is buffering messages, because it is disconnected or the
+     * buffer is still being emptied, the messages are buffered one at a time
+     * as {@link #sendNoWait(MqttWireMessage, MqttToken)} does.
+     *
+     * @param messages The messages to send
+     * @param tokens   A token for each message
+     * @throws MqttException if an error occurs sending the messages
+     */
+    public void sendBatchNoWait(List<MqttPublish> messages, List<MqttToken> tokens) throws MqttException {
+        final String methodName = "sendBatchNoWait";
+
+        if (isConnected() && (disconnectedMessageBuffer == null || disconnectedMessageBuffer.getMessageCount() == 0)) {
+            for (MqttPublish message : messages) {
+                applyServerLimits(message);
+            }
+            this.internalSendBatch(messages, tokens);
+        } else {
+            for (int i = 0; i < messages.size(); i++) {
+                sendNoWait(messages.get(i), tokens.get(i));
+            }
+        }
+    }
+
+    /**
+     * Sends a batch of publishes as {@link #internalSend(MqttWireMessage, MqttToken)}
+     * sends one message.
+     */
+    void internalSendBatch(List<MqttPublish> messages, List<MqttToken> tokens) throws MqttException {
+        final String methodName = "internalSendBatch";
+        // @TRACE 225=internalSendBatch count={0}
+        log.fine(CLASS_NAME, methodName, "225", new Object[]{Integer.valueOf(messages.size())});
+
+        for (int i = 0; i < tokens.size(); i++) {
+            MqttToken token = tokens.get(i);
+            if (token.getClient() != null) {
+                // @TRACE 213=fail: token in use: key={0} message={1} token={2}
+                log.fine(CLASS_NAME, methodName, "213", new Object[]{messages.get(i).getKey(), messages.get(i), token});
+
+                throw new MqttException(MqttClientException.REASON_CODE_TOKEN_INUSE);
+            }
+        }
+        for (MqttToken token : tokens) {
+            // Associate the client with the token - also marks it as in use.
+            token.internalTok.setClient(getClient());
+        }
+
+        try {
+            // Persist and send the messages, the client state rolls back its
+            // own work if it fails
+            this.clientState.sendBatch(messages, tokens);
+        } catch (MqttException e) {
+            for (MqttToken token : tokens) {
+                token.internalTok.setClient(null); // undo client setting on error
+            }
+            throw e;
+        }
+    }
+
     /**
      * Close and tidy up.
      * <p>
@@ -484,6 +571,32 @@ public class ClientComms {
         }
     }
 
+    /**
+     * Shuts down the connection to the server on another thread, for a caller
+     * that must not wait for the callback to stop, such as an I/O thread that
+     * is shared with other connections.
+     *
+     * @param token   the {@link MqttToken} To track closing the connection
+     * @param reason  the {@link MqttException} thrown requiring the connection to be
+     *                shut down.
+     * @param message the {@link MqttDisconnect} that triggered the connection to be
+     *                shut down.
+     */
+    public void shutdownConnectionInBackground(final MqttToken token, final MqttException reason,
+            final MqttDisconnect message) {
+        Runnable shutdown = new Runnable() {
+            @Override
+            public void run() {
+                shutdownConnection(token, reason, message);
+            }
+        };
+        if (executorService == null) {
+            new Thread(shutdown, "MQTT Shut: " + getClient().getClientId()).start();
+        } else {
+            executorService.execute(shutdown);
+        }
+    }
+
     // Tidy up. There may be tokens outstanding as the client was
     // not disconnected/quiseced cleanly! Work out what tokens still
     // need to be notified and waiters unblocked. Store the
@@ -761,10 +874,18 @@ public class ClientComms {
                 // packet.
                 NetworkModule networkModule = networkModules[networkModuleIndex];
                 networkModule.start();
-                receiver = new CommsReceiver(clientComms, clientState, tokenStore, networkModule.getInputStream());
-                receiver.start("MQTT Rec: " + getClient().getClientId(), executorService);
-                sender = new CommsSender(clientComms, clientState, tokenStore, networkModule.getOutputStream());
-                sender.start("MQTT Snd: " + getClient().getClientId(), executorService);
+                receiver = new CommsReceiver(clientComms, clientState, tokenStore);
+                networkModule.startReceiving(receiver, "MQTT Rec: " + getClient().getClientId(), executorService);
+                GatheringByteChannel channel = null;
+                if (networkModule instanceof TCPNetworkModule) {
+                    channel = ((TCPNetworkModule) networkModule).getGatheringChannel();
+                }
+                if (channel != null) {
+                    sender = new CommsSender(clientComms, clientState, tokenStore, channel);
+                } else {
+                    sender = new CommsSender(clientComms, clientState, tokenStore, networkModule.getOutputStream());
+                }
+                networkModule.startSending(sender, "MQTT Snd: " + getClient().getClientId(), executorService);
                 callback.start("MQTT Call: " + getClient().getClientId(), executorService);
                 internalSend(conPacket, conToken);
             } catch (MqttException ex) {
@@ -913,10 +1034,14 @@ public class ClientComms {
             log.fine(CLASS_NAME, methodName, "509");
 
             disconnectedMessageBuffer.setPublishCallback(new ReconnectDisconnectedBufferCallback(methodName));
-            if (executorService == null) {
-                new Thread(disconnectedMessageBuffer).start();
-            } else {
-                executorService.execute(disconnectedMessageBuffer);
+            // If the buffer is still being flushed since an earlier reconnect,
+            // the thread flushing it carries on
+            if (disconnectedMessageBuffer.requestDrain()) {
+                if (executorService == null) {
+                    new Thread(disconnectedMessageBuffer).start();
+                } else {
+                    executorService.execute(disconnectedMessageBuffer);
+                }
             }
         }
     }
@@ -930,25 +1055,62 @@ public class ClientComms {
         }
 
         @Override
-        public void publishBufferedMessage(BufferedMessage bufferedMessage) throws MqttException {
+        public void publishBufferedMessages(List<BufferedMessage> bufferedMessages) throws MqttException {
             if (isConnected()) {
-                // @TRACE 510=Publising Buffered message message={0}
-                log.fine(CLASS_NAME, methodName, "510", new Object[]{bufferedMessage.getMessage().getKey()});
-                internalSend(bufferedMessage.getMessage(), bufferedMessage.getToken());
+                if (bufferedMessages.size() == 1) {
+                    BufferedMessage bufferedMessage = bufferedMessages.get(0);
+                    // @TRACE 510=Publising Buffered message message={0}
+                    log.fine(CLASS_NAME, methodName, "510", new Object[]{bufferedMessage.getMessage().getKey()});
+                    if (bufferedMessage.getMessage() instanceof MqttPublish) {
+                        applyServerLimits((MqttPublish) bufferedMessage.getMessage());
+                    }
+                    internalSend(bufferedMessage.getMessage(), bufferedMessage.getToken());
+                } else {
+                    // @TRACE 520=Publishing Buffered messages count={0}
+                    log.fine(CLASS_NAME, methodName, "520", new Object[]{Integer.valueOf(bufferedMessages.size())});
+                    List<MqttPublish> messages = new ArrayList<MqttPublish>(bufferedMessages.size());
+                    List<MqttToken> tokens = new ArrayList<MqttToken>(bufferedMessages.size());
+                    for (BufferedMessage bufferedMessage : bufferedMessages) {
+                        MqttPublish message = (MqttPublish) bufferedMessage.getMessage();
+                        applyServerLimits(message);
+                        messages.add(message);
+                        tokens.add(bufferedMessage.getToken());
+                    }
+                    internalSendBatch(messages, tokens);
+                }
                 // Delete from persistence if in there
-                clientState.unPersistBufferedMessage(bufferedMessage.getMessage());
+                for (BufferedMessage bufferedMessage : bufferedMessages) {
+                    clientState.unPersistBufferedMessage(bufferedMessage.getMessage());
+                }
             } else {
                 // @TRACE 208=failed: not connected
                 log.fine(CLASS_NAME, methodName, "208");
                 throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_CLIENT_NOT_CONNECTED);
             }
         }
+
+        @Override
+        public int waitForInFlightWindow(long timeout) throws InterruptedException {
+            if (!isConnected()) {
+                // Let the next batch fail, so that the buffer stops being flushed
+                return 1;
+            }
+            return clientState.waitForInFlightWindow(timeout);
+        }
     }
 
     public int getActualInFlight() {
         return this.clientState.getActualInFlight();
     }
 
+    public InboundQueueMetrics getInboundQueueMetrics() {
+        return this.callback.getInboundQueueMetrics();
+    }
+
+    public long getMessageIdExhaustedCount() {
+        return this.clientState.getMessageIdExhaustedCount();
+    }
+
     public boolean doesSubscriptionIdentifierExist(int subscriptionIdentifier) {
         return this.callback.doesSubscriptionIdentifierExist(subscriptionIdentifier);
 
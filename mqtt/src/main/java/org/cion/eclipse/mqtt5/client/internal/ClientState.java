@@ -23,18 +23,25 @@
 package org.cion.eclipse.mqtt5.client.internal;
 
 import java.io.EOFException;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import org.cion.eclipse.mqtt5.client.MqttActionListener;
+import org.cion.eclipse.mqtt5.client.MqttBatchPersistence;
 import org.cion.eclipse.mqtt5.client.MqttClientException;
 import org.cion.eclipse.mqtt5.client.MqttClientPersistence;
 import org.cion.eclipse.mqtt5.client.MqttPingSender;
 import org.cion.eclipse.mqtt5.client.MqttToken;
+import org.cion.eclipse.mqtt5.client.persist.WriteBehindPersistence;
 import org.cion.eclipse.mqtt5.client.logging.Logger;
 import org.cion.eclipse.mqtt5.client.logging.LoggerFactory;
 import org.cion.eclipse.mqtt5.common.MqttException;
@@ -45,6 +52,7 @@ import org.cion.eclipse.mqtt5.common.packet.MqttAck;
 import org.cion.eclipse.mqtt5.common.packet.MqttAuth;
 import org.cion.eclipse.mqtt5.common.packet.MqttConnAck;
 import org.cion.eclipse.mqtt5.common.packet.MqttConnect;
+import org.cion.eclipse.mqtt5.common.packet.MqttDisconnect;
 import org.cion.eclipse.mqtt5.common.packet.MqttPingReq;
 import org.cion.eclipse.mqtt5.common.packet.MqttPingResp;
 import org.cion.eclipse.mqtt5.common.packet.MqttProperties;
@@ -76,7 +84,7 @@ import org.cion.eclipse.mqtt5.common.packet.MqttWireMessage;
  * restoreState)
  * 
  * 3) On Connect, copy messages from the outbound hashtables to the
- * pendingMessages or pendingFlows vector in messageid order. - Initial message
+ * pendingMessages queue or pendingFlows vector in messageid order. - Initial message
  * publish goes onto the pendingmessages buffer. - PUBREL goes onto the
  * pendingflows buffer (see restoreInflightMessages)
  * 
@@ -106,13 +114,13 @@ public class ClientState implements MqttState {
 	private static final String PERSISTENCE_SENT_BUFFERED_PREFIX = "sb-";
 	private static final String PERSISTENCE_CONFIRMED_PREFIX = "sc-";
 	private static final String PERSISTENCE_RECEIVED_PREFIX = "r-";
+	private static final String PERSISTENCE_SPILLED_PREFIX = "i-";
 
-	private static final int MIN_MSG_ID = 1; // Lowest possible MQTT message ID to use
 	private static final int MAX_MSG_ID = 65535; // Highest possible MQTT message ID to use
-	private int nextMsgId = MIN_MSG_ID - 1; // The next available message ID to use
-	private ConcurrentHashMap<Integer, Integer> inUseMsgIds; // Used to store a set of in-use message IDs
+	private MessageIdAllocator msgIds; // The message IDs in use and the next one to use
 
-	volatile private Vector<MqttWireMessage> pendingMessages;
+	// Publishes are added without taking the queue lock; see send()
+	volatile private MpscLinkedQueue<MqttWireMessage> pendingMessages;
 	volatile private Vector<MqttWireMessage> pendingFlows;
 
 	private CommsTokenStore tokenStore;
@@ -122,10 +130,24 @@ public class ClientState implements MqttState {
 	private boolean cleanStart;
 	private MqttClientPersistence persistence;
 
-	private int actualInFlight = 0;
+	// The publishes the sender has written and not had acknowledged, only
+	// changed while holding the queue lock
+	private volatile int actualInFlight = 0;
+	// The QoS 1 and 2 publishes send() has accepted and not finished with,
+	// queued or in flight, bounded by the server's receive maximum, which does
+	// not count QoS 0. Taken and given back without the queue lock, see
+	// acquireInFlight(int)
+	private final AtomicInteger inFlightPermits = new AtomicInteger();
 	private int inFlightPubRels = 0;
 
 	private final Object queueLock = new Object();
+	private volatile Runnable sendReadyListener = null;
+	// The sender thread when it is parked waiting for work
+	private volatile Thread sendWaiter = null;
+	// Wakes a thread waiting for room in the inflight window
+	private final Object inFlightWindowLock = new Object();
+	private volatile boolean inFlightWindowWaiter = false;
+	private boolean inFlightWindowSignalled = false;
 	private final Object quiesceLock = new Object();
 	private boolean quiescing = false;
 
@@ -137,11 +159,13 @@ public class ClientState implements MqttState {
 	private int pingOutstanding = 0;
 
 	private boolean connected = false;
+	// Counts the connections lost, changed while holding the queue lock
+	private volatile int connectionEpoch = 0;
 
-	private ConcurrentHashMap<Integer, MqttWireMessage> outboundQoS2 = null;
-	private ConcurrentHashMap<Integer, MqttWireMessage> outboundQoS1 = null;
-	private ConcurrentHashMap<Integer, MqttWireMessage> outboundQoS0 = null;
-	private ConcurrentHashMap<Integer, MqttWireMessage> inboundQoS2 = null;
+	private IntKeyedMap<MqttWireMessage> outboundQoS2 = null;
+	private IntKeyedMap<MqttWireMessage> outboundQoS1 = null;
+	private IntKeyedMap<MqttWireMessage> outboundQoS0 = null;
+	private IntKeyedMap<MqttWireMessage> inboundQoS2 = null;
 
 	private MqttPingSender pingSender = null;
 
@@ -158,13 +182,13 @@ public class ClientState implements MqttState {
 		log.setResourceName(clientComms.getClient().getClientId());
 		log.finer(CLASS_NAME, "<Init>", "");
 
-		inUseMsgIds = new ConcurrentHashMap<>();
+		msgIds = new MessageIdAllocator();
 		pendingFlows = new Vector<MqttWireMessage>();
-		pendingMessages = new Vector<MqttWireMessage>(mqttConnection.getReceiveMaximum());
-		outboundQoS2 = new ConcurrentHashMap<>();
-		outboundQoS1 = new ConcurrentHashMap<>();
-		outboundQoS0 = new ConcurrentHashMap<>();
-		inboundQoS2 = new ConcurrentHashMap<>();
+		pendingMessages = new MpscLinkedQueue<MqttWireMessage>();
+		outboundQoS2 = new IntKeyedMap<MqttWireMessage>();
+		outboundQoS1 = new IntKeyedMap<MqttWireMessage>();
+		outboundQoS0 = new IntKeyedMap<MqttWireMessage>();
+		inboundQoS2 = new IntKeyedMap<MqttWireMessage>();
 		pingCommand = new MqttPingReq();
 		inFlightPubRels = 0;
 		actualInFlight = 0;
@@ -209,22 +233,79 @@ public class ClientState implements MqttState {
 		return PERSISTENCE_SENT_BUFFERED_PREFIX + message.getMessageId();
 	}
 
+	/**
+	 * Writes an inbound message that does not fit in the callback's queue to the
+	 * persistent store, until the callback is ready for it.
+	 * 
+	 * @param sequence
+	 *            a number, unique for the connection, that orders the message
+	 * @param message
+	 *            the message
+	 * @return the key the message was stored under
+	 * @throws MqttPersistenceException
+	 *             if the message could not be stored
+	 */
+	String spillMessage(long sequence, MqttPublish message) throws MqttPersistenceException {
+		String key = PERSISTENCE_SPILLED_PREFIX + sequence;
+		persistence.put(key, message);
+		return key;
+	}
+
+	/**
+	 * Reads back and removes an inbound message stored by
+	 * {@link #spillMessage(long, MqttPublish)}.
+	 * 
+	 * @param key
+	 *            the key the message was stored under
+	 * @return the message, or null if it is no longer in the store
+	 * @throws MqttException
+	 *             if the message could not be read
+	 */
+	MqttPublish unspillMessage(String key) throws MqttException {
+		MqttPersistable persistable = persistence.get(key);
+		if (persistable == null) {
+			return null;
+		}
+		MqttPublish message = (MqttPublish) restoreMessage(key, persistable);
+		persistence.remove(key);
+		return message;
+	}
+
+	/**
+	 * Discards an inbound message stored by
+	 * {@link #spillMessage(long, MqttPublish)}.
+	 * 
+	 * @param key
+	 *            the key the message was stored under
+	 */
+	void removeSpilledMessage(String key) {
+		final String methodName = "removeSpilledMessage";
+		try {
+			persistence.remove(key);
+		} catch (MqttPersistenceException ex) {
+			// @TRACE 671=removing spilled inbound message key={0}
+			log.fine(CLASS_NAME, methodName, "671", new Object[] { key }, ex);
+		}
+	}
+
 	protected void clearState() throws MqttException {
 		final String methodName = "clearState";
 		// @TRACE 603=clearState
 		log.fine(CLASS_NAME, methodName, ">");
 
 		persistence.clear();
-		inUseMsgIds.clear();
-		pendingMessages.clear();
-		pendingFlows.clear();
-		outboundQoS2.clear();
-		outboundQoS1.clear();
-		outboundQoS0.clear();
-		inboundQoS2.clear();
-		tokenStore.clear();
-		outgoingTopicAliases.clear();
-		incomingTopicAliases.clear();
+		synchronized (queueLock) {
+			msgIds.clear();
+			pendingMessages.clear();
+			pendingFlows.clear();
+			outboundQoS2.clear();
+			outboundQoS1.clear();
+			outboundQoS0.clear();
+			inboundQoS2.clear();
+			tokenStore.clear();
+			outgoingTopicAliases.clear();
+			incomingTopicAliases.clear();
+		}
 	}
 
 	protected void clearConnectionState() throws MqttException {
@@ -344,8 +425,9 @@ public class ClientState implements MqttState {
 		Enumeration<String> messageKeys = persistence.keys();
 		MqttPersistable persistable;
 		String key;
-		int highestMsgId = nextMsgId;
+		int highestMsgId = msgIds.getNext() - 1;
 		Vector<String> orphanedPubRels = new Vector<String>();
+		Vector<String> spilledMessages = new Vector<String>();
 		// @TRACE 600=>
 		log.fine(CLASS_NAME, methodName, "600");
 
@@ -359,7 +441,7 @@ public class ClientState implements MqttState {
 					log.fine(CLASS_NAME, methodName, "604", new Object[] { key, message });
 
 					// The inbound messages that we have persisted will be QoS 2
-					inboundQoS2.put(Integer.valueOf(message.getMessageId()), message);
+					inboundQoS2.put(message.getMessageId(), message);
 				} else if (key.startsWith(PERSISTENCE_SENT_PREFIX)) {
 					MqttPublish sendMessage = (MqttPublish) message;
 					highestMsgId = Math.max(sendMessage.getMessageId(), highestMsgId);
@@ -374,7 +456,7 @@ public class ClientState implements MqttState {
 							// @TRACE 605=outbound QoS 2 pubrel key={0} message={1}
 							log.fine(CLASS_NAME, methodName, "605", new Object[] { key, message });
 
-							outboundQoS2.put(Integer.valueOf(confirmMessage.getMessageId()), confirmMessage);
+							outboundQoS2.put(confirmMessage.getMessageId(), confirmMessage);
 						} else {
 							// @TRACE 606=outbound QoS 2 completed key={0} message={1}
 							log.fine(CLASS_NAME, methodName, "606", new Object[] { key, message });
@@ -387,18 +469,17 @@ public class ClientState implements MqttState {
 							// @TRACE 607=outbound QoS 2 publish key={0} message={1}
 							log.fine(CLASS_NAME, methodName, "607", new Object[] { key, message });
 
-							outboundQoS2.put(Integer.valueOf(sendMessage.getMessageId()), sendMessage);
+							outboundQoS2.put(sendMessage.getMessageId(), sendMessage);
 						} else {
 							// @TRACE 608=outbound QoS 1 publish key={0} message={1}
 							log.fine(CLASS_NAME, methodName, "608", new Object[] { key, message });
 
-							outboundQoS1.put(Integer.valueOf(sendMessage.getMessageId()), sendMessage);
+							outboundQoS1.put(sendMessage.getMessageId(), sendMessage);
 						}
 					}
 					MqttToken tok = tokenStore.restoreToken(sendMessage);
 					tok.internalTok.setClient(clientComms.getClient());
-					inUseMsgIds.put(Integer.valueOf(sendMessage.getMessageId()),
-							Integer.valueOf(sendMessage.getMessageId()));
+					msgIds.markInUse(sendMessage.getMessageId());
 				} else if (key.startsWith(PERSISTENCE_SENT_BUFFERED_PREFIX)) {
 
 					// Buffered outgoing messages that have not yet been sent at all
@@ -407,17 +488,17 @@ public class ClientState implements MqttState {
 					if (sendMessage.getMessage().getQos() == 2) {
 						// @TRACE 607=outbound QoS 2 publish key={0} message={1}
 						log.fine(CLASS_NAME, methodName, "607", new Object[] { key, message });
-						outboundQoS2.put(Integer.valueOf(sendMessage.getMessageId()), sendMessage);
+						outboundQoS2.put(sendMessage.getMessageId(), sendMessage);
 					} else if (sendMessage.getMessage().getQos() == 1) {
 						// @TRACE 608=outbound QoS 1 publish key={0} message={1}
 						log.fine(CLASS_NAME, methodName, "608", new Object[] { key, message });
 
-						outboundQoS1.put(Integer.valueOf(sendMessage.getMessageId()), sendMessage);
+						outboundQoS1.put(sendMessage.getMessageId(), sendMessage);
 
 					} else {
 						// @TRACE 511=outbound QoS 0 publish key={0} message={1}
 						log.fine(CLASS_NAME, methodName, "511", new Object[] { key, message });
-						outboundQoS0.put(Integer.valueOf(sendMessage.getMessageId()), sendMessage);
+						outboundQoS0.put(sendMessage.getMessageId(), sendMessage);
 						// Because there is no Puback, we have to trust that this is enough to send the
 						// message
 						persistence.remove(key);
@@ -426,14 +507,16 @@ public class ClientState implements MqttState {
 
 					MqttToken tok = tokenStore.restoreToken(sendMessage);
 					tok.internalTok.setClient(clientComms.getClient());
-					inUseMsgIds.put(Integer.valueOf(sendMessage.getMessageId()),
-							Integer.valueOf(sendMessage.getMessageId()));
+					msgIds.markInUse(sendMessage.getMessageId());
 
 				} else if (key.startsWith(PERSISTENCE_CONFIRMED_PREFIX)) {
 					MqttPubRel pubRelMessage = (MqttPubRel) message;
 					if (!persistence.containsKey(getSendPersistenceKey(pubRelMessage))) {
 						orphanedPubRels.addElement(key);
 					}
+				} else if (key.startsWith(PERSISTENCE_SPILLED_PREFIX)) {
+					// Left over from a connection that was lost before the callbacks got to it
+					spilledMessages.addElement(key);
 				}
 			}
 		}
@@ -447,24 +530,37 @@ public class ClientState implements MqttState {
 			persistence.remove(key);
 		}
 
-		nextMsgId = highestMsgId;
+		messageKeys = spilledMessages.elements();
+		while (messageKeys.hasMoreElements()) {
+			key = messageKeys.nextElement();
+			// @TRACE 671=removing spilled inbound message key={0}
+			log.fine(CLASS_NAME, methodName, "671", new Object[] { key });
+
+			persistence.remove(key);
+		}
+
+		msgIds.setNext(highestMsgId + 1);
 	}
 
-	private void restoreInflightMessages() {
+	/**
+	 * Queues the outbound messages restored from the outbound state for sending
+	 * again. Must be called while holding the queue lock.
+	 * 
+	 * @return the number of QoS 1 and 2 publishes and PUBRELs queued
+	 */
+	private int restoreInflightMessages() {
 		final String methodName = "restoreInflightMessages";
-		pendingMessages = new Vector<MqttWireMessage>(this.mqttConnection.getReceiveMaximum());
+		Vector<MqttWireMessage> restoredMessages = new Vector<MqttWireMessage>(this.mqttConnection.getReceiveMaximum());
 		pendingFlows = new Vector<MqttWireMessage>();
 
-		Enumeration<Integer> keys = outboundQoS2.keys();
-		while (keys.hasMoreElements()) {
-			Integer key = keys.nextElement();
-			MqttWireMessage msg = (MqttWireMessage) outboundQoS2.get(key);
+		for (MqttWireMessage msg : outboundQoS2.values()) {
+			Integer key = Integer.valueOf(msg.getMessageId());
 			if (msg instanceof MqttPublish) {
 				// @TRACE 610=QoS 2 publish key={0}
 				log.fine(CLASS_NAME, methodName, "610", new Object[] { key });
 				// set DUP flag only for PUBLISH, but NOT for PUBREL (spec 3.1.1)
 				msg.setDuplicate(true);
-				insertInOrder(pendingMessages, (MqttPublish) msg);
+				insertInOrder(restoredMessages, (MqttPublish) msg);
 			} else if (msg instanceof MqttPubRel) {
 				// @TRACE 611=QoS 2 pubrel key={0}
 				log.fine(CLASS_NAME, methodName, "611", new Object[] { key });
@@ -472,28 +568,29 @@ public class ClientState implements MqttState {
 				insertInOrder(pendingFlows, (MqttPubRel) msg);
 			}
 		}
-		keys = outboundQoS1.keys();
-		while (keys.hasMoreElements()) {
-			Object key = keys.nextElement();
-			MqttPublish msg = (MqttPublish) outboundQoS1.get(key);
+		for (MqttWireMessage message : outboundQoS1.values()) {
+			MqttPublish msg = (MqttPublish) message;
 			msg.setDuplicate(true);
 			// @TRACE 612=QoS 1 publish key={0}
-			log.fine(CLASS_NAME, methodName, "612", new Object[] { key });
+			log.fine(CLASS_NAME, methodName, "612", new Object[] { Integer.valueOf(msg.getMessageId()) });
 
-			insertInOrder(pendingMessages, msg);
+			insertInOrder(restoredMessages, msg);
 		}
-		keys = outboundQoS0.keys();
-		while (keys.hasMoreElements()) {
-			Object key = keys.nextElement();
-			MqttPublish msg = (MqttPublish) outboundQoS0.get(key);
+		int inFlight = restoredMessages.size() + pendingFlows.size();
+		for (MqttWireMessage message : outboundQoS0.values()) {
+			MqttPublish msg = (MqttPublish) message;
 			// @TRACE 512=QoS 0 publish key={0}
-			log.fine(CLASS_NAME, methodName, "512", new Object[] { key });
-			insertInOrder(pendingMessages, msg);
+			log.fine(CLASS_NAME, methodName, "512", new Object[] { Integer.valueOf(msg.getMessageId()) });
+			insertInOrder(restoredMessages, msg);
 
 		}
 
 		this.pendingFlows = reOrder(pendingFlows);
-		this.pendingMessages = reOrder(pendingMessages);
+		pendingMessages.clear();
+		for (MqttWireMessage msg : reOrder(restoredMessages)) {
+			pendingMessages.offer(msg);
+		}
+		return inFlight;
 	}
 
 	/*
@@ -506,26 +603,25 @@ public class ClientState implements MqttState {
 	@Override
 	public void send(MqttWireMessage message, MqttToken token) throws MqttException {
 		final String methodName = "send";
+		// Publishes do not take the queue lock, so any number of application
+		// threads can add them at once. Each QoS 1 or 2 publish takes a permit
+		// for the inflight window before it is given an ID, so refusing it
+		// leaves nothing to undo. If it fails later undo() gives the permit back.
+		if (message instanceof MqttPublish && ((MqttPublish) message).getMessage().getQos() > 0
+				&& !acquireInFlight(1)) {
+			// @TRACE 613= sending {0} msgs at max inflight window
+			log.fine(CLASS_NAME, methodName, "613", new Object[] { Integer.valueOf(inFlightPermits.get()) });
+
+			throw new MqttException(MqttClientException.REASON_CODE_MAX_INFLIGHT);
+		}
+
 		// Set Message ID if required
 		if (message.isMessageIdRequired() && (message.getMessageId() == 0)) {
 			message.setMessageId(getNextMessageId());
 		}
 		// Set Topic Alias if required
-		if (message instanceof MqttPublish && ((MqttPublish) message).getTopicName() != null 
-	        		&& this.mqttConnection != null && this.mqttConnection.getOutgoingTopicAliasMaximum() > 0) {
-                        String topic = ((MqttPublish) message).getTopicName();
-			if (outgoingTopicAliases.containsKey(topic)) {
-				// Existing Topic Alias, Assign it and remove the topic string
-				((MqttPublish) message).getProperties().setTopicAlias(outgoingTopicAliases.get(topic));
-				((MqttPublish) message).setTopicName(null);
-			} else {
-				int nextOutgoingTopicAlias = this.mqttConnection.getNextOutgoingTopicAlias();
-				if (nextOutgoingTopicAlias <= this.mqttConnection.getOutgoingTopicAliasMaximum()) {
-					// Create a new Topic Alias and increment the counter
-					((MqttPublish) message).getProperties().setTopicAlias(nextOutgoingTopicAlias);
-					outgoingTopicAliases.put(((MqttPublish) message).getTopicName(), nextOutgoingTopicAlias);
-				}
-			}
+		if (message instanceof MqttPublish) {
+			setTopicAlias((MqttPublish) message);
 		}
 
 		if (token != null) {
@@ -536,32 +632,28 @@ public class ClientState implements MqttState {
 		}
 
 		if (message instanceof MqttPublish) {
-			synchronized (queueLock) {
-				if (actualInFlight >= this.mqttConnection.getReceiveMaximum()) {
-					// @TRACE 613= sending {0} msgs at max inflight window
-					log.fine(CLASS_NAME, methodName, "613", new Object[] { Integer.valueOf(actualInFlight) });
-
-					throw new MqttException(MqttClientException.REASON_CODE_MAX_INFLIGHT);
-				}
-
-				MqttMessage innerMessage = ((MqttPublish) message).getMessage();
-				// @TRACE 628=pending publish key={0} qos={1} message={2}
-				log.fine(CLASS_NAME, methodName, "628", new Object[] { Integer.valueOf(message.getMessageId()),
-						Integer.valueOf(innerMessage.getQos()), message });
-
-				switch (innerMessage.getQos()) {
-				case 2:
-					outboundQoS2.put(Integer.valueOf(message.getMessageId()), message);
-					persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
-					break;
-				case 1:
-					outboundQoS1.put(Integer.valueOf(message.getMessageId()), message);
-					persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
-					break;
-				}
-				tokenStore.saveToken(token, message);
-				pendingMessages.addElement(message);
-				queueLock.notifyAll();
+			MqttMessage innerMessage = ((MqttPublish) message).getMessage();
+			// @TRACE 628=pending publish key={0} qos={1} message={2}
+			log.fine(CLASS_NAME, methodName, "628", new Object[] { Integer.valueOf(message.getMessageId()),
+					Integer.valueOf(innerMessage.getQos()), message });
+
+			switch (innerMessage.getQos()) {
+			case 2:
+				outboundQoS2.put(message.getMessageId(), message);
+				persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
+				break;
+			case 1:
+				outboundQoS1.put(message.getMessageId(), message);
+				persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
+				break;
+			}
+			tokenStore.saveToken(token, message);
+			if (persistence instanceof WriteBehindPersistence) {
+				// Hold the message back until the batch holding its put is durable
+				holdUntilDurable(Collections.singletonList((MqttPublish) message));
+			} else {
+				pendingMessages.offer(message);
+				signalQueue();
 			}
 		} else {
 			// @TRACE 615=pending send key={0} message {1}
@@ -573,13 +665,13 @@ public class ClientState implements MqttState {
 					// ahead of any of other pending actions.
 					tokenStore.saveToken(token, message);
 					pendingFlows.insertElementAt(message, 0);
-					queueLock.notifyAll();
+					signalQueue();
 				}
 			} else {
 				if (message instanceof MqttPingReq) {
 					this.pingCommand = message;
 				} else if (message instanceof MqttPubRel) {
-					outboundQoS2.put(Integer.valueOf(message.getMessageId()), message);
+					outboundQoS2.put(message.getMessageId(), message);
 					persistence.put(getSendConfirmPersistenceKey(message), (MqttPubRel) message);
 				} else if (message instanceof MqttPubComp) {
 					persistence.remove(getReceivedPersistenceKey(message));
@@ -590,12 +682,241 @@ public class ClientState implements MqttState {
 						tokenStore.saveToken(token, message);
 					}
 					pendingFlows.addElement(message);
-					queueLock.notifyAll();
+					signalQueue();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gives the message the topic alias of its topic, or a new one if there are
+	 * any left.
+	 * 
+	 * @param message
+	 *            the message to send
+	 * @return the topic alias created for the message, or 0 if none was
+	 */
+	private int setTopicAlias(MqttPublish message) {
+		if (message.getTopicName() != null && this.mqttConnection != null
+				&& this.mqttConnection.getOutgoingTopicAliasMaximum() > 0) {
+			String topic = message.getTopicName();
+			if (outgoingTopicAliases.containsKey(topic)) {
+				// Existing Topic Alias, Assign it and remove the topic string
+				message.getProperties().setTopicAlias(outgoingTopicAliases.get(topic));
+				message.setTopicName(null);
+			} else {
+				int nextOutgoingTopicAlias = this.mqttConnection.getNextOutgoingTopicAlias();
+				if (nextOutgoingTopicAlias <= this.mqttConnection.getOutgoingTopicAliasMaximum()) {
+					// Create a new Topic Alias and increment the counter
+					message.getProperties().setTopicAlias(nextOutgoingTopicAlias);
+					outgoingTopicAliases.put(message.getTopicName(), nextOutgoingTopicAlias);
+					return nextOutgoingTopicAlias;
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Submits a batch of publishes for delivery, as {@link #send(MqttWireMessage, MqttToken)}
+	 * does for each of them, but puts the QoS 1 and 2 messages into persistence
+	 * with one commit, if the persistence supports it, and wakes the sender once.
+	 * If an exception is thrown none of the messages has been submitted, and
+	 * any message ID given to a message here has been released again.
+	 * 
+	 * @param messages
+	 *            the messages to send
+	 * @param tokens
+	 *            a token for each message
+	 * @throws MqttException
+	 *             if the batch has more QoS 1 and 2 messages than the receive
+	 *             maximum, the inflight window is full, no message IDs are left
+	 *             or the messages could not be persisted
+	 */
+	protected void sendBatch(List<MqttPublish> messages, List<MqttToken> tokens) throws MqttException {
+		final String methodName = "sendBatch";
+		// @TRACE 673=pending publish batch count={0}
+		log.fine(CLASS_NAME, methodName, "673", new Object[] { Integer.valueOf(messages.size()) });
+
+		// A batch that could never fit in the window is refused outright, rather
+		// than failing as if the window were only full for now
+		int permits = countInFlight(messages);
+		if (permits > this.mqttConnection.getReceiveMaximum()) {
+			// @TRACE 675=publish batch of {0} QoS 1 and 2 messages is larger than the receive maximum {1}
+			log.fine(CLASS_NAME, methodName, "675",
+					new Object[] { Integer.valueOf(permits), this.mqttConnection.getReceiveMaximum() });
+
+			throw new MqttException(MqttClientException.REASON_CODE_BATCH_TOO_LARGE);
+		}
+
+		// The permits for the whole batch are taken before any message is given
+		// an ID, so refusing the batch leaves nothing to undo
+		if (!acquireInFlight(permits)) {
+			// @TRACE 613= sending {0} msgs at max inflight window
+			log.fine(CLASS_NAME, methodName, "613", new Object[] { Integer.valueOf(inFlightPermits.get()) });
+
+			throw new MqttException(MqttClientException.REASON_CODE_MAX_INFLIGHT);
+		}
+
+		Map<String, MqttPersistable> puts = new LinkedHashMap<String, MqttPersistable>();
+		// How many messages have been handled, which of them were given their
+		// message ID here, and the topic and any new topic alias of each, so
+		// that a failure can be rolled back
+		int handled = 0;
+		boolean[] assigned = new boolean[messages.size()];
+		String[] topics = new String[messages.size()];
+		int[] aliases = new int[messages.size()];
+		boolean tokensSaved = false;
+		try {
+			for (; handled < messages.size(); handled++) {
+				MqttPublish message = messages.get(handled);
+				if (message.getMessageId() == 0) {
+					message.setMessageId(getNextMessageId());
+					assigned[handled] = true;
+				}
+				topics[handled] = message.getTopicName();
+				aliases[handled] = setTopicAlias(message);
+				tokens.get(handled).internalTok.setMessageID(message.getMessageId());
+
+				switch (message.getMessage().getQos()) {
+				case 2:
+					outboundQoS2.put(message.getMessageId(), message);
+					puts.put(getSendPersistenceKey(message), message);
+					break;
+				case 1:
+					outboundQoS1.put(message.getMessageId(), message);
+					puts.put(getSendPersistenceKey(message), message);
+					break;
+				}
+			}
+
+			if (!puts.isEmpty()) {
+				if (persistence instanceof MqttBatchPersistence) {
+					((MqttBatchPersistence) persistence).commit(puts, Collections.<String>emptyList());
+				} else {
+					for (Map.Entry<String, MqttPersistable> put : puts.entrySet()) {
+						persistence.put(put.getKey(), put.getValue());
+					}
+				}
+			}
+
+			for (int i = 0; i < messages.size(); i++) {
+				tokenStore.saveToken(tokens.get(i), messages.get(i));
+			}
+			tokensSaved = true;
+			if (persistence instanceof WriteBehindPersistence) {
+				holdUntilDurable(messages);
+			} else {
+				for (MqttPublish message : messages) {
+					pendingMessages.offer(message);
 				}
+				signalQueue();
 			}
+		} catch (MqttException e) {
+			undoBatch(messages, handled, assigned, topics, aliases, tokensSaved);
+			throw e;
 		}
 	}
 
+	/**
+	 * Rolls back the part of a batch that {@link #sendBatch(List, List)} had
+	 * handled when it failed. Only the message IDs it gave out are released, a
+	 * message that already had one, such as a persisted buffered message,
+	 * keeps it. The topic aliases it created are forgotten, and each message
+	 * gets back its topic, as none of them reached the server. The inflight
+	 * permits of the QoS 1 and 2 messages of the whole batch are given back.
+	 */
+	private void undoBatch(List<MqttPublish> messages, int handled, boolean[] assigned, String[] topics,
+			int[] aliases, boolean tokensSaved) {
+		final String methodName = "undoBatch";
+		synchronized (queueLock) {
+			for (int i = 0; i < handled; i++) {
+				MqttPublish message = messages.get(i);
+				// @TRACE 618=key={0} QoS={1}
+				log.fine(CLASS_NAME, methodName, "618", new Object[] { Integer.valueOf(message.getMessageId()),
+						Integer.valueOf(message.getMessage().getQos()) });
+
+				if (message.getMessage().getQos() > 0) {
+					if (message.getMessage().getQos() == 1) {
+						outboundQoS1.remove(message.getMessageId());
+					} else {
+						outboundQoS2.remove(message.getMessageId());
+					}
+					try {
+						persistence.remove(getSendPersistenceKey(message));
+					} catch (MqttPersistenceException ex) {
+						// It may never have been put
+					}
+				}
+				if (tokensSaved) {
+					tokenStore.removeToken(message);
+				}
+				if (assigned[i]) {
+					releaseMessageId(message.getMessageId());
+					message.setMessageId(0);
+				}
+				if (aliases[i] != 0 || (topics[i] != null && message.getTopicName() == null)) {
+					message.setTopicName(topics[i]);
+					message.getProperties().setTopicAlias(null);
+				}
+			}
+			// Newest first, so that the alias counter can be wound back
+			for (int i = handled - 1; i >= 0; i--) {
+				if (aliases[i] != 0) {
+					synchronized (outgoingTopicAliases) {
+						if (Integer.valueOf(aliases[i]).equals(outgoingTopicAliases.get(topics[i]))) {
+							outgoingTopicAliases.remove(topics[i]);
+						}
+					}
+					mqttConnection.releaseOutgoingTopicAlias(aliases[i]);
+				}
+			}
+			releaseInFlight(countInFlight(messages));
+			checkQuiesceLock();
+		}
+	}
+
+	/**
+	 * Queues publishes for the sender once everything written to the
+	 * write-behind persistence before them, including their own puts, has been
+	 * committed. QoS 0 messages are held too so that messages are still sent in
+	 * order.
+	 * 
+	 * @param messages
+	 *            the messages to send
+	 * @throws MqttPersistenceException
+	 *             if the persistence is closed
+	 */
+	private void holdUntilDurable(final List<MqttPublish> messages) throws MqttPersistenceException {
+		final int epoch = connectionEpoch;
+		((WriteBehindPersistence) persistence).whenDurable(new WriteBehindPersistence.CommitCallback() {
+			@Override
+			public void onCommit() {
+				synchronized (queueLock) {
+					// If the connection has been lost in the meantime the messages
+					// are restored from the outbound state on reconnect, as if they
+					// had been queued, and must not be queued a second time here
+					// even if the client has already reconnected
+					if (connected && connectionEpoch == epoch) {
+						for (MqttPublish message : messages) {
+							pendingMessages.offer(message);
+						}
+						signalQueue();
+					}
+				}
+			}
+
+			@Override
+			public void onFailure(MqttPersistenceException ex) {
+				final String methodName = "holdUntilDurable";
+				// @TRACE 670=write behind persistence failed key={0}
+				log.fine(CLASS_NAME, methodName, "670",
+						new Object[] { Integer.valueOf(messages.get(0).getMessageId()) }, ex);
+				clientComms.shutdownConnection(null, ex, null);
+			}
+		});
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -666,11 +987,11 @@ public class ClientState implements MqttState {
 					Integer.valueOf(message.getMessage().getQos()) });
 
 			if (message.getMessage().getQos() == 1) {
-				outboundQoS1.remove(Integer.valueOf(message.getMessageId()));
+				outboundQoS1.remove(message.getMessageId());
 			} else {
-				outboundQoS2.remove(Integer.valueOf(message.getMessageId()));
+				outboundQoS2.remove(message.getMessageId());
 			}
-			pendingMessages.removeElement(message);
+			pendingMessages.remove(message);
 			persistence.remove(getSendPersistenceKey(message));
 			tokenStore.removeToken(message);
 			if (message.getMessage().getQos() > 0) {
@@ -678,6 +999,7 @@ public class ClientState implements MqttState {
 				releaseMessageId(message.getMessageId());
 				// Set the messageId to 0 so if it's ever retried, it will get a new messageId
 				message.setMessageId(0);
+				releaseInFlight(1);
 			}
 
 			checkQuiesceLock();
@@ -817,27 +1139,37 @@ public class ClientState implements MqttState {
 		final String methodName = "get";
 		MqttWireMessage result = null;
 
-		synchronized (queueLock) {
-			while (result == null) {
-
-				// If there is no work wait until there is work.
-				// If the inflight window is full and no flows are pending wait until space is
-				// freed.
-				// In both cases queueLock will be notified.
-				if ((pendingMessages.isEmpty() && pendingFlows.isEmpty())
-						|| (pendingFlows.isEmpty() && actualInFlight >= this.mqttConnection.getReceiveMaximum())) {
-					try {
-						// @TRACE 644=wait for new work or for space in the inflight window
-						log.fine(CLASS_NAME, methodName, "644");
+		while (result == null) {
 
-						queueLock.wait();
+			// If there is no work wait until there is work.
+			// If the inflight window is full and no flows are pending wait until space is
+			// freed.
+			// In both cases the sender is unparked by signalQueue().
+			if (isSenderIdle()) {
+				sendWaiter = Thread.currentThread();
+				// Check again now that the waiter is visible, so that work added in
+				// between is not missed
+				if (isSenderIdle()) {
+					// @TRACE 644=wait for new work or for space in the inflight window
+					log.fine(CLASS_NAME, methodName, "644");
 
-						// @TRACE 647=new work or ping arrived
-						log.fine(CLASS_NAME, methodName, "647");
-					} catch (InterruptedException e) {
-					}
+					LockSupport.park(queueLock);
+
+					// @TRACE 647=new work or ping arrived
+					log.fine(CLASS_NAME, methodName, "647");
+				}
+				sendWaiter = null;
+				// Unlike wait(), park() leaves the interrupt set and would return at
+				// once from then on. The sender is only interrupted when it is
+				// being stopped, so clear it and stop.
+				if (Thread.interrupted()) {
+					// @TRACE 674=interrupted while waiting for work
+					log.fine(CLASS_NAME, methodName, "674");
+					return null;
 				}
+			}
 
+			synchronized (queueLock) {
 				// Handle the case where not connected. This should only be the case if:
 				// - in the process of disconnecting / shutting down
 				// - in the process of connecting
@@ -856,38 +1188,294 @@ public class ClientState implements MqttState {
 				// checkForActivity(); //Use pinger, don't check here
 
 				// Now process any queued flows or messages
-				if (!pendingFlows.isEmpty()) {
-					// Process the first "flow" in the queue
-					result = (MqttWireMessage) pendingFlows.remove(0);
-					if (result instanceof MqttPubRel) {
-						inFlightPubRels++;
-
-						// @TRACE 617=+1 inflightpubrels={0}
-						log.fine(CLASS_NAME, methodName, "617", new Object[] { Integer.valueOf(inFlightPubRels) });
-					}
+				result = nextPending();
+			} // synchronized
+		} // end while
+		return result;
+	}
 
-					checkQuiesceLock();
-				} else if (!pendingMessages.isEmpty()) {
+	/**
+	 * @return true if there is nothing the sender could take off the queues
+	 */
+	private boolean isSenderIdle() {
+		synchronized (queueLock) {
+			if (pendingFlows == null) {
+				return false;
+			}
+			return (pendingMessages.isEmpty() && pendingFlows.isEmpty())
+					|| (pendingFlows.isEmpty() && actualInFlight >= this.mqttConnection.getReceiveMaximum());
+		}
+	}
 
-					// If the inflight window is full then messages are not
-					// processed until the inflight window has space.
-					if (actualInFlight < this.mqttConnection.getReceiveMaximum()) {
-						// The in flight window is not full so process the
-						// first message in the queue
-						result = (MqttWireMessage) pendingMessages.elementAt(0);
-						pendingMessages.removeElementAt(0);
-						actualInFlight++;
+	/**
+	 * Drains a batch of messages for the CommsSender to write to the network
+	 * before flushing. This blocks in the same way as {@link #get()} until at
+	 * least one message is available, then takes every further flow or message
+	 * that is currently eligible (respecting the inflight window) under a single
+	 * hold of the queue lock, until either limit is reached. A DISCONNECT is
+	 * always the last message of its batch.
+	 * 
+	 * @param maxMessages
+	 *            the maximum number of messages to return in the batch
+	 * @param maxBytes
+	 *            once the PUBLISH payloads in the batch add up to this many bytes
+	 *            no further messages are added
+	 * @return the batch of messages to send, or null if the client is
+	 *         disconnected
+	 * @throws MqttException
+	 *             if an exception occurs whilst returning the next piece of work
+	 */
+	protected Vector<MqttWireMessage> get(int maxMessages, long maxBytes) throws MqttException {
+		final String methodName = "get";
+		MqttWireMessage message = get();
+		if (message == null) {
+			return null;
+		}
+		synchronized (queueLock) {
+			Vector<MqttWireMessage> batch = new Vector<MqttWireMessage>(maxMessages);
+			batch.addElement(message);
+			long batchBytes = getPayloadLength(message);
+			// Only the CONNECT may be sent before the connection is established,
+			// and nothing after the DISCONNECT, so that it ends the batch
+			while (connected && !(message instanceof MqttDisconnect) && batch.size() < maxMessages
+					&& batchBytes < maxBytes) {
+				message = nextPending();
+				if (message == null) {
+					break;
+				}
+				batch.addElement(message);
+				batchBytes += getPayloadLength(message);
+			}
+			// @TRACE 669=batch of {0} messages, {1} payload bytes
+			log.fine(CLASS_NAME, methodName, "669",
+					new Object[] { Integer.valueOf(batch.size()), Long.valueOf(batchBytes) });
+			return batch;
+		}
+	}
 
-						// @TRACE 623=+1 actualInFlight={0}
-						log.fine(CLASS_NAME, methodName, "623", new Object[] { Integer.valueOf(actualInFlight) });
-					} else {
-						// @TRACE 622=inflight window full
-						log.fine(CLASS_NAME, methodName, "622");
+	/**
+	 * Takes the next flow, or the next message if the inflight window has space,
+	 * off the pending queues. Must be called while holding the queue lock.
+	 * 
+	 * @return the next message to send, or null if nothing is currently eligible
+	 */
+	private MqttWireMessage nextPending() {
+		final String methodName = "get";
+		MqttWireMessage result = null;
+		if (!pendingFlows.isEmpty()) {
+			// Process the first "flow" in the queue
+			result = (MqttWireMessage) pendingFlows.remove(0);
+			if (result instanceof MqttPubRel) {
+				inFlightPubRels++;
+
+				// @TRACE 617=+1 inflightpubrels={0}
+				log.fine(CLASS_NAME, methodName, "617", new Object[] { Integer.valueOf(inFlightPubRels) });
+			}
+
+			checkQuiesceLock();
+		} else if (!pendingMessages.isEmpty()) {
+
+			// If the inflight window is full then messages are not
+			// processed until the inflight window has space.
+			if (actualInFlight < this.mqttConnection.getReceiveMaximum()) {
+				// The in flight window is not full so process the
+				// first message in the queue
+				result = pendingMessages.poll();
+				actualInFlight++;
+
+				// @TRACE 623=+1 actualInFlight={0}
+				log.fine(CLASS_NAME, methodName, "623", new Object[] { Integer.valueOf(actualInFlight) });
+			} else {
+				// @TRACE 622=inflight window full
+				log.fine(CLASS_NAME, methodName, "622");
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the next message for the CommsSender to send without waiting. This
+	 * is used when the sender is driven by a network event loop rather than its
+	 * own thread, see {@link #setSendReadyListener(Runnable)}.
+	 * 
+	 * @return the next message to send, or null if there is nothing that can be
+	 *         sent at the moment
+	 */
+	protected MqttWireMessage poll() {
+		final String methodName = "poll";
+		synchronized (queueLock) {
+			if (pendingFlows == null || (!connected && (pendingFlows.isEmpty()
+					|| !(pendingFlows.elementAt(0) instanceof MqttConnect)))) {
+				// @TRACE 621=no outstanding flows and not connected
+				log.fine(CLASS_NAME, methodName, "621");
+				return null;
+			}
+			return nextPending();
+		}
+	}
+
+	/**
+	 * Sets a listener that is run whenever the sender is signalled, that is
+	 * whenever there may be new work for it. The listener can be run on any
+	 * thread, with or without the queue lock held, so it must only schedule the
+	 * work, not do it.
+	 * 
+	 * @param listener
+	 *            the listener, or null to remove it
+	 */
+	protected void setSendReadyListener(Runnable listener) {
+		this.sendReadyListener = listener;
+	}
+
+	/**
+	 * Returns whether {@link #notifyReceivedMsg(MqttWireMessage)} would wait for
+	 * the callback to make room for the message. This is used when the receiver
+	 * is driven by a network event loop that must not block, see
+	 * {@link #setReceiveReadyListener(Runnable)}.
+	 *
+	 * @param message
+	 *            the message that has been received
+	 * @return true if handing over the message would wait
+	 */
+	protected boolean mustWaitToReceive(MqttWireMessage message) {
+		return message instanceof MqttPublish && callback != null
+				&& callback.mustWaitForSpace((MqttPublish) message);
+	}
+
+	/**
+	 * Sets a listener that is run whenever the callback may have made room for
+	 * more inbound messages. Like the send ready listener it must only schedule
+	 * the work.
+	 *
+	 * @param listener
+	 *            the listener, or null to remove it
+	 */
+	protected void setReceiveReadyListener(Runnable listener) {
+		if (callback != null) {
+			callback.setSpaceAvailableListener(listener);
+		}
+	}
+
+	/**
+	 * Wakes up the sender. Called after the queues, the inflight window or the
+	 * connection state have changed, either with the queue lock held or, for a
+	 * publish, after adding it to the queue.
+	 */
+	private void signalQueue() {
+		Thread waiter = sendWaiter;
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+		Runnable listener = sendReadyListener;
+		if (listener != null) {
+			listener.run();
+		}
+		if (inFlightWindowWaiter) {
+			synchronized (inFlightWindowLock) {
+				inFlightWindowSignalled = true;
+				inFlightWindowLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits until there is room in the inflight window, so that more publishes
+	 * can be sent without being refused with
+	 * {@link MqttClientException#REASON_CODE_MAX_INFLIGHT}. The waiting thread
+	 * is woken whenever the sender is signalled, rather than polling.
+	 * 
+	 * @param timeout
+	 *            the longest time to wait, in milliseconds
+	 * @return the number of messages that can be sent, 0 if the window is still
+	 *         full when the timeout expires
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	protected int waitForInFlightWindow(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		inFlightWindowWaiter = true;
+		try {
+			while (true) {
+				int free = this.mqttConnection.getReceiveMaximum() - inFlightPermits.get();
+				if (free > 0) {
+					return free;
+				}
+				synchronized (inFlightWindowLock) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (!inFlightWindowSignalled) {
+						if (remaining <= 0) {
+							return 0;
+						}
+						inFlightWindowLock.wait(remaining);
 					}
+					inFlightWindowSignalled = false;
 				}
-			} // end while
-		} // synchronized
-		return result;
+			}
+		} finally {
+			inFlightWindowWaiter = false;
+		}
+	}
+
+	/**
+	 * Takes permits for publishes from the inflight window, all of them or none.
+	 * 
+	 * @param count
+	 *            the number of publishes
+	 * @return false if the window does not have room for all of them
+	 */
+	private boolean acquireInFlight(int count) {
+		int max = this.mqttConnection.getReceiveMaximum();
+		while (true) {
+			int current = inFlightPermits.get();
+			if (current + count > max) {
+				return false;
+			}
+			if (inFlightPermits.compareAndSet(current, current + count)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @param messages
+	 *            the publishes
+	 * @return the number of them that count against the inflight window, those
+	 *         sent at QoS 1 or 2
+	 */
+	private static int countInFlight(List<MqttPublish> messages) {
+		int count = 0;
+		for (MqttPublish message : messages) {
+			if (message.getMessage().getQos() > 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Gives back permits taken by {@link #acquireInFlight(int)}, once the
+	 * publishes have been acknowledged or rolled back.
+	 * 
+	 * @param count
+	 *            the number of publishes
+	 */
+	private void releaseInFlight(int count) {
+		while (true) {
+			int current = inFlightPermits.get();
+			// Permits are reset when the connection is made, so do not go
+			// below zero for a message accepted before then
+			int next = Math.max(0, current - count);
+			if (inFlightPermits.compareAndSet(current, next)) {
+				return;
+			}
+		}
+	}
+
+	private static int getPayloadLength(MqttWireMessage message) {
+		if (message instanceof MqttPublish) {
+			return ((MqttPublish) message).getPayloadLength();
+		}
+		return 0;
 	}
 
 	/*
@@ -953,7 +1541,7 @@ public class ClientState implements MqttState {
 			log.fine(CLASS_NAME, methodName, "646", new Object[] { Integer.valueOf(actualInFlight) });
 
 			if (!checkQuiesceLock()) {
-				queueLock.notifyAll();
+				signalQueue();
 			}
 		}
 	}
@@ -1057,16 +1645,22 @@ public class ClientState implements MqttState {
 
 			int rc = ((MqttConnAck) ack).getReturnCode();
 			if (rc == 0) {
+				if (cleanStart) {
+					// Not while holding the queue lock, a write behind store
+					// waits here for its writer, whose commit callbacks take it
+					clearState();
+				}
 				synchronized (queueLock) {
 					if (cleanStart) {
-						clearState();
 						// Add the connect token back in so that users can be
 						// notified when connect completes.
 						tokenStore.saveToken(token, ack);
 					}
 					inFlightPubRels = 0;
 					actualInFlight = 0;
-					restoreInflightMessages();
+					// The messages queued again are all that is outstanding, the
+					// rest were dropped with the connection
+					inFlightPermits.set(restoreInflightMessages());
 					connected();
 				}
 			} else {
@@ -1081,7 +1675,7 @@ public class ClientState implements MqttState {
 
 			// Notify the sender thread that there maybe work for it to do now
 			synchronized (queueLock) {
-				queueLock.notifyAll();
+				signalQueue();
 			}
 		} else {
 			notifyResult(ack, token, mex);
@@ -1218,13 +1812,19 @@ public class ClientState implements MqttState {
 					break;
 				case 2:
 					persistence.put(getReceivedPersistenceKey(message), (MqttPublish) message);
-					inboundQoS2.put(Integer.valueOf(send.getMessageId()), send);
+					inboundQoS2.put(send.getMessageId(), send);
+					boolean deferred = false;
 					if (callback != null) {
-						callback.messageArrived(send);
+						deferred = callback.messageArrived(send);
+					}
+					// Unless a listener holds it back, as a way of limiting the
+					// messages the server sends. Asked of messageArrived rather
+					// than afterwards, when the listener may already have sent it.
+					if (!deferred) {
+						// Currently this client has no need of the properties, so this is left empty.
+						this.send(new MqttPubRec(MqttReturnCode.RETURN_CODE_SUCCESS, send.getMessageId(),
+								new MqttProperties()), null);
 					}
-					// Currently this client has no need of the properties, so this is left empty.
-					this.send(new MqttPubRec(MqttReturnCode.RETURN_CODE_SUCCESS, send.getMessageId(),
-							new MqttProperties()), null);
 					break;
 
 				default:
@@ -1268,7 +1868,8 @@ public class ClientState implements MqttState {
 				// QoS 1 - user notified now remove from persistence...
 				persistence.remove(getSendPersistenceKey(message));
 				persistence.remove(getSendBufferedPersistenceKey(message));
-				outboundQoS1.remove(Integer.valueOf(ack.getMessageId()));
+				outboundQoS1.remove(ack.getMessageId());
+				releaseInFlight(1);
 				decrementInFlight();
 				releaseMessageId(message.getMessageId());
 				tokenStore.removeToken(message);
@@ -1279,9 +1880,10 @@ public class ClientState implements MqttState {
 				persistence.remove(getSendPersistenceKey(message));
 				persistence.remove(getSendConfirmPersistenceKey(message));
 				persistence.remove(getSendBufferedPersistenceKey(message));
-				outboundQoS2.remove(Integer.valueOf(ack.getMessageId()));
+				outboundQoS2.remove(ack.getMessageId());
 
 				inFlightPubRels--;
+				releaseInFlight(1);
 				decrementInFlight();
 				releaseMessageId(message.getMessageId());
 				tokenStore.removeToken(message);
@@ -1402,6 +2004,9 @@ public class ClientState implements MqttState {
 		log.fine(CLASS_NAME, methodName, "633", new Object[] { reason });
 
 		this.connected = false;
+		synchronized (queueLock) {
+			connectionEpoch++;
+		}
 
 		try {
 			if (cleanStart) {
@@ -1410,8 +2015,10 @@ public class ClientState implements MqttState {
 
 			clearConnectionState();
 
-			pendingMessages.clear();
-			pendingFlows.clear();
+			synchronized (queueLock) {
+				pendingMessages.clear();
+				pendingFlows.clear();
+			}
 			synchronized (pingOutstandingLock) {
 				// Reset pingOutstanding to allow reconnects to assume no previous ping.
 				pingOutstanding = 0;
@@ -1428,8 +2035,8 @@ public class ClientState implements MqttState {
 	 * @param msgId
 	 *            A message ID that can be freed up for re-use.
 	 */
-	private synchronized void releaseMessageId(int msgId) {
-		inUseMsgIds.remove(Integer.valueOf(msgId));
+	private void releaseMessageId(int msgId) {
+		msgIds.release(msgId);
 	}
 
 	/**
@@ -1438,26 +2045,23 @@ public class ClientState implements MqttState {
 	 * 
 	 * @return the next MQTT message ID to use
 	 */
-	private synchronized int getNextMessageId() throws MqttException {
-		int startingMessageId = nextMsgId;
-		// Allow two complete passes of the message ID range. This gives
-		// any asynchronous releases a chance to occur
-		int loopCount = 0;
-		do {
-			nextMsgId++;
-			if (nextMsgId > MAX_MSG_ID) {
-				nextMsgId = MIN_MSG_ID;
-			}
-			if (nextMsgId == startingMessageId) {
-				loopCount++;
-				if (loopCount == 2) {
-					throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
-				}
-			}
-		} while (inUseMsgIds.containsKey(Integer.valueOf(nextMsgId)));
-		Integer id = Integer.valueOf(nextMsgId);
-		inUseMsgIds.put(id, id);
-		return nextMsgId;
+	private int getNextMessageId() throws MqttException {
+		final String methodName = "getNextMessageId";
+		int msgId = msgIds.acquire();
+		if (msgId < 0) {
+			// @TRACE 672=no message IDs available, exhausted {0} times
+			log.fine(CLASS_NAME, methodName, "672", new Object[] { Long.valueOf(msgIds.getExhaustedCount()) });
+			throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
+		}
+		return msgId;
+	}
+
+	/**
+	 * @return the number of times a message could not be sent because every
+	 *         message ID was in use
+	 */
+	public long getMessageIdExhaustedCount() {
+		return msgIds.getExhaustedCount();
 	}
 
 	/*
@@ -1525,7 +2129,7 @@ public class ClientState implements MqttState {
 		synchronized (queueLock) {
 			// @TRACE 638=notifying queueLock holders
 			log.fine(CLASS_NAME, methodName, "638");
-			queueLock.notifyAll();
+			signalQueue();
 		}
 	}
 
@@ -1536,7 +2140,7 @@ public class ClientState implements MqttState {
 		log.fine(CLASS_NAME, methodName, "641", new Object[] { Integer.valueOf(message.getMessageId()) });
 
 		persistence.remove(getReceivedPersistenceKey(message));
-		inboundQoS2.remove(Integer.valueOf(message.getMessageId()));
+		inboundQoS2.remove(message.getMessageId());
 	}
 
 	protected void deliveryComplete(int messageId) throws MqttPersistenceException {
@@ -1546,7 +2150,7 @@ public class ClientState implements MqttState {
 		log.fine(CLASS_NAME, methodName, "641", new Object[] { Integer.valueOf(messageId) });
 
 		persistence.remove(getReceivedPersistenceKey(messageId));
-		inboundQoS2.remove(Integer.valueOf(messageId));
+		inboundQoS2.remove(messageId);
 	}
 
 	/*
@@ -1572,24 +2176,26 @@ public class ClientState implements MqttState {
 	 * disconnect / connect cycle.
 	 */
 	protected void close() {
-		inUseMsgIds.clear();
-		if (pendingMessages != null) {
-			pendingMessages.clear();
+		synchronized (queueLock) {
+			msgIds.clear();
+			if (pendingMessages != null) {
+				pendingMessages.clear();
+			}
+			pendingFlows.clear();
+			outboundQoS2.clear();
+			outboundQoS1.clear();
+			outboundQoS0.clear();
+			inboundQoS2.clear();
+			tokenStore.clear();
+			msgIds = null;
+			pendingMessages = null;
+			pendingFlows = null;
+			outboundQoS2 = null;
+			outboundQoS1 = null;
+			outboundQoS0 = null;
+			inboundQoS2 = null;
+			tokenStore = null;
 		}
-		pendingFlows.clear();
-		outboundQoS2.clear();
-		outboundQoS1.clear();
-		outboundQoS0.clear();
-		inboundQoS2.clear();
-		tokenStore.clear();
-		inUseMsgIds = null;
-		pendingMessages = null;
-		pendingFlows = null;
-		outboundQoS2 = null;
-		outboundQoS1 = null;
-		outboundQoS0 = null;
-		inboundQoS2 = null;
-		tokenStore = null;
 		callback = null;
 		clientComms = null;
 		persistence = null;
@@ -1604,12 +2210,13 @@ public class ClientState implements MqttState {
 	@Override
 	public Properties getDebug() {
 		Properties props = new Properties();
-		props.put("In use msgids", inUseMsgIds);
+		props.put("In use msgids", msgIds);
 		props.put("pendingMessages", pendingMessages);
 		props.put("pendingFlows", pendingFlows);
 		props.put("serverReceiveMaximum", Integer.valueOf(this.mqttConnection.getReceiveMaximum()));
-		props.put("nextMsgID", Integer.valueOf(nextMsgId));
+		props.put("nextMsgID", Integer.valueOf(msgIds.getNext()));
 		props.put("actualInFlight", Integer.valueOf(actualInFlight));
+		props.put("inFlightPermits", Integer.valueOf(inFlightPermits.get()));
 		props.put("inFlightPubRels", Integer.valueOf(inFlightPubRels));
 		props.put("quiescing", Boolean.valueOf(quiescing));
 		props.put("pingoutstanding", Integer.valueOf(pingOutstanding));
@@ -18,31 +18,41 @@
  */
 package org.cion.eclipse.mqtt5.client.internal;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.cion.eclipse.mqtt5.client.IMqttMessageListener;
+import org.cion.eclipse.mqtt5.client.InboundBackpressurePolicy;
+import org.cion.eclipse.mqtt5.client.InboundQueueMetrics;
 import org.cion.eclipse.mqtt5.client.MqttActionListener;
 import org.cion.eclipse.mqtt5.client.MqttCallback;
+import org.cion.eclipse.mqtt5.client.MqttClientException;
+import org.cion.eclipse.mqtt5.client.MqttConnectionOptions;
 import org.cion.eclipse.mqtt5.client.MqttToken;
 import org.cion.eclipse.mqtt5.client.MqttDisconnectResponse;
 import org.cion.eclipse.mqtt5.client.logging.Logger;
 import org.cion.eclipse.mqtt5.client.logging.LoggerFactory;
 import org.cion.eclipse.mqtt5.common.MqttException;
 import org.cion.eclipse.mqtt5.common.MqttMessage;
+import org.cion.eclipse.mqtt5.common.MqttPersistenceException;
 import org.cion.eclipse.mqtt5.common.packet.MqttAuth;
 import org.cion.eclipse.mqtt5.common.packet.MqttDisconnect;
 import org.cion.eclipse.mqtt5.common.packet.MqttProperties;
 import org.cion.eclipse.mqtt5.common.packet.MqttPubAck;
 import org.cion.eclipse.mqtt5.common.packet.MqttPubComp;
+import org.cion.eclipse.mqtt5.common.packet.MqttPubRec;
 import org.cion.eclipse.mqtt5.common.packet.MqttPublish;
 import org.cion.eclipse.mqtt5.common.packet.MqttReturnCode;
+import org.cion.eclipse.mqtt5.common.packet.MqttWireMessage;
 import org.cion.eclipse.mqtt5.common.packet.UserProperty;
-import org.cion.eclipse.mqtt5.common.util.MqttTopicValidator;
 
 /**
  * Bridge between Receiver and the external API. This class gets called by
@@ -53,16 +63,29 @@ public class CommsCallback implements Runnable {
 	private static final String CLASS_NAME = CommsCallback.class.getName();
 	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
-	private static final int INBOUND_QUEUE_SIZE = 10;
 	private MqttCallback mqttCallback;
 	private MqttCallback reconnectInternalCallback;
 	private HashMap<Integer, IMqttMessageListener> callbackMap; // Map of message handler callbacks to internal IDs
 	private HashMap<String, Integer> callbackTopicMap; // Map of Topic Strings to internal callback Ids
+	private TopicTrie<Integer> callbackTopicTrie; // The same, searchable by topic name
 	private HashMap<Integer, Integer> subscriptionIdMap; // Map of Subscription Ids to callback Ids
 	private AtomicInteger messageHandlerId = new AtomicInteger(0);
 	private ClientComms clientComms;
-	private ArrayList<MqttPublish> messageQueue;
+	private RingBuffer<MqttPublish> messageQueue;
 	private ArrayList<MqttToken> completeQueue;
+	private InboundBackpressurePolicy backpressurePolicy = MqttConnectionOptions.INBOUND_BACKPRESSURE_POLICY_DEFAULT;
+	private volatile int payloadDecodingMaximum = MqttConnectionOptions.PAYLOAD_DECODING_MAXIMUM_DEFAULT;
+	private ArrayDeque<String> spilledMessages; // Persistence keys of the messages that did not fit in messageQueue
+	private long spillSequence = 0;
+	// Inbound queue metrics, guarded by workAvailable
+	private long droppedCount = 0;
+	private long spilledCount = 0;
+	private long blockedCount = 0;
+	private long blockedTimeNanos = 0;
+	private volatile CallbackDispatcher dispatcher = null; // Delivers messages in parallel, if enabled
+	// Acknowledgements held back for DeferredAckListeners, by message id
+	private final IntKeyedMap<InboundAck> deferredAcks = new IntKeyedMap<InboundAck>();
+	private volatile boolean hasDeferredAckListeners = false;
 
 	private enum State {STOPPED, RUNNING, QUIESCING}
 
@@ -75,16 +98,19 @@ public class CommsCallback implements Runnable {
 	
 	private final Object workAvailable = new Object();
 	private final Object spaceAvailable = new Object();
+	private volatile Runnable spaceAvailableListener = null;
 	private ClientState clientState;
 	private boolean manualAcks = false;
 
 
 	CommsCallback(ClientComms clientComms) {
 		this.clientComms = clientComms;
-		this.messageQueue = new ArrayList<>(INBOUND_QUEUE_SIZE);
-		this.completeQueue = new ArrayList<>(INBOUND_QUEUE_SIZE);
+		this.messageQueue = new RingBuffer<>(MqttConnectionOptions.INBOUND_QUEUE_SIZE_DEFAULT);
+		this.completeQueue = new ArrayList<>(MqttConnectionOptions.INBOUND_QUEUE_SIZE_DEFAULT);
+		this.spilledMessages = new ArrayDeque<>();
 		this.callbackMap = new HashMap<>();
 		this.callbackTopicMap = new HashMap<>();
+		this.callbackTopicTrie = new TopicTrie<>();
 		this.subscriptionIdMap = new HashMap<>();
 		log.setResourceName(clientComms.getClient().getClientId());
 	}
@@ -105,11 +131,38 @@ public class CommsCallback implements Runnable {
 		this.threadName = threadName;
 		synchronized (lifecycle) {
 			if (current_state == State.STOPPED) {
+				MqttConnectionOptions options = clientComms.getConOptions();
+				if (dispatcher != null) {
+					dispatcher.shutdown();
+					dispatcher = null;
+				}
+				if (options != null && options.getCallbackDispatchThreads() > 0) {
+					int threads = options.getCallbackDispatchThreads();
+					dispatcher = new CallbackDispatcher(this, clientComms, threads, options.getCallbackDispatchKey(),
+							manualAcks, threads * options.getInboundQueueSize(), threadName);
+				}
 				// Preparatory work before starting the background thread.
 				// For safety ensure any old events are cleared.
 				synchronized (workAvailable) {
+					if (options != null) {
+						if (options.getInboundQueueSize() != messageQueue.capacity()) {
+							messageQueue = new RingBuffer<>(options.getInboundQueueSize());
+						}
+						backpressurePolicy = options.getInboundBackpressurePolicy();
+						payloadDecodingMaximum = options.getPayloadDecodingMaximum();
+					}
 					messageQueue.clear();
 					completeQueue.clear();
+					// The server sends the messages not yet acknowledged again
+					for (InboundAck ack : deferredAcks.values()) {
+						ack.cancel();
+					}
+					deferredAcks.clear();
+					// The server sends any QoS 1 and 2 messages in here again
+					for (String key : spilledMessages) {
+						clientState.removeSpilledMessage(key);
+					}
+					spilledMessages.clear();
 				}
 				target_state = State.RUNNING;
 				if (executorService == null) {
@@ -154,6 +207,9 @@ public class CommsCallback implements Runnable {
 				}
 			}
 			callbackThread = null;
+			if (dispatcher != null) {
+				dispatcher.shutdown();
+			}
 			// @TRACE 703=stopped
 			log.fine(CLASS_NAME, methodName, "703");
 		}
@@ -185,7 +241,7 @@ public class CommsCallback implements Runnable {
 				// If no work is currently available, then wait until there is some...
 				try {
 					synchronized (workAvailable) {
-						if (isRunning() && messageQueue.isEmpty()
+						if (isRunning() && messageQueue.isEmpty() && spilledMessages.isEmpty()
 								&& completeQueue.isEmpty()) {
 							// @TRACE 704=wait for workAvailable
 							log.fine(CLASS_NAME, methodName, "704");
@@ -211,15 +267,20 @@ public class CommsCallback implements Runnable {
 
 					// Check for messageArrived callbacks...
 					MqttPublish message = null;
+					String spilledKey = null;
 					synchronized (workAvailable) {
-						if (!messageQueue.isEmpty()) {
-							// Note, there is a window on connect where a publish
-							// could arrive before we've
-							// finished the connect logic.
-							message = messageQueue.get(0);
-							messageQueue.remove(0);
+						// Note, there is a window on connect where a publish
+						// could arrive before we've
+						// finished the connect logic.
+						message = messageQueue.poll();
+						if (message == null) {
+							// Anything in memory arrived before the spilled messages
+							spilledKey = spilledMessages.pollFirst();
 						}
 					}
+					if (null != spilledKey) {
+						message = clientState.unspillMessage(spilledKey);
+					}
 					if (null != message) {
 						handleMessage(message);
 					}
@@ -246,6 +307,7 @@ public class CommsCallback implements Runnable {
 					log.fine(CLASS_NAME, methodName, "706");
 					spaceAvailable.notifyAll();
 				}
+				notifySpaceAvailableListener();
 			}
 		}
 		synchronized (lifecycle) {
@@ -371,16 +433,38 @@ public class CommsCallback implements Runnable {
 	 * 
 	 * @param sendMessage
 	 *            the MQTT SEND message.
+	 * @return true if the acknowledgement of the message is held back for a
+	 *         {@link DeferredAckListener}, and so must not be sent by the caller.
+	 *         This is decided before the message is queued, as once it is the
+	 *         listener may already have released it.
+	 * @throws MqttException
+	 *             if the callback stopped while waiting for space for the
+	 *             message, which is then neither queued nor acknowledged
 	 */
-	public void messageArrived(MqttPublish sendMessage) {
+	public boolean messageArrived(MqttPublish sendMessage) throws MqttException {
 		final String methodName = "messageArrived";
+		boolean deferred = false;
 		if (mqttCallback != null || callbackMap.size() > 0) {
+			if (hasDeferredAckListeners && sendMessage.getMessage().getQos() > 0 && isForDeferredAckListener(sendMessage)) {
+				// Decided now, before the receiver would send a PUBREC
+				deferredAcks.put(sendMessage.getMessageId(),
+						new InboundAck(this, sendMessage.getMessageId(), sendMessage.getMessage().getQos()));
+				deferred = true;
+			}
+			if (offer(sendMessage)) {
+				return deferred;
+			}
+			if (backpressurePolicy == InboundBackpressurePolicy.SPILL_TO_PERSISTENCE && spill(sendMessage)) {
+				return deferred;
+			}
+
 			// If we already have enough messages queued up in memory, wait
 			// until some more queue space becomes available. This helps
 			// the client protect itself from getting flooded by messages
 			// from the server.
+			long waitStart = System.nanoTime();
 			synchronized (spaceAvailable) {
-				while (isRunning() && !isQuiescing() && messageQueue.size() >= INBOUND_QUEUE_SIZE) {
+				while (isRunning() && !isQuiescing() && !hasSpace()) {
 					try {
 						// @TRACE 709=wait for spaceAvailable
 						log.fine(CLASS_NAME, methodName, "709");
@@ -389,16 +473,176 @@ public class CommsCallback implements Runnable {
 					}
 				}
 			}
+			long waited = System.nanoTime() - waitStart;
 			if (!isQuiescing()) {
 				// Notify the CommsCallback thread that there's work to do...
 				synchronized (workAvailable) {
-					messageQueue.add(sendMessage);
+					blockedCount++;
+					blockedTimeNanos += waited;
+					if (!messageQueue.offer(sendMessage)) {
+						// The callback stopped with the queue still full. Not
+						// acknowledging the message makes the server send it again.
+						deferredAcks.remove(sendMessage.getMessageId());
+						// @TRACE 734=callback stopped, inbound message not queued topic={0}
+						log.fine(CLASS_NAME, methodName, "734", new Object[] { sendMessage.getTopicName() });
+						throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_CLIENT_DISCONNECTING);
+					}
 					// @TRACE 710=new msg avail, notify workAvailable
 					log.fine(CLASS_NAME, methodName, "710");
 					workAvailable.notifyAll();
 				}
 			}
 		}
+		return deferred;
+	}
+
+	/**
+	 * Returns whether {@link #messageArrived(MqttPublish)} would have to wait for
+	 * space in the inbound queue before it could queue the message. A receiver
+	 * that must not block asks this first, and if it would, stops reading until
+	 * the listener set with {@link #setSpaceAvailableListener(Runnable)} is run.
+	 * 
+	 * @param sendMessage
+	 *            the MQTT SEND message.
+	 * @return true if queueing the message would wait
+	 */
+	public boolean mustWaitForSpace(MqttPublish sendMessage) {
+		if ((mqttCallback == null && callbackMap.size() == 0) || !isRunning() || isQuiescing()) {
+			return false;
+		}
+		synchronized (workAvailable) {
+			if (spilledMessages.isEmpty() && !messageQueue.isFull()) {
+				return false;
+			}
+			switch (backpressurePolicy) {
+			case SPILL_TO_PERSISTENCE:
+				// Only waits if the message cannot be written
+				return false;
+			case DROP_OLDEST_QOS0:
+				if (sendMessage.getMessage().getQos() == 0) {
+					return false;
+				}
+				for (int i = 0; i < messageQueue.size(); i++) {
+					if (messageQueue.get(i).getMessage().getQos() == 0) {
+						return false;
+					}
+				}
+				return true;
+			default:
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Sets a listener that is run whenever space may have become available in
+	 * the inbound queue. It is run on the callback thread, so it must only
+	 * schedule the work waiting for the space, not do it.
+	 * 
+	 * @param listener
+	 *            the listener, or null to remove it
+	 */
+	public void setSpaceAvailableListener(Runnable listener) {
+		this.spaceAvailableListener = listener;
+	}
+
+	private void notifySpaceAvailableListener() {
+		Runnable listener = spaceAvailableListener;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Queues an inbound message if there is space for it, or makes space for it
+	 * by dropping a QoS 0 message if that is the policy.
+	 * 
+	 * @param sendMessage
+	 *            the MQTT SEND message.
+	 * @return false if the caller has to spill the message or wait for space
+	 */
+	private boolean offer(MqttPublish sendMessage) {
+		final String methodName = "offer";
+		if (isQuiescing()) {
+			// No new messages are accepted while quiescing
+			return true;
+		}
+		synchronized (workAvailable) {
+			if (!spilledMessages.isEmpty() || !messageQueue.offer(sendMessage)) {
+				if (backpressurePolicy != InboundBackpressurePolicy.DROP_OLDEST_QOS0) {
+					return false;
+				}
+				MqttPublish dropped = null;
+				for (int i = 0; i < messageQueue.size(); i++) {
+					if (messageQueue.get(i).getMessage().getQos() == 0) {
+						dropped = messageQueue.remove(i);
+						messageQueue.offer(sendMessage);
+						break;
+					}
+				}
+				if (dropped == null) {
+					if (sendMessage.getMessage().getQos() != 0) {
+						return false;
+					}
+					dropped = sendMessage;
+				}
+				droppedCount++;
+				// @TRACE 728=inbound queue full, dropped QoS 0 message topic={0}
+				log.fine(CLASS_NAME, methodName, "728", new Object[] { dropped.getTopicName() });
+			}
+			// @TRACE 710=new msg avail, notify workAvailable
+			log.fine(CLASS_NAME, methodName, "710");
+			workAvailable.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Writes an inbound message to the persistent store, to be delivered once
+	 * the messages ahead of it have been.
+	 * 
+	 * @param sendMessage
+	 *            the MQTT SEND message.
+	 * @return false if the message could not be stored
+	 */
+	private boolean spill(MqttPublish sendMessage) {
+		final String methodName = "spill";
+		try {
+			// Only the receiver spills, so the sequence needs no lock
+			String key = clientState.spillMessage(++spillSequence, sendMessage);
+			synchronized (workAvailable) {
+				spilledMessages.addLast(key);
+				spilledCount++;
+				// @TRACE 729=inbound queue full, spilled message key={0}
+				log.fine(CLASS_NAME, methodName, "729", new Object[] { key });
+				workAvailable.notifyAll();
+			}
+			return true;
+		} catch (MqttPersistenceException ex) {
+			// @TRACE 730=inbound queue full, could not spill message, waiting for space
+			log.fine(CLASS_NAME, methodName, "730", null, ex);
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if a message can be added to the in-memory queue without
+	 *         overtaking a spilled message
+	 */
+	private boolean hasSpace() {
+		synchronized (workAvailable) {
+			return spilledMessages.isEmpty() && !messageQueue.isFull();
+		}
+	}
+
+	/**
+	 * @return the current state of the inbound message queue
+	 */
+	public InboundQueueMetrics getInboundQueueMetrics() {
+		synchronized (workAvailable) {
+			return new InboundQueueMetrics(messageQueue.size(), messageQueue.capacity(), spilledMessages.size(),
+					droppedCount, spilledCount, blockedCount, blockedTimeNanos);
+		}
 	}
 
 	/**
@@ -459,16 +703,18 @@ public class CommsCallback implements Runnable {
 			// Unblock anything waiting for space...
 			spaceAvailable.notifyAll();
 		}
+		notifySpaceAvailableListener();
 	}
 
 	boolean areQueuesEmpty() {
 		synchronized (workAvailable) {
-			return completeQueue.isEmpty() && messageQueue.isEmpty();
+			return completeQueue.isEmpty() && messageQueue.isEmpty() && spilledMessages.isEmpty();
 		}
 	}
 
 	public boolean isQuiesced() {
-		return (isQuiescing() && areQueuesEmpty());
+		CallbackDispatcher current = dispatcher;
+		return (isQuiescing() && areQueuesEmpty() && (current == null || current.isIdle()));
 	}
 
 	private void handleMessage(MqttPublish publishMessage) throws Exception {
@@ -478,7 +724,19 @@ public class CommsCallback implements Runnable {
 
 		// @TRACE 713=call messageArrived key={0} topic={1}
 		log.fine(CLASS_NAME, methodName, "713", new Object[] { Integer.valueOf(publishMessage.getMessageId()), destName });
-		deliverMessage(destName, publishMessage.getMessageId(), publishMessage.getMessage());
+		InboundAck deferredAck = getDeferredAck(publishMessage);
+		CallbackDispatcher current = dispatcher;
+		if (current != null) {
+			// Delivered and acknowledged on a dispatch thread
+			current.dispatch(publishMessage, deferredAck);
+			return;
+		}
+		deliverMessage(destName, publishMessage.getMessageId(), publishMessage.getMessage(), deferredAck);
+		if (deferredAck != null) {
+			// Sent once the listeners holding it have released it
+			deferredAck.release();
+			return;
+		}
 
 		// If we are not in manual ACK mode:
 		if (!this.manualAcks && publishMessage.getMessage().getQos() == 1) {
@@ -489,6 +747,25 @@ public class CommsCallback implements Runnable {
 	}
 
 	public void messageArrivedComplete(int messageId, int qos) throws MqttException {
+		CallbackDispatcher current = dispatcher;
+		if (current != null && current.complete(messageId, qos)) {
+			// Sent once the messages that arrived before it are acknowledged
+			return;
+		}
+		sendAck(messageId, qos);
+	}
+
+	/**
+	 * Sends the acknowledgement that completes the delivery of an inbound message.
+	 * 
+	 * @param messageId
+	 *            the message id
+	 * @param qos
+	 *            the QoS of the message
+	 * @throws MqttException
+	 *             if the acknowledgement could not be sent
+	 */
+	void sendAck(int messageId, int qos) throws MqttException {
 		if (qos == 1) {
 			this.clientComms.internalSend(
 					new MqttPubAck(MqttReturnCode.RETURN_CODE_SUCCESS, messageId, new MqttProperties()),
@@ -503,6 +780,78 @@ public class CommsCallback implements Runnable {
 		}
 	}
 
+	/**
+	 * @return the held back acknowledgement of an inbound message, or null if it
+	 *         is acknowledged as usual
+	 */
+	InboundAck getDeferredAck(MqttPublish message) {
+		if (!hasDeferredAckListeners || message.getMessage().getQos() == 0) {
+			return null;
+		}
+		return deferredAcks.get(message.getMessageId());
+	}
+
+	/**
+	 * Sends a held back acknowledgement once it has been released, a PUBACK for a
+	 * QoS 1 message and a PUBREC for a QoS 2 message. Called on the thread of the
+	 * listener that released it last, so any failure is logged rather than
+	 * thrown; the server sends the message again if it is never acknowledged.
+	 * 
+	 * @param ack
+	 *            the acknowledgement
+	 */
+	void sendDeferredAck(InboundAck ack) {
+		final String methodName = "sendDeferredAck";
+		if (ack.isCancelled()) {
+			return;
+		}
+		deferredAcks.remove(ack.getMessageId());
+		// @TRACE 731=sending held back acknowledgement {0}
+		log.fine(CLASS_NAME, methodName, "731", new Object[] { ack });
+		try {
+			MqttWireMessage message;
+			if (ack.getQos() == 1) {
+				message = new MqttPubAck(MqttReturnCode.RETURN_CODE_SUCCESS, ack.getMessageId(), new MqttProperties());
+			} else {
+				message = new MqttPubRec(MqttReturnCode.RETURN_CODE_SUCCESS, ack.getMessageId(), new MqttProperties());
+			}
+			this.clientComms.internalSend(message, new MqttToken(clientComms.getClient().getClientId()));
+		} catch (MqttException ex) {
+			// @TRACE 732=could not send held back acknowledgement {0}
+			log.fine(CLASS_NAME, methodName, "732", new Object[] { ack }, ex);
+		}
+	}
+
+	private boolean isForDeferredAckListener(MqttPublish message) {
+		List<Integer> subscriptionIdentifiers = message.getProperties().getSubscriptionIdentifiers();
+		if (subscriptionIdentifiers.isEmpty()) {
+			for (Integer callbackId : this.callbackTopicTrie.match(message.getTopicName())) {
+				if (this.callbackMap.get(callbackId) instanceof DeferredAckListener) {
+					return true;
+				}
+			}
+		} else {
+			for (Integer subId : subscriptionIdentifiers) {
+				Integer callbackId = this.subscriptionIdMap.get(subId);
+				if (callbackId != null && this.callbackMap.get(callbackId) instanceof DeferredAckListener) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void updateDeferredAckListeners() {
+		boolean found = false;
+		for (IMqttMessageListener listener : this.callbackMap.values()) {
+			if (listener instanceof DeferredAckListener) {
+				found = true;
+				break;
+			}
+		}
+		hasDeferredAckListeners = found;
+	}
+
 	public void asyncOperationComplete(MqttToken token) {
 		final String methodName = "asyncOperationComplete";
 
@@ -544,10 +893,12 @@ public class CommsCallback implements Runnable {
 		int internalId = messageHandlerId.incrementAndGet();
 		this.callbackMap.put(internalId, messageListener);
 		this.callbackTopicMap.put(topicFilter, internalId);
+		this.callbackTopicTrie.put(topicFilter, internalId);
 
 		if (subscriptionId != null) {
 			this.subscriptionIdMap.put(subscriptionId, internalId);
 		}
+		updateDeferredAckListeners();
 	}
 
 	/**
@@ -563,6 +914,7 @@ public class CommsCallback implements Runnable {
 		Integer callbackId = this.callbackTopicMap.get(topicFilter);
 		this.callbackMap.remove(callbackId);
 		this.callbackTopicMap.remove(topicFilter);
+		this.callbackTopicTrie.remove(topicFilter);
 
 		// Reverse lookup the subscription ID if it exists to remove that as well
 		for (Map.Entry<Integer, Integer> entry : this.subscriptionIdMap.entrySet()) {
@@ -570,6 +922,7 @@ public class CommsCallback implements Runnable {
 				this.subscriptionIdMap.remove(entry.getKey());
 			}
 		}
+		updateDeferredAckListeners();
 	}
 
 	/**
@@ -588,29 +941,54 @@ public class CommsCallback implements Runnable {
 		this.callbackMap.remove(callbackId);
 
 		// Reverse lookup the topic if it exists to remove that as well
-		for (Map.Entry<String, Integer> entry : this.callbackTopicMap.entrySet()) {
+		Iterator<Map.Entry<String, Integer>> entries = this.callbackTopicMap.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, Integer> entry = entries.next();
 			if (entry.getValue().equals(callbackId)) {
-				this.callbackTopicMap.remove(entry.getKey());
+				entries.remove();
+				this.callbackTopicTrie.remove(entry.getKey());
 			}
 		}
+		updateDeferredAckListeners();
 	}
 
 	public void removeMessageListeners() {
 		this.callbackMap.clear();
 		this.subscriptionIdMap.clear();
 		this.callbackTopicMap.clear();
+		this.callbackTopicTrie.clear();
+		updateDeferredAckListeners();
 	}
 
-	protected boolean deliverMessage(String topicName, int messageId, MqttMessage aMessage) throws Exception {
+	/**
+	 * Gives a message to the listeners of the subscriptions it matches, or to
+	 * the client's callback if there are none.
+	 * 
+	 * @param deferredAck
+	 *            the held back acknowledgement of the message, passed to any
+	 *            {@link DeferredAckListener}, or null
+	 * @return true if the message was given to a listener or the callback
+	 */
+	protected boolean deliverMessage(String topicName, int messageId, MqttMessage aMessage, InboundAck deferredAck)
+			throws Exception {
 		boolean delivered = false;
 		String methodName = "deliverMessage";
 
+		try {
+			PayloadCodecService.decode(aMessage, payloadDecodingMaximum);
+		} catch (IOException ex) {
+			// Delivered as it arrived, with its content-encoding user property
+			// @TRACE 733=could not decode payload of message topic={0} {1}
+			log.warning(CLASS_NAME, methodName, "733", new Object[] { topicName, ex.getMessage() });
+		}
+
 		if (aMessage.getProperties().getSubscriptionIdentifiers().isEmpty()) {
 			// No Subscription IDs, use topic filter matching
-			for (Map.Entry<String, Integer> entry : this.callbackTopicMap.entrySet()) {
-				if (MqttTopicValidator.isMatched(entry.getKey(), topicName)) {
+			for (Integer callbackId : this.callbackTopicTrie.match(topicName)) {
+				IMqttMessageListener listener = this.callbackMap.get(callbackId);
+				if (listener != null) {
 					aMessage.setId(messageId);
-					this.callbackMap.get(entry.getValue()).messageArrived(topicName, aMessage);
+					deliverToListener(listener, topicName, aMessage, deferredAck);
 					delivered = true;
 				}
 			}
@@ -621,7 +999,7 @@ public class CommsCallback implements Runnable {
 				if (this.subscriptionIdMap.containsKey(subId)) {
 					Integer callbackId = this.subscriptionIdMap.get(subId);
 					aMessage.setId(messageId);
-					this.callbackMap.get(callbackId).messageArrived(topicName, aMessage);
+					deliverToListener(this.callbackMap.get(callbackId), topicName, aMessage, deferredAck);
 					delivered = true;
 				}
 			}
@@ -646,6 +1024,15 @@ public class CommsCallback implements Runnable {
 		return delivered;
 	}
 
+	private void deliverToListener(IMqttMessageListener listener, String topicName, MqttMessage aMessage,
+			InboundAck deferredAck) throws Exception {
+		if (deferredAck != null && listener instanceof DeferredAckListener) {
+			((DeferredAckListener) listener).messageArrived(topicName, aMessage, deferredAck);
+		} else {
+			listener.messageArrived(topicName, aMessage);
+		}
+	}
+
 	public boolean doesSubscriptionIdentifierExist(int subscriptionIdentifier) {
 		return (this.subscriptionIdMap.containsKey(subscriptionIdentifier));
 	}
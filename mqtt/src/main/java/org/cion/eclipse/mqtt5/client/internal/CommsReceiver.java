@@ -50,6 +50,8 @@ public class CommsReceiver implements Runnable {
 	private MqttInputStream in;
 	private CommsTokenStore tokenStore = null;
 	private Thread recThread = null;
+	// the token of the last ack received, passed on if the connection is shut down
+	private MqttToken token = null;
 
 	public CommsReceiver(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore, InputStream in) {
 		this.in = new MqttInputStream(clientState, in, clientComms.getClient().getClientId());
@@ -59,6 +61,54 @@ public class CommsReceiver implements Runnable {
 		log.setResourceName(clientComms.getClient().getClientId());
 	}
 
+	/**
+	 * Creates a receiver that is passed messages by the I/O thread of a
+	 * {@link NIONetworkModule} instead of reading them on a thread of its own.
+	 *
+	 * @param clientComms the client comms
+	 * @param clientState the client state
+	 * @param tokenStore the token store
+	 */
+	public CommsReceiver(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore) {
+		this.clientComms = clientComms;
+		this.clientState = clientState;
+		this.tokenStore = tokenStore;
+		log.setResourceName(clientComms.getClient().getClientId());
+	}
+
+	/**
+	 * Starts receiving messages from a network module's I/O thread.
+	 *
+	 * @param networkModule the network module to receive messages from
+	 */
+	public void start(NIONetworkModule networkModule) {
+		final String methodName = "start";
+		// @TRACE 855=starting
+		log.fine(CLASS_NAME, methodName, "855");
+		synchronized (lifecycle) {
+			if (current_state == State.STOPPED && target_state == State.STOPPED) {
+				target_state = State.RUNNING;
+				current_state = State.RUNNING;
+				networkModule.attachReceiver(this, clientState);
+			}
+		}
+	}
+
+	/**
+	 * Starts up the Receiver's thread, reading messages from the given stream.
+	 *
+	 * @param in
+	 *            the stream to read from.
+	 * @param threadName
+	 *            the thread name.
+	 * @param executorService
+	 *            used to execute the thread
+	 */
+	public void start(InputStream in, String threadName, ExecutorService executorService) {
+		this.in = new MqttInputStream(clientState, in, clientComms.getClient().getClientId());
+		start(threadName, executorService);
+	}
+
 	/**
 	 * Starts up the Receiver's thread.
 	 * 
@@ -100,6 +150,10 @@ public class CommsReceiver implements Runnable {
 			log.fine(CLASS_NAME,methodName, "850");
 			if (isRunning()) {
 				target_state = State.STOPPED;
+				if (in == null) {
+					// there is no thread to wait for
+					current_state = State.STOPPED;
+				}
 			}
 		}
 		while (isRunning()) {
@@ -117,7 +171,6 @@ public class CommsReceiver implements Runnable {
 		recThread = Thread.currentThread();
 		recThread.setName(threadName);
 		final String methodName = "run";
-		MqttToken token = null;
 
 		synchronized (lifecycle) {
 			current_state = State.RUNNING;
@@ -142,61 +195,13 @@ public class CommsReceiver implements Runnable {
 						current_state = State.RUNNING;
 					}
 
-					// instanceof checks if message is null
-					if (message instanceof MqttAck) {
-						token = tokenStore.getToken(message);
-						if (token != null) {
-							synchronized (token) {
-								// Ensure the notify processing is done under a lock on the token
-								// This ensures that the send processing can complete before the
-								// receive processing starts! ( request and ack and ack processing
-								// can occur before request processing is complete if not!
-								clientState.notifyReceivedAck((MqttAck) message);
-							}
-						} else {
-							// This is an ack for a message we no longer have a ticket for.
-							log.fine(CLASS_NAME, methodName, "857");
-							clientState.handleOrphanedAcks((MqttAck) message);
-						} 
-					} else if (message != null && message instanceof MqttDisconnect) {
-						// This is a Disconnect Message
-						clientComms.shutdownConnection(null, new MqttException(MqttClientException.REASON_CODE_SERVER_DISCONNECTED, (MqttDisconnect) message), (MqttDisconnect) message);
-					} else {
-						if (message != null) {
-							// A new message has arrived
-							clientState.notifyReceivedMsg(message);
-						}
-                                                else {
-                                                    if (!clientComms.isConnected() && !clientComms.isConnecting()) {
-                                                         throw new IOException("Connection is lost.");
-                                                    }
-                                                }
-					}
+					handleMessage(message);
 				} 
 				catch (MqttException ex) {
-					// @TRACE 856=Stopping, MQttException
-					log.fine(CLASS_NAME, methodName, "856", null, ex);
-					synchronized (lifecycle) {
-						target_state = State.STOPPED;
-					}
-					// Token maybe null but that is handled in shutdown
-					clientComms.shutdownConnection(token, ex, null);
+					handleException(ex);
 				} 
 				catch (IOException ioe) {
-					// @TRACE 853=Stopping due to IOException
-					log.fine(CLASS_NAME, methodName, "853");
-                                        if (target_state != State.STOPPED) {
-					    synchronized (lifecycle) {
-						target_state = State.STOPPED;
-					    }
-					    // An EOFException could be raised if the broker processes the
-					    // DISCONNECT and ends the socket before we complete. As such,
-					    // only shutdown the connection if we're not already shutting down.
-					    if (!clientComms.isDisconnecting()) {
-						clientComms.shutdownConnection(token,
-							new MqttException(MqttClientException.REASON_CODE_CONNECTION_LOST, ioe), null);
-					    }
-                                        }
+					handleException(ioe);
 				}
 				finally {
 					synchronized (lifecycle) {
@@ -218,6 +223,141 @@ public class CommsReceiver implements Runnable {
 		log.fine(CLASS_NAME,methodName,"854");
 	}
 
+	/**
+	 * Processes a message that has been read from the network.
+	 */
+	private void handleMessage(MqttWireMessage message) throws MqttException, IOException {
+		final String methodName = "handleMessage";
+		// instanceof checks if message is null
+		if (message instanceof MqttAck) {
+			token = tokenStore.getToken(message);
+			if (token != null) {
+				synchronized (token) {
+					// Ensure the notify processing is done under a lock on the token
+					// This ensures that the send processing can complete before the
+					// receive processing starts! ( request and ack and ack processing
+					// can occur before request processing is complete if not!
+					clientState.notifyReceivedAck((MqttAck) message);
+				}
+			} else {
+				// This is an ack for a message we no longer have a ticket for.
+				log.fine(CLASS_NAME, methodName, "857");
+				clientState.handleOrphanedAcks((MqttAck) message);
+			} 
+		} else if (message != null && message instanceof MqttDisconnect) {
+			// This is a Disconnect Message
+			shutdownConnection(null, new MqttException(MqttClientException.REASON_CODE_SERVER_DISCONNECTED, (MqttDisconnect) message), (MqttDisconnect) message);
+		} else {
+			if (message != null) {
+				// A new message has arrived
+				clientState.notifyReceivedMsg(message);
+			} else {
+				if (!clientComms.isConnected() && !clientComms.isConnecting()) {
+					throw new IOException("Connection is lost.");
+				}
+			}
+		}
+	}
+
+	private void handleException(Exception ex) {
+		final String methodName = "handleException";
+		if (ex instanceof MqttException) {
+			// @TRACE 856=Stopping, MQttException
+			log.fine(CLASS_NAME, methodName, "856", null, ex);
+			synchronized (lifecycle) {
+				target_state = State.STOPPED;
+			}
+			// Token maybe null but that is handled in shutdown
+			shutdownConnection(token, (MqttException) ex, null);
+		} else {
+			// @TRACE 853=Stopping due to IOException
+			log.fine(CLASS_NAME, methodName, "853");
+			if (target_state != State.STOPPED) {
+				synchronized (lifecycle) {
+					target_state = State.STOPPED;
+				}
+				// An EOFException could be raised if the broker processes the
+				// DISCONNECT and ends the socket before we complete. As such,
+				// only shutdown the connection if we're not already shutting down.
+				if (!clientComms.isDisconnecting()) {
+					shutdownConnection(token,
+							new MqttException(MqttClientException.REASON_CODE_CONNECTION_LOST, ex), null);
+				}
+			}
+		}
+	}
+
+	private void shutdownConnection(MqttToken token, MqttException reason, MqttDisconnect message) {
+		if (in == null) {
+			// Do not hold up the I/O thread, the other connections on it would
+			// wait too
+			clientComms.shutdownConnectionInBackground(token, reason, message);
+		} else {
+			clientComms.shutdownConnection(token, reason, message);
+		}
+	}
+
+	/**
+	 * Called on the I/O thread of a {@link NIONetworkModule} when a message has
+	 * been read.
+	 *
+	 * @param message the message
+	 */
+	void messageArrived(MqttWireMessage message) {
+		synchronized (lifecycle) {
+			if (target_state != State.RUNNING) {
+				return;
+			}
+			current_state = State.RECEIVING;
+		}
+		try {
+			handleMessage(message);
+		} catch (MqttException ex) {
+			handleException(ex);
+		} catch (IOException ioe) {
+			handleException(ioe);
+		} finally {
+			synchronized (lifecycle) {
+				if (current_state == State.RECEIVING) {
+					current_state = State.RUNNING;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Called on the I/O thread of a {@link NIONetworkModule} before a message is
+	 * passed to {@link #messageArrived(MqttWireMessage)}.
+	 *
+	 * @param message the message
+	 * @return true if handling the message would wait for the callback to make
+	 *         room for it, in which case the module stops reading until it has
+	 */
+	boolean mustWaitToReceive(MqttWireMessage message) {
+		synchronized (lifecycle) {
+			if (target_state != State.RUNNING) {
+				return false;
+			}
+		}
+		return clientState.mustWaitToReceive(message);
+	}
+
+	/**
+	 * Called on the I/O thread of a {@link NIONetworkModule} when reading from
+	 * the connection has failed.
+	 *
+	 * @param ex the cause, either an <code>IOException</code> or an
+	 *           <code>MqttException</code> if an invalid message was read
+	 */
+	void connectionLost(Exception ex) {
+		synchronized (lifecycle) {
+			if (target_state != State.RUNNING) {
+				return;
+			}
+		}
+		handleException(ex);
+	}
+
 	public boolean isRunning() {
 		boolean result;
 		synchronized (lifecycle) {
@@ -17,10 +17,13 @@ package org.cion.eclipse.mqtt5.client.internal;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Vector;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
 import org.cion.eclipse.mqtt5.client.MqttClientException;
+import org.cion.eclipse.mqtt5.client.MqttConnectionOptions;
 import org.cion.eclipse.mqtt5.client.MqttToken;
 import org.cion.eclipse.mqtt5.client.logging.Logger;
 import org.cion.eclipse.mqtt5.client.logging.LoggerFactory;
@@ -28,6 +31,7 @@ import org.cion.eclipse.mqtt5.client.wire.MqttOutputStream;
 import org.cion.eclipse.mqtt5.common.MqttException;
 import org.cion.eclipse.mqtt5.common.packet.MqttAck;
 import org.cion.eclipse.mqtt5.common.packet.MqttDisconnect;
+import org.cion.eclipse.mqtt5.common.packet.MqttPublish;
 import org.cion.eclipse.mqtt5.common.packet.MqttWireMessage;
 
 
@@ -49,13 +53,29 @@ public class CommsSender implements Runnable {
 	private MqttOutputStream out;
 	private ClientComms clientComms = null;
 	private CommsTokenStore tokenStore = null;
+	private int batchMaxMessages = MqttConnectionOptions.SEND_BATCH_MAX_MESSAGES_DEFAULT;
+	private int batchMaxBytes = MqttConnectionOptions.SEND_BATCH_MAX_BYTES_DEFAULT;
+	private NIONetworkModule networkModule = null;
 
 
 	public CommsSender(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore, OutputStream out) {
-		this.out = new MqttOutputStream(clientState, out, clientComms.getClient().getClientId());
+		this(clientComms, clientState, tokenStore, new MqttOutputStream(clientState, out, clientComms.getClient().getClientId()));
+	}
+
+	public CommsSender(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore, GatheringByteChannel channel) {
+		this(clientComms, clientState, tokenStore, new MqttOutputStream(clientState, channel, clientComms.getClient().getClientId()));
+	}
+
+	private CommsSender(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore, MqttOutputStream out) {
+		this.out = out;
 		this.clientComms = clientComms;
 		this.clientState = clientState;
 		this.tokenStore = tokenStore;
+		MqttConnectionOptions conOptions = clientComms.getConOptions();
+		if (conOptions != null) {
+			this.batchMaxMessages = conOptions.getSendBatchMaxMessages();
+			this.batchMaxBytes = conOptions.getSendBatchMaxBytes();
+		}
 		log.setResourceName(clientComms.getClient().getClientId());
 	}
 
@@ -81,11 +101,47 @@ public class CommsSender implements Runnable {
 		}
 	}
 
+	/**
+	 * Starts sending on the I/O thread of a network module instead of on a
+	 * thread of its own. The module runs {@link #sendPending()} whenever the
+	 * client state signals that there may be work.
+	 * @param networkModule the network module whose I/O thread sends messages
+	 */
+	public void start(final NIONetworkModule networkModule) {
+		synchronized (lifecycle) {
+			if (current_state != State.STOPPED || target_state != State.STOPPED) {
+				return;
+			}
+			this.networkModule = networkModule;
+			target_state = State.RUNNING;
+			current_state = State.RUNNING;
+		}
+		clientState.setSendReadyListener(new Runnable() {
+			@Override
+			public void run() {
+				networkModule.requestSend();
+			}
+		});
+		networkModule.attachSender(this);
+	}
+
 	/**
 	 * Stops the Sender's thread.  This call will block.
 	 */
 	public void stop() {
 		final String methodName = "stop";
+
+		if (networkModule != null) {
+			// there is no thread to wait for
+			clientState.setSendReadyListener(null);
+			synchronized (lifecycle) {
+				target_state = State.STOPPED;
+				current_state = State.STOPPED;
+			}
+			//@TRACE 801=stopped
+			log.fine(CLASS_NAME,methodName,"801");
+			return;
+		}
 		
 		if (!isRunning()) {
 			return;
@@ -128,40 +184,54 @@ public class CommsSender implements Runnable {
 			}
 			while (my_target == State.RUNNING && (out != null)) {
 				try {
-					message = clientState.get();
-					if (message != null) {
-						//@TRACE 802=network send key={0} msg={1}
-						log.fine(CLASS_NAME,methodName,"802", new Object[] {message.getKey(),message});
-
-						if (message instanceof MqttAck) {
-							out.write(message);
-							out.flush();
+					if (batchMaxMessages > 1) {
+						Vector<MqttWireMessage> batch = clientState.get(batchMaxMessages, batchMaxBytes);
+						if (batch != null) {
+							message = batch.lastElement();
+							sendBatch(batch);
 						} else {
-							MqttToken token = tokenStore.getToken(message);
-							// While quiescing the tokenstore can be cleared so need
-							// to check for null for the case where clear occurs
-							// while trying to send a message.
-							if (token != null) {
-								synchronized (token) {
-									out.write(message);
-									try {
-										out.flush();
-									} catch (IOException ex) {
-										// The flush has been seen to fail on disconnect of a SSL socket
-										// as disconnect is in progress this should not be treated as an error
-										if (!(message instanceof MqttDisconnect)) {
-											throw ex;
+							//@TRACE 803=get message returned null, stopping}
+							log.fine(CLASS_NAME,methodName,"803");
+							synchronized (lifecycle) {
+								target_state = State.STOPPED;
+							}
+						}
+					} else {
+						message = clientState.get();
+						if (message != null) {
+							//@TRACE 802=network send key={0} msg={1}
+							log.fine(CLASS_NAME,methodName,"802", new Object[] {message.getKey(),message});
+
+							if (message instanceof MqttAck) {
+								out.write(message);
+								out.flush();
+							} else {
+								MqttToken token = tokenStore.getToken(message);
+								// While quiescing the tokenstore can be cleared so need
+								// to check for null for the case where clear occurs
+								// while trying to send a message.
+								if (token != null) {
+									synchronized (token) {
+										out.write(message);
+										try {
+											out.flush();
+										} catch (IOException ex) {
+											// The flush has been seen to fail on disconnect of a SSL socket
+											// as disconnect is in progress this should not be treated as an error
+											if (!(message instanceof MqttDisconnect)) {
+												throw ex;
+											}
 										}
+										clientState.notifySent(message);
 									}
-									clientState.notifySent(message);
 								}
 							}
-						}
-					} else { // null message
-						//@TRACE 803=get message returned null, stopping}
-						log.fine(CLASS_NAME,methodName,"803");
-						synchronized (lifecycle) {
-							target_state = State.STOPPED;
+						} else { // null message
+							//@TRACE 803=get message returned null, stopping}
+							log.fine(CLASS_NAME,methodName,"803");
+							synchronized (lifecycle) {
+								target_state = State.STOPPED;
+							}
 						}
 					}
 				} catch (MqttException me) {
@@ -185,6 +255,94 @@ public class CommsSender implements Runnable {
 
 	}
 
+	/**
+	 * Sends every message that can be sent now, without waiting, in batches of
+	 * up to the configured batch size. Called on the I/O thread of the network
+	 * module, which stops calling it while its write queue is full.
+	 */
+	void sendPending() {
+		MqttWireMessage message = null;
+		try {
+			while (isRunning() && networkModule.isWritable()) {
+				Vector<MqttWireMessage> batch = new Vector<MqttWireMessage>();
+				long batchBytes = 0;
+				while (batch.size() < batchMaxMessages && batchBytes < batchMaxBytes
+						&& (message = clientState.poll()) != null) {
+					batch.addElement(message);
+					if (message instanceof MqttPublish) {
+						batchBytes += ((MqttPublish) message).getPayloadLength();
+					} else if (message instanceof MqttDisconnect) {
+						// Nothing may follow it on the wire
+						break;
+					}
+				}
+				if (batch.isEmpty()) {
+					return;
+				}
+				message = batch.lastElement();
+				sendBatch(batch);
+				if (message instanceof MqttDisconnect) {
+					return;
+				}
+			}
+		} catch (MqttException me) {
+			handleRunException(message, me);
+		} catch (Exception ex) {
+			handleRunException(message, ex);
+		}
+	}
+
+	/**
+	 * Writes every message in the batch to the network and flushes once, then
+	 * notifies the client state that each of them has been sent.
+	 */
+	private void sendBatch(Vector<MqttWireMessage> batch) throws MqttException, IOException {
+		final String methodName = "sendBatch";
+		Vector<MqttWireMessage> sent = new Vector<MqttWireMessage>(batch.size());
+		Vector<MqttToken> sentTokens = new Vector<MqttToken>(batch.size());
+		boolean disconnecting = false;
+
+		//@TRACE 806=network send batch size={0}
+		log.fine(CLASS_NAME,methodName,"806", new Object[] {Integer.valueOf(batch.size())});
+		for (MqttWireMessage message : batch) {
+			//@TRACE 802=network send key={0} msg={1}
+			log.fine(CLASS_NAME,methodName,"802", new Object[] {message.getKey(),message});
+
+			if (message instanceof MqttAck) {
+				out.write(message);
+			} else {
+				MqttToken token = tokenStore.getToken(message);
+				// While quiescing the tokenstore can be cleared so need
+				// to check for null for the case where clear occurs
+				// while trying to send a message.
+				if (token != null) {
+					synchronized (token) {
+						out.write(message);
+					}
+					sent.addElement(message);
+					sentTokens.addElement(token);
+					disconnecting |= message instanceof MqttDisconnect;
+				}
+			}
+		}
+
+		try {
+			out.flush();
+		} catch (IOException ex) {
+			// The flush has been seen to fail on disconnect of a SSL socket
+			// as disconnect is in progress this should not be treated as an error
+			if (!disconnecting) {
+				throw ex;
+			}
+		}
+
+		for (int i = 0; i < sent.size(); i++) {
+			synchronized (sentTokens.elementAt(i)) {
+				clientState.notifySent(sent.elementAt(i));
+			}
+		}
+	}
+
 	private void handleRunException(MqttWireMessage message, Exception ex) {
 		final String methodName = "handleRunException";
 		//@TRACE 804=exception
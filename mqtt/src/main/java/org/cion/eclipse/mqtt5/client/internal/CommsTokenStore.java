@@ -15,7 +15,6 @@
  */
 package org.cion.eclipse.mqtt5.client.internal;
 
-import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
 
@@ -46,22 +45,56 @@ public class CommsTokenStore {
 	private static final String CLASS_NAME = CommsTokenStore.class.getName();
 	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
-	// Maps message-specific data (usually message IDs) to tokens
-	private final Hashtable<String, MqttToken> tokens;
+	// Maps message IDs to tokens
+	private final IntKeyedMap<MqttToken> tokens;
+	// Maps the fixed keys of connect and ping, and any other key that is not a
+	// message ID, to tokens
+	private final Hashtable<String, MqttToken> namedTokens;
 	private String logContext;
-	private MqttException closedResponse = null;
+	private volatile MqttException closedResponse = null;
 
 	public CommsTokenStore(String logContext) {
 		final String methodName = "<Init>";
 
 		log.setResourceName(logContext);
-		this.tokens = new Hashtable<String, MqttToken>();
+		this.tokens = new IntKeyedMap<MqttToken>();
+		this.namedTokens = new Hashtable<String, MqttToken>();
 		this.logContext = logContext;
 		//@TRACE 308=<>
 		log.fine(CLASS_NAME,methodName,"308");//,new Object[]{message});
 
 	}
 
+	/**
+	 * Whether the message's key is a fixed name rather than its message ID, see
+	 * {@link MqttWireMessage#getKey()}. Checked by type so that the key of an
+	 * acknowledgement does not have to be built as a String to find its token.
+	 */
+	private static boolean hasNamedKey(MqttWireMessage message) {
+		byte type = message.getType();
+		return type == MqttWireMessage.MESSAGE_TYPE_CONNECT || type == MqttWireMessage.MESSAGE_TYPE_CONNACK
+				|| type == MqttWireMessage.MESSAGE_TYPE_PINGREQ || type == MqttWireMessage.MESSAGE_TYPE_PINGRESP;
+	}
+
+	/**
+	 * @return the message ID a key was built from, or -1 if the key is a name
+	 */
+	private static int parseMessageId(String key) {
+		int length = key.length();
+		if (length == 0 || length > 5) {
+			return -1;
+		}
+		int messageId = 0;
+		for (int i = 0; i < length; i++) {
+			char c = key.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			messageId = messageId * 10 + (c - '0');
+		}
+		return messageId;
+	}
+
 	/**
 	 * Based on the message type that has just been received return the associated
 	 * token from the token store or null if one does not exist.
@@ -69,18 +102,31 @@ public class CommsTokenStore {
 	 * @return token for the requested message
 	 */
 	public MqttToken getToken(MqttWireMessage message) {
-		String key = message.getKey(); 
-		return (MqttToken)tokens.get(key);
+		if (hasNamedKey(message)) {
+			return namedTokens.get(message.getKey());
+		}
+		return tokens.get(message.getMessageId());
 	}
 
 	public MqttToken getToken(String key) {
-		return (MqttToken)tokens.get(key);
+		int messageId = parseMessageId(key);
+		if (messageId < 0) {
+			return namedTokens.get(key);
+		}
+		return tokens.get(messageId);
 	}
 
 	
 	public MqttToken removeToken(MqttWireMessage message) {
+		final String methodName = "removeToken";
 		if (message != null) {
-			return removeToken(message.getKey());
+			if (hasNamedKey(message)) {
+				return removeToken(message.getKey());
+			}
+			int messageId = message.getMessageId();
+			//@TRACE 306=key={0}
+			log.fine(CLASS_NAME,methodName,"306",new Object[]{Integer.valueOf(messageId)});
+			return tokens.remove(messageId);
 		}
 		return null;
 	}
@@ -91,7 +137,11 @@ public class CommsTokenStore {
 		log.fine(CLASS_NAME,methodName,"306",new Object[]{key});
 		
 		if ( null != key ){
-		    return (MqttToken) tokens.remove(key);
+			int messageId = parseMessageId(key);
+			if (messageId < 0) {
+				return namedTokens.remove(key);
+			}
+			return tokens.remove(messageId);
 		}
 		
 		return null;
@@ -106,21 +156,18 @@ public class CommsTokenStore {
 	 */
 	protected MqttToken restoreToken(MqttPublish message) {
 		final String methodName = "restoreToken";
-		MqttToken token;
-		synchronized(tokens) {
-			String key = Integer.valueOf(message.getMessageId()).toString();
-			if (this.tokens.containsKey(key)) {
-				token = this.tokens.get(key);
-				//@TRACE 302=existing key={0} message={1} token={2}
-				log.fine(CLASS_NAME,methodName, "302",new Object[]{key, message,token});
-			} else {
-				token = new MqttToken(logContext);
-                                token.internalTok.setDeliveryToken(true);
-				token.internalTok.setKey(key);
-				this.tokens.put(key, token);
-				//@TRACE 303=creating new token key={0} message={1} token={2}
-				log.fine(CLASS_NAME,methodName,"303",new Object[]{key, message, token});
-			}
+		String key = Integer.valueOf(message.getMessageId()).toString();
+		MqttToken token = new MqttToken(logContext);
+		token.internalTok.setDeliveryToken(true);
+		token.internalTok.setKey(key);
+		MqttToken existing = this.tokens.putIfAbsent(message.getMessageId(), token);
+		if (existing != null) {
+			token = existing;
+			//@TRACE 302=existing key={0} message={1} token={2}
+			log.fine(CLASS_NAME,methodName, "302",new Object[]{key, message,token});
+		} else {
+			//@TRACE 303=creating new token key={0} message={1} token={2}
+			log.fine(CLASS_NAME,methodName,"303",new Object[]{key, message, token});
 		}
 		return token;
 	}
@@ -130,95 +177,88 @@ public class CommsTokenStore {
 	protected void saveToken(MqttToken token, MqttWireMessage message) throws MqttException {
 		final String methodName = "saveToken";
 
-		synchronized(tokens) {
-			if (closedResponse == null) {
-				String key = message.getKey();
-				//@TRACE 300=key={0} message={1}
-				log.fine(CLASS_NAME,methodName,"300",new Object[]{key, message});
-				
-				saveToken(token,key);
-			} else {
-				throw closedResponse;
+		if (closedResponse == null) {
+			String key = message.getKey();
+			//@TRACE 300=key={0} message={1}
+			log.fine(CLASS_NAME,methodName,"300",new Object[]{key, message});
+			
+			saveToken(token,key);
+			// The store has no lock of its own, so check again in case it was
+			// quiesced while the token was being saved
+			MqttException response = closedResponse;
+			if (response != null) {
+				removeToken(key);
+				throw response;
 			}
+		} else {
+			throw closedResponse;
 		}
 	}
 	
 	protected void saveToken(MqttToken token, String key) {
 		final String methodName = "saveToken";
 
-		synchronized(tokens) {
-			//@TRACE 307=key={0} token={1}
-			log.fine(CLASS_NAME,methodName,"307",new Object[]{key,token.toString()});
-			token.internalTok.setKey(key);
-			this.tokens.put(key, token);
+		//@TRACE 307=key={0} token={1}
+		log.fine(CLASS_NAME,methodName,"307",new Object[]{key,token.toString()});
+		token.internalTok.setKey(key);
+		int messageId = parseMessageId(key);
+		if (messageId < 0) {
+			this.namedTokens.put(key, token);
+		} else {
+			this.tokens.put(messageId, token);
 		}
 	}
 
 	protected void quiesce(MqttException quiesceResponse) {
 		final String methodName = "quiesce";
 
-		synchronized(tokens) {
-			//@TRACE 309=resp={0}
-			log.fine(CLASS_NAME,methodName,"309",new Object[]{quiesceResponse});
+		//@TRACE 309=resp={0}
+		log.fine(CLASS_NAME,methodName,"309",new Object[]{quiesceResponse});
 
-			closedResponse = quiesceResponse;
-		}
+		closedResponse = quiesceResponse;
 	}
 	
 	public void open() {
 		final String methodName = "open";
 
-		synchronized(tokens) {
-			//@TRACE 310=>
-			log.fine(CLASS_NAME,methodName,"310");
+		//@TRACE 310=>
+		log.fine(CLASS_NAME,methodName,"310");
 
-			closedResponse = null;
-		}
+		closedResponse = null;
 	}
 
 	public MqttToken[] getOutstandingDelTokens() {
 		final String methodName = "getOutstandingDelTokens";
 
-		synchronized(tokens) {
-			//@TRACE 311=>
-			log.fine(CLASS_NAME,methodName,"311");
-
-			Vector<MqttToken> list = new Vector<MqttToken>();
-			Enumeration<MqttToken> enumeration = tokens.elements();
-			MqttToken token;
-			while(enumeration.hasMoreElements()) {
-				token = (MqttToken)enumeration.nextElement();
-				if (token != null 
-					&& token.internalTok.isDeliveryToken() == true
-					&& !token.internalTok.isNotified()) {
-					
-					list.addElement(token);
-				}
+		//@TRACE 311=>
+		log.fine(CLASS_NAME,methodName,"311");
+
+		Vector<MqttToken> list = new Vector<MqttToken>();
+		for (MqttToken token : allTokens()) {
+			if (token.internalTok.isDeliveryToken() == true
+				&& !token.internalTok.isNotified()) {
+				
+				list.addElement(token);
 			}
-	
-			MqttToken[] result = new MqttToken[list.size()];
-			return (MqttToken[]) list.toArray(result);
 		}
+
+		MqttToken[] result = new MqttToken[list.size()];
+		return (MqttToken[]) list.toArray(result);
 	}
 	
 	public Vector<MqttToken> getOutstandingTokens() {
 		final String methodName = "getOutstandingTokens";
 
-		synchronized(tokens) {
-			//@TRACE 312=>
-			log.fine(CLASS_NAME,methodName,"312");
-
-			Vector<MqttToken> list = new Vector<MqttToken>();
-			Enumeration<MqttToken> enumeration = tokens.elements();
-			MqttToken token;
-			while(enumeration.hasMoreElements()) {
-				token = (MqttToken)enumeration.nextElement();
-				if (token != null) {
-						list.addElement(token);
-				}
-			}
-			return list;
-		}
+		//@TRACE 312=>
+		log.fine(CLASS_NAME,methodName,"312");
+
+		return allTokens();
+	}
+
+	private Vector<MqttToken> allTokens() {
+		Vector<MqttToken> list = new Vector<MqttToken>(tokens.values());
+		list.addAll(namedTokens.values());
+		return list;
 	}
 
 	/**
@@ -227,28 +267,20 @@ public class CommsTokenStore {
 	public void clear() {
 		final String methodName = "clear";
 		//@TRACE 305=> {0} tokens
-		log.fine(CLASS_NAME, methodName, "305", new Object[] { Integer.valueOf(tokens.size())});
-		synchronized(tokens) {
-			tokens.clear();
-		}
+		log.fine(CLASS_NAME, methodName, "305", new Object[] { Integer.valueOf(count())});
+		tokens.clear();
+		namedTokens.clear();
 	}
 	
 	public int count() {
-		synchronized(tokens) {
-			return tokens.size();
-		}
+		return tokens.size() + namedTokens.size();
 	}
 	public String toString() {
 		String lineSep = System.getProperty("line.separator","\n");
 		StringBuffer toks = new StringBuffer();
-		synchronized(tokens) {
-			Enumeration<MqttToken> enumeration = tokens.elements();
-			MqttToken token;
-			while(enumeration.hasMoreElements()) {
-				token = (MqttToken)enumeration.nextElement();
-					toks.append("{"+token.internalTok+"}"+lineSep);
-			}
-			return toks.toString();
+		for (MqttToken token : allTokens()) {
+			toks.append("{"+token.internalTok+"}"+lineSep);
 		}
+		return toks.toString();
 	}
 }
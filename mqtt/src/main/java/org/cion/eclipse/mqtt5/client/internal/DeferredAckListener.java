@@ -0,0 +1,44 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.internal;
+
+import org.cion.eclipse.mqtt5.client.IMqttMessageListener;
+import org.cion.eclipse.mqtt5.common.MqttMessage;
+
+/**
+ * A message listener that decides when the messages it is given are
+ * acknowledged to the server.
+ * <p>
+ * While one of these listeners is registered for a topic, the acknowledgement
+ * of each QoS 1 or 2 message that arrives for the topic is held back, and the
+ * listener is given it along with the message. The acknowledgement is sent
+ * once the listener, and any other listener the message was given to, has
+ * released it. Messages for other topics are acknowledged as usual.
+ */
+public interface DeferredAckListener extends IMqttMessageListener {
+	/**
+	 * Called instead of {@link #messageArrived(String, MqttMessage)} when a QoS
+	 * 1 or 2 message arrives. The listener must call {@link InboundAck#retain()}
+	 * before returning if it is to hold the acknowledgement back, and
+	 * {@link InboundAck#release()} once it has consumed the message.
+	 * 
+	 * @param topic
+	 *            the topic the message was published to
+	 * @param message
+	 *            the message
+	 * @param ack
+	 *            the acknowledgement of the message
+	 * @throws Exception
+	 *             if the message could not be handled, which shuts the
+	 *             connection down
+	 */
+	void messageArrived(String topic, MqttMessage message, InboundAck ack) throws Exception;
+}
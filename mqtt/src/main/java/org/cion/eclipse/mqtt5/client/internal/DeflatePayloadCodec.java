@@ -0,0 +1,145 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.internal;
+
+import com.google.auto.service.AutoService;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.cion.eclipse.mqtt5.client.spi.PayloadCodec;
+import org.cion.eclipse.mqtt5.common.packet.MqttDataTypes;
+
+/**
+ * Compresses payloads in the zlib format, as the <code>deflate</code> content encoding of HTTP does.
+ * <p>
+ * Each thread keeps a {@link Deflater} and an {@link Inflater} of its own, created on first use and reset for
+ * every payload, so that the native memory behind them is not allocated and freed for every message. The
+ * publishing threads compress and the callback threads decompress, so a thread usually holds only one of them.
+ */
+@AutoService(PayloadCodec.class)
+public class DeflatePayloadCodec implements PayloadCodec {
+
+	private static final int MIN_BUFFER_SIZE = 1024;
+	/** The largest buffer kept by a thread from one payload to the next. */
+	private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+	/** No payload fits in a PUBLISH packet above this length. */
+	private static final int MAX_DECODED_LENGTH = MqttDataTypes.VARIABLE_BYTE_INT_MAX;
+
+	private static final ThreadLocal<Streams> STREAMS = new ThreadLocal<Streams>() {
+		@Override
+		protected Streams initialValue() {
+			return new Streams();
+		}
+	};
+
+	@Override
+	public String getContentEncoding() {
+		return "deflate";
+	}
+
+	@Override
+	public byte[] encode(byte[] payload) {
+		Streams streams = STREAMS.get();
+		if (streams.deflater == null) {
+			streams.deflater = new Deflater();
+		}
+		Deflater deflater = streams.deflater;
+		deflater.reset();
+		deflater.setInput(payload);
+		deflater.finish();
+		byte[] buffer = streams.buffer(payload.length / 2 + 16);
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == buffer.length) {
+				buffer = streams.grow(MAX_DECODED_LENGTH);
+			}
+			length += deflater.deflate(buffer, length, buffer.length - length);
+		}
+		return streams.release(length);
+	}
+
+	@Override
+	public byte[] decode(byte[] payload, int maxLength) throws IOException {
+		Streams streams = STREAMS.get();
+		if (streams.inflater == null) {
+			streams.inflater = new Inflater();
+		}
+		Inflater inflater = streams.inflater;
+		inflater.reset();
+		inflater.setInput(payload);
+		int limit = Math.min(maxLength, MAX_DECODED_LENGTH);
+		byte[] buffer = streams.buffer((int) Math.min(payload.length * 4L, limit));
+		int length = 0;
+		try {
+			while (!inflater.finished()) {
+				int end = Math.min(buffer.length, limit);
+				if (length == end) {
+					if (length >= limit) {
+						throw new IOException("decoded payload longer than " + limit + " bytes");
+					}
+					buffer = streams.grow(limit);
+					end = Math.min(buffer.length, limit);
+				}
+				int count = inflater.inflate(buffer, length, end - length);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("truncated deflate payload");
+				}
+				length += count;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("invalid deflate payload: " + e.getMessage());
+		}
+		return streams.release(length);
+	}
+
+	/**
+	 * The compression streams and output buffer of a thread.
+	 */
+	private static final class Streams {
+		Deflater deflater;
+		Inflater inflater;
+		private byte[] buffer = new byte[MIN_BUFFER_SIZE];
+
+		/**
+		 * @return the buffer, made larger if it is short of the expected length of the output, up to the length
+		 *         that is kept
+		 */
+		byte[] buffer(int expected) {
+			if (expected > buffer.length && buffer.length < MAX_POOLED_BUFFER_SIZE) {
+				buffer = new byte[Math.min(expected, MAX_POOLED_BUFFER_SIZE)];
+			}
+			return buffer;
+		}
+
+		/**
+		 * @return a buffer twice as large, but no larger than the limit, holding the bytes of the last one
+		 */
+		byte[] grow(int limit) {
+			buffer = Arrays.copyOf(buffer, (int) Math.min((long) buffer.length << 1, limit));
+			return buffer;
+		}
+
+		/**
+		 * @return a copy of the first <code>length</code> bytes of the buffer
+		 */
+		byte[] release(int length) {
+			byte[] result = Arrays.copyOf(buffer, length);
+			if (buffer.length > MAX_POOLED_BUFFER_SIZE) {
+				buffer = new byte[MIN_BUFFER_SIZE];
+			}
+			return result;
+		}
+	}
+}
@@ -16,6 +16,9 @@
 package org.cion.eclipse.mqtt5.client.internal;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.cion.eclipse.mqtt5.client.BufferedMessage;
 import org.cion.eclipse.mqtt5.client.MqttClientException;
@@ -24,20 +27,41 @@ import org.cion.eclipse.mqtt5.client.DisconnectedBufferOptions;
 import org.cion.eclipse.mqtt5.client.logging.Logger;
 import org.cion.eclipse.mqtt5.client.logging.LoggerFactory;
 import org.cion.eclipse.mqtt5.common.MqttException;
+import org.cion.eclipse.mqtt5.common.packet.MqttPublish;
 import org.cion.eclipse.mqtt5.common.packet.MqttWireMessage;
 
+/**
+ * Holds the messages sent while the client is disconnected, and sends them
+ * once it has reconnected.
+ * <p>
+ * The messages are held in a {@link RingBuffer}, so adding a message, evicting
+ * the oldest and taking the next one to send are all constant time however
+ * full the buffer is. It is emptied by one thread at a time, in batches as
+ * large as the inflight window allows, and waits for the window to open
+ * rather than polling it.
+ */
 public class DisconnectedMessageBuffer implements Runnable {
 	
 	private static final String CLASS_NAME = DisconnectedMessageBuffer.class.getName();
 	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	/** The most messages sent in one batch. */
+	private static final int MAX_BATCH_SIZE = 256;
+	/** How long to wait for room in the inflight window before looking again, in milliseconds. */
+	private static final long WINDOW_WAIT_TIMEOUT = 1000;
+
 	private DisconnectedBufferOptions bufferOpts;
-	private ArrayList<BufferedMessage> buffer;
+	private RingBuffer<BufferedMessage> buffer;
 	private final Object	bufLock = new Object();  	// Used to synchronise the buffer
 	private IDisconnectedBufferCallback callback;
+	// Whether a thread is emptying the buffer, and whether it has been asked
+	// to start again since it began
+	private final AtomicBoolean draining = new AtomicBoolean(false);
+	private volatile boolean drainRequested = false;
 	
 	public DisconnectedMessageBuffer(DisconnectedBufferOptions options){
 		this.bufferOpts = options;
-		buffer = new ArrayList<BufferedMessage>();
+		buffer = new RingBuffer<BufferedMessage>(options.getBufferSize());
 	}
 	
 	/**
@@ -48,20 +72,23 @@ public class DisconnectedMessageBuffer implements Runnable {
 	 * MqttException will be thrown.
 	 * @param message the {@link MqttWireMessage} that will be buffered
 	 * @param token the associated {@link MqttToken}
+	 * @return the message deleted to make room, or null if none was
 	 * @throws MqttException if the Buffer is full
 	 */
-	public void putMessage(MqttWireMessage message, MqttToken token) throws MqttException{
+	public BufferedMessage putMessage(MqttWireMessage message, MqttToken token) throws MqttException{
 		BufferedMessage bufferedMessage = new BufferedMessage(message, token);
+		BufferedMessage deleted = null;
 		synchronized (bufLock) {
-			if(buffer.size() < bufferOpts.getBufferSize()){
-				buffer.add(bufferedMessage);
-			} else if(bufferOpts.isDeleteOldestMessages() == true){
-				buffer.remove(0);
-				buffer.add(bufferedMessage);
-			}else {
-				throw new MqttException(MqttClientException.REASON_CODE_DISCONNECTED_BUFFER_FULL);
+			if(buffer.isFull()){
+				if(bufferOpts.isDeleteOldestMessages() == true){
+					deleted = buffer.poll();
+				}else {
+					throw new MqttException(MqttClientException.REASON_CODE_DISCONNECTED_BUFFER_FULL);
+				}
 			}
+			buffer.offer(bufferedMessage);
 		}
+		return deleted;
 	}
 	
 	/**
@@ -71,7 +98,7 @@ public class DisconnectedMessageBuffer implements Runnable {
 	 */
 	public BufferedMessage getMessage(int messageIndex){
 		synchronized (bufLock) {
-			return((BufferedMessage) buffer.get(messageIndex));
+			return buffer.get(messageIndex);
 		}
 	}
 	
@@ -95,33 +122,114 @@ public class DisconnectedMessageBuffer implements Runnable {
 			return buffer.size();
 		}
 	}
+
+	/**
+	 * Asks for the buffer to be flushed. If it is already being flushed the
+	 * thread flushing it carries on until it is empty again.
+	 * @return true if the caller should run the buffer to flush it, false if
+	 * a thread is already doing so
+	 */
+	public boolean requestDrain() {
+		drainRequested = true;
+		return draining.compareAndSet(false, true);
+	}
 	
 	/**
 	 * Flushes the buffer of messages into an open connection
 	 */
 	public void run() {
 		final String methodName = "run";
-		// @TRACE 516=Restoring all buffered messages.
-		log.fine(CLASS_NAME, methodName, "516");
-			while(getMessageCount() > 0){
-				try {
-					BufferedMessage bufferedMessage = getMessage(0);
-					callback.publishBufferedMessage(bufferedMessage);
-					// Publish was successful, remove message from buffer.
-					deleteMessage(0);
-				} catch (MqttException ex) {
-					if (ex.getReasonCode() == MqttClientException.REASON_CODE_MAX_INFLIGHT) {
-						// If we get the max_inflight condition, try again after a short
-						// interval to allow more messages to be completely sent.
-						try { Thread.sleep(100); } catch (Exception e) {}
-					} else {
-						// Error occurred attempting to publish buffered message likely because the client is not connected
-						// @TRACE 519=Error occurred attempting to publish buffered message due to disconnect. Exception: {0}.
-						log.warning(CLASS_NAME, methodName, "519", new Object[]{ex.getMessage()});
+		draining.set(true);
+		do {
+			// @TRACE 516=Restoring all buffered messages.
+			log.fine(CLASS_NAME, methodName, "516");
+			drainRequested = false;
+			drain();
+			draining.set(false);
+			// Carry on if another reconnect asked for a flush while this one
+			// was finishing, unless that caller has started a thread of its own
+		} while (drainRequested && draining.compareAndSet(false, true));
+	}
+
+	private void drain() {
+		final String methodName = "drain";
+		while (getMessageCount() > 0) {
+			int window;
+			try {
+				window = callback.waitForInFlightWindow(WINDOW_WAIT_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (window == 0) {
+				continue;
+			}
+			List<BufferedMessage> batch = nextBatch(Math.min(window, MAX_BATCH_SIZE));
+			if (batch.isEmpty()) {
+				return;
+			}
+			try {
+				callback.publishBufferedMessages(batch);
+			} catch (MqttException ex) {
+				if (ex.getReasonCode() == MqttClientException.REASON_CODE_MAX_INFLIGHT) {
+					// The window filled up before the batch was sent, so wait
+					// for it to open again
+					continue;
+				}
+				// Error occurred attempting to publish buffered message likely because the client is not connected
+				// @TRACE 519=Error occurred attempting to publish buffered message due to disconnect. Exception: {0}.
+				log.warning(CLASS_NAME, methodName, "519", new Object[]{ex.getMessage()});
+				return;
+			}
+			// Publish was successful, remove the messages from the buffer.
+			removeMessages(batch);
+		}
+	}
+
+	/**
+	 * @return up to <code>size</code> publishes from the head of the buffer, or
+	 * the message at the head on its own if it is not a publish
+	 */
+	private List<BufferedMessage> nextBatch(int size) {
+		synchronized (bufLock) {
+			if (buffer.isEmpty()) {
+				return Collections.emptyList();
+			}
+			BufferedMessage first = buffer.get(0);
+			if (!(first.getMessage() instanceof MqttPublish)) {
+				return Collections.singletonList(first);
+			}
+			List<BufferedMessage> batch = new ArrayList<BufferedMessage>(Math.min(size, buffer.size()));
+			for (int i = 0; i < buffer.size() && batch.size() < size; i++) {
+				BufferedMessage bufferedMessage = buffer.get(i);
+				if (!(bufferedMessage.getMessage() instanceof MqttPublish)) {
+					break;
+				}
+				batch.add(bufferedMessage);
+			}
+			return batch;
+		}
+	}
+
+	/**
+	 * Removes messages that have been sent, which are at the head of the
+	 * buffer unless some of them were deleted while they were being sent.
+	 */
+	private void removeMessages(List<BufferedMessage> sent) {
+		synchronized (bufLock) {
+			for (BufferedMessage bufferedMessage : sent) {
+				if (!buffer.isEmpty() && buffer.get(0) == bufferedMessage) {
+					buffer.poll();
+					continue;
+				}
+				for (int i = 0; i < buffer.size(); i++) {
+					if (buffer.get(i) == bufferedMessage) {
+						buffer.remove(i);
 						break;
 					}
 				}
 			}
+		}
 	}
 
 	public void setPublishCallback(IDisconnectedBufferCallback callback) {
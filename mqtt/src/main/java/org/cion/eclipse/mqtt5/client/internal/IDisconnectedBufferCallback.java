@@ -15,11 +15,27 @@
  */
 package org.cion.eclipse.mqtt5.client.internal;
 
+import java.util.List;
+
 import org.cion.eclipse.mqtt5.client.BufferedMessage;
 import org.cion.eclipse.mqtt5.common.MqttException;
 
 public interface IDisconnectedBufferCallback {
 	
-	void publishBufferedMessage(BufferedMessage bufferedMessage) throws MqttException;
+	/**
+	 * Sends buffered messages, in order, as one batch.
+	 * @param bufferedMessages the messages, either publishes or a single message of another type
+	 * @throws MqttException if the messages could not be sent, in which case none of them were
+	 */
+	void publishBufferedMessages(List<BufferedMessage> bufferedMessages) throws MqttException;
+
+	/**
+	 * Waits for room in the inflight window.
+	 * @param timeout the longest time to wait, in milliseconds
+	 * @return the number of messages that can be sent, 0 if there is no room yet,
+	 * or more than 0 if the client is not connected so that sending fails
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	int waitForInFlightWindow(long timeout) throws InterruptedException;
 
 }
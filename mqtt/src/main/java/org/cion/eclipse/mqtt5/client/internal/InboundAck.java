@@ -0,0 +1,91 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.internal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The acknowledgement of an inbound QoS 1 or 2 message that is held back until
+ * the listeners it was delivered to have consumed it.
+ * <p>
+ * The server counts a QoS 1 message against its receive maximum until it is
+ * sent the PUBACK, and a QoS 2 message until the PUBREC, PUBREL and PUBCOMP
+ * have been exchanged, so holding back the PUBACK or PUBREC makes the server
+ * stop sending once the client has as many messages as it allows in flight.
+ * <p>
+ * The acknowledgement is sent once every hold on it is released. The client
+ * holds it while delivering the message, and each
+ * {@link DeferredAckListener} that takes the message adds a hold of its own.
+ * If the connection is lost first, it is not sent at all, as the server will
+ * send the message again.
+ */
+public class InboundAck {
+	private final CommsCallback callback;
+	private final int messageId;
+	private final int qos;
+	// The delivery holds the acknowledgement until it has finished
+	private final AtomicInteger holds = new AtomicInteger(1);
+	private volatile boolean cancelled = false;
+
+	InboundAck(CommsCallback callback, int messageId, int qos) {
+		this.callback = callback;
+		this.messageId = messageId;
+		this.qos = qos;
+	}
+
+	/**
+	 * Holds back the acknowledgement until {@link #release()} is called.
+	 */
+	public void retain() {
+		holds.incrementAndGet();
+	}
+
+	/**
+	 * Releases a hold, sending the acknowledgement if it was the last one.
+	 */
+	public void release() {
+		if (holds.decrementAndGet() == 0) {
+			callback.sendDeferredAck(this);
+		}
+	}
+
+	/**
+	 * @return the message ID of the message
+	 */
+	public int getMessageId() {
+		return messageId;
+	}
+
+	/**
+	 * @return the QoS of the message
+	 */
+	public int getQos() {
+		return qos;
+	}
+
+	void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return true if the connection the message arrived on has been lost, in
+	 *         which case the acknowledgement is never sent and the server sends
+	 *         the message again
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public String toString() {
+		return "messageId=" + messageId + " qos=" + qos + " holds=" + holds.get() + " cancelled=" + cancelled;
+	}
+}
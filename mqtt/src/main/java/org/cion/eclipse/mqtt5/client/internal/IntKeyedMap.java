@@ -0,0 +1,281 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A map from message ids to values that does not box its keys.
+ * <p>
+ * The map is split into stripes, each with a lock of its own, so that threads
+ * sending and acknowledging different messages rarely wait for each other.
+ * Each stripe is an open addressed table with linear probing, so getting,
+ * putting over an existing key and removing do not allocate. Consecutive
+ * message ids go to consecutive stripes, and then to consecutive slots within
+ * a stripe, so the keys the client uses spread evenly without being hashed.
+ * <p>
+ * Values may not be null. All of the methods are thread safe. The methods that
+ * look at the whole map, such as {@link #values()} and {@link #size()}, look at
+ * one stripe at a time, and so are not atomic while the map is being changed.
+ *
+ * @param <V> the type of the values
+ */
+public class IntKeyedMap<V> {
+	private static final int STRIPE_BITS = 4;
+	private static final int STRIPES = 1 << STRIPE_BITS;
+	private static final int INITIAL_STRIPE_CAPACITY = 8;
+
+	private static final class Stripe {
+		int[] keys = new int[INITIAL_STRIPE_CAPACITY];
+		// A null value marks an empty slot
+		Object[] values = new Object[INITIAL_STRIPE_CAPACITY];
+		int size = 0;
+
+		/**
+		 * @return the slot holding the key, or the complement of the empty slot
+		 *         where it would go
+		 */
+		int indexOf(int key) {
+			int mask = keys.length - 1;
+			int i = home(key, mask);
+			while (values[i] != null) {
+				if (keys[i] == key) {
+					return i;
+				}
+				i = (i + 1) & mask;
+			}
+			return ~i;
+		}
+
+		Object put(int key, Object value, boolean onlyIfAbsent) {
+			int i = indexOf(key);
+			if (i >= 0) {
+				Object previous = values[i];
+				if (!onlyIfAbsent) {
+					values[i] = value;
+				}
+				return previous;
+			}
+			i = ~i;
+			keys[i] = key;
+			values[i] = value;
+			// Keep the table at most half full so that probes stay short
+			if (++size * 2 > keys.length) {
+				resize(keys.length * 2);
+			}
+			return null;
+		}
+
+		Object remove(int key) {
+			int i = indexOf(key);
+			if (i < 0) {
+				return null;
+			}
+			Object previous = values[i];
+			// Move back any later entry of the same run that may no longer be
+			// found once this slot is empty
+			int mask = keys.length - 1;
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (values[j] == null) {
+					break;
+				}
+				int home = home(keys[j], mask);
+				if (j > i ? (home <= i || home > j) : (home <= i && home > j)) {
+					keys[i] = keys[j];
+					values[i] = values[j];
+					i = j;
+				}
+			}
+			values[i] = null;
+			size--;
+			return previous;
+		}
+
+		void resize(int capacity) {
+			int[] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new int[capacity];
+			values = new Object[capacity];
+			int mask = capacity - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldValues[i] != null) {
+					int j = home(oldKeys[i], mask);
+					while (values[j] != null) {
+						j = (j + 1) & mask;
+					}
+					keys[j] = oldKeys[i];
+					values[j] = oldValues[i];
+				}
+			}
+		}
+
+		void clear() {
+			keys = new int[INITIAL_STRIPE_CAPACITY];
+			values = new Object[INITIAL_STRIPE_CAPACITY];
+			size = 0;
+		}
+
+		private static int home(int key, int mask) {
+			return (key >>> STRIPE_BITS) & mask;
+		}
+	}
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	public IntKeyedMap() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	private Stripe stripe(int key) {
+		return stripes[key & (STRIPES - 1)];
+	}
+
+	/**
+	 * @param key the key
+	 * @return the value mapped to the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			int i = stripe.indexOf(key);
+			return i < 0 ? null : (V) stripe.values[i];
+		}
+	}
+
+	/**
+	 * @param key the key
+	 * @return true if a value is mapped to the key
+	 */
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Maps a key to a value, replacing any value it was mapped to.
+	 *
+	 * @param key   the key
+	 * @param value the value, not null
+	 * @return the value previously mapped to the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			return (V) stripe.put(key, value, false);
+		}
+	}
+
+	/**
+	 * Maps a key to a value unless it is already mapped to one.
+	 *
+	 * @param key   the key
+	 * @param value the value, not null
+	 * @return the value already mapped to the key, or null if the value was put
+	 */
+	@SuppressWarnings("unchecked")
+	public V putIfAbsent(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			return (V) stripe.put(key, value, true);
+		}
+	}
+
+	/**
+	 * @param key the key
+	 * @return the value the key was mapped to, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			return (V) stripe.remove(key);
+		}
+	}
+
+	/**
+	 * @return the number of keys mapped
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return true if no keys are mapped
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Removes every key.
+	 */
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return a copy of the values, in no particular order
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		List<V> values = new ArrayList<V>();
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				for (Object value : stripe.values) {
+					if (value != null) {
+						values.add((V) value);
+					}
+				}
+			}
+		}
+		return values;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				for (int i = 0; i < stripe.keys.length; i++) {
+					if (stripe.values[i] != null) {
+						if (sb.length() > 1) {
+							sb.append(", ");
+						}
+						sb.append(stripe.keys[i]).append('=').append(stripe.values[i]);
+					}
+				}
+			}
+		}
+		return sb.append('}').toString();
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.internal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out MQTT message IDs, from 1 to 65535, that are not already in use.
+ * <p>
+ * The IDs in use are held as one bit each, in 1024 words that are updated
+ * with compare and set, so acquiring and releasing IDs takes no lock. IDs are
+ * handed out in turn, starting after the last one acquired, as the server
+ * expects them to be reused as late as possible. Finding a free ID reads at
+ * most one word for every 64 IDs, and a count of the IDs in use means a client
+ * that has run out of IDs finds out without reading any.
+ */
+public class MessageIdAllocator {
+	/** The lowest message ID. */
+	public static final int MIN_MSG_ID = 1;
+	/** The highest message ID. */
+	public static final int MAX_MSG_ID = 65535;
+
+	private static final int WORDS = (MAX_MSG_ID + 1) / 64;
+
+	private final AtomicLongArray inUse = new AtomicLongArray(WORDS);
+	private final AtomicInteger inUseCount = new AtomicInteger();
+	// The ID to try first
+	private final AtomicInteger next = new AtomicInteger(MIN_MSG_ID);
+	private final AtomicLong exhaustedCount = new AtomicLong();
+
+	/**
+	 * Acquires the next free message ID.
+	 *
+	 * @return the message ID, or -1 if every ID is in use
+	 */
+	public int acquire() {
+		while (inUseCount.get() < MAX_MSG_ID) {
+			int start = next.get();
+			int word = start >>> 6;
+			// Ignore the IDs before the starting point in its word on the first
+			// look, and look at them again once every other word has been read
+			long skip = (1L << (start & 63)) - 1;
+			for (int i = 0; i <= WORDS; i++) {
+				long bits = inUse.get(word);
+				long free = ~bits & ~skip;
+				if (word == 0) {
+					// 0 is not a valid message ID
+					free &= ~1L;
+				}
+				while (free != 0) {
+					int bit = Long.numberOfTrailingZeros(free);
+					if (inUse.compareAndSet(word, bits, bits | (1L << bit))) {
+						inUseCount.incrementAndGet();
+						int id = (word << 6) | bit;
+						next.set(id == MAX_MSG_ID ? MIN_MSG_ID : id + 1);
+						return id;
+					}
+					// Another thread changed the word, look at it again
+					bits = inUse.get(word);
+					free = ~bits & ~skip;
+					if (word == 0) {
+						free &= ~1L;
+					}
+				}
+				skip = 0;
+				word = (word + 1) % WORDS;
+			}
+			// Every ID was in use as the words were read, unless some were
+			// released meanwhile, so check the count again
+			if (inUseCount.get() >= MAX_MSG_ID) {
+				break;
+			}
+		}
+		exhaustedCount.incrementAndGet();
+		return -1;
+	}
+
+	/**
+	 * Marks a message ID as in use, such as one restored from persistence.
+	 *
+	 * @param msgId the message ID
+	 */
+	public void markInUse(int msgId) {
+		if (msgId < MIN_MSG_ID || msgId > MAX_MSG_ID) {
+			return;
+		}
+		int word = msgId >>> 6;
+		long mask = 1L << (msgId & 63);
+		while (true) {
+			long bits = inUse.get(word);
+			if ((bits & mask) != 0) {
+				return;
+			}
+			if (inUse.compareAndSet(word, bits, bits | mask)) {
+				inUseCount.incrementAndGet();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Releases a message ID so that it can be reused. Nothing happens if it is
+	 * not in use.
+	 *
+	 * @param msgId the message ID
+	 */
+	public void release(int msgId) {
+		if (msgId < MIN_MSG_ID || msgId > MAX_MSG_ID) {
+			return;
+		}
+		int word = msgId >>> 6;
+		long mask = 1L << (msgId & 63);
+		while (true) {
+			long bits = inUse.get(word);
+			if ((bits & mask) == 0) {
+				return;
+			}
+			if (inUse.compareAndSet(word, bits, bits & ~mask)) {
+				inUseCount.decrementAndGet();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param msgId the message ID
+	 * @return true if the message ID is in use
+	 */
+	public boolean isInUse(int msgId) {
+		if (msgId < MIN_MSG_ID || msgId > MAX_MSG_ID) {
+			return false;
+		}
+		return (inUse.get(msgId >>> 6) & (1L << (msgId & 63))) != 0;
+	}
+
+	/**
+	 * Sets the message ID to try first the next time one is acquired.
+	 *
+	 * @param msgId the message ID, wrapped round to {@link #MIN_MSG_ID} if it is
+	 *              out of range
+	 */
+	public void setNext(int msgId) {
+		next.set(msgId < MIN_MSG_ID || msgId > MAX_MSG_ID ? MIN_MSG_ID : msgId);
+	}
+
+	/**
+	 * @return the message ID that will be tried first the next time one is
+	 *         acquired
+	 */
+	public int getNext() {
+		return next.get();
+	}
+
+	/**
+	 * @return the number of message IDs in use
+	 */
+	public int getInUseCount() {
+		return inUseCount.get();
+	}
+
+	/**
+	 * @return the number of times an ID could not be acquired because every ID
+	 *         was in use
+	 */
+	public long getExhaustedCount() {
+		return exhaustedCount.get();
+	}
+
+	/**
+	 * Releases every message ID. The count of times the IDs ran out is kept.
+	 */
+	public void clear() {
+		for (int i = 0; i < WORDS; i++) {
+			inUse.set(i, 0);
+		}
+		inUseCount.set(0);
+		next.set(MIN_MSG_ID);
+	}
+
+	@Override
+	public String toString() {
+		return "inUse=" + inUseCount.get() + " next=" + next.get() + " exhausted=" + exhaustedCount.get();
+	}
+}
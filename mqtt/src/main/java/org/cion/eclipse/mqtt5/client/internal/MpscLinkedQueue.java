@@ -0,0 +1,164 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.internal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded, lock-free, multi-producer single-consumer FIFO queue.
+ * <p>
+ * Any number of threads may {@link #offer(Object)} at the same time; an offer
+ * is a single atomic swap of the tail and never blocks. All of the other
+ * operations belong to the consumer and must only be called by one thread at a
+ * time, in the client by whoever holds the <code>ClientState</code> queue lock.
+ * <p>
+ * Elements removed from the middle of the queue with {@link #remove(Object)}
+ * are cleared in place and skipped by the consumer, so removal does not
+ * disturb producers that are appending at the tail.
+ *
+ * @param <E> the type of element held in the queue
+ */
+public class MpscLinkedQueue<E> {
+
+	private static final class Node<E> {
+		volatile E item;
+		volatile Node<E> next;
+
+		Node(E item) {
+			this.item = item;
+		}
+	}
+
+	private final AtomicReference<Node<E>> tail;
+	private final AtomicInteger size = new AtomicInteger();
+	// The consumer's stub node; the first element is in head.next
+	private Node<E> head;
+
+	public MpscLinkedQueue() {
+		head = new Node<E>(null);
+		tail = new AtomicReference<Node<E>>(head);
+	}
+
+	/**
+	 * Adds an element at the tail of the queue. May be called by any thread.
+	 *
+	 * @param e the element, which must not be null
+	 */
+	public void offer(E e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		Node<E> node = new Node<E>(e);
+		size.incrementAndGet();
+		Node<E> prev = tail.getAndSet(node);
+		// Until this link is made the consumer sees the queue end at prev
+		prev.next = node;
+	}
+
+	/**
+	 * Removes and returns the element at the head of the queue.
+	 *
+	 * @return the element, or null if the queue is empty
+	 */
+	public E poll() {
+		Node<E> next = head.next;
+		while (next != null) {
+			head = next;
+			E item = next.item;
+			if (item != null) {
+				next.item = null;
+				size.decrementAndGet();
+				return item;
+			}
+			next = next.next;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the element at the head of the queue without removing it.
+	 *
+	 * @return the element, or null if the queue is empty
+	 */
+	public E peek() {
+		Node<E> next = head.next;
+		while (next != null) {
+			E item = next.item;
+			if (item != null) {
+				return item;
+			}
+			// drop the removed element's node
+			head = next;
+			next = next.next;
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the consumer would find no element in the queue
+	 */
+	public boolean isEmpty() {
+		return peek() == null;
+	}
+
+	/**
+	 * Removes the first occurrence of the element from the queue.
+	 *
+	 * @param o the element to remove
+	 * @return true if the element was in the queue
+	 */
+	public boolean remove(Object o) {
+		for (Node<E> node = head.next; node != null; node = node.next) {
+			E item = node.item;
+			if (item != null && item.equals(o)) {
+				node.item = null;
+				size.decrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes every element from the queue.
+	 */
+	public void clear() {
+		while (poll() != null) {
+			// discard
+		}
+	}
+
+	/**
+	 * Returns the number of elements in the queue. While producers are adding
+	 * elements this is only an estimate.
+	 *
+	 * @return the number of elements
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (Node<E> node = head.next; node != null; node = node.next) {
+			E item = node.item;
+			if (item != null) {
+				if (sb.length() > 1) {
+					sb.append(", ");
+				}
+				sb.append(item);
+			}
+		}
+		return sb.append(']').toString();
+	}
+}
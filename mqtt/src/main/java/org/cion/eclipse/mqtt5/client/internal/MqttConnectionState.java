@@ -149,6 +149,17 @@ public class MqttConnectionState {
 		return nextOutgoingTopicAlias.getAndIncrement();
 	}
 
+	/**
+	 * Gives back a topic alias that was never sent, if no later one has been
+	 * handed out since.
+	 * 
+	 * @param topicAlias
+	 *            the topic alias from {@link #getNextOutgoingTopicAlias()}
+	 */
+	public void releaseOutgoingTopicAlias(int topicAlias) {
+		nextOutgoingTopicAlias.compareAndSet(topicAlias + 1, topicAlias);
+	}
+
 
 	public Integer getIncomingTopicAliasMax() {
 		return incomingTopicAliasMax;
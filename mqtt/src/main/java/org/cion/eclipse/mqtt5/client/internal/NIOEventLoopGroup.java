@@ -0,0 +1,225 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cion.eclipse.mqtt5.client.logging.Logger;
+import org.cion.eclipse.mqtt5.client.logging.LoggerFactory;
+
+/**
+ * A group of I/O threads, each running a <code>Selector</code>, that service
+ * the connections of many clients using {@link NIONetworkModule}.
+ * <p>
+ * Each connection is assigned to one of the threads in the group for its whole
+ * life, so reads, writes and the sending of queued messages for a connection
+ * all happen on the same thread. A single default group is shared by all
+ * clients that do not set their own through
+ * {@link org.cion.eclipse.mqtt5.client.MqttConnectionOptions#setEventLoopGroup(NIOEventLoopGroup)}.
+ */
+public class NIOEventLoopGroup {
+	private static final String CLASS_NAME = NIOEventLoopGroup.class.getName();
+	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	/** The size of the buffer each I/O thread reads into. */
+	static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private static NIOEventLoopGroup defaultGroup = null;
+
+	private final EventLoop[] loops;
+	private final AtomicInteger next = new AtomicInteger();
+	private final String name;
+
+	/**
+	 * Returns the group shared by all clients that have not been given one of
+	 * their own. It has one thread per available processor.
+	 *
+	 * @return the default group
+	 */
+	public static synchronized NIOEventLoopGroup getDefault() {
+		if (defaultGroup == null) {
+			defaultGroup = new NIOEventLoopGroup(Runtime.getRuntime().availableProcessors(), "MQTT NIO");
+		}
+		return defaultGroup;
+	}
+
+	/**
+	 * Creates a group of I/O threads. The threads are daemon threads and are
+	 * started when the first connection is assigned to them.
+	 *
+	 * @param threads the number of I/O threads
+	 * @param name    the prefix used to name the threads
+	 */
+	public NIOEventLoopGroup(int threads, String name) {
+		if (threads < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.name = name;
+		this.loops = new EventLoop[threads];
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new EventLoop(name + "-" + i);
+		}
+	}
+
+	/**
+	 * @return the number of I/O threads in the group
+	 */
+	public int getThreadCount() {
+		return loops.length;
+	}
+
+	/**
+	 * Stops all of the I/O threads. Connections still registered with the group
+	 * are no longer serviced, so this should only be called once every client
+	 * using the group has disconnected.
+	 */
+	public void shutdown() {
+		for (EventLoop loop : loops) {
+			loop.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the next I/O thread to assign a connection to.
+	 */
+	EventLoop next() throws IOException {
+		EventLoop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+		loop.ensureStarted();
+		return loop;
+	}
+
+	@Override
+	public String toString() {
+		return name + "[" + loops.length + "]";
+	}
+
+	/**
+	 * A single I/O thread and its selector.
+	 */
+	class EventLoop implements Runnable {
+		private final String threadName;
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private Selector selector;
+		private Thread thread;
+		private volatile boolean running;
+
+		EventLoop(String threadName) {
+			this.threadName = threadName;
+		}
+
+		synchronized void ensureStarted() throws IOException {
+			if (thread == null) {
+				selector = Selector.open();
+				running = true;
+				thread = new Thread(this, threadName);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		synchronized void shutdown() {
+			running = false;
+			if (selector != null) {
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * @return true if the caller is running on this I/O thread
+		 */
+		boolean inEventLoop() {
+			return Thread.currentThread() == thread;
+		}
+
+		/**
+		 * Runs the task on this I/O thread, after any tasks already queued.
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			if (!inEventLoop()) {
+				selector.wakeup();
+			}
+		}
+
+		Selector selector() {
+			return selector;
+		}
+
+		/**
+		 * The buffer that connections on this thread read into. It is only used
+		 * on this thread and nothing read into it is kept once the read
+		 * completes, so one buffer serves every connection.
+		 */
+		ByteBuffer readBuffer() {
+			return readBuffer;
+		}
+
+		@Override
+		public void run() {
+			final String methodName = "run";
+			// @TRACE 270=I/O thread {0} started
+			log.fine(CLASS_NAME, methodName, "270", new Object[] { threadName });
+			while (running) {
+				try {
+					// tasks queued from this thread do not wake the selector
+					if (tasks.isEmpty()) {
+						selector.select();
+					} else {
+						selector.selectNow();
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						NIONetworkModule module = (NIONetworkModule) key.attachment();
+						try {
+							module.processSelectedKey(key);
+						} catch (CancelledKeyException e) {
+							// the connection was closed while its key was selected
+						}
+					}
+					runTasks();
+				} catch (Throwable t) {
+					// @TRACE 271=unexpected exception on I/O thread
+					log.severe(CLASS_NAME, methodName, "271", null, t);
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Ignore as we are shutting down
+			}
+			// @TRACE 272=I/O thread {0} stopped
+			log.fine(CLASS_NAME, methodName, "272", new Object[] { threadName });
+		}
+
+		private void runTasks() {
+			final String methodName = "runTasks";
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (Throwable t) {
+					// @TRACE 271=unexpected exception on I/O thread
+					log.severe(CLASS_NAME, methodName, "271", null, t);
+				}
+			}
+		}
+	}
+}
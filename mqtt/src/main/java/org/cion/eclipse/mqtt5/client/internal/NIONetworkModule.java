@@ -0,0 +1,463 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.cion.eclipse.mqtt5.client.MqttClientException;
+import org.cion.eclipse.mqtt5.client.logging.Logger;
+import org.cion.eclipse.mqtt5.client.logging.LoggerFactory;
+import org.cion.eclipse.mqtt5.client.wire.MqttFrameDecoder;
+import org.cion.eclipse.mqtt5.common.MqttException;
+import org.cion.eclipse.mqtt5.common.packet.MqttWireMessage;
+
+/**
+ * A network module for connecting over TCP with a non-blocking
+ * <code>SocketChannel</code>.
+ * <p>
+ * The connection is serviced by one of the I/O threads of a
+ * {@link NIOEventLoopGroup} instead of by a receiver and a sender thread of its
+ * own. Incoming bytes are decoded as they arrive and handed to the
+ * {@link CommsReceiver}, and the {@link CommsSender} is run on the I/O thread
+ * whenever the client state has work for it. The blocking streams of
+ * {@link NetworkModule} are therefore not used; {@link #getOutputStream()}
+ * returns a stream that queues whole packets for the I/O thread to write.
+ * <p>
+ * The I/O thread never waits for the callback. While the callback has no room
+ * for an arriving message, the connection stops reading and the messages
+ * already decoded are held until it has, so that other connections on the
+ * same thread carry on.
+ * <p>
+ * The socket factory set in the connection options is not used, since a
+ * non-blocking channel cannot be created from a <code>SocketFactory</code>.
+ */
+public class NIONetworkModule implements NetworkModule {
+	private static final String CLASS_NAME = NIONetworkModule.class.getName();
+	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	/**
+	 * Once this many bytes are waiting to be written the sender is not run
+	 * again until they have gone.
+	 */
+	private static final int WRITE_HIGH_WATER_MARK = 64 * 1024;
+
+	private final NIOEventLoopGroup group;
+	private final String host;
+	private final int port;
+	private final String clientId;
+	private int conTimeout;
+
+	private SocketChannel channel;
+	private NIOEventLoopGroup.EventLoop loop;
+	private SelectionKey key;
+	private MqttFrameDecoder decoder;
+	private CommsReceiver receiver;
+	private CommsSender sender;
+
+	// Messages decoded but not yet handed to the receiver, only used on the I/O thread
+	private final ArrayDeque<MqttWireMessage> heldMessages = new ArrayDeque<MqttWireMessage>();
+	private int readInterest = SelectionKey.OP_READ;
+	private volatile boolean readPaused = false;
+	private final AtomicBoolean deliveryScheduled = new AtomicBoolean(false);
+	private final Runnable deliveryTask = new Runnable() {
+		@Override
+		public void run() {
+			deliveryScheduled.set(false);
+			deliverHeldMessages();
+		}
+	};
+
+	private final ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+	private int pendingWriteBytes = 0;
+	private final AtomicBoolean sendScheduled = new AtomicBoolean(false);
+	private final Runnable sendTask = new Runnable() {
+		@Override
+		public void run() {
+			sendScheduled.set(false);
+			CommsSender current = sender;
+			if (current != null && isWritable()) {
+				current.sendPending();
+			}
+		}
+	};
+
+	/**
+	 * Constructs a new NIONetworkModule using the specified host and port.
+	 *
+	 * @param group           the I/O threads to service the connection
+	 * @param host            The server hostname
+	 * @param port            The server port
+	 * @param resourceContext The Resource Context
+	 */
+	public NIONetworkModule(NIOEventLoopGroup group, String host, int port, String resourceContext) {
+		log.setResourceName(resourceContext);
+		this.group = group;
+		this.host = host;
+		this.port = port;
+		this.clientId = resourceContext;
+	}
+
+	/**
+	 * Starts the module, by connecting a TCP socket channel to the server and
+	 * assigning it to an I/O thread.
+	 *
+	 * @throws IOException   if there is an error creating the socket
+	 * @throws MqttException if there is an error connecting to the server
+	 */
+	@Override
+	public void start() throws IOException, MqttException {
+		final String methodName = "start";
+		try {
+			// @TRACE 252=connect to host {0} port {1} timeout {2}
+			log.fine(CLASS_NAME, methodName, "252", new Object[] { host, Integer.valueOf(port), Long.valueOf(conTimeout * 1000) });
+			channel = SocketChannel.open();
+			channel.socket().connect(new InetSocketAddress(host, port), conTimeout * 1000);
+			channel.configureBlocking(false);
+		} catch (ConnectException ex) {
+			// @TRACE 250=Failed to create TCP socket
+			log.fine(CLASS_NAME, methodName, "250", null, ex);
+			throw new MqttException(MqttClientException.REASON_CODE_SERVER_CONNECT_ERROR, ex);
+		}
+		loop = group.next();
+	}
+
+	/**
+	 * Passes messages to the receiver on the I/O thread instead of starting a
+	 * thread to read them.
+	 */
+	@Override
+	public void startReceiving(CommsReceiver receiver, String threadName, ExecutorService executorService) {
+		receiver.start(this);
+	}
+
+	/**
+	 * Runs the sender on the I/O thread instead of starting a thread for it.
+	 */
+	@Override
+	public void startSending(CommsSender sender, String threadName, ExecutorService executorService) {
+		sender.start(this);
+	}
+
+	/**
+	 * Starts reading from the connection. Each message is passed to the receiver
+	 * on the I/O thread as soon as it has been decoded and the callback has room
+	 * for it.
+	 *
+	 * @param receiver    the receiver to pass messages to
+	 * @param clientState the client state used to count received bytes
+	 */
+	void attachReceiver(final CommsReceiver receiver, final ClientState clientState) {
+		this.receiver = receiver;
+		this.decoder = new MqttFrameDecoder(clientState, clientId);
+		clientState.setReceiveReadyListener(new Runnable() {
+			@Override
+			public void run() {
+				if (readPaused) {
+					requestDelivery();
+				}
+			}
+		});
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				final String methodName = "attachReceiver";
+				try {
+					key = channel.register(loop.selector(), pendingWriteBytes > 0
+							? readInterest | SelectionKey.OP_WRITE : readInterest, NIONetworkModule.this);
+					// @TRACE 273=registered with I/O thread
+					log.fine(CLASS_NAME, methodName, "273");
+				} catch (ClosedChannelException e) {
+					receiver.connectionLost(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts running the sender on the I/O thread when there is work for it.
+	 *
+	 * @param sender the sender
+	 */
+	void attachSender(CommsSender sender) {
+		this.sender = sender;
+		requestSend();
+	}
+
+	/**
+	 * Schedules the sender to run on the I/O thread. Repeated requests made
+	 * before it runs are coalesced. Can be called from any thread.
+	 */
+	void requestSend() {
+		if (sendScheduled.compareAndSet(false, true)) {
+			loop.execute(sendTask);
+		}
+	}
+
+	/**
+	 * @return false if so many bytes are waiting to be written that the sender
+	 *         should wait before writing any more
+	 */
+	boolean isWritable() {
+		return pendingWriteBytes < WRITE_HIGH_WATER_MARK;
+	}
+
+	/**
+	 * Called on the I/O thread when the connection is readable or writable.
+	 */
+	void processSelectedKey(SelectionKey key) {
+		if (key.isWritable()) {
+			try {
+				writePending();
+			} catch (IOException ex) {
+				failed(ex);
+				return;
+			}
+			if (isWritable()) {
+				requestSend();
+			}
+		}
+		if (key.isValid() && key.isReadable() && readInterest != 0) {
+			try {
+				read();
+			} catch (IOException ex) {
+				failed(ex);
+			} catch (MqttException ex) {
+				receiver.connectionLost(ex);
+			}
+		}
+	}
+
+	private void read() throws IOException, MqttException {
+		ByteBuffer buffer = loop.readBuffer();
+		buffer.clear();
+		int count = channel.read(buffer);
+		if (count < 0) {
+			throw new EOFException();
+		}
+		buffer.flip();
+		// The buffer is shared with the other connections on this thread, so
+		// everything in it is decoded now even if it cannot all be handed over
+		MqttWireMessage message;
+		while ((message = decoder.decode(buffer)) != null) {
+			heldMessages.add(message);
+		}
+		deliverHeldMessages();
+	}
+
+	/**
+	 * Hands the decoded messages to the receiver until the callback has no room
+	 * for the next one, in which case reading stops until it has. Runs on the
+	 * I/O thread.
+	 */
+	private void deliverHeldMessages() {
+		final String methodName = "deliverHeldMessages";
+		MqttWireMessage message;
+		while ((message = heldMessages.peek()) != null) {
+			CommsReceiver current = receiver;
+			if (current == null) {
+				heldMessages.clear();
+				return;
+			}
+			if (current.mustWaitToReceive(message)) {
+				// Set before checking again, so that space made in between is
+				// not missed by the listener
+				readPaused = true;
+				if (current.mustWaitToReceive(message)) {
+					if (readInterest != 0) {
+						// @TRACE 274=reading paused, callback is full
+						log.fine(CLASS_NAME, methodName, "274");
+						readInterest = 0;
+						updateInterestOps();
+					}
+					return;
+				}
+			}
+			heldMessages.poll();
+			current.messageArrived(message);
+		}
+		readPaused = false;
+		if (readInterest == 0) {
+			// @TRACE 275=reading resumed
+			log.fine(CLASS_NAME, methodName, "275");
+			readInterest = SelectionKey.OP_READ;
+			updateInterestOps();
+		}
+	}
+
+	/**
+	 * Schedules the held messages to be handed over on the I/O thread. Can be
+	 * called from any thread.
+	 */
+	private void requestDelivery() {
+		if (deliveryScheduled.compareAndSet(false, true)) {
+			loop.execute(deliveryTask);
+		}
+	}
+
+	private void updateInterestOps() {
+		if (key != null && key.isValid()) {
+			key.interestOps(writeQueue.isEmpty() ? readInterest : readInterest | SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void failed(IOException ex) {
+		if (receiver != null) {
+			receiver.connectionLost(ex);
+		}
+	}
+
+	/**
+	 * Queues a packet to be written and writes as much as the socket will take
+	 * if called on the I/O thread.
+	 */
+	private void write(final ByteBuffer packet) throws IOException {
+		if (loop.inEventLoop()) {
+			writeQueue.add(packet);
+			pendingWriteBytes += packet.remaining();
+			writePending();
+		} else {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						write(packet);
+					} catch (IOException ex) {
+						failed(ex);
+					}
+				}
+			});
+		}
+	}
+
+	private void writePending() throws IOException {
+		if (key == null) {
+			// not registered yet, the queue is written once it is
+			return;
+		}
+		ByteBuffer packet;
+		while ((packet = writeQueue.peek()) != null) {
+			pendingWriteBytes -= channel.write(packet);
+			if (packet.hasRemaining()) {
+				break;
+			}
+			writeQueue.poll();
+		}
+		updateInterestOps();
+	}
+
+	/**
+	 * Returns a stream that is always at its end, as messages are passed to the
+	 * receiver by the I/O thread instead.
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				return -1;
+			}
+		};
+	}
+
+	/**
+	 * Returns a stream that collects the bytes written to it and queues them to
+	 * be written to the connection when it is flushed.
+	 */
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return new OutputStream() {
+			private byte[] buf = new byte[256];
+			private int count = 0;
+
+			@Override
+			public void write(int b) throws IOException {
+				ensureCapacity(count + 1);
+				buf[count++] = (byte) b;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ensureCapacity(count + len);
+				System.arraycopy(b, off, buf, count, len);
+				count += len;
+			}
+
+			@Override
+			public void flush() throws IOException {
+				if (count > 0) {
+					NIONetworkModule.this.write(ByteBuffer.wrap(Arrays.copyOf(buf, count)));
+					count = 0;
+				}
+			}
+
+			private void ensureCapacity(int capacity) {
+				if (capacity > buf.length) {
+					buf = Arrays.copyOf(buf, Math.max(buf.length << 1, capacity));
+				}
+			}
+		};
+	}
+
+	/**
+	 * Stops the module, by closing the socket channel. Closing the channel also
+	 * removes it from its I/O thread.
+	 *
+	 * @throws IOException if there is an error closing the channel
+	 */
+	@Override
+	public void stop() throws IOException {
+		receiver = null;
+		sender = null;
+		if (channel != null) {
+			channel.close();
+			if (loop != null) {
+				// let the selector forget the cancelled key, and drop anything
+				// held for the receiver so a new connection starts afresh
+				loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						heldMessages.clear();
+						readInterest = SelectionKey.OP_READ;
+						readPaused = false;
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Set the maximum time to wait for a socket to be established
+	 *
+	 * @param timeout The connection timeout
+	 */
+	public void setConnectTimeout(int timeout) {
+		this.conTimeout = timeout;
+	}
+
+	@Override
+	public String getServerURI() {
+		return "tcp+nio://" + host + ":" + port;
+	}
+}
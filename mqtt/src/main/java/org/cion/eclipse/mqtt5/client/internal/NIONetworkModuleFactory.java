@@ -0,0 +1,61 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.internal;
+
+import com.google.auto.service.AutoService;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.cion.eclipse.mqtt5.client.MqttConnectionOptions;
+import org.cion.eclipse.mqtt5.client.spi.NetworkModuleFactory;
+import org.cion.eclipse.mqtt5.common.MqttException;
+
+@AutoService(NetworkModuleFactory.class)
+public class NIONetworkModuleFactory implements NetworkModuleFactory {
+
+    @Override
+    public Set<String> getSupportedUriSchemes() {
+        return Collections.unmodifiableSet(new HashSet<>(Arrays.asList("tcp+nio")));
+    }
+
+    @Override
+    public void validateURI(URI brokerUri) throws IllegalArgumentException {
+        String path = brokerUri.getPath();
+        if (path != null && !path.isEmpty()) {
+            throw new IllegalArgumentException("URI path must be empty \"" + brokerUri.toString() + "\"");
+        }
+    }
+
+    @Override
+    public NetworkModule createNetworkModule(URI brokerUri, MqttConnectionOptions options, String clientId)
+            throws MqttException {
+        String host = brokerUri.getHost();
+        int port = brokerUri.getPort(); // -1 if not defined
+        if (port == -1) {
+            port = 1883;
+        }
+        String path = brokerUri.getPath();
+        if (path != null && !path.isEmpty()) {
+            throw new IllegalArgumentException(brokerUri.toString());
+        }
+        NIOEventLoopGroup group = options.getEventLoopGroup();
+        if (group == null) {
+            group = NIOEventLoopGroup.getDefault();
+        }
+        NIONetworkModule networkModule = new NIONetworkModule(group, host, port, clientId);
+        networkModule.setConnectTimeout(options.getConnectionTimeout());
+        return networkModule;
+    }
+}
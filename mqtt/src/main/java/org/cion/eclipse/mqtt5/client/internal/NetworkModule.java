@@ -18,6 +18,7 @@ package org.cion.eclipse.mqtt5.client.internal;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
 
 import org.cion.eclipse.mqtt5.common.MqttException;
 
@@ -32,5 +33,32 @@ public interface NetworkModule {
 	
 	void stop() throws IOException;
 
+	/**
+	 * Starts passing the messages read from the connection to the receiver,
+	 * once the module has been started. By default the receiver reads them from
+	 * {@link #getInputStream()} on a thread of its own.
+	 *
+	 * @param receiver        the receiver
+	 * @param threadName      the name of the receiver's thread
+	 * @param executorService used to run the receiver's thread, or null
+	 * @throws IOException if the input stream cannot be opened
+	 */
+	default void startReceiving(CommsReceiver receiver, String threadName, ExecutorService executorService)
+			throws IOException {
+		receiver.start(getInputStream(), threadName, executorService);
+	}
+
+	/**
+	 * Starts sending the messages the sender is given, once the receiver has
+	 * been started. By default the sender runs on a thread of its own.
+	 *
+	 * @param sender          the sender
+	 * @param threadName      the name of the sender's thread
+	 * @param executorService used to run the sender's thread, or null
+	 */
+	default void startSending(CommsSender sender, String threadName, ExecutorService executorService) {
+		sender.start(threadName, executorService);
+	}
+
 	String getServerURI();
 }
@@ -0,0 +1,158 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cion.eclipse.mqtt5.client.spi.PayloadCodec;
+import org.cion.eclipse.mqtt5.common.MqttMessage;
+import org.cion.eclipse.mqtt5.common.packet.MqttProperties;
+import org.cion.eclipse.mqtt5.common.packet.UserProperty;
+
+/**
+ * The PayloadCodecService uses the installed {@link PayloadCodec}s to encode the payloads of outgoing messages and
+ * to decode those of incoming ones.
+ * <p>
+ * The selection of the appropriate PayloadCodec is based on the content encoding.
+ */
+public class PayloadCodecService {
+    private static final ServiceLoader<PayloadCodec> CODEC_SERVICE_LOADER = ServiceLoader.load(
+            PayloadCodec.class, PayloadCodecService.class.getClassLoader());
+    // The codecs found so far, so that the loader is not searched for every message
+    private static final ConcurrentHashMap<String, PayloadCodec> CODECS = new ConcurrentHashMap<>();
+
+    private PayloadCodecService() {
+        // no instances
+    }
+
+    /**
+     * Returns the installed codec for a content encoding.
+     *
+     * @param contentEncoding of the codec
+     * @return the codec, or null if there is no {@link PayloadCodec} installed for the content encoding
+     */
+    public static PayloadCodec getCodec(String contentEncoding) {
+        String key = contentEncoding.toLowerCase();
+        PayloadCodec codec = CODECS.get(key);
+        if (codec == null) {
+            synchronized (CODEC_SERVICE_LOADER) {
+                for (PayloadCodec installed : CODEC_SERVICE_LOADER) {
+                    if (installed.getContentEncoding().equals(key)) {
+                        codec = installed;
+                        CODECS.put(key, codec);
+                        break;
+                    }
+                }
+            }
+        }
+        return codec;
+    }
+
+    /**
+     * Validates that a codec is installed for the content encoding.
+     *
+     * @param contentEncoding to be validated
+     * @throws IllegalArgumentException if there is no {@link PayloadCodec} installed for the content encoding
+     */
+    public static void validateContentEncoding(String contentEncoding) throws IllegalArgumentException {
+        if (getCodec(contentEncoding) == null) {
+            throw new IllegalArgumentException("no PayloadCodec installed for content encoding \""
+                    + contentEncoding + "\"");
+        }
+    }
+
+    /**
+     * Encodes the payload of a message to be published, if it is at least as long as the threshold and is
+     * shortened by encoding. The message itself is left as it was, so that it can be published again.
+     *
+     * @param message   to be published
+     * @param codec     used to encode the payload
+     * @param threshold the shortest payload that is encoded
+     * @return a copy of the message with the encoded payload and a {@value PayloadCodec#CONTENT_ENCODING} user
+     *         property, or the message if the payload was not encoded
+     */
+    public static MqttMessage encode(MqttMessage message, PayloadCodec codec, int threshold) {
+        byte[] payload = message.getPayload();
+        MqttProperties properties = message.getProperties();
+        if (payload.length < threshold || (properties != null && getContentEncoding(properties) != null)) {
+            return message;
+        }
+        byte[] encoded = codec.encode(payload);
+        if (encoded.length >= payload.length) {
+            return message;
+        }
+        MqttProperties encodedProperties = new MqttProperties();
+        List<UserProperty> userProperties = new ArrayList<>();
+        if (properties != null) {
+            // The properties a PUBLISH packet carries, except the payload format,
+            // as an encoded payload is not UTF-8
+            encodedProperties.setMessageExpiryInterval(properties.getMessageExpiryInterval());
+            encodedProperties.setTopicAlias(properties.getTopicAlias());
+            encodedProperties.setResponseTopic(properties.getResponseTopic());
+            encodedProperties.setCorrelationData(properties.getCorrelationData());
+            encodedProperties.setContentType(properties.getContentType());
+            encodedProperties.setSubscriptionIdentifiers(properties.getSubscriptionIdentifiers());
+            userProperties.addAll(properties.getUserProperties());
+        }
+        userProperties.add(new UserProperty(PayloadCodec.CONTENT_ENCODING, codec.getContentEncoding()));
+        encodedProperties.setUserProperties(userProperties);
+        return new MqttMessage(encoded, message.getQos(), message.isRetained(), encodedProperties);
+    }
+
+    /**
+     * Decodes the payload of a message that has arrived, if it carries a {@value PayloadCodec#CONTENT_ENCODING}
+     * user property for which a codec is installed, and removes the user property.
+     *
+     * @param message   that has arrived
+     * @param maxLength the longest decoded payload allowed, 0 to decode nothing
+     * @return true if the payload was decoded
+     * @throws IOException if the payload could not be decoded or decodes to more than maxLength bytes
+     */
+    public static boolean decode(MqttMessage message, int maxLength) throws IOException {
+        if (maxLength == 0) {
+            return false;
+        }
+        MqttProperties properties = message.getProperties();
+        String contentEncoding = getContentEncoding(properties);
+        if (contentEncoding == null) {
+            return false;
+        }
+        PayloadCodec codec = getCodec(contentEncoding);
+        if (codec == null) {
+            return false;
+        }
+        message.setPayload(codec.decode(message.getPayload(), maxLength));
+        List<UserProperty> userProperties = new ArrayList<>(properties.getUserProperties().size() - 1);
+        for (UserProperty userProperty : properties.getUserProperties()) {
+            if (!userProperty.getKey().equals(PayloadCodec.CONTENT_ENCODING)) {
+                userProperties.add(userProperty);
+            }
+        }
+        properties.setUserProperties(userProperties);
+        return true;
+    }
+
+    private static String getContentEncoding(MqttProperties properties) {
+        if (properties.getUserProperties().isEmpty()) {
+            return null;
+        }
+        for (UserProperty userProperty : properties.getUserProperties()) {
+            if (userProperty.getKey().equals(PayloadCodec.CONTENT_ENCODING)) {
+                return userProperty.getValue();
+            }
+        }
+        return null;
+    }
+}
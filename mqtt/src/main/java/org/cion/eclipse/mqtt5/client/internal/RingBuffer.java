@@ -0,0 +1,155 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.internal;
+
+/**
+ * A fixed capacity FIFO queue held in an array. The array grows as elements
+ * are added, up to the capacity, so a large capacity costs nothing until it is
+ * used. Once it has grown, adding and taking elements do not allocate. It is
+ * not thread safe.
+ *
+ * @param <E> the type of element held in the queue
+ */
+public class RingBuffer<E> {
+	private static final int INITIAL_LENGTH = 16;
+
+	private final int capacity;
+	private Object[] elements;
+	private int head = 0;
+	private int count = 0;
+
+	/**
+	 * @param capacity the maximum number of elements, must be &gt;= 1
+	 */
+	public RingBuffer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.capacity = capacity;
+		elements = new Object[Math.min(capacity, INITIAL_LENGTH)];
+	}
+
+	/**
+	 * Adds an element at the tail of the queue.
+	 *
+	 * @param e the element
+	 * @return false if the queue is full
+	 */
+	public boolean offer(E e) {
+		if (count == elements.length) {
+			if (count == capacity) {
+				return false;
+			}
+			grow();
+		}
+		elements[index(count)] = e;
+		count++;
+		return true;
+	}
+
+	/**
+	 * Removes and returns the element at the head of the queue.
+	 *
+	 * @return the element, or null if the queue is empty
+	 */
+	public E poll() {
+		if (count == 0) {
+			return null;
+		}
+		E e = get(0);
+		elements[head] = null;
+		head = index(1);
+		count--;
+		return e;
+	}
+
+	/**
+	 * Returns an element without removing it.
+	 *
+	 * @param i the position of the element, 0 being the head
+	 * @return the element
+	 */
+	@SuppressWarnings("unchecked")
+	public E get(int i) {
+		if (i < 0 || i >= count) {
+			throw new IndexOutOfBoundsException();
+		}
+		return (E) elements[index(i)];
+	}
+
+	/**
+	 * Removes an element from the queue, moving the elements on the shorter
+	 * side of it along, so removing the head or the tail takes constant time.
+	 *
+	 * @param i the position of the element, 0 being the head
+	 * @return the element
+	 */
+	public E remove(int i) {
+		E e = get(i);
+		if (i < count / 2) {
+			for (; i > 0; i--) {
+				elements[index(i)] = elements[index(i - 1)];
+			}
+			elements[head] = null;
+			head = index(1);
+		} else {
+			for (; i < count - 1; i++) {
+				elements[index(i)] = elements[index(i + 1)];
+			}
+			elements[index(count - 1)] = null;
+		}
+		count--;
+		return e;
+	}
+
+	private int index(int i) {
+		int index = head + i;
+		return index < elements.length ? index : index - elements.length;
+	}
+
+	/**
+	 * Doubles the length of the array, up to the capacity, moving the elements
+	 * to its start.
+	 */
+	private void grow() {
+		Object[] grown = new Object[(int) Math.min((long) elements.length << 1, capacity)];
+		int first = Math.min(count, elements.length - head);
+		System.arraycopy(elements, head, grown, 0, first);
+		System.arraycopy(elements, 0, grown, first, count - first);
+		elements = grown;
+		head = 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	public boolean isFull() {
+		return count == capacity;
+	}
+
+	/**
+	 * Removes every element.
+	 */
+	public void clear() {
+		while (count > 0) {
+			poll();
+		}
+	}
+}
@@ -22,12 +22,14 @@ import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.channels.GatheringByteChannel;
 
 import javax.net.SocketFactory;
 
 import org.cion.eclipse.mqtt5.client.MqttClientException;
 import org.cion.eclipse.mqtt5.client.logging.Logger;
 import org.cion.eclipse.mqtt5.client.logging.LoggerFactory;
+import org.cion.eclipse.mqtt5.client.wire.StreamGatheringChannel;
 import org.cion.eclipse.mqtt5.common.MqttException;
 
 /**
@@ -42,6 +44,7 @@ public class TCPNetworkModule implements NetworkModule {
 	private String host;
 	private int port;
 	private int conTimeout;
+	private boolean gatheringWrites = false;
 
 	/**
 	 * Constructs a new TCPNetworkModule using the specified host and
@@ -131,6 +134,31 @@ public class TCPNetworkModule implements NetworkModule {
 		this.conTimeout = timeout;
 	}
 
+	/**
+	 * Set whether packets are written with gathering writes
+	 * @param gatheringWrites true to write packets through {@link #getGatheringChannel()}
+	 */
+	public void setGatheringWrites(boolean gatheringWrites) {
+		this.gatheringWrites = gatheringWrites;
+	}
+
+	public boolean isGatheringWrites() {
+		return gatheringWrites;
+	}
+
+	/**
+	 * Returns a channel that writes a packet's header and payload buffers to the
+	 * network without first copying them into a single array.
+	 * @return the gathering channel, or null if gathering writes are not enabled
+	 * @throws IOException if there is an error getting the output stream
+	 */
+	public GatheringByteChannel getGatheringChannel() throws IOException {
+		if (!gatheringWrites) {
+			return null;
+		}
+		return new StreamGatheringChannel(getOutputStream());
+	}
+
 	@Override
 	public String getServerURI() {
 		return "tcp://" + host + ":" + port;
@@ -62,6 +62,7 @@ public class TCPNetworkModuleFactory implements NetworkModuleFactory {
         }
         TCPNetworkModule networkModule = new TCPNetworkModule(factory, host, port, clientId);
         networkModule.setConnectTimeout(options.getConnectionTimeout());
+        networkModule.setGatheringWrites(options.isGatheringWrites());
         return networkModule;
     }
 }
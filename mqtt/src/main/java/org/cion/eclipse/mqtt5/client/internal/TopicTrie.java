@@ -0,0 +1,231 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps topic filters to values and finds the values of every filter that
+ * matches a topic name.
+ * <p>
+ * The filters are held in a tree with one level of the tree for each level of
+ * the topic, so that matching a topic name takes time in proportion to its
+ * number of levels and the number of filters it matches, rather than to the
+ * number of filters. The <code>+</code> and <code>#</code> wildcards are
+ * supported with the rules of the MQTT specification, including that a filter
+ * that starts with a wildcard does not match a topic name that starts with
+ * <code>$</code>. A shared subscription filter,
+ * <code>$share/{ShareName}/{filter}</code>, matches the same topic names as
+ * <code>{filter}</code>.
+ * <p>
+ * Filters are assumed to be valid. All of the methods are thread safe.
+ *
+ * @param <V> the type of value mapped to each filter
+ */
+public class TopicTrie<V> {
+	private static final String SHARED_SUBSCRIPTION_PREFIX = "$share/";
+
+	private static final class Node<V> {
+		Map<String, Node<V>> children;
+		Node<V> singleLevel;
+		Node<V> multiLevel;
+		// The filters that end at this node, several shared subscriptions and the
+		// plain filter can end at the same node
+		Map<String, V> values;
+
+		boolean isEmpty() {
+			return (children == null || children.isEmpty()) && singleLevel == null && multiLevel == null
+					&& (values == null || values.isEmpty());
+		}
+	}
+
+	private final Node<V> root = new Node<V>();
+	private int size = 0;
+
+	/**
+	 * Maps a topic filter to a value, replacing any value it was mapped to.
+	 *
+	 * @param topicFilter the topic filter
+	 * @param value       the value
+	 * @return the value previously mapped to the filter, or null
+	 */
+	public synchronized V put(String topicFilter, V value) {
+		Node<V> node = root;
+		String filter = stripSharePrefix(topicFilter);
+		int start = 0;
+		while (start >= 0) {
+			int end = filter.indexOf('/', start);
+			String level = filter.substring(start, end < 0 ? filter.length() : end);
+			start = end < 0 ? -1 : end + 1;
+			Node<V> child;
+			if ("+".equals(level)) {
+				if (node.singleLevel == null) {
+					node.singleLevel = new Node<V>();
+				}
+				child = node.singleLevel;
+			} else if ("#".equals(level)) {
+				if (node.multiLevel == null) {
+					node.multiLevel = new Node<V>();
+				}
+				child = node.multiLevel;
+			} else {
+				if (node.children == null) {
+					node.children = new HashMap<String, Node<V>>();
+				}
+				child = node.children.get(level);
+				if (child == null) {
+					child = new Node<V>();
+					node.children.put(level, child);
+				}
+			}
+			node = child;
+		}
+		if (node.values == null) {
+			node.values = new HashMap<String, V>(2);
+		}
+		V previous = node.values.put(topicFilter, value);
+		if (previous == null) {
+			size++;
+		}
+		return previous;
+	}
+
+	/**
+	 * Removes a topic filter.
+	 *
+	 * @param topicFilter the topic filter exactly as it was put
+	 * @return the value the filter was mapped to, or null
+	 */
+	public synchronized V remove(String topicFilter) {
+		String filter = stripSharePrefix(topicFilter);
+		List<Node<V>> path = new ArrayList<Node<V>>();
+		List<String> levels = new ArrayList<String>();
+		Node<V> node = root;
+		int start = 0;
+		while (start >= 0 && node != null) {
+			int end = filter.indexOf('/', start);
+			String level = filter.substring(start, end < 0 ? filter.length() : end);
+			start = end < 0 ? -1 : end + 1;
+			path.add(node);
+			levels.add(level);
+			if ("+".equals(level)) {
+				node = node.singleLevel;
+			} else if ("#".equals(level)) {
+				node = node.multiLevel;
+			} else {
+				node = node.children == null ? null : node.children.get(level);
+			}
+		}
+		if (node == null || node.values == null) {
+			return null;
+		}
+		V previous = node.values.remove(topicFilter);
+		if (previous == null) {
+			return null;
+		}
+		size--;
+		// Prune the nodes that no longer lead to a filter
+		for (int i = path.size() - 1; i >= 0 && node.isEmpty(); i--) {
+			Node<V> parent = path.get(i);
+			String level = levels.get(i);
+			if ("+".equals(level)) {
+				parent.singleLevel = null;
+			} else if ("#".equals(level)) {
+				parent.multiLevel = null;
+			} else {
+				parent.children.remove(level);
+			}
+			node = parent;
+		}
+		return previous;
+	}
+
+	/**
+	 * Removes every topic filter.
+	 */
+	public synchronized void clear() {
+		root.children = null;
+		root.singleLevel = null;
+		root.multiLevel = null;
+		root.values = null;
+		size = 0;
+	}
+
+	/**
+	 * @return the number of topic filters
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Finds the values of every topic filter that matches a topic name.
+	 *
+	 * @param topicName the topic name of a message
+	 * @return the values, in no particular order, an empty list if no filter
+	 *         matches
+	 */
+	public synchronized List<V> match(String topicName) {
+		List<V> matches = new ArrayList<V>();
+		if (size > 0) {
+			// [MQTT-4.7.2-1] wildcards at the first level do not match $ topics
+			match(root, topicName, 0, !topicName.startsWith("$"), matches);
+		}
+		return matches;
+	}
+
+	/**
+	 * @param node      the node reached by the levels before start
+	 * @param start     the index of the next level of the topic name, or -1 if
+	 *                  every level has been matched
+	 * @param wildcards whether wildcards may match the next level
+	 */
+	private void match(Node<V> node, String topicName, int start, boolean wildcards, List<V> matches) {
+		// '#' also matches the parent level, "sport/#" matches "sport"
+		if (wildcards && node.multiLevel != null) {
+			addValues(node.multiLevel, matches);
+		}
+		if (start < 0) {
+			addValues(node, matches);
+			return;
+		}
+		int end = topicName.indexOf('/', start);
+		int next = end < 0 ? -1 : end + 1;
+		if (node.children != null) {
+			Node<V> child = node.children.get(topicName.substring(start, end < 0 ? topicName.length() : end));
+			if (child != null) {
+				match(child, topicName, next, true, matches);
+			}
+		}
+		if (wildcards && node.singleLevel != null) {
+			match(node.singleLevel, topicName, next, true, matches);
+		}
+	}
+
+	private static <V> void addValues(Node<V> node, List<V> matches) {
+		if (node.values != null) {
+			matches.addAll(node.values.values());
+		}
+	}
+
+	private static String stripSharePrefix(String topicFilter) {
+		if (topicFilter.startsWith(SHARED_SUBSCRIPTION_PREFIX)) {
+			int end = topicFilter.indexOf('/', SHARED_SUBSCRIPTION_PREFIX.length());
+			if (end >= 0) {
+				return topicFilter.substring(end + 1);
+			}
+		}
+		return topicFilter;
+	}
+}
@@ -20,9 +20,14 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
+import org.cion.eclipse.mqtt5.client.MqttBatchPersistence;
 import org.cion.eclipse.mqtt5.client.MqttClientPersistence;
 import org.cion.eclipse.mqtt5.client.internal.MqttPersistentData;
 import org.cion.eclipse.mqtt5.client.internal.FileLock;
@@ -41,7 +46,7 @@ import org.cion.eclipse.mqtt5.common.MqttPersistenceException;
  * The sub-directory's name is created from a concatenation of the client ID and connection key
  * with any instance of '/', '\\', ':' or ' ' removed.
  */
-public class MqttDefaultFilePersistence implements MqttClientPersistence {
+public class MqttDefaultFilePersistence implements MqttBatchPersistence {
 	private static final String MESSAGE_FILE_EXTENSION = ".msg";
 	private static final String MESSAGE_BACKUP_FILE_EXTENSION = ".bup";
 	private static final String LOCK_FILENAME = ".lck"; 
@@ -199,6 +204,81 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 		}
 	}
 
+	/**
+	 * Writes all of the puts before syncing any of them, then syncs them back to
+	 * back so that the file system can make the whole batch durable together,
+	 * instead of waiting for each file in turn. Existing files are backed up as
+	 * {@link #put(String, MqttPersistable)} does and the backups are only
+	 * deleted once every file has been synced.
+	 */
+	@Override
+	public void commit(Map<String, MqttPersistable> puts, Collection<String> removes) throws MqttPersistenceException {
+		checkIsOpen();
+		List<File> files = new ArrayList<File>(puts.size());
+		List<FileOutputStream> streams = new ArrayList<FileOutputStream>(puts.size());
+		boolean committed = false;
+		try {
+			for (Map.Entry<String, MqttPersistable> entry : puts.entrySet()) {
+				String key = entry.getKey();
+				MqttPersistable message = entry.getValue();
+				File file = new File(clientDir, key+MESSAGE_FILE_EXTENSION);
+				File backupFile = new File(clientDir, key+MESSAGE_FILE_EXTENSION+MESSAGE_BACKUP_FILE_EXTENSION);
+				if (file.exists()) {
+					// Backup the existing file so the overwrite can be rolled-back
+					boolean result = file.renameTo(backupFile);
+					if (!result) {
+						backupFile.delete();
+						file.renameTo(backupFile);
+					}
+				}
+				files.add(file);
+				FileOutputStream fos = new FileOutputStream(file);
+				streams.add(fos);
+				fos.write(message.getHeaderBytes(), message.getHeaderOffset(), message.getHeaderLength());
+				if (message.getPayloadBytes()!=null) {
+					fos.write(message.getPayloadBytes(), message.getPayloadOffset(), message.getPayloadLength());
+				}
+			}
+			for (FileOutputStream fos : streams) {
+				fos.getFD().sync();
+			}
+			committed = true;
+		}
+		catch (IOException ex) {
+			throw new MqttPersistenceException(ex);
+		}
+		finally {
+			for (FileOutputStream fos : streams) {
+				try {
+					fos.close();
+				} catch (IOException ex) {
+					// The data has been synced, or the commit has already failed
+				}
+			}
+			for (File file : files) {
+				File backupFile = new File(file.getPath()+MESSAGE_BACKUP_FILE_EXTENSION);
+				if (backupFile.exists()) {
+					if (committed) {
+						// The write has completed successfully, delete the backup
+						backupFile.delete();
+					} else {
+						// The write has failed - restore the backup
+						boolean result = backupFile.renameTo(file);
+						if (!result) {
+							file.delete();
+							backupFile.renameTo(file);
+						}
+					}
+				} else if (!committed) {
+					file.delete();
+				}
+			}
+		}
+		for (String key : removes) {
+			remove(key);
+		}
+	}
+
 	@Override
 	public MqttPersistable get(String key) throws MqttPersistenceException {
 		checkIsOpen();
@@ -0,0 +1,713 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.persist;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import android.annotation.SuppressLint;
+
+import org.cion.eclipse.mqtt5.client.MqttBatchPersistence;
+import org.cion.eclipse.mqtt5.client.MqttClientPersistence;
+import org.cion.eclipse.mqtt5.client.internal.FileLock;
+import org.cion.eclipse.mqtt5.client.internal.MqttPersistentData;
+import org.cion.eclipse.mqtt5.common.MqttPersistable;
+import org.cion.eclipse.mqtt5.common.MqttPersistenceException;
+
+/**
+ * An implementation of the {@link MqttClientPersistence} interface that keeps
+ * the data in an append-only log of memory-mapped segment files.
+ * <p>
+ * A put appends a record holding the key and data to the newest segment and a
+ * remove appends a tombstone record, so neither creates, renames or deletes a
+ * file. Each record carries a CRC, and the log is made durable with a single
+ * sync of the mapped segment per put, remove or batch commit. An index of the
+ * live records is kept in memory, so gets and {@link #keys()} do not touch the
+ * file system; it is rebuilt by reading the segments when the store is opened.
+ * The log ends at the first record that is incomplete or fails its CRC, as the
+ * records after it may depend on it, so the rest of its segment is wiped and
+ * the later segments are deleted.
+ * <p>
+ * When a segment is full a new one is started. A background thread compacts
+ * the log one segment at a time, choosing the one with the least of it still
+ * live, as long as that is less than half. Its live records are copied to the
+ * newest segment and the file is deleted. A tombstone counts as live while an
+ * older segment still has a put for its key, and is copied too, so that the
+ * put does not come back when the log is read again.
+ * <p>
+ * As with {@link MqttDefaultFilePersistence}, a directory is specified when the
+ * store is created and a sub-directory is made beneath it for each client ID.
+ */
+public class SegmentedLogPersistence implements MqttBatchPersistence {
+	/** The default size of a segment file in bytes. */
+	public static final int SEGMENT_SIZE_DEFAULT = 4 * 1024 * 1024;
+
+	private static final String SEGMENT_FILE_EXTENSION = ".log";
+	private static final String LOCK_FILENAME = ".lck";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_REMOVE = 2;
+	/** crc, length, type and key length. */
+	private static final int RECORD_HEADER_LENGTH = 4 + 4 + 1 + 2;
+
+	private static final FilenameFilter SEGMENT_FILTER = new PersistenceFileNameFilter(SEGMENT_FILE_EXTENSION);
+
+	/**
+	 * Whether CRC32 can read a ByteBuffer, which it can from API level 26. It is
+	 * probed for rather than read from the API level so that the class works on
+	 * a plain JVM too.
+	 */
+	private static final boolean CRC_READS_BUFFERS = isCrcBufferUpdateAvailable();
+	private static final int CRC_CHUNK_SIZE = 8192;
+
+	private final File dataDir;
+	private final int segmentSize;
+	private File clientDir = null;
+	private FileLock fileLock = null;
+
+	// Oldest first, the last one is written to
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private final Map<String, Record> index = new HashMap<String, Record>();
+	private final CRC32 crc = new CRC32();
+	// Where CRC32 cannot read a buffer, the bytes are copied through this
+	private byte[] crcChunk = null;
+	private Thread compactor = null;
+
+	/**
+	 * A segment file and its mapping.
+	 */
+	private static class Segment {
+		final long id;
+		final File file;
+		final MappedByteBuffer buffer;
+		int position = 0;
+		// Bytes taken by records that are still in the index
+		int liveBytes = 0;
+		// The keys that have a put in the segment, live or not
+		final Set<String> keys = new HashSet<String>();
+		// The keys that have a tombstone in the segment, with its length
+		final Map<String, Integer> tombstones = new HashMap<String, Integer>();
+
+		Segment(long id, File file, MappedByteBuffer buffer) {
+			this.id = id;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * Where the data for a key is.
+	 */
+	private static class Record {
+		final Segment segment;
+		final int offset;
+		final int recordLength;
+		final int dataOffset;
+		final int dataLength;
+
+		Record(Segment segment, int offset, int recordLength, int dataOffset, int dataLength) {
+			this.segment = segment;
+			this.offset = offset;
+			this.recordLength = recordLength;
+			this.dataOffset = dataOffset;
+			this.dataLength = dataLength;
+		}
+	}
+
+	/**
+	 * Create a log-based persistent data store within the specified directory,
+	 * using segments of {@link #SEGMENT_SIZE_DEFAULT} bytes.
+	 * @param directory the directory to use.
+	 */
+	public SegmentedLogPersistence(String directory) {
+		this(directory, SEGMENT_SIZE_DEFAULT);
+	}
+
+	/**
+	 * Create a log-based persistent data store within the specified directory.
+	 * @param directory the directory to use.
+	 * @param segmentSize the size of a segment file in bytes. A record larger
+	 * than this is written to a segment of its own.
+	 */
+	public SegmentedLogPersistence(String directory, int segmentSize) {
+		if (segmentSize < RECORD_HEADER_LENGTH) {
+			throw new IllegalArgumentException();
+		}
+		this.dataDir = new File(directory);
+		this.segmentSize = segmentSize;
+	}
+
+	@Override
+	public synchronized void open(String clientId) throws MqttPersistenceException {
+		if (clientDir != null) {
+			return;
+		}
+		if (dataDir.exists() && !dataDir.isDirectory()) {
+			throw new MqttPersistenceException();
+		} else if (!dataDir.exists()) {
+			if (!dataDir.mkdirs()) {
+				throw new MqttPersistenceException();
+			}
+		}
+		if (!dataDir.canWrite()) {
+			throw new MqttPersistenceException();
+		}
+
+		StringBuffer keyBuffer = new StringBuffer();
+		for (int i = 0; i < clientId.length(); i++) {
+			char c = clientId.charAt(i);
+			if (Character.isJavaIdentifierPart(c) || c == '-') {
+				keyBuffer.append(c);
+			}
+		}
+		File dir = new File(dataDir, keyBuffer.toString());
+		if (!dir.exists()) {
+			dir.mkdir();
+		}
+		try {
+			fileLock = new FileLock(dir, LOCK_FILENAME);
+		} catch (Exception e) {
+			// As MqttDefaultFilePersistence, carry on without the lock
+		}
+
+		try {
+			recover(dir);
+		} catch (IOException ex) {
+			for (Segment segment : segments) {
+				unmap(segment.buffer);
+			}
+			segments.clear();
+			index.clear();
+			throw new MqttPersistenceException(ex);
+		}
+		clientDir = dir;
+		compactor = new Thread(new Compactor(), "MQTT Compact: " + clientId);
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	/**
+	 * Reads every segment, oldest first, to rebuild the index.
+	 */
+	private void recover(File dir) throws IOException {
+		File[] files = dir.listFiles(SEGMENT_FILTER);
+		if (files == null) {
+			throw new IOException("Cannot list " + dir);
+		}
+		long[] ids = new long[files.length];
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			ids[i] = Long.parseLong(name.substring(0, name.length() - SEGMENT_FILE_EXTENSION.length()));
+		}
+		Arrays.sort(ids);
+		for (int i = 0; i < ids.length; i++) {
+			File file = segmentFile(dir, ids[i]);
+			Segment segment = new Segment(ids[i], file, map(file, (int) file.length()));
+			segments.add(segment);
+			if (!replay(segment)) {
+				// A later record may depend on one lost here, such as a put a lost
+				// tombstone removed, so the log ends here
+				for (int j = i + 1; j < ids.length; j++) {
+					segmentFile(dir, ids[j]).delete();
+				}
+				break;
+			}
+		}
+		if (segments.isEmpty()) {
+			segments.add(createSegment(dir, 1, segmentSize));
+		} else {
+			// Appends go on from the end of the last record, so nothing after
+			// it, such as a torn write, may be read back as a record later
+			wipeTail(segments.getLast());
+		}
+	}
+
+	/**
+	 * Applies the records of a segment to the index and sets the position to
+	 * the end of the last valid record.
+	 *
+	 * @return false if the segment ends in a record that is incomplete or fails
+	 *         its CRC, rather than in unused space
+	 */
+	private boolean replay(Segment segment) {
+		ByteBuffer buffer = segment.buffer;
+		int position = 0;
+		boolean complete = true;
+		while (position + RECORD_HEADER_LENGTH <= buffer.capacity()) {
+			int storedCrc = buffer.getInt(position);
+			int length = buffer.getInt(position + 4);
+			if (length == 0 && storedCrc == 0) {
+				// Unused space
+				break;
+			}
+			if (length < RECORD_HEADER_LENGTH - 8 || position + 8 + length > buffer.capacity()
+					|| checksum(buffer, position + 8, length) != storedCrc) {
+				complete = false;
+				break;
+			}
+			byte type = buffer.get(position + 8);
+			int keyLength = buffer.getShort(position + 9) & 0xffff;
+			int recordLength = 8 + length;
+			if (RECORD_HEADER_LENGTH + keyLength > recordLength) {
+				complete = false;
+				break;
+			}
+			byte[] keyBytes = new byte[keyLength];
+			ByteBuffer keyBuffer = buffer.duplicate();
+			keyBuffer.position(position + RECORD_HEADER_LENGTH);
+			keyBuffer.get(keyBytes);
+			String key = new String(keyBytes, UTF_8);
+			if (type == RECORD_PUT) {
+				int dataOffset = position + RECORD_HEADER_LENGTH + keyLength;
+				index(key, new Record(segment, position, recordLength, dataOffset,
+						recordLength - RECORD_HEADER_LENGTH - keyLength));
+			} else {
+				unindex(key);
+				segment.tombstones.put(key, Integer.valueOf(recordLength));
+			}
+			position += recordLength;
+		}
+		segment.position = position;
+		return complete;
+	}
+
+	/**
+	 * Zeroes the segment from its position to its end, if anything is there.
+	 */
+	private static void wipeTail(Segment segment) {
+		ByteBuffer buffer = segment.buffer.duplicate();
+		int end = buffer.capacity();
+		int dirty = -1;
+		for (int i = segment.position; i < end; i++) {
+			if (buffer.get(i) != 0) {
+				dirty = i;
+				break;
+			}
+		}
+		if (dirty < 0) {
+			return;
+		}
+		byte[] zeros = new byte[Math.min(CRC_CHUNK_SIZE, end - dirty)];
+		buffer.position(dirty);
+		while (buffer.hasRemaining()) {
+			buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+		}
+		segment.buffer.force();
+	}
+
+	/**
+	 * @return the CRC of <code>length</code> bytes of the buffer from
+	 *         <code>offset</code>
+	 */
+	// The buffer is only given to CRC32 where CRC_READS_BUFFERS
+	@SuppressLint("NewApi")
+	private int checksum(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer slice = buffer.duplicate();
+		slice.position(offset);
+		slice.limit(offset + length);
+		crc.reset();
+		if (CRC_READS_BUFFERS) {
+			crc.update(slice);
+		} else {
+			if (crcChunk == null) {
+				crcChunk = new byte[CRC_CHUNK_SIZE];
+			}
+			while (slice.hasRemaining()) {
+				int count = Math.min(crcChunk.length, slice.remaining());
+				slice.get(crcChunk, 0, count);
+				crc.update(crcChunk, 0, count);
+			}
+		}
+		return (int) crc.getValue();
+	}
+
+	private static boolean isCrcBufferUpdateAvailable() {
+		try {
+			CRC32.class.getMethod("update", ByteBuffer.class);
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	private void index(String key, Record record) {
+		unindex(key);
+		index.put(key, record);
+		record.segment.liveBytes += record.recordLength;
+		record.segment.keys.add(key);
+	}
+
+	private void unindex(String key) {
+		Record old = index.remove(key);
+		if (old != null) {
+			old.segment.liveBytes -= old.recordLength;
+		}
+	}
+
+	private static File segmentFile(File dir, long id) {
+		return new File(dir, String.format("%020d", Long.valueOf(id)) + SEGMENT_FILE_EXTENSION);
+	}
+
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < size) {
+				raf.setLength(size);
+			}
+			// The mapping stays valid once the file is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static Segment createSegment(File dir, long id, int size) throws IOException {
+		File file = segmentFile(dir, id);
+		return new Segment(id, file, map(file, size));
+	}
+
+	private void checkIsOpen() throws MqttPersistenceException {
+		if (clientDir == null) {
+			throw new MqttPersistenceException();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws MqttPersistenceException {
+		if (clientDir == null) {
+			return;
+		}
+		for (Segment segment : segments) {
+			segment.buffer.force();
+			unmap(segment.buffer);
+		}
+		segments.clear();
+		index.clear();
+		clientDir = null;
+		notifyAll();
+		if (fileLock != null) {
+			fileLock.release();
+			fileLock = null;
+		}
+	}
+
+	@Override
+	public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+		checkIsOpen();
+		try {
+			append(key, persistable);
+			segments.getLast().buffer.force();
+		} catch (IOException ex) {
+			throw new MqttPersistenceException(ex);
+		}
+	}
+
+	@Override
+	public synchronized void remove(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		if (!index.containsKey(key)) {
+			return;
+		}
+		try {
+			append(key, null);
+			segments.getLast().buffer.force();
+		} catch (IOException ex) {
+			throw new MqttPersistenceException(ex);
+		}
+	}
+
+	/**
+	 * Appends all of the puts and removes and then syncs the log once.
+	 */
+	@Override
+	public synchronized void commit(Map<String, MqttPersistable> puts, Collection<String> removes)
+			throws MqttPersistenceException {
+		checkIsOpen();
+		try {
+			for (Map.Entry<String, MqttPersistable> entry : puts.entrySet()) {
+				append(entry.getKey(), entry.getValue());
+			}
+			for (String key : removes) {
+				if (index.containsKey(key)) {
+					append(key, null);
+				}
+			}
+			segments.getLast().buffer.force();
+		} catch (IOException ex) {
+			throw new MqttPersistenceException(ex);
+		}
+	}
+
+	/**
+	 * Appends a put record, or a tombstone if the data is null, and updates the
+	 * index. Does not sync.
+	 */
+	private void append(String key, MqttPersistable persistable) throws IOException, MqttPersistenceException {
+		byte[] keyBytes = key.getBytes(UTF_8);
+		int dataLength = 0;
+		if (persistable != null) {
+			dataLength = persistable.getHeaderLength();
+			if (persistable.getPayloadBytes() != null) {
+				dataLength += persistable.getPayloadLength();
+			}
+		}
+		int recordLength = RECORD_HEADER_LENGTH + keyBytes.length + dataLength;
+
+		Segment segment = segments.getLast();
+		if (segment.position + recordLength > segment.buffer.capacity()) {
+			// Make the full segment durable before moving on
+			segment.buffer.force();
+			segment = createSegment(clientDir, segment.id + 1, Math.max(segmentSize, recordLength));
+			segments.add(segment);
+			notifyAll();
+		}
+
+		ByteBuffer buffer = segment.buffer.duplicate();
+		int position = segment.position;
+		buffer.position(position + 8);
+		buffer.put(persistable != null ? RECORD_PUT : RECORD_REMOVE);
+		buffer.putShort((short) keyBytes.length);
+		buffer.put(keyBytes);
+		if (persistable != null) {
+			buffer.put(persistable.getHeaderBytes(), persistable.getHeaderOffset(), persistable.getHeaderLength());
+			if (persistable.getPayloadBytes() != null) {
+				buffer.put(persistable.getPayloadBytes(), persistable.getPayloadOffset(), persistable.getPayloadLength());
+			}
+		}
+		buffer.putInt(position + 4, recordLength - 8);
+		buffer.putInt(position, checksum(buffer, position + 8, recordLength - 8));
+		segment.position = position + recordLength;
+
+		if (persistable != null) {
+			index(key, new Record(segment, position, recordLength,
+					position + RECORD_HEADER_LENGTH + keyBytes.length, dataLength));
+		} else {
+			unindex(key);
+			// The tombstone is only kept by compaction while an older put needs it
+			segment.tombstones.put(key, Integer.valueOf(recordLength));
+		}
+	}
+
+	@Override
+	public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		Record record = index.get(key);
+		if (record == null) {
+			return null;
+		}
+		byte[] data = new byte[record.dataLength];
+		ByteBuffer buffer = record.segment.buffer.duplicate();
+		buffer.position(record.dataOffset);
+		buffer.get(data);
+		return new MqttPersistentData(key, data, 0, data.length, null, 0, 0);
+	}
+
+	@Override
+	public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+		checkIsOpen();
+		return Collections.enumeration(new ArrayList<String>(index.keySet()));
+	}
+
+	@Override
+	public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		return index.containsKey(key);
+	}
+
+	@Override
+	public synchronized void clear() throws MqttPersistenceException {
+		checkIsOpen();
+		long nextId = segments.getLast().id + 1;
+		for (Segment segment : segments) {
+			// Nothing refers to the mapping once the index is cleared
+			unmap(segment.buffer);
+			segment.file.delete();
+		}
+		segments.clear();
+		index.clear();
+		try {
+			segments.add(createSegment(clientDir, nextId, segmentSize));
+		} catch (IOException ex) {
+			throw new MqttPersistenceException(ex);
+		}
+	}
+
+	/**
+	 * Copies the live records of the segment with the least of it still live to
+	 * the newest and deletes it, if it is not the newest and less than half of
+	 * it is live.
+	 *
+	 * @return true if a segment was compacted
+	 */
+	private synchronized boolean compact() throws IOException, MqttPersistenceException {
+		if (clientDir == null || segments.size() < 2) {
+			return false;
+		}
+		Segment victim = null;
+		double victimRatio = 0.5;
+		// The newest segment is being written to
+		for (Segment segment : segments.subList(0, segments.size() - 1)) {
+			double ratio = segment.position == 0 ? 0 : (double) retainedBytes(segment) / segment.position;
+			if (ratio < victimRatio) {
+				victim = segment;
+				victimRatio = ratio;
+			}
+		}
+		if (victim == null) {
+			return false;
+		}
+
+		List<String> tombstones = new ArrayList<String>();
+		for (String key : victim.tombstones.keySet()) {
+			if (isTombstoneNeeded(victim, key)) {
+				tombstones.add(key);
+			}
+		}
+		List<String> live = new ArrayList<String>();
+		for (Map.Entry<String, Record> entry : index.entrySet()) {
+			if (entry.getValue().segment == victim) {
+				live.add(entry.getKey());
+			}
+		}
+		for (String key : live) {
+			Record record = index.get(key);
+			byte[] data = new byte[record.dataLength];
+			ByteBuffer buffer = victim.buffer.duplicate();
+			buffer.position(record.dataOffset);
+			buffer.get(data);
+			append(key, new MqttPersistentData(key, data, 0, data.length, null, 0, 0));
+		}
+		for (String key : tombstones) {
+			append(key, null);
+		}
+		// The copies must be durable before the originals go
+		segments.getLast().buffer.force();
+		segments.remove(victim);
+		unmap(victim.buffer);
+		victim.file.delete();
+		return true;
+	}
+
+	/**
+	 * @return the bytes of the segment that compaction would copy, its live
+	 *         records and the tombstones still needed
+	 */
+	private int retainedBytes(Segment segment) {
+		int bytes = segment.liveBytes;
+		for (Map.Entry<String, Integer> tombstone : segment.tombstones.entrySet()) {
+			if (isTombstoneNeeded(segment, tombstone.getKey())) {
+				bytes += tombstone.getValue().intValue();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return true if a tombstone for the key in the segment hides a put in an
+	 *         older segment, which would come back without it
+	 */
+	private boolean isTombstoneNeeded(Segment segment, String key) {
+		if (index.containsKey(key)) {
+			// A newer put wins anyway
+			return false;
+		}
+		for (Segment older : segments) {
+			if (older == segment) {
+				return false;
+			}
+			if (older.keys.contains(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Releases the mapping of a segment that is no longer used, rather than
+	 * leaving it until the buffer is collected, so that its file is not deleted
+	 * while it is still mapped. This needs the buffer's cleaner, which is found
+	 * by reflection; where there is none the mapping is released when the
+	 * buffer is collected. The buffer must not be used afterwards.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			// Java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+			return;
+		} catch (Exception e) {
+			// try the older way
+		}
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null) {
+				Method clean = cleaner.getClass().getMethod("clean");
+				clean.setAccessible(true);
+				clean.invoke(cleaner);
+			}
+		} catch (Exception e) {
+			// left to the garbage collector
+		}
+	}
+
+	/**
+	 * Compacts the log whenever a new segment has been started.
+	 */
+	private class Compactor implements Runnable {
+		@Override
+		public void run() {
+			synchronized (SegmentedLogPersistence.this) {
+				while (clientDir != null) {
+					try {
+						while (compact()) {
+							// keep going while a segment is mostly dead
+						}
+					} catch (IOException ex) {
+						// leave the segment in place, it is retried after the next roll
+					} catch (MqttPersistenceException ex) {
+						// as above
+					}
+					try {
+						SegmentedLogPersistence.this.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+	}
+}
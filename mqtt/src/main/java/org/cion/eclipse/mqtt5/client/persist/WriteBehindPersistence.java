@@ -0,0 +1,303 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.persist;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cion.eclipse.mqtt5.client.MqttBatchPersistence;
+import org.cion.eclipse.mqtt5.client.MqttClientPersistence;
+import org.cion.eclipse.mqtt5.client.internal.MqttPersistentData;
+import org.cion.eclipse.mqtt5.common.MqttPersistable;
+import org.cion.eclipse.mqtt5.common.MqttPersistenceException;
+
+/**
+ * An implementation of the {@link MqttClientPersistence} interface that writes
+ * behind another store.
+ * <p>
+ * Puts and removes return as soon as they have been queued. A dedicated thread
+ * takes everything that has been queued, up to the maximum batch size, and
+ * commits it to the wrapped store as one batch. If the wrapped store is an
+ * {@link MqttBatchPersistence} the batch is made durable in one commit, so the
+ * cost of syncing is shared by every message in it. A put that is removed again
+ * in the same batch, such as a QoS 1 message that was acknowledged quickly, is
+ * never written at all.
+ * <p>
+ * The client does not send a message until the batch holding its put is
+ * durable, see {@link #whenDurable(CommitCallback)}, so the delivery guarantees
+ * are the same as with the wrapped store. Reads wait for any queued work to be
+ * committed first.
+ * <p>
+ * To use it, wrap the store that would otherwise be given to the client:
+ * <pre>
+ * new MqttAsyncClient(serverURI, clientId,
+ *         new WriteBehindPersistence(new MqttDefaultFilePersistence(dir)));
+ * </pre>
+ */
+public class WriteBehindPersistence implements MqttClientPersistence {
+
+	/** The default maximum number of puts and removes committed together. */
+	public static final int MAX_BATCH_SIZE_DEFAULT = 256;
+
+	/**
+	 * Called once the work queued before it has been committed.
+	 */
+	public interface CommitCallback {
+		/**
+		 * The work queued before this callback is durable.
+		 */
+		void onCommit();
+
+		/**
+		 * The work queued before this callback could not be committed.
+		 * @param ex the reason
+		 */
+		void onFailure(MqttPersistenceException ex);
+	}
+
+	private static final Object REMOVE = new Object();
+
+	private final MqttClientPersistence persistence;
+	private final int maxBatchSize;
+	private final Object lock = new Object();
+	// Keys mapped to the data to put or REMOVE, and callbacks, in the order queued
+	private final List<Object[]> queue = new ArrayList<Object[]>();
+	private boolean committing = false;
+	private boolean open = false;
+	private Thread writerThread = null;
+
+	/**
+	 * Creates a store that writes behind the specified store, committing up to
+	 * {@link #MAX_BATCH_SIZE_DEFAULT} puts and removes at a time.
+	 * @param persistence the store to write to
+	 */
+	public WriteBehindPersistence(MqttClientPersistence persistence) {
+		this(persistence, MAX_BATCH_SIZE_DEFAULT);
+	}
+
+	/**
+	 * Creates a store that writes behind the specified store.
+	 * @param persistence the store to write to
+	 * @param maxBatchSize the maximum number of puts and removes committed together
+	 */
+	public WriteBehindPersistence(MqttClientPersistence persistence, int maxBatchSize) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.persistence = persistence;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	@Override
+	public void open(String clientId) throws MqttPersistenceException {
+		persistence.open(clientId);
+		synchronized (lock) {
+			open = true;
+			if (writerThread == null) {
+				writerThread = new Thread(new Writer(), "MQTT Persist: " + clientId);
+				writerThread.setDaemon(true);
+				writerThread.start();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws MqttPersistenceException {
+		flush();
+		synchronized (lock) {
+			open = false;
+			lock.notifyAll();
+		}
+		persistence.close();
+	}
+
+	@Override
+	public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+		// Take a copy of the header, the message may change before it is written
+		byte[] header = new byte[persistable.getHeaderLength()];
+		System.arraycopy(persistable.getHeaderBytes(), persistable.getHeaderOffset(), header, 0, header.length);
+		MqttPersistable data = new MqttPersistentData(key, header, 0, header.length,
+				persistable.getPayloadBytes(), persistable.getPayloadOffset(), persistable.getPayloadLength());
+		enqueue(new Object[] { key, data });
+	}
+
+	@Override
+	public void remove(String key) throws MqttPersistenceException {
+		enqueue(new Object[] { key, REMOVE });
+	}
+
+	/**
+	 * Calls back once the puts and removes queued before this call have been
+	 * committed to the wrapped store.
+	 * @param callback called on the writer thread once the work is durable, or
+	 * once committing it has failed
+	 * @throws MqttPersistenceException if the store is not open
+	 */
+	public void whenDurable(CommitCallback callback) throws MqttPersistenceException {
+		enqueue(new Object[] { null, callback });
+	}
+
+	private void enqueue(Object[] op) throws MqttPersistenceException {
+		synchronized (lock) {
+			if (!open) {
+				throw new MqttPersistenceException();
+			}
+			queue.add(op);
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until everything queued so far has been committed. Does not wait when
+	 * called on the writer thread itself, for instance by a commit callback.
+	 * The callbacks of the last batch may still be running when it returns.
+	 */
+	public void flush() {
+		synchronized (lock) {
+			if (Thread.currentThread() == writerThread) {
+				return;
+			}
+			while (open && (!queue.isEmpty() || committing)) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	@Override
+	public MqttPersistable get(String key) throws MqttPersistenceException {
+		flush();
+		return persistence.get(key);
+	}
+
+	@Override
+	public Enumeration<String> keys() throws MqttPersistenceException {
+		flush();
+		return persistence.keys();
+	}
+
+	@Override
+	public void clear() throws MqttPersistenceException {
+		flush();
+		persistence.clear();
+	}
+
+	@Override
+	public boolean containsKey(String key) throws MqttPersistenceException {
+		flush();
+		return persistence.containsKey(key);
+	}
+
+	/**
+	 * Commits one batch, the last put or remove of each key winning.
+	 */
+	private void commit(List<Object[]> batch) throws MqttPersistenceException {
+		Map<String, MqttPersistable> puts = new LinkedHashMap<String, MqttPersistable>();
+		Set<String> removes = new HashSet<String>();
+		for (Object[] op : batch) {
+			String key = (String) op[0];
+			if (key == null) {
+				continue;
+			}
+			if (op[1] == REMOVE) {
+				// A put in the same batch means nothing was written yet, but an
+				// older copy may already be in the store
+				puts.remove(key);
+				removes.add(key);
+			} else {
+				removes.remove(key);
+				puts.put(key, (MqttPersistable) op[1]);
+			}
+		}
+		if (persistence instanceof MqttBatchPersistence) {
+			((MqttBatchPersistence) persistence).commit(puts, removes);
+		} else {
+			for (Map.Entry<String, MqttPersistable> entry : puts.entrySet()) {
+				persistence.put(entry.getKey(), entry.getValue());
+			}
+			for (String key : removes) {
+				persistence.remove(key);
+			}
+		}
+	}
+
+	private class Writer implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				List<Object[]> batch;
+				synchronized (lock) {
+					while (open && queue.isEmpty()) {
+						try {
+							lock.wait();
+						} catch (InterruptedException e) {
+							// keep writing until closed
+						}
+					}
+					if (queue.isEmpty()) {
+						writerThread = null;
+						return;
+					}
+					int count = 0;
+					int end = 0;
+					// Callbacks do not count towards the batch size
+					while (end < queue.size() && count < maxBatchSize) {
+						if (queue.get(end)[0] != null) {
+							count++;
+						}
+						end++;
+					}
+					batch = new ArrayList<Object[]>(queue.subList(0, end));
+					queue.subList(0, end).clear();
+					committing = true;
+				}
+
+				MqttPersistenceException failure = null;
+				try {
+					commit(batch);
+				} catch (MqttPersistenceException ex) {
+					failure = ex;
+				}
+
+				// Release anyone flushing before calling back, so that a callback
+				// waiting for a lock held by a thread in flush() does not deadlock
+				synchronized (lock) {
+					committing = false;
+					lock.notifyAll();
+				}
+
+				for (Object[] op : batch) {
+					if (op[0] == null) {
+						CommitCallback callback = (CommitCallback) op[1];
+						try {
+							if (failure == null) {
+								callback.onCommit();
+							} else {
+								callback.onFailure(failure);
+							}
+						} catch (RuntimeException ex) {
+							// a failing callback must not stop the writer
+						}
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.spi;
+
+import java.io.IOException;
+
+import org.cion.eclipse.mqtt5.client.MqttConnectionOptions;
+
+/**
+ * A PayloadCodec compresses, or otherwise encodes, the payloads of the messages the client publishes, and decodes
+ * them again when they arrive. Codecs are discovered with the {@link java.util.ServiceLoader} and chosen by their
+ * content encoding, see {@link MqttConnectionOptions#setPayloadEncoding(String)}. A codec for
+ * <code>deflate</code> is built in.
+ * <p>
+ * An encoded message carries a user property named {@value #CONTENT_ENCODING} whose value is the content encoding
+ * of the codec, so that any client with the same codec installed decodes it before delivering it. The content type
+ * is left to the application. Codecs are called from many threads at once.
+ */
+public interface PayloadCodec {
+
+	/**
+	 * The name of the user property that carries the content encoding of an encoded payload.
+	 */
+	String CONTENT_ENCODING = "content-encoding";
+
+	/**
+	 * Returns the content encoding of the payloads encoded by this codec.
+	 *
+	 * @return the content encoding (lower case letters), for example <code>deflate</code>
+	 */
+	String getContentEncoding();
+
+	/**
+	 * Encodes a payload.
+	 *
+	 * @param payload to be encoded
+	 * @return the encoded payload, which the client sends only if it is shorter than the payload
+	 */
+	byte[] encode(byte[] payload);
+
+	/**
+	 * Decodes a payload encoded by this codec, here or by another client. The payload may come from any publisher,
+	 * so the codec must stop as soon as the output passes the maximum length rather than decode it all first.
+	 *
+	 * @param payload   to be decoded
+	 * @param maxLength the longest decoded payload allowed
+	 * @return the decoded payload
+	 * @throws IOException if the payload is not a valid encoding or decodes to more than maxLength bytes
+	 */
+	byte[] decode(byte[] payload, int maxLength) throws IOException;
+}
@@ -0,0 +1,39 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.websocket;
+
+import java.security.SecureRandom;
+
+/**
+ * Generates the masking keys of the frames a client sends, with a xorshift
+ * generator seeded once from a <code>SecureRandom</code>. RFC 6455 asks that
+ * masking keys be unpredictable to applications, not that they be secret, and
+ * this keeps a blocking or contended source of randomness off the path of
+ * every frame.
+ * <p>
+ * A generator is not thread safe. Each {@link WebSocketOutputStream} has its
+ * own, written only by the client's sender.
+ */
+final class MaskingKeyGenerator {
+	private long seed = new SecureRandom().nextLong() | 1;
+
+	/**
+	 * @return the next masking key
+	 */
+	int nextKey() {
+		long x = seed;
+		x ^= x << 13;
+		x ^= x >>> 7;
+		x ^= x << 17;
+		seed = x;
+		return (int) (x >>> 32);
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.websocket;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * The parameters of the permessage-deflate WebSocket extension, RFC 7692, as
+ * offered by the client in its opening handshake or as agreed with the
+ * server.
+ * <p>
+ * The client never offers <code>client_max_window_bits</code>, so the server
+ * cannot ask it to compress with a window smaller than 32 KiB, which
+ * <code>java.util.zip.Deflater</code> does not support. It can ask the server
+ * to use a smaller window with <code>server_max_window_bits</code>, which
+ * saves memory on the server, and can ask either side not to keep the
+ * compression context from one message to the next, which saves memory at
+ * the cost of compressing less.
+ */
+public class PerMessageDeflate {
+
+	/** The name of the extension. */
+	public static final String EXTENSION_NAME = "permessage-deflate";
+
+	/** The largest LZ77 window, in bits. */
+	public static final int MAX_WINDOW_BITS = 15;
+	/** The smallest LZ77 window, in bits. */
+	public static final int MIN_WINDOW_BITS = 8;
+
+	private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+	private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+	private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+	private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+
+	/**
+	 * Whether Deflater can flush to a byte boundary, which it can from API
+	 * level 19. It is probed for rather than read from the API level so that
+	 * the class works on a plain JVM too.
+	 */
+	private static final boolean SUPPORTED = isSyncFlushAvailable();
+
+	private final boolean clientNoContextTakeover;
+	private final boolean serverNoContextTakeover;
+	private final int serverMaxWindowBits;
+
+	/**
+	 * @param clientNoContextTakeover true if the client compresses each message
+	 *                                on its own
+	 * @param serverNoContextTakeover true if the server compresses each message
+	 *                                on its own
+	 * @param serverMaxWindowBits     the largest window the server compresses
+	 *                                with, from {@link #MIN_WINDOW_BITS} to
+	 *                                {@link #MAX_WINDOW_BITS}
+	 */
+	public PerMessageDeflate(boolean clientNoContextTakeover, boolean serverNoContextTakeover, int serverMaxWindowBits) {
+		if (serverMaxWindowBits < MIN_WINDOW_BITS || serverMaxWindowBits > MAX_WINDOW_BITS) {
+			throw new IllegalArgumentException();
+		}
+		this.clientNoContextTakeover = clientNoContextTakeover;
+		this.serverNoContextTakeover = serverNoContextTakeover;
+		this.serverMaxWindowBits = serverMaxWindowBits;
+	}
+
+	/**
+	 * @return true if messages can be compressed on this platform, false below
+	 *         API level 19, where the extension is not offered
+	 */
+	public static boolean isSupported() {
+		return SUPPORTED;
+	}
+
+	private static boolean isSyncFlushAvailable() {
+		try {
+			Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	public boolean isClientNoContextTakeover() {
+		return clientNoContextTakeover;
+	}
+
+	public boolean isServerNoContextTakeover() {
+		return serverNoContextTakeover;
+	}
+
+	public int getServerMaxWindowBits() {
+		return serverMaxWindowBits;
+	}
+
+	/**
+	 * @return the offer of the extension, the value of the
+	 *         <code>Sec-WebSocket-Extensions</code> header of the handshake
+	 *         request
+	 */
+	public String getOffer() {
+		StringBuilder offer = new StringBuilder(EXTENSION_NAME);
+		if (clientNoContextTakeover) {
+			offer.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+		}
+		if (serverNoContextTakeover) {
+			offer.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+		}
+		if (serverMaxWindowBits < MAX_WINDOW_BITS) {
+			offer.append("; ").append(SERVER_MAX_WINDOW_BITS).append('=').append(serverMaxWindowBits);
+		}
+		return offer.toString();
+	}
+
+	/**
+	 * Reads the server's response to the offer of the extension.
+	 *
+	 * @param extensions the value of the <code>Sec-WebSocket-Extensions</code>
+	 *                   header of the handshake response, or null if there was
+	 *                   none
+	 * @return the parameters agreed, or null if the server declined the
+	 *         extension
+	 * @throws IOException if the server responded with an extension or a
+	 *                     parameter that was not offered
+	 */
+	public PerMessageDeflate accept(String extensions) throws IOException {
+		if (extensions == null || extensions.trim().isEmpty()) {
+			return null;
+		}
+		String[] accepted = extensions.split(",");
+		if (accepted.length > 1) {
+			throw new IOException("WebSocket Response header: more than one extension accepted: " + extensions);
+		}
+		String[] params = accepted[0].split(";");
+		if (!params[0].trim().equalsIgnoreCase(EXTENSION_NAME)) {
+			throw new IOException("WebSocket Response header: extension not offered: " + params[0].trim());
+		}
+		// The server may ask the client not to take over the context whether or
+		// not it was offered. What the server does with its own context and
+		// window makes no difference to decompressing what it sends.
+		boolean clientNoContextTakeover = this.clientNoContextTakeover;
+		boolean serverNoContextTakeover = false;
+		int serverMaxWindowBits = -1;
+		for (int i = 1; i < params.length; i++) {
+			String param = params[i].trim();
+			String value = null;
+			int equals = param.indexOf('=');
+			if (equals >= 0) {
+				value = param.substring(equals + 1).trim();
+				if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+					value = value.substring(1, value.length() - 1);
+				}
+				param = param.substring(0, equals).trim();
+			}
+			if (param.equalsIgnoreCase(CLIENT_NO_CONTEXT_TAKEOVER) && value == null) {
+				clientNoContextTakeover = true;
+			} else if (param.equalsIgnoreCase(SERVER_NO_CONTEXT_TAKEOVER) && value == null && !serverNoContextTakeover) {
+				serverNoContextTakeover = true;
+			} else if (param.equalsIgnoreCase(SERVER_MAX_WINDOW_BITS) && value != null && serverMaxWindowBits < 0) {
+				try {
+					serverMaxWindowBits = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					serverMaxWindowBits = 0;
+				}
+				if (serverMaxWindowBits < MIN_WINDOW_BITS || serverMaxWindowBits > this.serverMaxWindowBits) {
+					throw new IOException("WebSocket Response header: invalid " + SERVER_MAX_WINDOW_BITS + ": " + value);
+				}
+			} else if (param.equalsIgnoreCase(CLIENT_MAX_WINDOW_BITS)) {
+				throw new IOException("WebSocket Response header: " + CLIENT_MAX_WINDOW_BITS + " not offered");
+			} else {
+				throw new IOException("WebSocket Response header: invalid " + EXTENSION_NAME + " parameter: " + params[i].trim());
+			}
+		}
+		return new PerMessageDeflate(clientNoContextTakeover, serverNoContextTakeover,
+				serverMaxWindowBits < 0 ? MAX_WINDOW_BITS : serverMaxWindowBits);
+	}
+
+	@Override
+	public String toString() {
+		return getOffer();
+	}
+}
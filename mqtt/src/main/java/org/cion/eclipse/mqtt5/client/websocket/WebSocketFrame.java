@@ -18,11 +18,13 @@ package org.cion.eclipse.mqtt5.client.websocket;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.security.SecureRandom;
 
 public class WebSocketFrame {
 	
 	public static final int frameLengthOverhead = 6;
+
+	// Shared by the threads that send control frames, which are few
+	private static final MaskingKeyGenerator maskingKeys = new MaskingKeyGenerator();
 	
 	private byte opcode;
 	private boolean fin;
@@ -102,9 +104,7 @@ public class WebSocketFrame {
 			// Demask payload if needed
 			if(masked)
 			{
-				for(int i = 0; i < this.payload.length; i++){
-					this.payload[i] ^= maskingKey[i % 4];
-				}
+				mask(ByteBuffer.wrap(this.payload), 0, this.payload.length, ByteBuffer.wrap(maskingKey).getInt());
 			}
 			return;
 		}
@@ -175,9 +175,7 @@ public class WebSocketFrame {
 			// Demask if needed
 			if(masked)
 			{
-				for(int i = 0; i < this.payload.length; i++){
-					this.payload[i] ^= maskingKey[i % 4];
-				}
+				mask(ByteBuffer.wrap(this.payload), 0, this.payload.length, ByteBuffer.wrap(maskingKey).getInt());
 			}
 			return;
 		} else if(this.opcode == 8){
@@ -209,9 +207,9 @@ public class WebSocketFrame {
 		byte[] mask = generateMaskingKey();
 		appendLengthAndMask(buffer, this.payload.length, mask);
 
-		for(int i = 0; i < this.payload.length; i ++){
-			buffer.put((byte)(this.payload[i] ^=mask[i % 4]));
-		}
+		int offset = buffer.position();
+		buffer.put(this.payload);
+		mask(buffer, offset, this.payload.length, ByteBuffer.wrap(mask).getInt());
 
 		buffer.flip();
 		return buffer.array();
@@ -291,16 +289,31 @@ public class WebSocketFrame {
 	 * @return ByteArray containing the key;
 	 */
 	public static byte[] generateMaskingKey(){
-		SecureRandom secureRandomGenerator = new SecureRandom();
-		int a = secureRandomGenerator.nextInt(255);
-		int b = secureRandomGenerator.nextInt(255);
-		int c = secureRandomGenerator.nextInt(255);
-		int d = secureRandomGenerator.nextInt(255);
-		return new byte[] {(byte) a,(byte) b,(byte) c,(byte) d};
+		int key;
+		synchronized (maskingKeys) {
+			key = maskingKeys.nextKey();
+		}
+		return new byte[] { (byte) (key >>> 24), (byte) (key >>> 16), (byte) (key >>> 8), (byte) key };
 	}
 
-
-
-	
+	/**
+	 * Masks, or unmasks, bytes in place, eight at a time.
+	 * @param buffer a big endian buffer wrapping the bytes
+	 * @param offset the index of the first byte, which is masked with the
+	 *               first byte of the key
+	 * @param length the number of bytes
+	 * @param key the masking key, its first byte in the most significant bits
+	 */
+	public static void mask(ByteBuffer buffer, int offset, int length, int key){
+		long key8 = ((long) key << 32) | (key & 0xFFFFFFFFL);
+		int end = offset + length;
+		int i = offset;
+		for(; i + 8 <= end; i += 8){
+			buffer.putLong(i, buffer.getLong(i) ^ key8);
+		}
+		for(; i < end; i++){
+			buffer.put(i, (byte) (buffer.get(i) ^ (key >>> (24 - 8 * ((i - offset) & 3)))));
+		}
+	}
 
 }
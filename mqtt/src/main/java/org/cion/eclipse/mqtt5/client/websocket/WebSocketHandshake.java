@@ -48,6 +48,7 @@ public class WebSocketHandshake {
 	private static final String HTTP_HEADER_CONNECTION = "connection";
 	private static final String HTTP_HEADER_CONNECTION_VALUE = "upgrade";
 	private static final String HTTP_HEADER_SEC_WEBSOCKET_PROTOCOL = "sec-websocket-protocol";
+	private static final String HTTP_HEADER_SEC_WEBSOCKET_EXTENSIONS = "sec-websocket-extensions";
 
 	InputStream input;
 	OutputStream output;
@@ -55,14 +56,35 @@ public class WebSocketHandshake {
 	String host;
 	int port;
 	Map<String, String> customWebSocketHeaders;
+	PerMessageDeflate perMessageDeflateOffer;
+	PerMessageDeflate perMessageDeflate;
 
 	public WebSocketHandshake(InputStream input, OutputStream output, String uri, String host, int port, Map<String, String> customWebSocketHeaders) {
+		this(input, output, uri, host, port, customWebSocketHeaders, null);
+	}
+
+	/**
+	 * @param perMessageDeflateOffer the permessage-deflate parameters to offer,
+	 *                               or null to not offer compression. It is not
+	 *                               offered where it is not supported, see
+	 *                               {@link PerMessageDeflate#isSupported()}
+	 */
+	public WebSocketHandshake(InputStream input, OutputStream output, String uri, String host, int port, Map<String, String> customWebSocketHeaders, PerMessageDeflate perMessageDeflateOffer) {
 		this.input = input;
 		this.output = output;
 		this.uri = uri;
 		this.host = host;
 		this.port = port;
 		this.customWebSocketHeaders = customWebSocketHeaders;
+		this.perMessageDeflateOffer = PerMessageDeflate.isSupported() ? perMessageDeflateOffer : null;
+	}
+
+	/**
+	 * @return the permessage-deflate parameters agreed with the server, or null
+	 *         if compression was not offered or the server declined it
+	 */
+	public PerMessageDeflate getPerMessageDeflate() {
+		return perMessageDeflate;
 	}
 
 	/**
@@ -112,6 +134,9 @@ public class WebSocketHandshake {
 			pw.print("Sec-WebSocket-Key: " + key + LINE_SEPARATOR);
 			pw.print("Sec-WebSocket-Protocol: mqtt" + LINE_SEPARATOR);
 			pw.print("Sec-WebSocket-Version: 13" + LINE_SEPARATOR);
+			if (perMessageDeflateOffer != null) {
+				pw.print("Sec-WebSocket-Extensions: " + perMessageDeflateOffer.getOffer() + LINE_SEPARATOR);
+			}
 
 			if (customWebSocketHeaders != null) {
 				customWebSocketHeaders.entrySet().forEach(entry ->
@@ -179,6 +204,12 @@ public class WebSocketHandshake {
 			throw new IOException("WebSocket Response header: Incorrect Sec-WebSocket-Key");
 		}
 
+		String extensionsHeader = headerMap.get(HTTP_HEADER_SEC_WEBSOCKET_EXTENSIONS);
+		if (perMessageDeflateOffer != null) {
+			perMessageDeflate = perMessageDeflateOffer.accept(extensionsHeader);
+		} else if (extensionsHeader != null && !extensionsHeader.trim().isEmpty()) {
+			throw new IOException("WebSocket Response header: extension not offered: " + extensionsHeader.trim());
+		}
 	}
 
 	/**
@@ -0,0 +1,368 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.websocket;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the payload of the WebSocket frames sent by the server as one stream
+ * of bytes, the MQTT packets they carry.
+ * <p>
+ * Frames are decoded on the thread that reads the stream, the client's
+ * receiver, and the payload is read from the socket straight into the buffer
+ * the MQTT packet is read into, so there is no thread of its own and no
+ * copy of the payload between the two. A frame may hold part of a packet or
+ * several packets, and fragmented messages are read as their fragments
+ * arrive.
+ * <p>
+ * The frame being read is remembered between reads, so a read that times out
+ * part way through a frame header can be carried on by the next read, as a
+ * partly read MQTT packet can. A ping from the server is answered with a pong,
+ * and a close frame ends the stream.
+ * <p>
+ * If permessage-deflate has been agreed with the server, the payload of a
+ * compressed message is read a chunk at a time and inflated into the buffer
+ * the MQTT packet is read into.
+ */
+public class WebSocketInputStream extends InputStream {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final byte OPCODE_CONTINUATION = 0x00;
+	private static final byte OPCODE_BINARY = 0x02;
+	private static final byte OPCODE_CLOSE = 0x08;
+	private static final byte OPCODE_PING = 0x09;
+	private static final byte OPCODE_PONG = 0x0A;
+	/** The bit of the first frame of a message that marks it compressed. */
+	private static final int RSV1 = 0x40;
+
+	/** The largest payload of a control frame. */
+	private static final int MAX_CONTROL_PAYLOAD = 125;
+
+	private final InputStream in;
+	private final OutputStream out;
+
+	// The header of the frame being read, up to 2 bytes, 8 of extended
+	// payload length and 4 of masking key
+	private final byte[] header = new byte[14];
+	private int headerCount = 0;
+	private int headerLength = 2;
+
+	// The data frame being read
+	private long payloadRemaining = 0;
+	private boolean masked;
+	private int mask;
+	private int maskOffset;
+	// A buffer wrapping the array last read into, to unmask it
+	private ByteBuffer readBuffer;
+
+	// The control frame being read, its length is -1 when there is none
+	private byte controlOpcode;
+	private final byte[] control = new byte[MAX_CONTROL_PAYLOAD];
+	private final ByteBuffer controlBuffer = ByteBuffer.wrap(control);
+	private int controlLength = -1;
+	private int controlCount;
+
+	private boolean closed = false;
+
+	// Decompression, if permessage-deflate has been agreed
+	private final Inflater inflater;
+	private byte[] inflateInput;
+	private ByteBuffer inflateInputBuffer;
+	// Whether the data frame being read is the last of its message
+	private boolean finalFrame;
+	// Whether the message being read is compressed
+	private boolean inflating = false;
+	// Whether the empty block left off the end of the message has been
+	// given to the inflater
+	private boolean tailInflated;
+	private final byte[] single = new byte[1];
+
+	/**
+	 * The empty block that ends a flush of the deflater, left off the end of a
+	 * compressed message by the server.
+	 */
+	private static final byte[] DEFLATE_TAIL = { 0x00, 0x00, (byte) 0xFF, (byte) 0xFF };
+
+	/**
+	 * Creates a stream reading frames from a connection whose WebSocket
+	 * handshake has completed.
+	 *
+	 * @param in  the stream from the server
+	 * @param out the stream to the server, used to answer pings
+	 */
+	public WebSocketInputStream(InputStream in, OutputStream out) {
+		this(in, out, null);
+	}
+
+	/**
+	 * Creates a stream reading frames from a connection whose WebSocket
+	 * handshake has completed.
+	 *
+	 * @param in                the stream from the server
+	 * @param out               the stream to the server, used to answer pings
+	 * @param perMessageDeflate the permessage-deflate parameters agreed with
+	 *                          the server, or null if messages are not
+	 *                          compressed
+	 */
+	public WebSocketInputStream(InputStream in, OutputStream out, PerMessageDeflate perMessageDeflate) {
+		this.in = new BufferedInputStream(in, BUFFER_SIZE);
+		this.out = out;
+		if (perMessageDeflate != null) {
+			// Decompressing works the same whether or not the server keeps its
+			// context, so the inflater is never reset
+			this.inflater = new Inflater(true);
+			this.inflateInput = new byte[BUFFER_SIZE];
+			this.inflateInputBuffer = ByteBuffer.wrap(inflateInput);
+		} else {
+			this.inflater = null;
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (inflater != null) {
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+		}
+		while (payloadRemaining == 0) {
+			if (!nextFrame()) {
+				return -1;
+			}
+		}
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		if (masked) {
+			b = (b ^ (mask >>> (24 - 8 * (maskOffset++ & 3)))) & 0xFF;
+		}
+		payloadRemaining--;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (true) {
+			if (inflating) {
+				int count = inflate(b, off, len);
+				if (count > 0) {
+					return count;
+				}
+			} else if (payloadRemaining > 0) {
+				break;
+			} else if (!nextFrame()) {
+				return -1;
+			}
+		}
+		int count = in.read(b, off, (int) Math.min(len, payloadRemaining));
+		if (count < 0) {
+			throw new EOFException();
+		}
+		if (masked) {
+			if (readBuffer == null || readBuffer.array() != b) {
+				readBuffer = ByteBuffer.wrap(b);
+			}
+			WebSocketFrame.mask(readBuffer, off, count, Integer.rotateLeft(mask, 8 * (maskOffset & 3)));
+			maskOffset += count;
+		}
+		payloadRemaining -= count;
+		return count;
+	}
+
+	/**
+	 * @return the number of bytes of payload that can be read without blocking,
+	 *         from the frame being read, 0 if it is compressed
+	 */
+	@Override
+	public int available() throws IOException {
+		if (closed || inflating) {
+			return 0;
+		}
+		return (int) Math.min(payloadRemaining, in.available());
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		in.close();
+	}
+
+	/**
+	 * Inflates the compressed message being read, reading its payload from the
+	 * frames it is in as the inflater needs it.
+	 *
+	 * @return the number of bytes inflated, 0 at the end of the message
+	 */
+	private int inflate(byte[] b, int off, int len) throws IOException {
+		try {
+			while (true) {
+				int count = inflater.inflate(b, off, len);
+				if (count > 0) {
+					return count;
+				}
+				if (inflater.finished()) {
+					// The server ended the message with a final block, so the
+					// next one starts a new stream
+					inflater.reset();
+				} else if (!inflater.needsInput()) {
+					throw new IOException("Invalid Frame: compressed payload needs a dictionary");
+				}
+				if (payloadRemaining > 0) {
+					count = in.read(inflateInput, 0, (int) Math.min(inflateInput.length, payloadRemaining));
+					if (count < 0) {
+						throw new EOFException();
+					}
+					if (masked) {
+						WebSocketFrame.mask(inflateInputBuffer, 0, count, Integer.rotateLeft(mask, 8 * (maskOffset & 3)));
+						maskOffset += count;
+					}
+					payloadRemaining -= count;
+					inflater.setInput(inflateInput, 0, count);
+				} else if (!finalFrame) {
+					if (!nextFrame()) {
+						throw new EOFException();
+					}
+				} else if (!tailInflated) {
+					inflater.setInput(DEFLATE_TAIL);
+					tailInflated = true;
+				} else {
+					inflating = false;
+					return 0;
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid Frame: compressed payload: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the next frame header, and the payload of a control frame.
+	 *
+	 * @return false at the end of the stream
+	 */
+	private boolean nextFrame() throws IOException {
+		if (closed) {
+			return false;
+		}
+		if (controlLength < 0) {
+			if (!readHeader()) {
+				closed = true;
+				return false;
+			}
+			byte opcode = (byte) (header[0] & 0x0F);
+			boolean compressed = (header[0] & RSV1) != 0;
+			if ((header[0] & 0x30) != 0 || (compressed && (inflater == null || opcode != OPCODE_BINARY))) {
+				throw new IOException("Invalid Frame: reserved bits set");
+			}
+			masked = (header[1] & 0x80) != 0;
+			long length = header[1] & 0x7F;
+			int i = 2;
+			if (length == 0x7E) {
+				length = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+				i = 4;
+			} else if (length == 0x7F) {
+				length = 0;
+				for (; i < 10; i++) {
+					length = (length << 8) | (header[i] & 0xFF);
+				}
+				if (length < 0) {
+					throw new IOException("Invalid Frame: payload length");
+				}
+			}
+			if (masked) {
+				mask = ((header[i] & 0xFF) << 24) | ((header[i + 1] & 0xFF) << 16) | ((header[i + 2] & 0xFF) << 8)
+						| (header[i + 3] & 0xFF);
+			}
+			maskOffset = 0;
+			headerCount = 0;
+			headerLength = 2;
+
+			if (opcode == OPCODE_BINARY || opcode == OPCODE_CONTINUATION) {
+				if (opcode == OPCODE_BINARY) {
+					inflating = compressed;
+					tailInflated = false;
+				}
+				finalFrame = (header[0] & 0x80) != 0;
+				payloadRemaining = length;
+				return true;
+			}
+			if (opcode != OPCODE_CLOSE && opcode != OPCODE_PING && opcode != OPCODE_PONG) {
+				throw new IOException("Invalid Frame: Opcode: " + opcode);
+			}
+			if (length > MAX_CONTROL_PAYLOAD) {
+				throw new IOException("Invalid Frame: control frame payload length " + length);
+			}
+			controlOpcode = opcode;
+			controlLength = (int) length;
+			controlCount = 0;
+		}
+
+		while (controlCount < controlLength) {
+			int count = in.read(control, controlCount, controlLength - controlCount);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			controlCount += count;
+		}
+		int length = controlLength;
+		controlLength = -1;
+		if (masked) {
+			WebSocketFrame.mask(controlBuffer, 0, length, mask);
+		}
+
+		if (controlOpcode == OPCODE_CLOSE) {
+			closed = true;
+			return false;
+		}
+		if (controlOpcode == OPCODE_PING) {
+			byte[] rawFrame = new WebSocketFrame(OPCODE_PONG, true, Arrays.copyOf(control, length)).encodeFrame();
+			synchronized (out) {
+				out.write(rawFrame);
+				out.flush();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the rest of a frame header, a byte at a time from the buffer.
+	 *
+	 * @return false if the stream ended before the header
+	 */
+	private boolean readHeader() throws IOException {
+		while (headerCount < headerLength) {
+			int b = in.read();
+			if (b < 0) {
+				if (headerCount == 0) {
+					return false;
+				}
+				throw new EOFException();
+			}
+			header[headerCount++] = (byte) b;
+			if (headerCount == 2) {
+				int length = b & 0x7F;
+				headerLength = 2 + (length == 0x7E ? 2 : length == 0x7F ? 8 : 0) + ((b & 0x80) != 0 ? 4 : 0);
+			}
+		}
+		return true;
+	}
+}
@@ -60,6 +60,12 @@ public class WebSocketNetworkModuleFactory implements NetworkModuleFactory {
 				clientId);
 		netModule.setConnectTimeout(options.getConnectionTimeout());
 		netModule.setCustomWebSocketHeaders(options.getCustomWebSocketHeaders());
+		netModule.setMaxFrameSize(options.getWebSocketMaxFrameSize());
+		if (options.isWebSocketCompression()) {
+			netModule.setPerMessageDeflate(new PerMessageDeflate(options.isWebSocketCompressionClientNoContextTakeover(),
+					options.isWebSocketCompressionServerNoContextTakeover(),
+					options.getWebSocketCompressionServerMaxWindowBits()));
+		}
 		return netModule;
 	}
 }
@@ -0,0 +1,322 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.websocket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+import android.annotation.SuppressLint;
+
+/**
+ * Collects the MQTT packets written to it and sends them to the server as
+ * masked binary WebSocket frames when it is flushed.
+ * <p>
+ * The packets are written into a buffer that is reused from one flush to the
+ * next, after room left for the frame header. On a flush the header is written
+ * into that room and the payload is masked in place, eight bytes at a time, so
+ * that the frame goes to the socket without being copied. What has been
+ * written since the last flush is sent as one frame, or, if a maximum frame
+ * size is set and it is larger, as a binary frame followed by continuation
+ * frames. Room for a header is then left after every frame's worth of payload
+ * as it is written, so the frames follow each other in the buffer and are sent
+ * in at most two writes. The stream is written by one thread, the client's
+ * sender.
+ * <p>
+ * Masking keys come from a {@link MaskingKeyGenerator} of the stream's own.
+ * <p>
+ * If permessage-deflate has been agreed with the server, what has been
+ * written since the last flush is compressed as one message on the flush, and
+ * the compressed message is framed as above. Messages too short to gain from
+ * it are sent uncompressed.
+ */
+public class WebSocketOutputStream extends OutputStream {
+
+	/** The largest frame header. */
+	private static final int MAX_HEADER_LENGTH = 14;
+	private static final int MIN_BUFFER_SIZE = 256;
+	/** The largest buffer kept from one flush to the next. */
+	private static final int MAX_POOLED_BUFFER_SIZE = 128 * 1024;
+
+	private static final byte OPCODE_CONTINUATION = 0x00;
+	private static final byte OPCODE_BINARY = 0x02;
+	/** The bit of the first frame of a message that marks it compressed. */
+	private static final byte RSV1 = 0x40;
+
+	/** The shortest message that is compressed. */
+	private static final int MIN_DEFLATE_LENGTH = 32;
+	/** The empty block that ends a flush of the deflater, left off the message. */
+	private static final int DEFLATE_TAIL_LENGTH = 4;
+
+	private final OutputStream out;
+	private final int maxFrameSize;
+	// The room left for the header in front of each frame's payload
+	private final int headerRoom;
+	private byte[] buf;
+	private ByteBuffer buffer;
+	private int count;
+	// The room left in the payload of the frame being written
+	private int frameRemaining;
+	private final MaskingKeyGenerator maskingKeys = new MaskingKeyGenerator();
+
+	// Compression, if permessage-deflate has been agreed
+	private final Deflater deflater;
+	private final boolean noContextTakeover;
+	// The message written since the last flush, before it is compressed
+	private byte[] plain;
+	private int plainCount;
+	private byte[] compressed;
+
+	/**
+	 * Creates a stream writing frames to a connection whose WebSocket
+	 * handshake has completed.
+	 *
+	 * @param out          the stream to the server
+	 * @param maxFrameSize the largest payload of a frame, 0 to send everything
+	 *                     flushed at once as one frame
+	 */
+	public WebSocketOutputStream(OutputStream out, int maxFrameSize) {
+		this(out, maxFrameSize, null);
+	}
+
+	/**
+	 * Creates a stream writing frames to a connection whose WebSocket
+	 * handshake has completed.
+	 *
+	 * @param out               the stream to the server
+	 * @param maxFrameSize      the largest payload of a frame, 0 to send
+	 *                          everything flushed at once as one frame
+	 * @param perMessageDeflate the permessage-deflate parameters agreed with
+	 *                          the server, or null to send messages uncompressed
+	 */
+	public WebSocketOutputStream(OutputStream out, int maxFrameSize, PerMessageDeflate perMessageDeflate) {
+		if (maxFrameSize < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.out = out;
+		this.maxFrameSize = maxFrameSize > 0 ? maxFrameSize : Integer.MAX_VALUE;
+		this.headerRoom = maxFrameSize > 0 ? headerLength(maxFrameSize) : MAX_HEADER_LENGTH;
+		allocate(MIN_BUFFER_SIZE);
+		reset();
+		if (perMessageDeflate != null) {
+			this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			this.noContextTakeover = perMessageDeflate.isClientNoContextTakeover();
+			this.plain = new byte[MIN_BUFFER_SIZE];
+			this.compressed = new byte[MIN_BUFFER_SIZE];
+		} else {
+			this.deflater = null;
+			this.noContextTakeover = false;
+		}
+	}
+
+	@Override
+	public void write(int b) {
+		if (deflater != null) {
+			plain = ensureCapacity(plain, plainCount, plainCount + 1);
+			plain[plainCount++] = (byte) b;
+			return;
+		}
+		if (frameRemaining == 0) {
+			nextFrame();
+		}
+		ensureCapacity(count + 1);
+		buf[count++] = (byte) b;
+		frameRemaining--;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		if (deflater != null) {
+			plain = ensureCapacity(plain, plainCount, plainCount + len);
+			System.arraycopy(b, off, plain, plainCount, len);
+			plainCount += len;
+			return;
+		}
+		writePayload(b, off, len);
+	}
+
+	/**
+	 * Writes payload into the buffer, leaving room for a header in front of
+	 * each frame's worth.
+	 */
+	private void writePayload(byte[] b, int off, int len) {
+		while (len > 0) {
+			if (frameRemaining == 0) {
+				nextFrame();
+			}
+			int n = Math.min(len, frameRemaining);
+			ensureCapacity(count + n);
+			System.arraycopy(b, off, buf, count, n);
+			count += n;
+			frameRemaining -= n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Sends what has been written since the last flush as one or more frames.
+	 */
+	@Override
+	public void flush() throws IOException {
+		try {
+			byte opcode = OPCODE_BINARY;
+			if (deflater != null && plainCount > 0) {
+				if (plainCount < MIN_DEFLATE_LENGTH) {
+					writePayload(plain, 0, plainCount);
+				} else {
+					int length = deflate();
+					writePayload(compressed, 0, length);
+					opcode |= RSV1;
+				}
+			}
+			int off = headerRoom;
+			int start = 0;
+			// Pongs from the receiver are written to the same stream
+			synchronized (out) {
+				while (off < count) {
+					int length = Math.min(maxFrameSize, count - off);
+					boolean fin = off + length == count;
+					int key = maskingKeys.nextKey();
+					int headerStart = writeHeader(off, opcode, fin, length, key);
+					WebSocketFrame.mask(buffer, off, length, key);
+					if (headerStart != off - headerRoom) {
+						// The last frame has a shorter header than the others,
+						// so send the frames before it first
+						if (off - headerRoom > start) {
+							out.write(buf, start, off - headerRoom - start);
+						}
+						start = headerStart;
+					}
+					off += length + headerRoom;
+					opcode = OPCODE_CONTINUATION;
+				}
+				if (count > headerRoom) {
+					out.write(buf, start, count - start);
+				}
+				out.flush();
+			}
+		} finally {
+			if (buf.length > MAX_POOLED_BUFFER_SIZE) {
+				allocate(MIN_BUFFER_SIZE);
+			}
+			reset();
+			if (deflater != null) {
+				if (plain.length > MAX_POOLED_BUFFER_SIZE) {
+					plain = new byte[MIN_BUFFER_SIZE];
+				}
+				if (compressed.length > MAX_POOLED_BUFFER_SIZE) {
+					compressed = new byte[MIN_BUFFER_SIZE];
+				}
+				plainCount = 0;
+			}
+		}
+	}
+
+	/**
+	 * Compresses the message written since the last flush into
+	 * <code>compressed</code>, flushing the deflater to a byte boundary and
+	 * leaving off the empty block that ends the flush, as RFC 7692 asks.
+	 *
+	 * @return the length of the compressed message
+	 */
+	// Compression is only agreed where PerMessageDeflate.isSupported()
+	@SuppressLint("NewApi")
+	private int deflate() {
+		deflater.setInput(plain, 0, plainCount);
+		int length = 0;
+		while (true) {
+			length += deflater.deflate(compressed, length, compressed.length - length, Deflater.SYNC_FLUSH);
+			if (length < compressed.length) {
+				break;
+			}
+			// The output filled the buffer, so there may be more of it
+			compressed = ensureCapacity(compressed, length, length + 1);
+		}
+		if (noContextTakeover) {
+			deflater.reset();
+		}
+		return length - DEFLATE_TAIL_LENGTH;
+	}
+
+	private void reset() {
+		count = headerRoom;
+		frameRemaining = maxFrameSize;
+	}
+
+	/**
+	 * Leaves room for the header of the next frame.
+	 */
+	private void nextFrame() {
+		ensureCapacity(count + headerRoom);
+		count += headerRoom;
+		frameRemaining = maxFrameSize;
+	}
+
+	private static int headerLength(int length) {
+		return length > 0xFFFF ? 14 : length >= 0x7E ? 8 : 6;
+	}
+
+	/**
+	 * Writes the header of a frame in front of its payload.
+	 *
+	 * @return the index of the first byte of the header
+	 */
+	private int writeHeader(int off, byte opcode, boolean fin, int length, int key) {
+		int start = off - headerLength(length);
+		if (length > 0xFFFF) {
+			buf[start + 1] = (byte) 0xFF;
+			buffer.putLong(start + 2, length);
+		} else if (length >= 0x7E) {
+			buf[start + 1] = (byte) 0xFE;
+			buffer.putShort(start + 2, (short) length);
+		} else {
+			buf[start + 1] = (byte) (0x80 | length);
+		}
+		buf[start] = (byte) (fin ? 0x80 | opcode : opcode);
+		buffer.putInt(off - 4, key);
+		return start;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > buf.length) {
+			byte[] old = buf;
+			allocate(grow(buf.length, capacity));
+			System.arraycopy(old, 0, buf, 0, count);
+		}
+	}
+
+	/**
+	 * @return the array, or a copy of its first <code>count</code> bytes in a
+	 *         larger one if it is shorter than <code>capacity</code>
+	 */
+	private static byte[] ensureCapacity(byte[] b, int count, int capacity) {
+		if (capacity <= b.length) {
+			return b;
+		}
+		byte[] copy = new byte[grow(b.length, capacity)];
+		System.arraycopy(b, 0, copy, 0, count);
+		return copy;
+	}
+
+	private static int grow(int size, int capacity) {
+		do {
+			size <<= 1;
+		} while (size < capacity);
+		return size;
+	}
+
+	private void allocate(int size) {
+		buf = new byte[size];
+		buffer = ByteBuffer.wrap(buf);
+	}
+}
@@ -24,6 +24,14 @@ import java.net.SocketTimeoutException;
 import org.cion.eclipse.mqtt5.client.logging.Logger;
 import org.cion.eclipse.mqtt5.client.logging.LoggerFactory;
 
+/**
+ * Reads WebSocket frames on a thread of its own and writes their payload to a
+ * pipe that the client reads.
+ *
+ * @deprecated the WebSocket network modules read frames on the client's
+ *             receiver thread with a {@link WebSocketInputStream}
+ */
+@Deprecated
 public class WebSocketReceiver implements Runnable{
 
 	private static final String CLASS_NAME = WebSocketReceiver.class.getName();
@@ -15,11 +15,9 @@
  */
 package org.cion.eclipse.mqtt5.client.websocket;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
 import java.nio.ByteBuffer;
 import java.util.Map;
 
@@ -35,37 +33,33 @@ public class WebSocketSecureNetworkModule extends SSLNetworkModule{
 	private static final String CLASS_NAME = WebSocketSecureNetworkModule.class.getName();
 	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 	
-	private PipedInputStream pipedInputStream;
-	private WebSocketReceiver webSocketReceiver;
+	private WebSocketInputStream webSocketInputStream;
 	private String uri;
 	private String host;
 	private int port;
 	ByteBuffer recievedPayload;
 	Map<String, String> customWebSocketHeaders;
 
-	/**
-	 * Overrides the flush method.
-	 * This allows us to encode the MQTT payload into a WebSocket
-	 *  Frame before passing it through to the real socket.
-	 */
-	private ByteArrayOutputStream outputStream = new ExtendedByteArrayOutputStream(this);
+	private WebSocketOutputStream webSocketOutputStream;
+	private int maxFrameSize = 0;
+	private PerMessageDeflate perMessageDeflate;
 
 	public WebSocketSecureNetworkModule(SSLSocketFactory factory, String uri, String host, int port, String clientId) {
 		super(factory, host, port, clientId);
 		this.uri = uri;
 		this.host = host;
 		this.port = port;
-		this.pipedInputStream = new PipedInputStream();
 		log.setResourceName(clientId);
 	}
 
 	@Override
 	public void start() throws IOException, MqttException {
 		super.start();
-		WebSocketHandshake handshake = new WebSocketHandshake(super.getInputStream(), super.getOutputStream(), uri, host, port, customWebSocketHeaders);
+		WebSocketHandshake handshake = new WebSocketHandshake(super.getInputStream(), super.getOutputStream(), uri, host, port, customWebSocketHeaders, perMessageDeflate);
 		handshake.execute();
-		this.webSocketReceiver = new WebSocketReceiver(getSocketInputStream(), pipedInputStream);
-		webSocketReceiver.start("WssSocketReceiver");
+		PerMessageDeflate agreed = handshake.getPerMessageDeflate();
+		this.webSocketInputStream = new WebSocketInputStream(getSocketInputStream(), getSocketOutputStream(), agreed);
+		this.webSocketOutputStream = new WebSocketOutputStream(getSocketOutputStream(), maxFrameSize, agreed);
 
 	}
 
@@ -79,28 +73,48 @@ public class WebSocketSecureNetworkModule extends SSLNetworkModule{
 	
 	@Override
 	public InputStream getInputStream() throws IOException {
-		return pipedInputStream;
+		return webSocketInputStream;
 	}
 	
 	@Override
 	public OutputStream getOutputStream() throws IOException {
-		return outputStream;
+		return webSocketOutputStream;
 	}
 
 	public void setCustomWebSocketHeaders(Map<String, String> customWebSocketHeaders) {
 		this.customWebSocketHeaders = customWebSocketHeaders;
 	}
 
+	/**
+	 * Sets the largest payload of a WebSocket frame sent to the server. Larger
+	 * packets are split into continuation frames.
+	 *
+	 * @param maxFrameSize the largest payload in bytes, 0 for no limit
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * Sets the permessage-deflate parameters offered to the server. Messages
+	 * are compressed if the server accepts the offer.
+	 *
+	 * @param perMessageDeflate the parameters to offer, or null to not offer
+	 *                          compression
+	 */
+	public void setPerMessageDeflate(PerMessageDeflate perMessageDeflate) {
+		this.perMessageDeflate = perMessageDeflate;
+	}
+
 	@Override
 	public void stop() throws IOException {
 		// Creating Close Frame
 		WebSocketFrame frame = new WebSocketFrame((byte)0x08, true, "1000".getBytes());
 		byte[] rawFrame = frame.encodeFrame();
-		getSocketOutputStream().write(rawFrame);
-		getSocketOutputStream().flush();
-
-		if(webSocketReceiver != null){
-			webSocketReceiver.stop();
+		OutputStream socketOutputStream = getSocketOutputStream();
+		synchronized (socketOutputStream) {
+			socketOutputStream.write(rawFrame);
+			socketOutputStream.flush();
 		}
 		super.stop();
 	}
@@ -74,6 +74,12 @@ public class WebSocketSecureNetworkModuleFactory implements NetworkModuleFactory
 		netModule.setSSLHostnameVerifier(options.getSSLHostnameVerifier());
 		netModule.setHttpsHostnameVerificationEnabled(options.isHttpsHostnameVerificationEnabled());
 		netModule.setCustomWebSocketHeaders(options.getCustomWebSocketHeaders());
+		netModule.setMaxFrameSize(options.getWebSocketMaxFrameSize());
+		if (options.isWebSocketCompression()) {
+			netModule.setPerMessageDeflate(new PerMessageDeflate(options.isWebSocketCompressionClientNoContextTakeover(),
+					options.isWebSocketCompressionServerNoContextTakeover(),
+					options.getWebSocketCompressionServerMaxWindowBits()));
+		}
 		// Ciphers suites need to be set, if they are available
 		if (wSSFactoryFactory != null) {
 			String[] enabledCiphers = wSSFactoryFactory.getEnabledCipherSuites(null);
@@ -0,0 +1,180 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.wire;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.cion.eclipse.mqtt5.client.MqttClientException;
+import org.cion.eclipse.mqtt5.client.internal.MqttState;
+import org.cion.eclipse.mqtt5.client.logging.Logger;
+import org.cion.eclipse.mqtt5.client.logging.LoggerFactory;
+import org.cion.eclipse.mqtt5.common.ExceptionHelper;
+import org.cion.eclipse.mqtt5.common.MqttException;
+import org.cion.eclipse.mqtt5.common.packet.MqttDataTypes;
+import org.cion.eclipse.mqtt5.common.packet.MqttWireMessage;
+
+/**
+ * An <code>MqttFrameDecoder</code> decodes <code>MqttWireMessage</code>s from
+ * bytes as they arrive from a non-blocking channel.
+ * <p>
+ * Unlike {@link MqttInputStream} it never blocks: bytes are offered as they are
+ * read, in chunks of any size, and a message is returned once all of its bytes
+ * have been seen. The fixed header may be split across reads. Packets are
+ * collected in a receive buffer that is reused from one packet to the next in
+ * the same way as <code>MqttInputStream</code> does.
+ */
+public class MqttFrameDecoder {
+	private static final String CLASS_NAME = MqttFrameDecoder.class.getName();
+	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	/** The smallest receive buffer allocated. */
+	private static final int MIN_POOLED_BUFFER_SIZE = 256;
+	/** The largest receive buffer kept between packets. */
+	private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+	/** The largest number of bytes in an encoded remaining length. */
+	private static final int MAX_REMAINING_LENGTH_BYTES = 4;
+
+	private MqttState clientState;
+	private boolean headerStarted;
+	private byte first;
+	private int remLen;
+	private int remLenBytes;
+	private int multiplier;
+	private boolean headerComplete;
+	private int packetLen;
+	private byte[] packet;
+	private byte[] receiveBuffer;
+
+	public MqttFrameDecoder(MqttState clientState, String clientId) {
+		this.clientState = clientState;
+		log.setResourceName(clientId);
+	}
+
+	/**
+	 * Decodes the next message from the buffer, consuming only the bytes that
+	 * belong to it. Call repeatedly until null is returned, at which point all
+	 * the remaining bytes in the buffer have been consumed as part of a message
+	 * that is not yet complete.
+	 *
+	 * @param src the bytes read from the network
+	 * @return the next complete message, or null if more bytes are needed
+	 * @throws IOException   if the remaining length is malformed
+	 * @throws MqttException if the message is invalid
+	 */
+	public MqttWireMessage decode(ByteBuffer src) throws IOException, MqttException {
+		final String methodName = "decode";
+
+		if (!headerComplete) {
+			if (!decodeHeader(src)) {
+				return null;
+			}
+		}
+
+		int count = Math.min(src.remaining(), remLen - packetLen);
+		src.get(packet, packetLen, count);
+		packetLen += count;
+		if (count > 0) {
+			clientState.notifyReceivedBytes(count);
+		}
+		if (packetLen < remLen) {
+			return null;
+		}
+
+		// reset packet parsing state
+		int length = remLen;
+		headerStarted = false;
+		headerComplete = false;
+
+		MqttWireMessage message;
+		try {
+			message = MqttWireMessage.createWireMessage(first, packet, 0, length);
+		} finally {
+			packet = null;
+		}
+		// @TRACE 530= Received {0}
+		log.fine(CLASS_NAME, methodName, "530", new Object[]{message});
+		return message;
+	}
+
+	/**
+	 * Consumes fixed header bytes from the buffer.
+	 *
+	 * @return true once the whole fixed header has been read
+	 */
+	private boolean decodeHeader(ByteBuffer src) throws IOException, MqttException {
+		if (!headerStarted) {
+			if (!src.hasRemaining()) {
+				return false;
+			}
+			first = src.get();
+			clientState.notifyReceivedBytes(1);
+
+			byte type = (byte) ((first >>> 4) & 0x0F);
+			if ((type < MqttWireMessage.MESSAGE_TYPE_CONNECT) ||
+					(type > MqttWireMessage.MESSAGE_TYPE_AUTH)) {
+				// Invalid MQTT message type...
+				throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_INVALID_MESSAGE);
+			}
+
+			byte reserved = (byte) (first & 0x0F);
+			MqttWireMessage.validateReservedBits(type, reserved);
+
+			headerStarted = true;
+			remLen = 0;
+			remLenBytes = 0;
+			multiplier = 1;
+		}
+
+		while (src.hasRemaining()) {
+			byte digit = src.get();
+			clientState.notifyReceivedBytes(1);
+			remLen += ((digit & 0x7F) * multiplier);
+			multiplier *= 128;
+			remLenBytes++;
+			if ((digit & 0x80) == 0) {
+				int packetSize = 1 + remLenBytes + remLen;
+				if (this.clientState.getIncomingMaximumPacketSize() != null &&
+						packetSize > this.clientState.getIncomingMaximumPacketSize()) {
+					// Incoming packet is too large
+					throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_INCOMING_PACKET_TOO_LARGE);
+				}
+				packet = getReceiveBuffer(remLen);
+				packetLen = 0;
+				headerComplete = true;
+				return true;
+			}
+			if (remLenBytes == MAX_REMAINING_LENGTH_BYTES) {
+				throw new IOException("This property must be a number between 0 and "
+						+ MqttDataTypes.VARIABLE_BYTE_INT_MAX + ".");
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a buffer of at least the given length, reusing the receive buffer
+	 * when the packet fits within {@link #MAX_POOLED_BUFFER_SIZE}.
+	 */
+	private byte[] getReceiveBuffer(int length) {
+		if (length > MAX_POOLED_BUFFER_SIZE) {
+			return new byte[length];
+		}
+		if (receiveBuffer == null || receiveBuffer.length < length) {
+			int size = MIN_POOLED_BUFFER_SIZE;
+			while (size < length) {
+				size <<= 1;
+			}
+			receiveBuffer = new byte[size];
+		}
+		return receiveBuffer;
+	}
+}
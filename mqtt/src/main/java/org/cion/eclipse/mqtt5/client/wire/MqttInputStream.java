@@ -17,7 +17,6 @@ package org.cion.eclipse.mqtt5.client.wire;
 
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
@@ -32,27 +31,39 @@ import org.cion.eclipse.mqtt5.common.ExceptionHelper;
 import org.cion.eclipse.mqtt5.common.MqttException;
 import org.cion.eclipse.mqtt5.common.packet.MqttDataTypes;
 import org.cion.eclipse.mqtt5.common.packet.MqttWireMessage;
+import org.cion.eclipse.mqtt5.common.packet.util.VariableByteInteger;
 
 
 /**
  * An <code>MqttInputStream</code> lets applications read instances of
  * <code>MqttWireMessage</code>.
+ * <p>
+ * Packets are read into a receive buffer that is reused from one packet to the
+ * next. The buffer grows in power of two steps up to
+ * {@link #MAX_POOLED_BUFFER_SIZE}; larger packets are read into a buffer of
+ * their own which is dropped once decoded. Decoding copies everything it keeps
+ * out of the buffer, so it can be reused as soon as the message is created.
  */
 public class MqttInputStream extends InputStream {
     private static final String CLASS_NAME = MqttInputStream.class.getName();
     private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
+    /** The smallest receive buffer allocated. */
+    private static final int MIN_POOLED_BUFFER_SIZE = 256;
+    /** The largest receive buffer kept between packets. */
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
     private MqttState clientState = null;
     private DataInputStream in;
-    private ByteArrayOutputStream bais;
+    private byte first;
     private int remLen;
     private int packetLen;
     private byte[] packet;
+    private byte[] receiveBuffer;
 
     public MqttInputStream(MqttState clientState, InputStream in, String clientId) {
         this.clientState = clientState;
         this.in = new DataInputStream(in);
-        this.bais = new ByteArrayOutputStream();
         this.remLen = -1;
         log.setResourceName(clientId);
     }
@@ -97,9 +108,7 @@ public class MqttInputStream extends InputStream {
                 // Should we lose synch with the stream,
                 // the keepalive mechanism would kick in
                 // closing the connection.
-                bais.reset();
-
-                byte first = in.readByte();
+                first = in.readByte();
                 clientState.notifyReceivedBytes(1);
 
                 byte type = (byte) ((first >>> 4) & 0x0F);
@@ -112,15 +121,15 @@ public class MqttInputStream extends InputStream {
                 byte reserved = (byte) (first & 0x0F);
                 MqttWireMessage.validateReservedBits(type, reserved);
 
-                remLen = MqttDataTypes.readVariableByteInteger(in).getValue();
-                bais.write(first);
-                bais.write(MqttWireMessage.encodeVariableByteInteger((int) remLen));
-                packet = new byte[(int) (bais.size() + remLen)];
+                VariableByteInteger remainingLength = MqttDataTypes.readVariableByteInteger(in);
+                int packetSize = 1 + remainingLength.getEncodedLength() + remainingLength.getValue();
                 if (this.clientState.getIncomingMaximumPacketSize() != null &&
-                        bais.size() + remLen > this.clientState.getIncomingMaximumPacketSize()) {
+                        packetSize > this.clientState.getIncomingMaximumPacketSize()) {
                     // Incoming packet is too large
                     throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_INCOMING_PACKET_TOO_LARGE);
                 }
+                remLen = remainingLength.getValue();
+                packet = getReceiveBuffer(remLen);
                 packetLen = 0;
             }
 
@@ -130,11 +139,14 @@ public class MqttInputStream extends InputStream {
                 readFully();
 
                 // reset packet parsing state
+                int length = remLen;
                 remLen = -1;
 
-                byte[] header = bais.toByteArray();
-                System.arraycopy(header, 0, packet, 0, header.length);
-                message = MqttWireMessage.createWireMessage(packet);
+                try {
+                    message = MqttWireMessage.createWireMessage(first, packet, 0, length);
+                } finally {
+                    packet = null;
+                }
                 // @TRACE 530= Received {0}
                 log.fine(CLASS_NAME, methodName, "530", new Object[]{message});
             }
@@ -146,8 +158,8 @@ public class MqttInputStream extends InputStream {
     }
 
     private void readFully() throws IOException {
-        int off = bais.size() + (int) packetLen;
-        int len = (int) (remLen - packetLen);
+        int off = packetLen;
+        int len = remLen - packetLen;
         if (len < 0) {
             throw new IndexOutOfBoundsException();
         }
@@ -170,4 +182,22 @@ public class MqttInputStream extends InputStream {
             n += count;
         }
     }
+
+    /**
+     * Returns a buffer of at least the given length, reusing the receive buffer
+     * when the packet fits within {@link #MAX_POOLED_BUFFER_SIZE}.
+     */
+    private byte[] getReceiveBuffer(int length) {
+        if (length > MAX_POOLED_BUFFER_SIZE) {
+            return new byte[length];
+        }
+        if (receiveBuffer == null || receiveBuffer.length < length) {
+            int size = MIN_POOLED_BUFFER_SIZE;
+            while (size < length) {
+                size <<= 1;
+            }
+            receiveBuffer = new byte[size];
+        }
+        return receiveBuffer;
+    }
 }
@@ -18,6 +18,8 @@ package org.cion.eclipse.mqtt5.client.wire;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 
 import org.cion.eclipse.mqtt5.client.MqttClientException;
 import org.cion.eclipse.mqtt5.client.internal.MqttState;
@@ -31,13 +33,21 @@ import org.cion.eclipse.mqtt5.common.packet.MqttWireMessage;
 /**
  * An <code>MqttOutputStream</code> lets applications write instances of
  * <code>MqttWireMessage</code>. 
+ * <p>
+ * When constructed with a <code>GatheringByteChannel</code> each message is
+ * written as its fixed header, variable header and payload buffers in a
+ * gathering write, rather than being copied through a buffered stream.
  */
 public class MqttOutputStream extends OutputStream {
 	private static final String CLASS_NAME = MqttOutputStream.class.getName();
 	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
+	// Large payloads are gathered in slices so that write progress is still reported
+	private static final int GATHER_SLICE_SIZE = 64 * 1024;
+
 	private MqttState clientState = null;
 	private BufferedOutputStream out;
+	private GatheringByteChannel channel;
 	
 	public MqttOutputStream(MqttState clientState, OutputStream out, String clientId) {
 		this.clientState = clientState;
@@ -45,31 +55,55 @@ public class MqttOutputStream extends OutputStream {
 		log.setResourceName(clientId);
 	}
 	
+	public MqttOutputStream(MqttState clientState, GatheringByteChannel channel, String clientId) {
+		this.clientState = clientState;
+		this.channel = channel;
+		log.setResourceName(clientId);
+	}
+	
 	@Override
 	public void close() throws IOException {
-		out.close();
+		if (channel != null) {
+			channel.close();
+		} else {
+			out.close();
+		}
 	}
 	
 	@Override
 	public void flush() throws IOException {
-		out.flush();
+		if (channel instanceof StreamGatheringChannel) {
+			((StreamGatheringChannel) channel).flush();
+		} else if (out != null) {
+			out.flush();
+		}
 	}
 	
 	@Override
 	public void write(byte[] b) throws IOException {
-		out.write(b);
-		clientState.notifySentBytes(b.length);
+		write(b, 0, b.length);
 	}
 	
 	@Override
 	public void write(byte[] b, int off, int len) throws IOException {
-		out.write(b, off, len);
+		if (channel != null) {
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} else {
+			out.write(b, off, len);
+		}
 		clientState.notifySentBytes(len);
 	}
 	
 	@Override
 	public void write(int b) throws IOException {
-		out.write(b);
+		if (channel != null) {
+			write(new byte[] { (byte) b }, 0, 1);
+		} else {
+			out.write(b);
+		}
 	}
 
 	/**
@@ -80,6 +114,12 @@ public class MqttOutputStream extends OutputStream {
 	 */
 	public void write(MqttWireMessage message) throws IOException, MqttException {
 		final String methodName = "write";
+		if (channel != null) {
+			gather(message);
+			// @TRACE 529= sent {0}
+			log.fine(CLASS_NAME, methodName, "529", new Object[]{message});
+			return;
+		}
 		byte[] bytes = message.getHeader();
 		byte[] pl = message.getPayload();
 		if(this.clientState.getOutgoingMaximumPacketSize() != null && 
@@ -102,5 +142,34 @@ public class MqttOutputStream extends OutputStream {
 		// @TRACE 529= sent {0}
     	log.fine(CLASS_NAME, methodName, "529", new Object[]{message});
 	}
-}
 
+	/**
+	 * Writes the message's header and payload buffers to the channel without
+	 * first copying them into a single array.
+	 */
+	private void gather(MqttWireMessage message) throws IOException, MqttException {
+		ByteBuffer[] buffers = message.getBuffers();
+		long length = 0;
+		for (ByteBuffer buffer : buffers) {
+			length += buffer.remaining();
+		}
+		if (this.clientState.getOutgoingMaximumPacketSize() != null &&
+				length > this.clientState.getOutgoingMaximumPacketSize()) {
+			// Outgoing packet is too large
+			throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_OUTGOING_PACKET_TOO_LARGE);
+		}
+
+		ByteBuffer payload = buffers[buffers.length - 1];
+		int payloadEnd = payload.limit();
+		payload.limit(Math.min(payloadEnd, payload.position() + GATHER_SLICE_SIZE));
+		long written = 0;
+		while (written < length) {
+			long count = channel.write(buffers);
+			written += count;
+			clientState.notifySentBytes((int) count);
+			if (!payload.hasRemaining() && payload.limit() < payloadEnd) {
+				payload.limit(Math.min(payloadEnd, payload.limit() + GATHER_SLICE_SIZE));
+			}
+		}
+	}
+}
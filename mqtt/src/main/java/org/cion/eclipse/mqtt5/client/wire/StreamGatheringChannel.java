@@ -0,0 +1,104 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.wire;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A <code>GatheringByteChannel</code> that writes to a socket
+ * <code>OutputStream</code>.
+ * <p>
+ * Heap buffers are written straight from their backing arrays. Small buffers
+ * (headers, acks, small payloads) are coalesced so that a packet, or a batch of
+ * packets, still goes out in a single socket write on {@link #flush()}, while
+ * buffers at least as large as the coalescing buffer bypass it and are written
+ * from their own array without being copied.
+ * <p>
+ * A socket stream is used rather than a <code>SocketChannel</code> because the
+ * receiver relies on socket read timeouts, and a timed read on a channel backed
+ * socket switches the channel into non-blocking mode underneath the sender.
+ */
+public class StreamGatheringChannel implements GatheringByteChannel {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final BufferedOutputStream out;
+	private byte[] scratch;
+	private boolean open = true;
+
+	public StreamGatheringChannel(OutputStream out) {
+		this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		long written = 0;
+		for (int i = offset; i < offset + length; i++) {
+			written += write(srcs[i]);
+		}
+		return written;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		int len = src.remaining();
+		if (src.hasArray()) {
+			out.write(src.array(), src.arrayOffset() + src.position(), len);
+			src.position(src.limit());
+		} else {
+			if (scratch == null) {
+				scratch = new byte[BUFFER_SIZE];
+			}
+			while (src.hasRemaining()) {
+				int count = Math.min(scratch.length, src.remaining());
+				src.get(scratch, 0, count);
+				out.write(scratch, 0, count);
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * Writes any coalesced bytes to the underlying stream and flushes it.
+	 *
+	 * @throws IOException if an exception is thrown when writing to the stream
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		open = false;
+		out.close();
+	}
+}
@@ -93,8 +93,7 @@ public class MqttAuth extends MqttWireMessage {
 			outputStream.writeByte(reasonCode);
 
 			// Write Identifier / Value Fields
-			byte[] identifierValueFieldsByteArray = this.properties.encodeProperties();
-			outputStream.write(identifierValueFieldsByteArray);
+			this.properties.encodeProperties(outputStream);
 			outputStream.flush();
 			return baos.toByteArray();
 		} catch (IOException ioe) {
@@ -97,8 +97,7 @@ public class MqttConnAck extends MqttAck {
 			dos.write((byte) reasonCode);
 
 			// Write Identifier / Value Fields
-			byte[] identifierValueFieldsByteArray = this.properties.encodeProperties();
-			dos.write(identifierValueFieldsByteArray);
+			this.properties.encodeProperties(dos);
 			dos.flush();
 			return baos.toByteArray();
 		} catch (IOException ioe) {
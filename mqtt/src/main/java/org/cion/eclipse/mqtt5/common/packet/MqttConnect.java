@@ -212,8 +212,7 @@ public class MqttConnect extends MqttWireMessage {
 			dos.writeShort(keepAliveInterval);
 
 			// Write Identifier / Value Fields
-			byte[] identifierValueFieldsByteArray = this.properties.encodeProperties();
-			dos.write(identifierValueFieldsByteArray);
+			this.properties.encodeProperties(dos);
 			dos.flush();
 			
 			return baos.toByteArray();
@@ -233,8 +232,7 @@ public class MqttConnect extends MqttWireMessage {
 
 			if (willMessage != null) {
 				// Encode Will properties here
-				byte[] willIdentifierValueFieldsByteArray = willProperties.encodeProperties();
-				dos.write(willIdentifierValueFieldsByteArray);
+				willProperties.encodeProperties(dos);
 				
 				MqttDataTypes.encodeUTF8(dos, willDestination);
 				dos.writeShort(willMessage.getPayload().length);
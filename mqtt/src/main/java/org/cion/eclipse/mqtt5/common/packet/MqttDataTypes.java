@@ -12,6 +12,7 @@ import java.nio.charset.StandardCharsets;
 
 import org.cion.eclipse.mqtt5.common.MqttException;
 import org.cion.eclipse.mqtt5.common.packet.util.VariableByteInteger;
+import org.cion.eclipse.mqtt5.common.util.MqttTopicCache;
 
 public class MqttDataTypes {
 
@@ -133,6 +134,37 @@ public class MqttDataTypes {
 		}
 	}
 
+	/**
+	 * Encodes a topic name or topic filter as a UTF-8 string, reusing the
+	 * encoding held by the {@link MqttTopicCache} if there is one, so that topics
+	 * used again and again are only encoded once.
+	 * 
+	 * @param dos
+	 *            The stream to write the encoded topic to.
+	 * @param topic
+	 *            The topic to encode.
+	 * @throws MqttException
+	 *             if an error occurs whilst writing to the stream.
+	 */
+	public static void encodeTopic(DataOutputStream dos, String topic) throws MqttException {
+		MqttTopicCache cache = MqttTopicCache.getInstance();
+		byte[] encoded = cache.getEncoded(topic);
+		if (encoded == null) {
+			validateUTF8String(topic);
+			byte[] encodedString = topic.getBytes(STRING_ENCODING);
+			encoded = new byte[2 + encodedString.length];
+			encoded[0] = (byte) ((encodedString.length >>> 8) & 0xFF);
+			encoded[1] = (byte) ((encodedString.length >>> 0) & 0xFF);
+			System.arraycopy(encodedString, 0, encoded, 2, encodedString.length);
+			cache.putEncoded(topic, encoded);
+		}
+		try {
+			dos.write(encoded);
+		} catch (IOException ex) {
+			throw new MqttException(ex);
+		}
+	}
+
 	@SuppressLint("NewApi")
 	protected static final Charset STRING_ENCODING = StandardCharsets.UTF_8;
 
@@ -253,4 +285,93 @@ public class MqttDataTypes {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Writes a Variable Byte Integer straight to the stream, without the
+	 * intermediate array of {@link #encodeVariableByteInteger(int)}.
+	 * 
+	 * @param number
+	 *            The number to encode
+	 * @param stream
+	 *            The stream to write to
+	 * @throws IOException
+	 *             if an exception occurs whilst writing to the stream
+	 * @throws IllegalArgumentException
+	 *             if the number is not a valid Variable Byte Integer
+	 */
+	public static void writeVariableByteInteger(int number, DataOutputStream stream) throws IOException {
+		validateVariableByteInt(number);
+		do {
+			int digit = number & 0x7F;
+			number >>>= 7;
+			if (number > 0) {
+				digit |= 0x80;
+			}
+			stream.write(digit);
+		} while (number > 0);
+	}
+
+	/**
+	 * @param number
+	 *            A valid Variable Byte Integer
+	 * @return the number of bytes the encoded number takes, from 1 to 4.
+	 */
+	public static int getVariableByteIntegerLength(int number) {
+		if (number < 128) {
+			return 1;
+		} else if (number < 128 * 128) {
+			return 2;
+		} else if (number < 128 * 128 * 128) {
+			return 3;
+		}
+		return 4;
+	}
+
+	/**
+	 * Counts the bytes a String takes when encoded as UTF-8, without encoding
+	 * it.
+	 * 
+	 * @param input
+	 *            The String
+	 * @return the number of bytes, not including the two byte length that
+	 *         precedes the String on the wire.
+	 */
+	public static int getUTF8Length(String input) {
+		int length = 0;
+		for (int i = 0; i < input.length(); i++) {
+			char c = input.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < input.length()
+					&& Character.isLowSurrogate(input.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Decodes a UTF-8 string held in an array, without the length that precedes
+	 * it.
+	 * 
+	 * @param data
+	 *            The array holding the encoded string.
+	 * @param offset
+	 *            The index of the first byte of the string.
+	 * @param length
+	 *            The number of bytes the string takes.
+	 * @return the decoded String.
+	 * @throws MqttException
+	 *             if the string is not valid for MQTT.
+	 */
+	public static String decodeUTF8(byte[] data, int offset, int length) throws MqttException {
+		String output = new String(data, offset, length, STRING_ENCODING);
+		validateUTF8String(output);
+		return output;
+	}
+
 }
@@ -96,11 +96,8 @@ public class MqttDisconnect extends MqttWireMessage {
 			outputStream.writeByte(returnCode);
 
 			// Write Identifier / Value Fields
-			byte[] identifierValueFieldsByteArray = this.properties.encodeProperties();
-			if (identifierValueFieldsByteArray.length != 0) {
-				outputStream.write(identifierValueFieldsByteArray);
-				outputStream.flush();
-			}
+			this.properties.encodeProperties(outputStream);
+			outputStream.flush();
 			return baos.toByteArray();
 		} catch (IOException ioe) {
 			throw new MqttException(ioe);
@@ -1,9 +1,9 @@
 package org.cion.eclipse.mqtt5.common.packet;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -119,6 +119,9 @@ public class MqttProperties {
 	public static final byte SHARED_SUBSCRIPTION_AVAILABLE_IDENTIFIER = 0x2A;
 
 	private List<Byte> validProperties;
+	// The valid properties as bits, so that checking one does not search the list
+	private long validPropertiesLow = 0;
+	private long validPropertiesHigh = 0;
 
 	// Properties, sorted by Type
 	// Byte
@@ -174,8 +177,7 @@ public class MqttProperties {
 	 *            the valid properties for the associated packet.
 	 */
 	public MqttProperties(Byte[] validProperties) {
-		this.validProperties = Arrays.asList(validProperties);
-
+		setValidProperties(validProperties);
 	}
 
 	/**
@@ -187,7 +189,18 @@ public class MqttProperties {
 	 */
 	public void setValidProperties(Byte[] validProperties) {
 		this.validProperties = Arrays.asList(validProperties);
-
+		long low = 0;
+		long high = 0;
+		for (Byte identifier : validProperties) {
+			int id = identifier.byteValue();
+			if (id >= 0 && id < 64) {
+				low |= 1L << id;
+			} else if (id >= 64) {
+				high |= 1L << (id - 64);
+			}
+		}
+		this.validPropertiesLow = low;
+		this.validPropertiesHigh = high;
 	}
 
 	/**
@@ -200,198 +213,267 @@ public class MqttProperties {
 	 */
 	public byte[] encodeProperties() throws MqttException {
 		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			int length = writeProperties(null);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(
+					MqttDataTypes.getVariableByteIntegerLength(length) + length);
 			DataOutputStream outputStream = new DataOutputStream(baos);
+			MqttDataTypes.writeVariableByteInteger(length, outputStream);
+			writeProperties(outputStream);
+			return baos.toByteArray();
+		} catch (IOException ioe) {
+			throw new MqttException(ioe);
+		}
+	}
 
-			// Payload Format Indicator
-			if (payloadFormat && validProperties.contains(PAYLOAD_FORMAT_INDICATOR_IDENTIFIER)) {
-				outputStream.write(PAYLOAD_FORMAT_INDICATOR_IDENTIFIER);
-				outputStream.writeByte(0x01);
-			}
+	/**
+	 * Encodes Non-Null Properties that are in the list of valid properties,
+	 * preceded by their length, directly into the stream of the packet being
+	 * encoded.
+	 * 
+	 * @param outputStream
+	 *            the stream to write the encoded properties to.
+	 * @throws MqttException
+	 *             if an exception occurs whilst encoding the properties.
+	 */
+	public void encodeProperties(DataOutputStream outputStream) throws MqttException {
+		try {
+			MqttDataTypes.writeVariableByteInteger(writeProperties(null), outputStream);
+			writeProperties(outputStream);
+		} catch (IOException ioe) {
+			throw new MqttException(ioe);
+		}
+	}
 
-			// Message Expiry Interval
-			if (messageExpiryInterval != null && validProperties.contains(MESSAGE_EXPIRY_INTERVAL_IDENTIFIER)) {
-				outputStream.write(MESSAGE_EXPIRY_INTERVAL_IDENTIFIER);
-				MqttDataTypes.writeUnsignedFourByteInt(messageExpiryInterval, outputStream);
-			}
+	/**
+	 * Returns the number of bytes that {@link #encodeProperties()} produces,
+	 * including the length that precedes the properties, without encoding them.
+	 * 
+	 * @return the encoded length of the properties.
+	 * @throws MqttException
+	 *             if an exception occurs whilst measuring the properties.
+	 */
+	public int getEncodedLength() throws MqttException {
+		try {
+			int length = writeProperties(null);
+			return MqttDataTypes.getVariableByteIntegerLength(length) + length;
+		} catch (IOException ioe) {
+			throw new MqttException(ioe);
+		}
+	}
 
-			// Content Type
-			if (contentType != null && validProperties.contains(CONTENT_TYPE_IDENTIFIER)) {
-				outputStream.write(CONTENT_TYPE_IDENTIFIER);
-				MqttDataTypes.encodeUTF8(outputStream, contentType);
-			}
+	/**
+	 * Writes the valid Non-Null Properties, or just measures them if the stream
+	 * is null, so that the length can be written ahead of them without encoding
+	 * them twice.
+	 * 
+	 * @param outputStream
+	 *            the stream to write to, or null.
+	 * @return the number of bytes the properties take.
+	 */
+	private int writeProperties(DataOutputStream outputStream) throws IOException, MqttException {
+		int length = 0;
 
-			// Response Topic
-			if (responseTopic != null && validProperties.contains(RESPONSE_TOPIC_IDENTIFIER)) {
-				outputStream.write(RESPONSE_TOPIC_IDENTIFIER);
-				MqttDataTypes.encodeUTF8(outputStream, responseTopic);
-			}
+		// Payload Format Indicator
+		if (payloadFormat && isValid(PAYLOAD_FORMAT_INDICATOR_IDENTIFIER)) {
+			length += writeByte(outputStream, PAYLOAD_FORMAT_INDICATOR_IDENTIFIER, 0x01);
+		}
 
-			// Correlation Data
-			if (correlationData != null && validProperties.contains(CORRELATION_DATA_IDENTIFIER)) {
-				outputStream.write(CORRELATION_DATA_IDENTIFIER);
-				outputStream.writeShort(correlationData.length);
-				outputStream.write(correlationData);
-			}
+		// Message Expiry Interval
+		if (messageExpiryInterval != null && isValid(MESSAGE_EXPIRY_INTERVAL_IDENTIFIER)) {
+			length += writeFourByteInt(outputStream, MESSAGE_EXPIRY_INTERVAL_IDENTIFIER, messageExpiryInterval);
+		}
 
-			// Subscription Identifier
-			if (!publishSubscriptionIdentifiers.isEmpty() && validProperties.contains(SUBSCRIPTION_IDENTIFIER_MULTI)) {
-				for (Integer subscriptionIdentifier : publishSubscriptionIdentifiers) {
-					outputStream.write(SUBSCRIPTION_IDENTIFIER);
-					outputStream.write(MqttDataTypes.encodeVariableByteInteger(subscriptionIdentifier));
-				}
-			}
-			if (subscribeSubscriptionIdentifier != null && validProperties.contains(SUBSCRIPTION_IDENTIFIER_SINGLE)) {
-				outputStream.write(SUBSCRIPTION_IDENTIFIER);
-				outputStream.write(MqttDataTypes.encodeVariableByteInteger(subscribeSubscriptionIdentifier));
-			}
+		// Content Type
+		if (contentType != null && isValid(CONTENT_TYPE_IDENTIFIER)) {
+			length += writeUTF8(outputStream, CONTENT_TYPE_IDENTIFIER, contentType);
+		}
 
-			// Session Expiry Interval
-			if (sessionExpiryInterval != null && validProperties.contains(SESSION_EXPIRY_INTERVAL_IDENTIFIER)) {
-				outputStream.write(SESSION_EXPIRY_INTERVAL_IDENTIFIER);
-				MqttDataTypes.writeUnsignedFourByteInt(sessionExpiryInterval, outputStream);
+		// Response Topic
+		if (responseTopic != null && isValid(RESPONSE_TOPIC_IDENTIFIER)) {
+			length += writeUTF8(outputStream, RESPONSE_TOPIC_IDENTIFIER, responseTopic);
+		}
 
-			}
+		// Correlation Data
+		if (correlationData != null && isValid(CORRELATION_DATA_IDENTIFIER)) {
+			length += writeBinary(outputStream, CORRELATION_DATA_IDENTIFIER, correlationData);
+		}
 
-			// Assigned Client Identifier
-			if (assignedClientIdentifier != null && validProperties.contains(ASSIGNED_CLIENT_IDENTIFIER_IDENTIFIER)) {
-				outputStream.write(ASSIGNED_CLIENT_IDENTIFIER_IDENTIFIER);
-				MqttDataTypes.encodeUTF8(outputStream, assignedClientIdentifier);
+		// Subscription Identifier
+		if (!publishSubscriptionIdentifiers.isEmpty() && isValid(SUBSCRIPTION_IDENTIFIER_MULTI)) {
+			for (int i = 0; i < publishSubscriptionIdentifiers.size(); i++) {
+				length += writeVariableByteInt(outputStream, SUBSCRIPTION_IDENTIFIER,
+						publishSubscriptionIdentifiers.get(i));
 			}
+		}
+		if (subscribeSubscriptionIdentifier != null && isValid(SUBSCRIPTION_IDENTIFIER_SINGLE)) {
+			length += writeVariableByteInt(outputStream, SUBSCRIPTION_IDENTIFIER, subscribeSubscriptionIdentifier);
+		}
 
-			// Server Keep Alive
-			if (serverKeepAlive != null && validProperties.contains(SERVER_KEEP_ALIVE_IDENTIFIER)) {
-				outputStream.write(SERVER_KEEP_ALIVE_IDENTIFIER);
-				outputStream.writeShort(serverKeepAlive);
-			}
+		// Session Expiry Interval
+		if (sessionExpiryInterval != null && isValid(SESSION_EXPIRY_INTERVAL_IDENTIFIER)) {
+			length += writeFourByteInt(outputStream, SESSION_EXPIRY_INTERVAL_IDENTIFIER, sessionExpiryInterval);
+		}
 
-			// Auth Method
-			if (authenticationMethod != null && validProperties.contains(AUTH_METHOD_IDENTIFIER)) {
-				outputStream.write(AUTH_METHOD_IDENTIFIER);
-				MqttDataTypes.encodeUTF8(outputStream, authenticationMethod);
-			}
+		// Assigned Client Identifier
+		if (assignedClientIdentifier != null && isValid(ASSIGNED_CLIENT_IDENTIFIER_IDENTIFIER)) {
+			length += writeUTF8(outputStream, ASSIGNED_CLIENT_IDENTIFIER_IDENTIFIER, assignedClientIdentifier);
+		}
 
-			// Auth Data
-			if (authenticationData != null && validProperties.contains(AUTH_DATA_IDENTIFIER)) {
-				outputStream.write(AUTH_DATA_IDENTIFIER);
-				outputStream.writeShort(authenticationData.length);
-				outputStream.write(authenticationData);
-			}
+		// Server Keep Alive
+		if (serverKeepAlive != null && isValid(SERVER_KEEP_ALIVE_IDENTIFIER)) {
+			length += writeTwoByteInt(outputStream, SERVER_KEEP_ALIVE_IDENTIFIER, serverKeepAlive);
+		}
 
-			// Request Problem Info
-			if (requestProblemInfo != null && validProperties.contains(REQUEST_PROBLEM_INFO_IDENTIFIER)) {
-				outputStream.write(REQUEST_PROBLEM_INFO_IDENTIFIER);
-				outputStream.write(requestProblemInfo ? 1 : 0);
-			}
+		// Auth Method
+		if (authenticationMethod != null && isValid(AUTH_METHOD_IDENTIFIER)) {
+			length += writeUTF8(outputStream, AUTH_METHOD_IDENTIFIER, authenticationMethod);
+		}
 
-			// Will Delay Interval
-			if (willDelayInterval != null && validProperties.contains(WILL_DELAY_INTERVAL_IDENTIFIER)) {
-				outputStream.write(WILL_DELAY_INTERVAL_IDENTIFIER);
-				MqttDataTypes.writeUnsignedFourByteInt(willDelayInterval, outputStream);
-				// outputStream.writeInt(willDelayInterval);
-			}
+		// Auth Data
+		if (authenticationData != null && isValid(AUTH_DATA_IDENTIFIER)) {
+			length += writeBinary(outputStream, AUTH_DATA_IDENTIFIER, authenticationData);
+		}
 
-			// Request Response Info
-			if (requestResponseInfo != null && validProperties.contains(REQUEST_RESPONSE_INFO_IDENTIFIER)) {
-				outputStream.write(REQUEST_RESPONSE_INFO_IDENTIFIER);
-				outputStream.write(requestResponseInfo ? 1 : 0);
-			}
+		// Request Problem Info
+		if (requestProblemInfo != null && isValid(REQUEST_PROBLEM_INFO_IDENTIFIER)) {
+			length += writeByte(outputStream, REQUEST_PROBLEM_INFO_IDENTIFIER, requestProblemInfo ? 1 : 0);
+		}
 
-			// Response Info
-			if (responseInfo != null && validProperties.contains(RESPONSE_INFO_IDENTIFIER)) {
-				outputStream.write(RESPONSE_INFO_IDENTIFIER);
-				MqttDataTypes.encodeUTF8(outputStream, responseInfo);
-			}
+		// Will Delay Interval
+		if (willDelayInterval != null && isValid(WILL_DELAY_INTERVAL_IDENTIFIER)) {
+			length += writeFourByteInt(outputStream, WILL_DELAY_INTERVAL_IDENTIFIER, willDelayInterval);
+		}
 
-			// Server Reference
-			if (serverReference != null && validProperties.contains(SERVER_REFERENCE_IDENTIFIER)) {
-				outputStream.write(SERVER_REFERENCE_IDENTIFIER);
-				MqttDataTypes.encodeUTF8(outputStream, serverReference);
-			}
+		// Request Response Info
+		if (requestResponseInfo != null && isValid(REQUEST_RESPONSE_INFO_IDENTIFIER)) {
+			length += writeByte(outputStream, REQUEST_RESPONSE_INFO_IDENTIFIER, requestResponseInfo ? 1 : 0);
+		}
 
-			// Reason String
-			if (reasonString != null && validProperties.contains(REASON_STRING_IDENTIFIER)) {
-				outputStream.write(REASON_STRING_IDENTIFIER);
-				MqttDataTypes.encodeUTF8(outputStream, reasonString);
-			}
+		// Response Info
+		if (responseInfo != null && isValid(RESPONSE_INFO_IDENTIFIER)) {
+			length += writeUTF8(outputStream, RESPONSE_INFO_IDENTIFIER, responseInfo);
+		}
 
-			// Receive Maximum
-			if (receiveMaximum != null && validProperties.contains(RECEIVE_MAXIMUM_IDENTIFIER)) {
-				outputStream.write(RECEIVE_MAXIMUM_IDENTIFIER);
-				outputStream.writeShort(receiveMaximum);
-			}
+		// Server Reference
+		if (serverReference != null && isValid(SERVER_REFERENCE_IDENTIFIER)) {
+			length += writeUTF8(outputStream, SERVER_REFERENCE_IDENTIFIER, serverReference);
+		}
 
-			// Topic Alias Maximum
-			if (topicAliasMaximum != null && validProperties.contains(TOPIC_ALIAS_MAXIMUM_IDENTIFIER)) {
-				outputStream.write(TOPIC_ALIAS_MAXIMUM_IDENTIFIER);
-				outputStream.writeShort(topicAliasMaximum);
-			}
+		// Reason String
+		if (reasonString != null && isValid(REASON_STRING_IDENTIFIER)) {
+			length += writeUTF8(outputStream, REASON_STRING_IDENTIFIER, reasonString);
+		}
 
-			// Topic Alias
-			if (topicAlias != null && validProperties.contains(TOPIC_ALIAS_IDENTIFIER)) {
-				outputStream.write(TOPIC_ALIAS_IDENTIFIER);
-				outputStream.writeShort(topicAlias);
-			}
+		// Receive Maximum
+		if (receiveMaximum != null && isValid(RECEIVE_MAXIMUM_IDENTIFIER)) {
+			length += writeTwoByteInt(outputStream, RECEIVE_MAXIMUM_IDENTIFIER, receiveMaximum);
+		}
 
-			// Maximum QoS
-			if (maximumQoS != null && validProperties.contains(MAXIMUM_QOS_IDENTIFIER)) {
-				outputStream.write(MAXIMUM_QOS_IDENTIFIER);
-				outputStream.writeByte(maximumQoS);
-			}
+		// Topic Alias Maximum
+		if (topicAliasMaximum != null && isValid(TOPIC_ALIAS_MAXIMUM_IDENTIFIER)) {
+			length += writeTwoByteInt(outputStream, TOPIC_ALIAS_MAXIMUM_IDENTIFIER, topicAliasMaximum);
+		}
 
-			// Retain Available
-			if (retainAvailable != null && validProperties.contains(RETAIN_AVAILABLE_IDENTIFIER)) {
-				outputStream.write(RETAIN_AVAILABLE_IDENTIFIER);
-				outputStream.writeBoolean(retainAvailable);
-			}
+		// Topic Alias
+		if (topicAlias != null && isValid(TOPIC_ALIAS_IDENTIFIER)) {
+			length += writeTwoByteInt(outputStream, TOPIC_ALIAS_IDENTIFIER, topicAlias);
+		}
 
-			// User Defined Properties
-			if (userProperties != null && !userProperties.isEmpty() && validProperties.contains(USER_DEFINED_PAIR_IDENTIFIER)) {
-				for (UserProperty property : userProperties) {
-					// outputStream.write(USER_DEFINED_PAIR_IDENTIFIER);
-					outputStream.writeByte(USER_DEFINED_PAIR_IDENTIFIER);
-					MqttDataTypes.encodeUTF8(outputStream, property.getKey());
-					MqttDataTypes.encodeUTF8(outputStream, property.getValue());
-				}
-			}
+		// Maximum QoS
+		if (maximumQoS != null && isValid(MAXIMUM_QOS_IDENTIFIER)) {
+			length += writeByte(outputStream, MAXIMUM_QOS_IDENTIFIER, maximumQoS);
+		}
 
-			// Maximum Packet Size
-			if (maximumPacketSize != null && validProperties.contains(MAXIMUM_PACKET_SIZE_IDENTIFIER)) {
-				outputStream.write(MAXIMUM_PACKET_SIZE_IDENTIFIER);
-				MqttDataTypes.writeUnsignedFourByteInt(maximumPacketSize, outputStream);
+		// Retain Available
+		if (retainAvailable != null && isValid(RETAIN_AVAILABLE_IDENTIFIER)) {
+			length += writeByte(outputStream, RETAIN_AVAILABLE_IDENTIFIER, retainAvailable ? 1 : 0);
+		}
 
+		// User Defined Properties
+		if (userProperties != null && !userProperties.isEmpty() && isValid(USER_DEFINED_PAIR_IDENTIFIER)) {
+			for (int i = 0; i < userProperties.size(); i++) {
+				UserProperty property = userProperties.get(i);
+				length += writeUTF8(outputStream, USER_DEFINED_PAIR_IDENTIFIER, property.getKey());
+				length += writeUTF8(outputStream, (byte) 0, property.getValue()) - 1;
 			}
+		}
 
-			// Wildcard Subscription Available flag
-			if (wildcardSubscriptionsAvailable != null && validProperties.contains(WILDCARD_SUB_AVAILABLE_IDENTIFIER)) {
-				outputStream.write(WILDCARD_SUB_AVAILABLE_IDENTIFIER);
-				outputStream.writeBoolean(wildcardSubscriptionsAvailable);
-			}
+		// Maximum Packet Size
+		if (maximumPacketSize != null && isValid(MAXIMUM_PACKET_SIZE_IDENTIFIER)) {
+			length += writeFourByteInt(outputStream, MAXIMUM_PACKET_SIZE_IDENTIFIER, maximumPacketSize);
+		}
 
-			// Subscription Identifiers Available flag
-			if (subscriptionIdentifiersAvailable != null
-					&& validProperties.contains(SUBSCRIPTION_AVAILABLE_IDENTIFIER)) {
-				outputStream.write(SUBSCRIPTION_AVAILABLE_IDENTIFIER);
-				outputStream.writeBoolean(subscriptionIdentifiersAvailable);
-			}
+		// Wildcard Subscription Available flag
+		if (wildcardSubscriptionsAvailable != null && isValid(WILDCARD_SUB_AVAILABLE_IDENTIFIER)) {
+			length += writeByte(outputStream, WILDCARD_SUB_AVAILABLE_IDENTIFIER, wildcardSubscriptionsAvailable ? 1 : 0);
+		}
 
-			// Shared Subscription Available flag
-			if (sharedSubscriptionAvailable != null
-					&& validProperties.contains(SHARED_SUBSCRIPTION_AVAILABLE_IDENTIFIER)) {
-				outputStream.write(SHARED_SUBSCRIPTION_AVAILABLE_IDENTIFIER);
-				outputStream.writeBoolean(sharedSubscriptionAvailable);
-			}
+		// Subscription Identifiers Available flag
+		if (subscriptionIdentifiersAvailable != null && isValid(SUBSCRIPTION_AVAILABLE_IDENTIFIER)) {
+			length += writeByte(outputStream, SUBSCRIPTION_AVAILABLE_IDENTIFIER, subscriptionIdentifiersAvailable ? 1 : 0);
+		}
 
-			int length = outputStream.size();
-			outputStream.flush();
-			ByteArrayOutputStream finalOutput = new ByteArrayOutputStream();
-			finalOutput.write(MqttDataTypes.encodeVariableByteInteger(length));
-			finalOutput.write(baos.toByteArray());
+		// Shared Subscription Available flag
+		if (sharedSubscriptionAvailable != null && isValid(SHARED_SUBSCRIPTION_AVAILABLE_IDENTIFIER)) {
+			length += writeByte(outputStream, SHARED_SUBSCRIPTION_AVAILABLE_IDENTIFIER, sharedSubscriptionAvailable ? 1 : 0);
+		}
 
-			return finalOutput.toByteArray();
-		} catch (IOException ioe) {
-			throw new MqttException(ioe);
+		return length;
+	}
+
+	// Each of these writes an identifier and value if the stream is not null, and
+	// returns the number of bytes they take. An identifier of 0 is not written.
+
+	private static int writeByte(DataOutputStream out, byte identifier, int value) throws IOException {
+		if (out != null) {
+			out.write(identifier);
+			out.write(value);
+		}
+		return 2;
+	}
+
+	private static int writeTwoByteInt(DataOutputStream out, byte identifier, int value) throws IOException {
+		if (out != null) {
+			out.write(identifier);
+			out.writeShort(value);
+		}
+		return 3;
+	}
+
+	private static int writeFourByteInt(DataOutputStream out, byte identifier, long value) throws IOException {
+		if (out != null) {
+			out.write(identifier);
+			MqttDataTypes.writeUnsignedFourByteInt(value, out);
+		}
+		return 5;
+	}
+
+	private static int writeVariableByteInt(DataOutputStream out, byte identifier, int value) throws IOException {
+		if (out != null) {
+			out.write(identifier);
+			MqttDataTypes.writeVariableByteInteger(value, out);
+		}
+		return 1 + MqttDataTypes.getVariableByteIntegerLength(value);
+	}
+
+	private static int writeUTF8(DataOutputStream out, byte identifier, String value)
+			throws IOException, MqttException {
+		if (out != null) {
+			if (identifier != 0) {
+				out.write(identifier);
+			}
+			MqttDataTypes.encodeUTF8(out, value);
 		}
+		return 1 + 2 + MqttDataTypes.getUTF8Length(value);
+	}
+
+	private static int writeBinary(DataOutputStream out, byte identifier, byte[] value) throws IOException {
+		if (out != null) {
+			out.write(identifier);
+			out.writeShort(value.length);
+			out.write(value);
+		}
+		return 1 + 2 + value.length;
 	}
 
 	/**
@@ -410,102 +492,211 @@ public class MqttProperties {
 		int length = MqttDataTypes.readVariableByteInteger(dis).getValue();
 		if (length > 0) {
 			byte[] identifierValueByteArray = new byte[length];
-			dis.read(identifierValueByteArray, 0, length);
-			ByteArrayInputStream bais = new ByteArrayInputStream(identifierValueByteArray);
-			ArrayList<Byte> decodedProperties = new ArrayList<Byte>();
-			DataInputStream inputStream = new DataInputStream(bais);
-			while (inputStream.available() > 0) {
-				// Get the first Byte
-				byte identifier = inputStream.readByte();
-				if (validProperties.contains(identifier)) {
-					
-					// Verify that certain properties are not included more than once
-					if(!decodedProperties.contains(identifier)) {
-						decodedProperties.add(identifier);
-					} else if(identifier!= SUBSCRIPTION_IDENTIFIER && identifier != USER_DEFINED_PAIR_IDENTIFIER) {
-						// This property can only be included once
-						throw new MqttException(MqttException.REASON_CODE_DUPLICATE_PROPERTY);
-					}
+			dis.readFully(identifierValueByteArray, 0, length);
+			decodeProperties(identifierValueByteArray, 0, length);
+		}
+	}
 
-					if (identifier == PAYLOAD_FORMAT_INDICATOR_IDENTIFIER) {
-						payloadFormat = (boolean) inputStream.readBoolean();
-					} else if (identifier == MESSAGE_EXPIRY_INTERVAL_IDENTIFIER) {
-						messageExpiryInterval = MqttDataTypes.readUnsignedFourByteInt(inputStream);
-					} else if (identifier == CONTENT_TYPE_IDENTIFIER) {
-						contentType = MqttDataTypes.decodeUTF8(inputStream);
-					} else if (identifier == RESPONSE_TOPIC_IDENTIFIER) {
-						responseTopic = MqttDataTypes.decodeUTF8(inputStream);
-					} else if (identifier == CORRELATION_DATA_IDENTIFIER) {
-						int correlationDataLength = (int) inputStream.readShort();
-						correlationData = new byte[correlationDataLength];
-						inputStream.read(correlationData, 0, correlationDataLength);
-					} else if (identifier == SUBSCRIPTION_IDENTIFIER) {
-						int subscriptionIdentifier = MqttDataTypes.readVariableByteInteger(inputStream).getValue();
-						publishSubscriptionIdentifiers.add(subscriptionIdentifier);
-						// Bit of a hack, where we potentially write this many times, users should make
-						// sure they read the JavaDoc.
-						subscribeSubscriptionIdentifier = subscriptionIdentifier;
-					} else if (identifier == SESSION_EXPIRY_INTERVAL_IDENTIFIER) {
-						sessionExpiryInterval = MqttDataTypes.readUnsignedFourByteInt(inputStream);
-					} else if (identifier == ASSIGNED_CLIENT_IDENTIFIER_IDENTIFIER) {
-						assignedClientIdentifier = MqttDataTypes.decodeUTF8(inputStream);
-					} else if (identifier == SERVER_KEEP_ALIVE_IDENTIFIER) {
-						serverKeepAlive = MqttDataTypes.readUnsignedTwoByteInt(inputStream);
-					} else if (identifier == AUTH_METHOD_IDENTIFIER) {
-						authenticationMethod = MqttDataTypes.decodeUTF8(inputStream);
-					} else if (identifier == AUTH_DATA_IDENTIFIER) {
-						int authDataLength = inputStream.readShort();
-						authenticationData = new byte[authDataLength];
-						inputStream.read(this.authenticationData, 0, authDataLength);
-					} else if (identifier == REQUEST_PROBLEM_INFO_IDENTIFIER) {
-						requestProblemInfo = inputStream.read() != 0;
-					} else if (identifier == WILL_DELAY_INTERVAL_IDENTIFIER) {
-						willDelayInterval = MqttDataTypes.readUnsignedFourByteInt(inputStream);
-					} else if (identifier == REQUEST_RESPONSE_INFO_IDENTIFIER) {
-						requestResponseInfo = inputStream.read() != 0;
-					} else if (identifier == RESPONSE_INFO_IDENTIFIER) {
-						responseInfo = MqttDataTypes.decodeUTF8(inputStream);
-					} else if (identifier == SERVER_REFERENCE_IDENTIFIER) {
-						serverReference = MqttDataTypes.decodeUTF8(inputStream);
-					} else if (identifier == REASON_STRING_IDENTIFIER) {
-						reasonString = MqttDataTypes.decodeUTF8(inputStream);
-					} else if (identifier == RECEIVE_MAXIMUM_IDENTIFIER) {
-						receiveMaximum = (int) inputStream.readShort();
-					} else if (identifier == TOPIC_ALIAS_MAXIMUM_IDENTIFIER) {
-						topicAliasMaximum = (int) inputStream.readShort();
-					} else if (identifier == TOPIC_ALIAS_IDENTIFIER) {
-						topicAlias = (int) inputStream.readShort();
-					} else if (identifier == MAXIMUM_QOS_IDENTIFIER) {
-						maximumQoS = inputStream.read();
-					} else if (identifier == RETAIN_AVAILABLE_IDENTIFIER) {
-						retainAvailable = inputStream.readBoolean();
-					} else if (identifier == USER_DEFINED_PAIR_IDENTIFIER) {
-						String key = MqttDataTypes.decodeUTF8(inputStream);
-						String value = MqttDataTypes.decodeUTF8(inputStream);
-						userProperties.add(new UserProperty(key, value));
-					} else if (identifier == MAXIMUM_PACKET_SIZE_IDENTIFIER) {
-						maximumPacketSize = MqttDataTypes.readUnsignedFourByteInt(inputStream);
-					} else if (identifier == WILDCARD_SUB_AVAILABLE_IDENTIFIER) {
-						wildcardSubscriptionsAvailable = inputStream.readBoolean();
-					} else if (identifier == SUBSCRIPTION_AVAILABLE_IDENTIFIER) {
-						subscriptionIdentifiersAvailable = inputStream.readBoolean();
-					} else if (identifier == SHARED_SUBSCRIPTION_AVAILABLE_IDENTIFIER) {
-						sharedSubscriptionAvailable = inputStream.readBoolean();
-					} else {
-
-						// Unidentified Identifier
-						inputStream.close();
-						throw new MqttException(MqttException.REASON_CODE_INVALID_IDENTIFIER);
-					}
-				} else {
-					// Unidentified Identifier
-					inputStream.close();
-					throw new MqttException(MqttException.REASON_CODE_INVALID_IDENTIFIER);
-				}
+	/**
+	 * Decodes MQTT properties, not preceded by their length, straight from the
+	 * array holding them and sets them on this object.
+	 * 
+	 * @param data
+	 *            the array containing the encoded Properties.
+	 * @param offset
+	 *            the index of the first property.
+	 * @param length
+	 *            the number of bytes the properties take.
+	 * @throws IOException
+	 *             if the properties run past the end of their length
+	 * @throws MqttException
+	 *             if an invalid MQTT Property Identifier is present.
+	 */
+	public void decodeProperties(byte[] data, int offset, int length) throws IOException, MqttException {
+		int pos = offset;
+		int end = offset + length;
+		// Identifiers seen so far, by bit number; all valid identifiers are < 128
+		long decodedLow = 0;
+		long decodedHigh = 0;
+		while (pos < end) {
+			// Get the first Byte
+			byte identifier = data[pos++];
+			if (!isValid(identifier)) {
+				// Unidentified Identifier
+				throw new MqttException(MqttException.REASON_CODE_INVALID_IDENTIFIER);
+			}
 
+			// Verify that certain properties are not included more than once
+			long bit = 1L << (identifier & 0x3F);
+			boolean decoded;
+			if (identifier < 64) {
+				decoded = (decodedLow & bit) != 0;
+				decodedLow |= bit;
+			} else {
+				decoded = (decodedHigh & bit) != 0;
+				decodedHigh |= bit;
+			}
+			if (decoded && identifier != SUBSCRIPTION_IDENTIFIER && identifier != USER_DEFINED_PAIR_IDENTIFIER) {
+				// This property can only be included once
+				throw new MqttException(MqttException.REASON_CODE_DUPLICATE_PROPERTY);
+			}
+
+			if (identifier == PAYLOAD_FORMAT_INDICATOR_IDENTIFIER) {
+				checkRemaining(pos, 1, end);
+				payloadFormat = data[pos++] != 0;
+			} else if (identifier == MESSAGE_EXPIRY_INTERVAL_IDENTIFIER) {
+				checkRemaining(pos, 4, end);
+				messageExpiryInterval = readFourByteInt(data, pos);
+				pos += 4;
+			} else if (identifier == CONTENT_TYPE_IDENTIFIER) {
+				contentType = readUTF8(data, pos, end);
+				pos += 2 + readTwoByteInt(data, pos);
+			} else if (identifier == RESPONSE_TOPIC_IDENTIFIER) {
+				responseTopic = readUTF8(data, pos, end);
+				pos += 2 + readTwoByteInt(data, pos);
+			} else if (identifier == CORRELATION_DATA_IDENTIFIER) {
+				correlationData = readBinary(data, pos, end);
+				pos += 2 + correlationData.length;
+			} else if (identifier == SUBSCRIPTION_IDENTIFIER) {
+				int subscriptionIdentifier = 0;
+				int multiplier = 1;
+				byte digit;
+				do {
+					if (multiplier > 128 * 128 * 128) {
+						throw new IOException("Malformed Variable Byte Integer");
+					}
+					checkRemaining(pos, 1, end);
+					digit = data[pos++];
+					subscriptionIdentifier += (digit & 0x7F) * multiplier;
+					multiplier *= 128;
+				} while ((digit & 0x80) != 0);
+				publishSubscriptionIdentifiers.add(subscriptionIdentifier);
+				// Bit of a hack, where we potentially write this many times, users should make
+				// sure they read the JavaDoc.
+				subscribeSubscriptionIdentifier = subscriptionIdentifier;
+			} else if (identifier == SESSION_EXPIRY_INTERVAL_IDENTIFIER) {
+				checkRemaining(pos, 4, end);
+				sessionExpiryInterval = readFourByteInt(data, pos);
+				pos += 4;
+			} else if (identifier == ASSIGNED_CLIENT_IDENTIFIER_IDENTIFIER) {
+				assignedClientIdentifier = readUTF8(data, pos, end);
+				pos += 2 + readTwoByteInt(data, pos);
+			} else if (identifier == SERVER_KEEP_ALIVE_IDENTIFIER) {
+				checkRemaining(pos, 2, end);
+				serverKeepAlive = readTwoByteInt(data, pos);
+				pos += 2;
+			} else if (identifier == AUTH_METHOD_IDENTIFIER) {
+				authenticationMethod = readUTF8(data, pos, end);
+				pos += 2 + readTwoByteInt(data, pos);
+			} else if (identifier == AUTH_DATA_IDENTIFIER) {
+				authenticationData = readBinary(data, pos, end);
+				pos += 2 + authenticationData.length;
+			} else if (identifier == REQUEST_PROBLEM_INFO_IDENTIFIER) {
+				checkRemaining(pos, 1, end);
+				requestProblemInfo = data[pos++] != 0;
+			} else if (identifier == WILL_DELAY_INTERVAL_IDENTIFIER) {
+				checkRemaining(pos, 4, end);
+				willDelayInterval = readFourByteInt(data, pos);
+				pos += 4;
+			} else if (identifier == REQUEST_RESPONSE_INFO_IDENTIFIER) {
+				checkRemaining(pos, 1, end);
+				requestResponseInfo = data[pos++] != 0;
+			} else if (identifier == RESPONSE_INFO_IDENTIFIER) {
+				responseInfo = readUTF8(data, pos, end);
+				pos += 2 + readTwoByteInt(data, pos);
+			} else if (identifier == SERVER_REFERENCE_IDENTIFIER) {
+				serverReference = readUTF8(data, pos, end);
+				pos += 2 + readTwoByteInt(data, pos);
+			} else if (identifier == REASON_STRING_IDENTIFIER) {
+				reasonString = readUTF8(data, pos, end);
+				pos += 2 + readTwoByteInt(data, pos);
+			} else if (identifier == RECEIVE_MAXIMUM_IDENTIFIER) {
+				checkRemaining(pos, 2, end);
+				receiveMaximum = readTwoByteInt(data, pos);
+				pos += 2;
+			} else if (identifier == TOPIC_ALIAS_MAXIMUM_IDENTIFIER) {
+				checkRemaining(pos, 2, end);
+				topicAliasMaximum = readTwoByteInt(data, pos);
+				pos += 2;
+			} else if (identifier == TOPIC_ALIAS_IDENTIFIER) {
+				checkRemaining(pos, 2, end);
+				topicAlias = readTwoByteInt(data, pos);
+				pos += 2;
+			} else if (identifier == MAXIMUM_QOS_IDENTIFIER) {
+				checkRemaining(pos, 1, end);
+				maximumQoS = data[pos++] & 0xFF;
+			} else if (identifier == RETAIN_AVAILABLE_IDENTIFIER) {
+				checkRemaining(pos, 1, end);
+				retainAvailable = data[pos++] != 0;
+			} else if (identifier == USER_DEFINED_PAIR_IDENTIFIER) {
+				String key = readUTF8(data, pos, end);
+				pos += 2 + readTwoByteInt(data, pos);
+				String value = readUTF8(data, pos, end);
+				pos += 2 + readTwoByteInt(data, pos);
+				userProperties.add(new UserProperty(key, value));
+			} else if (identifier == MAXIMUM_PACKET_SIZE_IDENTIFIER) {
+				checkRemaining(pos, 4, end);
+				maximumPacketSize = readFourByteInt(data, pos);
+				pos += 4;
+			} else if (identifier == WILDCARD_SUB_AVAILABLE_IDENTIFIER) {
+				checkRemaining(pos, 1, end);
+				wildcardSubscriptionsAvailable = data[pos++] != 0;
+			} else if (identifier == SUBSCRIPTION_AVAILABLE_IDENTIFIER) {
+				checkRemaining(pos, 1, end);
+				subscriptionIdentifiersAvailable = data[pos++] != 0;
+			} else if (identifier == SHARED_SUBSCRIPTION_AVAILABLE_IDENTIFIER) {
+				checkRemaining(pos, 1, end);
+				sharedSubscriptionAvailable = data[pos++] != 0;
+			} else {
+				// Unidentified Identifier
+				throw new MqttException(MqttException.REASON_CODE_INVALID_IDENTIFIER);
 			}
 		}
+	}
 
+	private static void checkRemaining(int pos, int needed, int end) throws EOFException {
+		if (end - pos < needed) {
+			throw new EOFException();
+		}
+	}
+
+	private static int readTwoByteInt(byte[] data, int pos) {
+		return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+	}
+
+	private static Long readFourByteInt(byte[] data, int pos) {
+		return Long.valueOf(((long) (data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+				| ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF));
+	}
+
+	private static String readUTF8(byte[] data, int pos, int end) throws EOFException, MqttException {
+		checkRemaining(pos, 2, end);
+		int length = readTwoByteInt(data, pos);
+		checkRemaining(pos + 2, length, end);
+		return MqttDataTypes.decodeUTF8(data, pos + 2, length);
+	}
+
+	private static byte[] readBinary(byte[] data, int pos, int end) throws EOFException {
+		checkRemaining(pos, 2, end);
+		int length = readTwoByteInt(data, pos);
+		checkRemaining(pos + 2, length, end);
+		byte[] value = new byte[length];
+		System.arraycopy(data, pos + 2, value, 0, length);
+		return value;
+	}
+
+	/**
+	 * @return true if the identifier is one of the valid properties for the
+	 *         associated packet.
+	 */
+	private boolean isValid(byte identifier) {
+		if (identifier < 0) {
+			return false;
+		} else if (identifier < 64) {
+			return (validPropertiesLow & (1L << identifier)) != 0;
+		} else {
+			return (validPropertiesHigh & (1L << (identifier - 64))) != 0;
+		}
 	}
 
 	/**
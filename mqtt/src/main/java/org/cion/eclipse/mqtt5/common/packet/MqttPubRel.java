@@ -78,16 +78,16 @@ public class MqttPubRel extends MqttPersistableWireMessage {
 			// Encode the Message ID
 			outputStream.writeShort(msgId);
 
-			byte[] identifierValueFieldsByteArray = this.properties.encodeProperties();
+			int propertiesLength = this.properties.getEncodedLength();
 
-			if (reasonCode != MqttReturnCode.RETURN_CODE_SUCCESS && identifierValueFieldsByteArray.length == 1) {
+			if (reasonCode != MqttReturnCode.RETURN_CODE_SUCCESS && propertiesLength == 1) {
 				// Encode the Return Code
 				outputStream.write((byte) reasonCode);
-			} else if (reasonCode != MqttReturnCode.RETURN_CODE_SUCCESS || identifierValueFieldsByteArray.length > 1) {
+			} else if (reasonCode != MqttReturnCode.RETURN_CODE_SUCCESS || propertiesLength > 1) {
 				// Encode the Return Code
 				outputStream.write((byte) reasonCode);
 				// Write Identifier / Value Fields
-				outputStream.write(identifierValueFieldsByteArray);
+				this.properties.encodeProperties(outputStream);
 			}
 			
 			outputStream.flush();
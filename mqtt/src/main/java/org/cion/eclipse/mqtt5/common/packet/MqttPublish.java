@@ -22,9 +22,11 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 import org.cion.eclipse.mqtt5.common.MqttException;
 import org.cion.eclipse.mqtt5.common.MqttMessage;
+import org.cion.eclipse.mqtt5.common.MqttPersistenceException;
 import org.cion.eclipse.mqtt5.common.packet.util.CountingInputStream;
 
 /**
@@ -47,6 +49,15 @@ public class MqttPublish extends MqttPersistableWireMessage {
 	private boolean dup = false;
 	private String topicName;
 
+	// The encoded fixed and variable headers, shared by persistence, sending and
+	// redelivery until the message is changed. The arrays are never modified once
+	// built. The persisted header is encoded without the topic alias.
+	private byte[] encodedHeader;
+	private byte[] encodedPersistedHeader;
+	// The topic alias encodedHeader was built with, the alias is set through the
+	// properties rather than on this message
+	private Integer encodedTopicAlias;
+
 	/**
 	 * Constructs a new MqttPublish message
 	 *
@@ -85,6 +96,28 @@ public class MqttPublish extends MqttPersistableWireMessage {
 	 *             - If an exception occurs decoding this packet
 	 */
 	public MqttPublish(byte info, byte[] data) throws MqttException, IOException {
+		this(info, data, 0, data.length);
+	}
+
+	/**
+	 * Constructs a new MqttPublish message from a region of a byte array. The
+	 * payload is copied out of the array, so the array may be reused once the
+	 * constructor returns.
+	 *
+	 * @param info
+	 *            - Info Byte
+	 * @param data
+	 *            - The array holding the variable header and payload bytes.
+	 * @param offset
+	 *            - The offset of the variable header in the array.
+	 * @param length
+	 *            - The length of the variable header and payload.
+	 * @throws IOException
+	 *             - if an exception occurs when decoding an input stream
+	 * @throws MqttException
+	 *             - If an exception occurs decoding this packet
+	 */
+	public MqttPublish(byte info, byte[] data, int offset, int length) throws MqttException, IOException {
 		super(MqttWireMessage.MESSAGE_TYPE_PUBLISH);
 		this.properties = new MqttProperties(validProperties);
 		this.qos = (info >> 1) & 0x03;
@@ -96,7 +129,7 @@ public class MqttPublish extends MqttPersistableWireMessage {
 			this.dup = true;
 		}
 
-		ByteArrayInputStream bais = new ByteArrayInputStream(data);
+		ByteArrayInputStream bais = new ByteArrayInputStream(data, offset, length);
 		CountingInputStream counter = new CountingInputStream(bais);
 		DataInputStream dis = new DataInputStream(counter);
 
@@ -105,8 +138,9 @@ public class MqttPublish extends MqttPersistableWireMessage {
 			msgId = dis.readUnsignedShort();
 		}
 		this.properties.decodeProperties(dis);
-		this.payload = new byte[data.length - counter.getCounter()];
-		dis.readFully(this.payload);
+		int headerLength = counter.getCounter();
+		this.payload = new byte[length - headerLength];
+		System.arraycopy(data, offset + headerLength, this.payload, 0, this.payload.length);
 		dis.close();
 	}
 
@@ -118,7 +152,7 @@ public class MqttPublish extends MqttPersistableWireMessage {
 
 			// If we are using a Topic Alias, then the topic should be empty
 			if (topicName != null) {
-				MqttDataTypes.encodeUTF8(dos, topicName);
+				MqttDataTypes.encodeTopic(dos, topicName);
 			} else {
 				MqttDataTypes.encodeUTF8(dos, "");
 			}
@@ -127,8 +161,7 @@ public class MqttPublish extends MqttPersistableWireMessage {
 				dos.writeShort(msgId);
 			}
 			// Write Identifier / Value Fields
-			byte[] identifierValueFieldsArray = this.properties.encodeProperties();
-			dos.write(identifierValueFieldsArray);
+			this.properties.encodeProperties(dos);
 			dos.flush();
 			return baos.toByteArray();
 		} catch (IOException ioe) {
@@ -136,6 +169,83 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		}
 	}
 
+	/**
+	 * Returns the fixed and variable headers, encoding them only the first time
+	 * or after the message has changed. A change to the DUP flag only copies the
+	 * encoded header with a new first byte.
+	 */
+	@Override
+	public synchronized byte[] getHeader() throws MqttException {
+		Integer topicAlias = this.properties.getTopicAlias();
+		if (encodedHeader == null || (topicAlias == null ? encodedTopicAlias != null
+				: !topicAlias.equals(encodedTopicAlias))) {
+			encodedHeader = super.getHeader();
+			encodedTopicAlias = topicAlias;
+		}
+		encodedHeader = withMessageInfo(encodedHeader);
+		return encodedHeader;
+	}
+
+	@Override
+	public synchronized ByteBuffer[] getBuffers() throws MqttException {
+		return new ByteBuffer[] { ByteBuffer.wrap(getHeader()), ByteBuffer.wrap(getPayload()) };
+	}
+
+	/**
+	 * Returns the header to persist, which does not include the topic alias as
+	 * aliases do not survive a reconnect.
+	 */
+	@Override
+	public synchronized byte[] getHeaderBytes() throws MqttPersistenceException {
+		try {
+			Integer topicAlias = this.properties.getTopicAlias();
+			if (topicAlias == null) {
+				return getHeader();
+			}
+			if (encodedPersistedHeader == null) {
+				// Remove the Topic Alias temporarily.
+				this.properties.setTopicAlias(null);
+				try {
+					encodedPersistedHeader = super.getHeader();
+				} finally {
+					this.properties.setTopicAlias(topicAlias);
+				}
+			}
+			encodedPersistedHeader = withMessageInfo(encodedPersistedHeader);
+			return encodedPersistedHeader;
+		} catch (MqttException ex) {
+			throw new MqttPersistenceException(ex.getCause());
+		}
+	}
+
+	/**
+	 * @return the header if its first byte is up to date, otherwise a copy of it
+	 *         with the current QoS, retain and DUP flags
+	 */
+	private byte[] withMessageInfo(byte[] header) {
+		byte first = (byte) (((getType() & 0x0f) << 4) ^ (getMessageInfo() & 0x0f));
+		if (header[0] == first) {
+			return header;
+		}
+		byte[] copy = header.clone();
+		copy[0] = first;
+		return copy;
+	}
+
+	/**
+	 * Discards the encoded headers, called whenever a field they hold changes.
+	 */
+	private synchronized void invalidateHeader() {
+		encodedHeader = null;
+		encodedPersistedHeader = null;
+	}
+
+	@Override
+	public void setMessageId(int msgId) {
+		super.setMessageId(msgId);
+		invalidateHeader();
+	}
+
 	@Override
 	protected byte getMessageInfo() {
 		byte info = (byte) (this.qos << 1);
@@ -179,6 +289,7 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		this.qos = message.getQos();
 		this.dup = message.isDuplicate();
 		this.retained = message.isRetained();
+		invalidateHeader();
 	}
 
 	public String getTopicName() {
@@ -191,6 +302,7 @@ public class MqttPublish extends MqttPersistableWireMessage {
 
 	public void setTopicName(String topicName) {
 		this.topicName = topicName;
+		invalidateHeader();
 	}
 
 	@Override
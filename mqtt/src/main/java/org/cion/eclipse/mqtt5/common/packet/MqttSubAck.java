@@ -85,9 +85,7 @@ public class MqttSubAck extends MqttAck {
 			outputStream.writeShort(msgId);
 
 			// Write Identifier / Value Fields
-			byte[] identifierValueFieldsByteArray = this.properties.encodeProperties();
-			// Write Identifier / Value Fields
-			outputStream.write(identifierValueFieldsByteArray);
+			this.properties.encodeProperties(outputStream);
 
 			outputStream.flush();
 			return baos.toByteArray();
@@ -163,8 +163,7 @@ public class MqttSubscribe extends MqttPersistableWireMessage {
             outputStream.writeShort(msgId);
 
             // Write Identifier / Value Fields
-            byte[] identifierValueFieldsByteArray = this.properties.encodeProperties();
-            outputStream.write(identifierValueFieldsByteArray);
+            this.properties.encodeProperties(outputStream);
 
             outputStream.flush();
             return baos.toByteArray();
@@ -186,7 +185,7 @@ public class MqttSubscribe extends MqttPersistableWireMessage {
             }
             if (names != null) {
                 for (int i = 0; i < names.length; i++) {
-                    encodeUTF8(outputStream, names[i]);
+                    MqttDataTypes.encodeTopic(outputStream, names[i]);
                     outputStream.writeByte(qos[i]);
                 }
             }
@@ -216,7 +215,7 @@ public class MqttSubscribe extends MqttPersistableWireMessage {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             DataOutputStream outputStream = new DataOutputStream(baos);
 
-            MqttDataTypes.encodeUTF8(outputStream, subscription.getTopic());
+            MqttDataTypes.encodeTopic(outputStream, subscription.getTopic());
 
             // Encode Subscription QoS
             byte subscriptionOptions = (byte) subscription.getQos();
@@ -82,8 +82,7 @@ public class MqttUnsubscribe extends MqttPersistableWireMessage{
 
 
 			// Write Identifier / Value Fields
-			byte[] identifierValueFieldsByteArray = this.properties.encodeProperties();
-			outputStream.write(identifierValueFieldsByteArray);
+			this.properties.encodeProperties(outputStream);
 			outputStream.flush();
 			return baos.toByteArray();
 		} catch (IOException ioe) {
@@ -98,7 +97,7 @@ public class MqttUnsubscribe extends MqttPersistableWireMessage{
 			DataOutputStream outputStream = new DataOutputStream(baos);
 			
 			for(String topic : topics){
-				MqttDataTypes.encodeUTF8(outputStream, topic);
+				MqttDataTypes.encodeTopic(outputStream, topic);
 			}
 			
 			outputStream.flush();
@@ -23,6 +23,8 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.cion.eclipse.mqtt5.common.ExceptionHelper;
 import org.cion.eclipse.mqtt5.common.MqttException;
@@ -156,6 +158,27 @@ public abstract class MqttWireMessage {
         }
     }
 
+    /**
+     * Returns the message as three buffers: the fixed header, the variable header
+     * (including any properties) and the payload. Unlike {@link #getHeader()} the
+     * parts are not copied into a single array, so they can be written with a
+     * gathering write. The payload buffer wraps the payload array itself.
+     *
+     * @return The fixed header, variable header and payload buffers
+     * @throws MqttException if there was an issue encoding the message
+     */
+    public ByteBuffer[] getBuffers() throws MqttException {
+        byte[] varHeader = getVariableHeader();
+        byte[] payload = getPayload();
+        byte[] remLen = encodeVariableByteInteger(varHeader.length + payload.length);
+
+        byte[] fixedHeader = new byte[1 + remLen.length];
+        fixedHeader[0] = (byte) (((getType() & 0x0f) << 4) ^ (getMessageInfo() & 0x0f));
+        System.arraycopy(remLen, 0, fixedHeader, 1, remLen.length);
+        return new ByteBuffer[]{ByteBuffer.wrap(fixedHeader), ByteBuffer.wrap(varHeader),
+                ByteBuffer.wrap(payload)};
+    }
+
     protected abstract byte[] getVariableHeader() throws MqttException;
 
     /**
@@ -199,13 +222,7 @@ public abstract class MqttWireMessage {
             CountingInputStream counter = new CountingInputStream(inputStream);
             DataInputStream in = new DataInputStream(counter);
             int first = in.readUnsignedByte();
-            byte type = (byte) (first >> 4);
-            byte info = (byte) (first &= 0x0f);
-            long remLen = MqttDataTypes.readVariableByteInteger(in).getValue();
-            long totalToRead = counter.getCounter() + remLen;
-
-            MqttWireMessage result;
-            long remainder = totalToRead - counter.getCounter();
+            long remainder = MqttDataTypes.readVariableByteInteger(in).getValue();
             byte[] data = new byte[0];
 
             // The remaining bytes must be the payload
@@ -214,6 +231,37 @@ public abstract class MqttWireMessage {
                 in.readFully(data, 0, data.length);
             }
 
+            return createWireMessage((byte) first, data, 0, data.length);
+        } catch (IOException ioe) {
+            throw new MqttException(ioe);
+        }
+    }
+
+    /**
+     * Create an MQTT Wire Message from the first byte of its fixed header and the
+     * bytes that follow the remaining length. A PUBLISH payload is copied out of
+     * the supplied array, so the array can be reused as soon as this returns.
+     *
+     * @param first  the first byte of the fixed header (type and flags)
+     * @param data   the array holding the variable header and payload
+     * @param offset the offset of the variable header in the array
+     * @param length the remaining length of the packet
+     * @return MqttWireMessage the decoded message
+     * @throws MqttException if an error occurred whilst decoding the message
+     */
+    public static MqttWireMessage createWireMessage(byte first, byte[] data, int offset, int length)
+            throws MqttException {
+        byte type = (byte) ((first >> 4) & 0x0f);
+        byte info = (byte) (first & 0x0f);
+        try {
+            if (type == MqttWireMessage.MESSAGE_TYPE_PUBLISH) {
+                return new MqttPublish(info, data, offset, length);
+            }
+            if (offset != 0 || length != data.length) {
+                data = Arrays.copyOfRange(data, offset, offset + length);
+            }
+
+            MqttWireMessage result;
             switch (type) {
                 case MqttWireMessage.MESSAGE_TYPE_CONNECT:
                     result = new MqttConnect(info, data);
@@ -221,9 +269,6 @@ public abstract class MqttWireMessage {
                 case MqttWireMessage.MESSAGE_TYPE_CONNACK:
                     result = new MqttConnAck(data);
                     break;
-                case MqttWireMessage.MESSAGE_TYPE_PUBLISH:
-                    result = new MqttPublish(info, data);
-                    break;
                 case MqttWireMessage.MESSAGE_TYPE_PUBACK:
                     result = new MqttPubAck(data);
                     break;
@@ -0,0 +1,169 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.common.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which topics have been validated and how they are encoded, so that
+ * a client publishing to the same topics over and over does not validate and
+ * encode each of them every time.
+ * <p>
+ * The cache holds up to a maximum number of topics and discards the least
+ * recently used one when it is full. Only valid topics are cached, an invalid
+ * topic is checked, and rejected, every time it is used. One cache is shared by
+ * every client, see {@link #getInstance()}, as neither the result of the
+ * validation nor the encoding depends on the client.
+ */
+public final class MqttTopicCache {
+
+	/** The default maximum number of topics cached. */
+	public static final int MAXIMUM_SIZE_DEFAULT = 256;
+
+	private static final MqttTopicCache INSTANCE = new MqttTopicCache(MAXIMUM_SIZE_DEFAULT);
+
+	// Bits of CachedTopic.validated, one for each way a topic can be validated
+	private static final int VALID_NAME = 1;
+	private static final int VALID_NAME_NO_SHARED = 2;
+	private static final int VALID_FILTER = 4;
+	private static final int VALID_FILTER_NO_SHARED = 8;
+
+	private static final class CachedTopic {
+		int validated;
+		byte[] encoded;
+	}
+
+	private final LinkedHashMap<String, CachedTopic> entries;
+	private int maximumSize;
+
+	/**
+	 * @return the cache used by the client
+	 */
+	public static MqttTopicCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Creates a cache.
+	 * @param maximumSize the maximum number of topics cached, 0 to cache none
+	 */
+	public MqttTopicCache(int maximumSize) {
+		if (maximumSize < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maximumSize = maximumSize;
+		this.entries = new LinkedHashMap<String, CachedTopic>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedTopic> eldest) {
+				return size() > MqttTopicCache.this.maximumSize;
+			}
+		};
+	}
+
+	/**
+	 * Sets the maximum number of topics cached, discarding the least recently
+	 * used topics if there are already more than that.
+	 * @param maximumSize the maximum number of topics, 0 to cache none
+	 */
+	public synchronized void setMaximumSize(int maximumSize) {
+		if (maximumSize < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maximumSize = maximumSize;
+		while (entries.size() > maximumSize) {
+			entries.remove(entries.keySet().iterator().next());
+		}
+	}
+
+	/**
+	 * @return the maximum number of topics cached
+	 */
+	public synchronized int getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * @return the number of topics cached
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Discards every cached topic.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Validates a topic name or topic filter as
+	 * {@link MqttTopicValidator#validate(String, boolean, boolean)} does, unless
+	 * it has already been validated the same way.
+	 *
+	 * @param topicString
+	 *            topic name or filter
+	 * @param wildcardAllowed
+	 *            true if validate topic filter, false otherwise
+	 * @param sharedSubAllowed
+	 *            true if shared subscription is allowed, false otherwise
+	 * @throws IllegalArgumentException
+	 *             if the topic is invalid
+	 */
+	public void validate(String topicString, boolean wildcardAllowed, boolean sharedSubAllowed)
+			throws IllegalArgumentException {
+		int bit = wildcardAllowed ? (sharedSubAllowed ? VALID_FILTER : VALID_FILTER_NO_SHARED)
+				: (sharedSubAllowed ? VALID_NAME : VALID_NAME_NO_SHARED);
+		synchronized (this) {
+			CachedTopic entry = entries.get(topicString);
+			if (entry != null && (entry.validated & bit) != 0) {
+				return;
+			}
+		}
+		MqttTopicValidator.validate(topicString, wildcardAllowed, sharedSubAllowed);
+		synchronized (this) {
+			entry(topicString).validated |= bit;
+		}
+	}
+
+	/**
+	 * @param topicString the topic
+	 * @return the encoding stored for the topic, or null if there is none. The
+	 *         array must not be modified.
+	 */
+	public synchronized byte[] getEncoded(String topicString) {
+		CachedTopic entry = entries.get(topicString);
+		return entry == null ? null : entry.encoded;
+	}
+
+	/**
+	 * Stores the encoding of a topic.
+	 * @param topicString the topic
+	 * @param encoded the encoded topic, which must not be modified afterwards
+	 */
+	public synchronized void putEncoded(String topicString, byte[] encoded) {
+		entry(topicString).encoded = encoded;
+	}
+
+	private CachedTopic entry(String topicString) {
+		CachedTopic entry = entries.get(topicString);
+		if (entry == null) {
+			entry = new CachedTopic();
+			if (maximumSize > 0) {
+				entries.put(topicString, entry);
+			}
+		}
+		return entry;
+	}
+}
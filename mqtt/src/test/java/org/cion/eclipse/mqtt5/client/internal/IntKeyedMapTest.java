@@ -0,0 +1,129 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IntKeyedMapTest {
+	// Keys this far apart fall in the same stripe and, while the stripe has
+	// its initial capacity, the same slot
+	private static final int COLLIDING = 16 * 8;
+
+	@Test
+	public void testCollisions() {
+		IntKeyedMap<String> map = new IntKeyedMap<String>();
+		int a = 1;
+		int b = a + COLLIDING;
+		int c = b + COLLIDING;
+		map.put(a, "a");
+		map.put(b, "b");
+		map.put(c, "c");
+		assertEquals("a", map.get(a));
+		assertEquals("b", map.get(b));
+		assertEquals("c", map.get(c));
+		assertEquals(3, map.size());
+
+		assertEquals("b", map.put(b, "B"));
+		assertEquals("B", map.putIfAbsent(b, "x"));
+		assertEquals("B", map.get(b));
+		assertNull(map.get(c + COLLIDING));
+	}
+
+	@Test
+	public void testRemove() {
+		IntKeyedMap<String> map = new IntKeyedMap<String>();
+		// The run of colliding keys starts in the last slot and wraps around
+		// to the first ones
+		int a = 1 + 7 * 16;
+		int b = a + COLLIDING;
+		int c = b + COLLIDING;
+		map.put(a, "a");
+		map.put(b, "b");
+		map.put(c, "c");
+
+		// The entries after a removed one are still found
+		assertEquals("a", map.remove(a));
+		assertNull(map.get(a));
+		assertEquals("b", map.get(b));
+		assertEquals("c", map.get(c));
+		assertNull(map.remove(a));
+
+		assertEquals("c", map.remove(c));
+		assertEquals("b", map.get(b));
+		assertEquals("b", map.remove(b));
+		assertTrue(map.isEmpty());
+
+		// A slot left empty can be used again
+		map.put(c, "c");
+		assertEquals("c", map.get(c));
+		assertFalse(map.containsKey(a));
+	}
+
+	@Test
+	public void testResize() {
+		IntKeyedMap<Integer> map = new IntKeyedMap<Integer>();
+		int count = MessageIdAllocator.MAX_MSG_ID;
+		for (int key = 1; key <= count; key++) {
+			map.put(key, Integer.valueOf(key));
+		}
+		assertEquals(count, map.size());
+		assertEquals(count, map.values().size());
+		assertEquals(count, new HashSet<Integer>(map.values()).size());
+		for (int key = 1; key <= count; key++) {
+			assertEquals(Integer.valueOf(key), map.get(key));
+		}
+
+		for (int key = 1; key <= count; key += 2) {
+			assertEquals(Integer.valueOf(key), map.remove(key));
+		}
+		assertEquals(count / 2, map.size());
+		for (int key = 1; key <= count; key++) {
+			assertEquals(key % 2 == 0, map.containsKey(key));
+		}
+
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.get(2));
+		map.put(2, Integer.valueOf(2));
+		assertEquals(Integer.valueOf(2), map.get(2));
+	}
+
+	@Test
+	public void testAgainstHashMap() {
+		IntKeyedMap<Integer> map = new IntKeyedMap<Integer>();
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		Random random = new Random(0);
+		// Few enough keys, all in one stripe, that runs form and wrap around
+		for (int i = 0; i < 100000; i++) {
+			int key = 1 + random.nextInt(64) * 16;
+			Integer value = Integer.valueOf(i);
+			if (random.nextBoolean()) {
+				assertEquals(expected.put(key, value), map.put(key, value));
+			} else {
+				assertEquals(expected.remove(key), map.remove(key));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), map.get(entry.getKey()));
+		}
+	}
+}
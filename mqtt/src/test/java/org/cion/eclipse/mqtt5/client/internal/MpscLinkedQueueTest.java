@@ -0,0 +1,145 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class MpscLinkedQueueTest {
+	private static final int PRODUCERS = 4;
+	private static final int PER_PRODUCER = 100000;
+	private static final long TIMEOUT = 30000;
+
+	/** An element that records which producer offered it and in what order. */
+	private static final class Element {
+		final int producer;
+		final int sequence;
+
+		Element(int producer, int sequence) {
+			this.producer = producer;
+			this.sequence = sequence;
+		}
+	}
+
+	@Test
+	public void testFifoAndRemove() {
+		MpscLinkedQueue<String> queue = new MpscLinkedQueue<String>();
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+
+		queue.offer("a");
+		queue.offer("b");
+		queue.offer("c");
+		assertEquals(3, queue.size());
+		assertTrue(queue.remove("b"));
+		assertFalse(queue.remove("b"));
+		assertEquals(2, queue.size());
+		assertEquals("[a, c]", queue.toString());
+
+		assertEquals("a", queue.peek());
+		assertEquals("a", queue.poll());
+		assertEquals("c", queue.poll());
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+		assertEquals(0, queue.size());
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void testConcurrentProducers() throws Exception {
+		MpscLinkedQueue<Element> queue = new MpscLinkedQueue<Element>();
+		Thread[] producers = startProducers(queue, new CountDownLatch(PRODUCERS));
+
+		int[] next = new int[PRODUCERS];
+		int received = 0;
+		while (received < PRODUCERS * PER_PRODUCER) {
+			Element element = queue.poll();
+			if (element == null) {
+				Thread.yield();
+				continue;
+			}
+			// Nothing is lost or seen twice, and each producer's elements come
+			// out in the order they went in
+			assertEquals(next[element.producer], element.sequence);
+			next[element.producer]++;
+			received++;
+		}
+		join(producers);
+
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+		assertEquals(0, queue.size());
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void testClearWhileProducing() throws Exception {
+		MpscLinkedQueue<Element> queue = new MpscLinkedQueue<Element>();
+		CountDownLatch done = new CountDownLatch(PRODUCERS);
+		Thread[] producers = startProducers(queue, done);
+
+		int[] last = new int[PRODUCERS];
+		Arrays.fill(last, -1);
+		while (done.getCount() > 0) {
+			queue.clear();
+			// What is offered after a clear still comes out in order
+			for (int i = 0; i < 100; i++) {
+				Element element = queue.poll();
+				if (element == null) {
+					break;
+				}
+				assertTrue(element.sequence > last[element.producer]);
+				last[element.producer] = element.sequence;
+			}
+		}
+		join(producers);
+		queue.clear();
+
+		assertTrue(queue.isEmpty());
+		assertEquals(0, queue.size());
+		// The queue is still usable
+		Element element = new Element(0, 0);
+		queue.offer(element);
+		assertEquals(1, queue.size());
+		assertSame(element, queue.poll());
+		assertNull(queue.poll());
+	}
+
+	private static Thread[] startProducers(final MpscLinkedQueue<Element> queue, final CountDownLatch done) {
+		Thread[] producers = new Thread[PRODUCERS];
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int producer = p;
+			producers[p] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < PER_PRODUCER; i++) {
+						queue.offer(new Element(producer, i));
+					}
+					done.countDown();
+				}
+			}, "producer " + p);
+			producers[p].start();
+		}
+		return producers;
+	}
+
+	private static void join(Thread[] threads) throws InterruptedException {
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+}
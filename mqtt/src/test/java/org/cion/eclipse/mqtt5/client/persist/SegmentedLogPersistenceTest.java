@@ -0,0 +1,190 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.cion.eclipse.mqtt5.client.persist;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.cion.eclipse.mqtt5.client.internal.MqttPersistentData;
+import org.cion.eclipse.mqtt5.common.MqttPersistable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentedLogPersistenceTest {
+	private static final String CLIENT_ID = "client";
+	// Only one record of DATA_SIZE bytes fits in a segment
+	private static final int SEGMENT_SIZE = 512;
+	private static final int DATA_SIZE = 300;
+	private static final long COMPACTION_TIMEOUT = 5000;
+
+	private File dir;
+	private SegmentedLogPersistence persistence;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("segmented-log", "");
+		dir.delete();
+		persistence = new SegmentedLogPersistence(dir.getPath(), SEGMENT_SIZE);
+		persistence.open(CLIENT_ID);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		persistence.close();
+		delete(dir);
+	}
+
+	@Test
+	public void testRecordsSurviveReopen() throws Exception {
+		persistence.put("a", data("a", DATA_SIZE));
+		persistence.put("b", data("b", 10));
+		persistence.remove("b");
+		persistence.put("c", data("c", DATA_SIZE));
+		reopen();
+
+		assertData("a", DATA_SIZE);
+		assertFalse(persistence.containsKey("b"));
+		assertData("c", DATA_SIZE);
+	}
+
+	@Test
+	public void testReplayStopsAtCorruptRecord() throws Exception {
+		persistence.put("a", data("a", DATA_SIZE));
+		persistence.put("b", data("b", DATA_SIZE));
+		persistence.put("c", data("c", DATA_SIZE));
+		persistence.close();
+		File[] segments = segmentFiles();
+		assertEquals(3, segments.length);
+		// Flip a byte of the data of b, in the second segment
+		RandomAccessFile file = new RandomAccessFile(segments[1], "rw");
+		try {
+			file.seek(20);
+			int b = file.read();
+			file.seek(20);
+			file.write(b ^ 0xff);
+		} finally {
+			file.close();
+		}
+
+		persistence.open(CLIENT_ID);
+		assertData("a", DATA_SIZE);
+		assertFalse(persistence.containsKey("b"));
+		// c is intact, but the log ends at b
+		assertFalse(persistence.containsKey("c"));
+		assertEquals(2, segmentFiles().length);
+
+		// Nothing of the corrupt record is read back after appending over it
+		persistence.put("d", data("d", 10));
+		reopen();
+		assertData("a", DATA_SIZE);
+		assertData("d", 10);
+		assertEquals(2, Collections.list(persistence.keys()).size());
+	}
+
+	@Test
+	public void testCompactionSkipsMostlyLiveSegment() throws Exception {
+		// The first segment stays mostly live
+		persistence.put("pinned", data("pinned", DATA_SIZE));
+		persistence.put("a", data("a", 20));
+		// The second segment ends up dead, but for the tombstone of a
+		persistence.put("b", data("b", DATA_SIZE));
+		persistence.remove("a");
+		persistence.remove("b");
+		// Starting a third segment wakes the compactor
+		persistence.put("c", data("c", DATA_SIZE));
+
+		long deadline = System.currentTimeMillis() + COMPACTION_TIMEOUT;
+		while (segmentFiles().length > 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, segmentFiles().length);
+
+		// The tombstone of a was kept, so a does not come back
+		reopen();
+		assertData("pinned", DATA_SIZE);
+		assertFalse(persistence.containsKey("a"));
+		assertFalse(persistence.containsKey("b"));
+		assertData("c", DATA_SIZE);
+	}
+
+	@Test
+	public void testClear() throws Exception {
+		persistence.put("a", data("a", DATA_SIZE));
+		persistence.put("b", data("b", DATA_SIZE));
+		persistence.clear();
+		assertFalse(persistence.containsKey("a"));
+		assertEquals(1, segmentFiles().length);
+
+		persistence.put("c", data("c", 10));
+		reopen();
+		assertFalse(persistence.containsKey("a"));
+		assertFalse(persistence.containsKey("b"));
+		assertData("c", 10);
+	}
+
+	private void reopen() throws Exception {
+		persistence.close();
+		persistence.open(CLIENT_ID);
+	}
+
+	private void assertData(String key, int size) throws Exception {
+		MqttPersistable persistable = persistence.get(key);
+		assertNotNull(key, persistable);
+		assertNull(persistable.getPayloadBytes());
+		byte[] data = new byte[persistable.getHeaderLength()];
+		System.arraycopy(persistable.getHeaderBytes(), persistable.getHeaderOffset(), data, 0, data.length);
+		assertArrayEquals(bytes(key, size), data);
+	}
+
+	private static MqttPersistable data(String key, int size) {
+		byte[] data = bytes(key, size);
+		return new MqttPersistentData(key, data, 0, data.length, null, 0, 0);
+	}
+
+	private static byte[] bytes(String key, int size) {
+		byte[] data = new byte[size];
+		Arrays.fill(data, (byte) key.charAt(0));
+		return data;
+	}
+
+	private File[] segmentFiles() {
+		File[] files = new File(dir, CLIENT_ID).listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".log");
+			}
+		});
+		assertTrue(files != null);
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}